@@ -0,0 +1,203 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import ru.hh.rabbitmq.spring.codec.CodecMessageConverter;
+import ru.hh.rabbitmq.spring.persistent.DatabaseQueueDao;
+import ru.hh.rabbitmq.spring.persistent.DatabaseQueueSender;
+import ru.hh.rabbitmq.spring.persistent.DatabaseQueueService;
+import ru.hh.rabbitmq.spring.persistent.DbQueueProcessor;
+import ru.hh.rabbitmq.spring.persistent.JacksonDbQueueProcessor;
+import ru.hh.rabbitmq.spring.persistent.PersistentPublisherRegistry;
+import ru.hh.rabbitmq.spring.persistent.dto.TargetedDestination;
+import ru.hh.rabbitmq.spring.send.MessageSender;
+
+/**
+ * One pgq batch through {@link DatabaseQueueService#sendBatch}: decoding destinations and messages of events and publishing them to mocked
+ * channel. Database is replaced with {@link DatabaseQueueDao} returning the same prepared events, transactions are not involved.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class DatabaseQueueServiceBenchmark {
+
+  private static final String SENDER_KEY = "benchmark";
+
+  @Param({"1", "100"})
+  public int eventsPerBatch;
+
+  private CachingConnectionFactory connectionFactory;
+  private DatabaseQueueService databaseQueueService;
+
+  @Setup
+  public void setUp() throws Exception {
+    connectionFactory = MockConnectionFactories.create("localhost", 5672);
+    RabbitTemplate template = new RabbitTemplate(connectionFactory);
+    template.setMessageConverter(new CodecMessageConverter());
+    MessageSender messageSender = new MessageSender(template, null, null);
+
+    TargetedDestination destination = new TargetedDestination("exchange", "routingKey", Payloads.Event.class,
+        JacksonDbQueueProcessor.INSTANCE.getKey(), SENDER_KEY, null);
+    String type = new ObjectMapper().writeValueAsString(destination);
+    String data = JacksonDbQueueProcessor.INSTANCE.convertToDb(Payloads.event());
+    List<Tuple> events = new ArrayList<>(eventsPerBatch);
+    for (int i = 0; i < eventsPerBatch; i++) {
+      events.add(new EventTuple(i, data, type));
+    }
+
+    PersistentPublisherRegistry registry = new PersistentPublisherRegistry();
+    registry.registerSender(SENDER_KEY, new BenchmarkSender(messageSender));
+    databaseQueueService = new DatabaseQueueService(new BatchDao(events), registry);
+  }
+
+  @TearDown
+  public void tearDown() {
+    connectionFactory.destroy();
+  }
+
+  @Benchmark
+  public void sendBatch() {
+    databaseQueueService.sendBatch(SENDER_KEY, eventsPerBatch, 1, false);
+  }
+
+  private static final class BatchDao extends DatabaseQueueDao {
+    private final List<Tuple> events;
+
+    BatchDao(List<Tuple> events) {
+      super(null);
+      this.events = events;
+    }
+
+    @Override
+    public Optional<Long> getNextBatchId(String queueName, String consumerName) {
+      return Optional.of(1L);
+    }
+
+    @Override
+    public List<Tuple> getNextBatchEvents(long batchId) {
+      return events;
+    }
+
+    @Override
+    public int finishBatch(long batchId) {
+      return 1;
+    }
+  }
+
+  private static final class BenchmarkSender implements DatabaseQueueSender {
+    private final MessageSender messageSender;
+
+    BenchmarkSender(MessageSender messageSender) {
+      this.messageSender = messageSender;
+    }
+
+    @Override
+    public String getDatabaseQueueName() {
+      return "benchmark_queue";
+    }
+
+    @Override
+    public Optional<String> getErrorTableName() {
+      return Optional.empty();
+    }
+
+    @Override
+    public String getConsumerName() {
+      return "benchmark_consumer";
+    }
+
+    @Override
+    public MessageSender getMessageSender() {
+      return messageSender;
+    }
+
+    @Override
+    public DbQueueProcessor getConverter(String converterKey) {
+      return JacksonDbQueueProcessor.INSTANCE;
+    }
+
+    @Override
+    public void onAmpqException(Exception e, long eventId, long batchId, TargetedDestination destination, Object message) {
+      throw new IllegalStateException("failed to publish event " + eventId, e);
+    }
+
+    @Override
+    public <T> T onConvertationException(Exception e, long eventId, String destinationContent, String messageContent) {
+      throw new IllegalStateException("failed to decode event " + eventId, e);
+    }
+
+    @Override
+    public Duration getRetryDuration() {
+      return Duration.ofSeconds(1);
+    }
+  }
+
+  /**
+   * Row of {@code pgq.get_batch_events}: ev_id, ev_data, ev_type.
+   */
+  private static final class EventTuple implements Tuple {
+    private final Object[] values;
+
+    EventTuple(long id, String data, String type) {
+      values = new Object[] {id, data, type};
+    }
+
+    @Override
+    public <X> X get(TupleElement<X> tupleElement) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <X> X get(String alias, Class<X> type) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object get(String alias) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <X> X get(int i, Class<X> type) {
+      return type.cast(values[i]);
+    }
+
+    @Override
+    public Object get(int i) {
+      return values[i];
+    }
+
+    @Override
+    public Object[] toArray() {
+      return values.clone();
+    }
+
+    @Override
+    public List<TupleElement<?>> getElements() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.hh.rabbitmq.spring.persistent.JacksonDbQueueProcessor;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class JacksonDbQueueProcessorBenchmark {
+
+  private Payloads.Event event;
+  private String eventData;
+
+  @Setup
+  public void setUp() {
+    event = Payloads.event();
+    eventData = JacksonDbQueueProcessor.INSTANCE.convertToDb(event);
+  }
+
+  @Benchmark
+  public String convertToDb() {
+    return JacksonDbQueueProcessor.INSTANCE.convertToDb(event);
+  }
+
+  @Benchmark
+  public Payloads.Event convertFromDb() {
+    return JacksonDbQueueProcessor.INSTANCE.convertFromDb(eventData, Payloads.Event.class);
+  }
+}
@@ -0,0 +1,79 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Envelope;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.MDC;
+import org.springframework.amqp.core.MessageProperties;
+import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
+
+/**
+ * Copying MDC context to headers of outgoing message and back to MDC from headers of incoming one. State is per thread as MDC is.
+ * {@code propagation} is the whole context ({@code all}), three whitelisted keys ({@code keys}) or the same keys in one header ({@code compact}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Thread)
+public class MDCMessagePropertiesConverterBenchmark {
+
+  private static final String CHARSET = "UTF-8";
+
+  private static final List<String> KEYS = Arrays.asList("key0", "key1", "key2");
+
+  @Param({"0", "3", "10"})
+  public int mdcSize;
+
+  @Param({"all", "keys", "compact"})
+  public String propagation;
+
+  private MDCMessagePropertiesConverter converter;
+  private final Envelope envelope = new Envelope(1L, false, "exchange", "routingKey");
+  private BasicProperties incomingProperties;
+
+  @Setup
+  public void setUp() {
+    if ("all".equals(propagation)) {
+      converter = new MDCMessagePropertiesConverter();
+    } else {
+      converter = new MDCMessagePropertiesConverter(KEYS, "compact".equals(propagation));
+    }
+    MDC.clear();
+    for (int i = 0; i < mdcSize; i++) {
+      MDC.put("key" + i, "value" + i);
+    }
+    incomingProperties = converter.fromMessageProperties(newMessageProperties(), CHARSET);
+  }
+
+  @Benchmark
+  public BasicProperties fromMessageProperties() {
+    return converter.fromMessageProperties(newMessageProperties(), CHARSET);
+  }
+
+  @Benchmark
+  public MessageProperties toMessageProperties() {
+    return converter.toMessageProperties(incomingProperties, envelope, CHARSET);
+  }
+
+  private static MessageProperties newMessageProperties() {
+    MessageProperties messageProperties = new MessageProperties();
+    messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+    messageProperties.setHeader("__TypeId__", "ru.hh.Event");
+    return messageProperties;
+  }
+}
@@ -0,0 +1,80 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import ru.hh.rabbitmq.spring.codec.CodecMessageConverter;
+import ru.hh.rabbitmq.spring.send.Destination;
+import ru.hh.rabbitmq.spring.send.MessageSender;
+import ru.hh.rabbitmq.spring.send.PublishInterceptor;
+
+/**
+ * Single message through {@link MessageSender}: conversion to json by Jackson or generated codec, spring template and cached channel of
+ * mocked connection. {@code publishIntercepted} adds a chain of pass-through {@link PublishInterceptor}s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class MessageSenderBenchmark {
+
+  private static final Destination DESTINATION = new Destination("exchange", "routingKey");
+
+  private CachingConnectionFactory connectionFactory;
+  private MessageSender messageSender;
+  private MessageSender interceptedMessageSender;
+  private Payloads.Event event;
+  private Payloads.CodecEvent codecEvent;
+
+  @Setup
+  public void setUp() {
+    connectionFactory = MockConnectionFactories.create("localhost", 5672);
+    RabbitTemplate template = new RabbitTemplate(connectionFactory);
+    template.setMessageConverter(new CodecMessageConverter());
+    messageSender = new MessageSender(template, null, null);
+    PublishInterceptor passThrough = (message, exchange, routingKey, correlationData, next) ->
+        next.proceed(message, exchange, routingKey, correlationData);
+    interceptedMessageSender = new MessageSender(template, null, null, Arrays.asList(passThrough, passThrough, passThrough));
+    event = Payloads.event();
+    codecEvent = Payloads.codecEvent();
+  }
+
+  @TearDown
+  public void tearDown() {
+    connectionFactory.destroy();
+  }
+
+  @Benchmark
+  public void publishString() {
+    messageSender.publishMessage("benchmark message", DESTINATION);
+  }
+
+  @Benchmark
+  public void publishJackson() {
+    messageSender.publishMessage(event, DESTINATION);
+  }
+
+  @Benchmark
+  public void publishGeneratedCodec() {
+    messageSender.publishMessage(codecEvent, DESTINATION);
+  }
+
+  @Benchmark
+  public void publishIntercepted() {
+    interceptedMessageSender.publishMessage(codecEvent, DESTINATION);
+  }
+}
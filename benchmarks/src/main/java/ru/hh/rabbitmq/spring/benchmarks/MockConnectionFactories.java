@@ -0,0 +1,129 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import com.rabbitmq.client.AddressResolver;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
+
+/**
+ * <p>
+ * Spring {@link CachingConnectionFactory} on top of amqp-client {@link Connection} and {@link Channel} that do nothing, so benchmarks
+ * measure the client and spring-amqp code without network and broker. Methods of mocks return default values, {@code isOpen} returns true.
+ * </p>
+ */
+public final class MockConnectionFactories {
+
+  private MockConnectionFactories() {
+  }
+
+  public static CachingConnectionFactory create(String host, int port) {
+    MockConnection connection = new MockConnection(port);
+    com.rabbitmq.client.ConnectionFactory rabbitConnectionFactory = new com.rabbitmq.client.ConnectionFactory() {
+      @Override
+      public Connection newConnection(ExecutorService executor, AddressResolver addressResolver, String clientProvidedName) {
+        return connection.proxy;
+      }
+    };
+    rabbitConnectionFactory.setAutomaticRecoveryEnabled(false);
+    CachingConnectionFactory connectionFactory = new CachingConnectionFactory(rabbitConnectionFactory);
+    connectionFactory.setHost(host);
+    connectionFactory.setPort(port);
+    return connectionFactory;
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == long.class) {
+      return 0L;
+    } else if (type == double.class) {
+      return 0.0;
+    } else if (type == float.class) {
+      return 0.0f;
+    } else if (type == short.class) {
+      return (short) 0;
+    } else if (type == byte.class) {
+      return (byte) 0;
+    } else if (type == char.class) {
+      return '\0';
+    }
+    return null;
+  }
+
+  private static final class MockConnection implements InvocationHandler {
+    final Connection proxy;
+    final AtomicInteger channelNumbers = new AtomicInteger();
+    final int port;
+
+    MockConnection(int port) {
+      this.port = port;
+      proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "createChannel":
+          return new MockChannel(this, channelNumbers.incrementAndGet()).proxy;
+        case "isOpen":
+          return true;
+        case "getAddress":
+          return InetAddress.getLoopbackAddress();
+        case "getPort":
+          return port;
+        case "getServerProperties":
+        case "getClientProperties":
+          return Collections.emptyMap();
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "MockConnection";
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+
+  private static final class MockChannel implements InvocationHandler {
+    final Channel proxy;
+    final MockConnection connection;
+    final int channelNumber;
+
+    MockChannel(MockConnection connection, int channelNumber) {
+      this.connection = connection;
+      this.channelNumber = channelNumber;
+      proxy = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[] {Channel.class}, this);
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+      switch (method.getName()) {
+        case "isOpen":
+          return true;
+        case "getChannelNumber":
+          return channelNumber;
+        case "getConnection":
+          return connection.proxy;
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "MockChannel " + channelNumber;
+        default:
+          return defaultValue(method.getReturnType());
+      }
+    }
+  }
+}
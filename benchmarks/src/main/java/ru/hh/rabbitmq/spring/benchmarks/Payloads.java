@@ -0,0 +1,43 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import ru.hh.rabbitmq.spring.codec.JsonCodec;
+
+/**
+ * Typical event sent by services, shared by benchmarks. Same event is available with and without generated codec.
+ */
+public final class Payloads {
+
+  private Payloads() {
+  }
+
+  public static Event event() {
+    return fill(new Event());
+  }
+
+  public static CodecEvent codecEvent() {
+    return fill(new CodecEvent());
+  }
+
+  private static <T extends Event> T fill(T event) {
+    event.id = 1234567L;
+    event.type = "vacancy.updated";
+    event.userId = 42;
+    event.archived = false;
+    event.tags = Arrays.asList("moscow", "java", "remote");
+    return event;
+  }
+
+  public static class Event {
+    public long id;
+    public String type;
+    public int userId;
+    public boolean archived;
+    public List<String> tags;
+  }
+
+  @JsonCodec
+  public static class CodecEvent extends Event {
+  }
+}
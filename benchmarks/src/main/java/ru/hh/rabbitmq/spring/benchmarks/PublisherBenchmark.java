@@ -0,0 +1,94 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import static java.util.Collections.singletonList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_INNER_QUEUE_SIZE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_WORKERS_PER_HOST;
+import ru.hh.rabbitmq.spring.send.Destination;
+import ru.hh.rabbitmq.spring.send.Publisher;
+import ru.hh.rabbitmq.spring.send.PublisherBuilder;
+import ru.hh.rabbitmq.spring.send.QueueIsFullException;
+
+/**
+ * Enqueueing into {@link Publisher} from several threads while its workers drain inner queue into mocked channels. {@code send} never
+ * blocks, so tasks rejected because of full inner queue are counted separately from accepted ones; {@code offer} waits for free space and
+ * shows throughput of the whole publisher.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PublisherBenchmark {
+
+  private static final Destination DESTINATION = new Destination("exchange", "routingKey");
+  private static final String MESSAGE = "benchmark message";
+
+  @Param({"1", "4"})
+  public int workersPerHost;
+
+  @Param({"1000"})
+  public int innerQueueSize;
+
+  private Publisher publisher;
+
+  @Setup
+  public void setUp() {
+    Properties properties = new Properties();
+    properties.setProperty(PUBLISHER_INNER_QUEUE_SIZE, Integer.toString(innerQueueSize));
+    properties.setProperty(PUBLISHER_WORKERS_PER_HOST, Integer.toString(workersPerHost));
+    publisher = new PublisherBuilder(singletonList(MockConnectionFactories.create("localhost", 5672)), properties, null, null).build();
+    publisher.startSync();
+  }
+
+  @TearDown
+  public void tearDown() {
+    publisher.stopSync();
+  }
+
+  @Benchmark
+  public void send(SendCounters counters) {
+    try {
+      publisher.send(DESTINATION, MESSAGE);
+      counters.accepted++;
+    } catch (QueueIsFullException e) {
+      counters.rejected++;
+    }
+  }
+
+  @Benchmark
+  public Object offer() throws InterruptedException {
+    return publisher.offer(1000, DESTINATION, MESSAGE);
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class SendCounters {
+    public long accepted;
+    public long rejected;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      accepted = 0;
+      rejected = 0;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package ru.hh.rabbitmq.spring.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import ru.hh.rabbitmq.spring.simple.SimpleMessage;
+import ru.hh.rabbitmq.spring.simple.SimpleMessageConverter;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+public class SimpleMessageConverterBenchmark {
+
+  private final SimpleMessageConverter converter = new SimpleMessageConverter();
+  private SimpleMessage simpleMessage;
+  private Message message;
+
+  @Setup
+  public void setUp() {
+    Map<String, Object> headers = new HashMap<>();
+    headers.put("source", "benchmark");
+    Map<String, Object> body = new HashMap<>();
+    body.put("id", 1234567L);
+    body.put("type", "vacancy.updated");
+    body.put("userId", 42);
+    body.put("archived", false);
+    simpleMessage = new SimpleMessage(headers, body);
+    message = converter.toMessage(simpleMessage, new MessageProperties());
+  }
+
+  @Benchmark
+  public Message toMessage() {
+    return converter.toMessage(simpleMessage, new MessageProperties());
+  }
+
+  @Benchmark
+  public Object fromMessage() {
+    return converter.fromMessage(message);
+  }
+}
@@ -0,0 +1,287 @@
+package ru.hh.rabbitmq.spring.codec.processor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+/**
+ * Properties of message class as seen by generated codec. Follows Jackson defaults: public fields and public getters are written,
+ * public fields and public setters are read, names are taken from {@code @JsonProperty} or derived from accessor names. Property with
+ * getter only is read into field behind it, which must be accessible from the package of codec, otherwise the class is rejected, as such
+ * property would be silently lost by receiver using codec.
+ */
+final class CodecModel {
+
+  private static final String JSON_PROPERTY = "com.fasterxml.jackson.annotation.JsonProperty";
+  private static final String JSON_IGNORE = "com.fasterxml.jackson.annotation.JsonIgnore";
+
+  private final String packageName;
+  private final String typeName;
+  private final String codecSimpleName;
+  private final Collection<Property> properties;
+
+  private CodecModel(String packageName, String typeName, String codecSimpleName, Collection<Property> properties) {
+    this.packageName = packageName;
+    this.typeName = typeName;
+    this.codecSimpleName = codecSimpleName;
+    this.properties = properties;
+  }
+
+  static CodecModel create(TypeElement type, Elements elements, Types types) throws InvalidTypeException {
+    checkConstructor(type);
+
+    Map<String, Property> properties = new LinkedHashMap<>();
+    // implicit (field) name -> name from @JsonProperty, so accessors are bound to renamed field
+    Map<String, String> renames = new HashMap<>();
+    List<TypeElement> hierarchy = new ArrayList<>();
+    for (TypeElement current = type; current != null; current = superclass(current)) {
+      if (current.getQualifiedName().contentEquals(Object.class.getName())) {
+        break;
+      }
+      hierarchy.add(0, current);
+    }
+    // members are resolved as seen from annotated class, so type variables of generic superclasses are substituted
+    DeclaredType declaredType = (DeclaredType) type.asType();
+    // superclass properties go first, same as in Jackson
+    for (TypeElement current : hierarchy) {
+      for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+        addField(properties, renames, field, types.asMemberOf(declaredType, field));
+      }
+    }
+    for (TypeElement current : hierarchy) {
+      for (ExecutableElement method : ElementFilter.methodsIn(current.getEnclosedElements())) {
+        if (!method.getModifiers().contains(Modifier.STATIC)) {
+          addAccessor(properties, renames, method, (ExecutableType) types.asMemberOf(declaredType, method));
+        }
+      }
+    }
+    String packageName = packageName(type, elements);
+    for (Iterator<Property> iterator = properties.values().iterator(); iterator.hasNext();) {
+      Property property = iterator.next();
+      if (property.getter == null && property.setter == null) {
+        if (property.annotatedField != null) {
+          throw new InvalidTypeException(property.annotatedField, "@JsonProperty field must be public or have public accessors");
+        }
+        // field without accessors is not a property
+        iterator.remove();
+      } else if (property.getter != null && property.setter == null) {
+        // Jackson fills field behind getter, codec can do the same only if field is accessible from its package
+        VariableElement field = property.field;
+        if (field == null || field.getModifiers().contains(Modifier.PRIVATE) || field.getModifiers().contains(Modifier.FINAL)
+            || !packageName(field, elements).equals(packageName)) {
+          throw new InvalidTypeException(field != null ? field : property.getterElement, String.format(
+              "Property '%s' is written, but can't be read: add public setter, make field non-private or mark getter @JsonIgnore",
+              property.name));
+        }
+        property.setter = "result." + field.getSimpleName() + " = %s";
+      }
+    }
+
+    String typeName = types.erasure(type.asType()).toString();
+    String nestedName = packageName.isEmpty() ? typeName : typeName.substring(packageName.length() + 1);
+    String codecSimpleName = nestedName.replace('.', '_') + MessageCodecProcessor.CODEC_SUFFIX;
+    return new CodecModel(packageName, typeName, codecSimpleName, properties.values());
+  }
+
+  private static String packageName(Element element, Elements elements) {
+    PackageElement packageElement = elements.getPackageOf(element);
+    return packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+  }
+
+  private static void checkConstructor(TypeElement type) throws InvalidTypeException {
+    for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+        return;
+      }
+    }
+    throw new InvalidTypeException(type, "@JsonCodec class must have non-private no-arg constructor");
+  }
+
+  private static TypeElement superclass(TypeElement type) {
+    TypeMirror superclass = type.getSuperclass();
+    if (superclass.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    return (TypeElement) ((DeclaredType) superclass).asElement();
+  }
+
+  private static void addField(Map<String, Property> properties, Map<String, String> renames, VariableElement field, TypeMirror fieldType) {
+    Set<Modifier> modifiers = field.getModifiers();
+    if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT) || isIgnored(field)) {
+      return;
+    }
+    String annotatedName = annotatedName(field);
+    if (annotatedName != null) {
+      renames.put(field.getSimpleName().toString(), annotatedName);
+    }
+    String name = annotatedName != null ? annotatedName : field.getSimpleName().toString();
+    Property property = properties.computeIfAbsent(name, n -> new Property(n, fieldType));
+    if (!modifiers.contains(Modifier.PUBLIC)) {
+      // accessors may still expose it under the same name, checked after all accessors are collected
+      property.field = field;
+      if (annotatedName != null) {
+        property.annotatedField = field;
+      }
+      return;
+    }
+    property.getter = "value." + field.getSimpleName();
+    property.getterElement = field;
+    if (!modifiers.contains(Modifier.FINAL)) {
+      property.setter = "result." + field.getSimpleName() + " = %s";
+    }
+  }
+
+  private static void addAccessor(Map<String, Property> properties, Map<String, String> renames, ExecutableElement method,
+                                  ExecutableType methodType) {
+    Set<Modifier> modifiers = method.getModifiers();
+    if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC) || isIgnored(method)) {
+      return;
+    }
+    String methodName = method.getSimpleName().toString();
+    String annotatedName = annotatedName(method);
+    if (method.getParameters().isEmpty() && method.getReturnType().getKind() != TypeKind.VOID) {
+      String name = accessorPropertyName(methodName, methodType.getReturnType());
+      if (name == null) {
+        return;
+      }
+      Property property = properties.computeIfAbsent(annotatedName != null ? annotatedName : renames.getOrDefault(name, name),
+          n -> new Property(n, methodType.getReturnType()));
+      property.getter = "value." + methodName + "()";
+      property.getterElement = method;
+    } else if (method.getParameters().size() == 1 && method.getReturnType().getKind() == TypeKind.VOID && methodName.startsWith("set")
+        && methodName.length() > 3) {
+      TypeMirror parameterType = methodType.getParameterTypes().get(0);
+      String implicitName = manglePropertyName(methodName.substring(3));
+      String name = annotatedName != null ? annotatedName : renames.getOrDefault(implicitName, implicitName);
+      Property property = properties.computeIfAbsent(name, n -> new Property(n, parameterType));
+      property.setter = "result." + methodName + "(%s)";
+    }
+  }
+
+  private static String accessorPropertyName(String methodName, TypeMirror returnType) {
+    if (methodName.startsWith("get") && methodName.length() > 3 && !methodName.equals("getClass")) {
+      return manglePropertyName(methodName.substring(3));
+    }
+    if (methodName.startsWith("is") && methodName.length() > 2 && returnType.getKind() == TypeKind.BOOLEAN) {
+      return manglePropertyName(methodName.substring(2));
+    }
+    return null;
+  }
+
+  /**
+   * Same as Jackson's default: lower-cases all leading upper-case characters ("URL" -> "url", "FirstName" -> "firstName").
+   */
+  static String manglePropertyName(String name) {
+    StringBuilder result = new StringBuilder(name);
+    for (int i = 0; i < result.length(); i++) {
+      char c = result.charAt(i);
+      char lower = Character.toLowerCase(c);
+      if (c == lower) {
+        break;
+      }
+      result.setCharAt(i, lower);
+    }
+    return result.toString();
+  }
+
+  private static boolean isIgnored(Element element) {
+    return findAnnotation(element, JSON_IGNORE) != null;
+  }
+
+  private static String annotatedName(Element element) {
+    AnnotationMirror annotation = findAnnotation(element, JSON_PROPERTY);
+    if (annotation == null) {
+      return null;
+    }
+    for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotation.getElementValues().entrySet()) {
+      if (entry.getKey().getSimpleName().contentEquals("value")) {
+        String value = entry.getValue().getValue().toString();
+        return value.isEmpty() ? null : value;
+      }
+    }
+    return null;
+  }
+
+  private static AnnotationMirror findAnnotation(Element element, String annotationName) {
+    for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      Element annotationElement = annotation.getAnnotationType().asElement();
+      if (annotationElement.getKind() == ElementKind.ANNOTATION_TYPE
+          && ((TypeElement) annotationElement).getQualifiedName().contentEquals(annotationName)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  String getPackageName() {
+    return packageName;
+  }
+
+  String getTypeName() {
+    return typeName;
+  }
+
+  String getCodecSimpleName() {
+    return codecSimpleName;
+  }
+
+  String getCodecQualifiedName() {
+    return packageName.isEmpty() ? codecSimpleName : packageName + '.' + codecSimpleName;
+  }
+
+  Collection<Property> getProperties() {
+    return properties;
+  }
+
+  static final class Property {
+    final String name;
+    final TypeMirror type;
+    /** expression reading property from {@code value} */
+    String getter;
+    /** statement format writing {@code %s} to {@code result} */
+    String setter;
+    Element getterElement;
+    /** non-public field backing the property */
+    VariableElement field;
+    VariableElement annotatedField;
+
+    private Property(String name, TypeMirror type) {
+      this.name = name;
+      this.type = type;
+    }
+  }
+
+  static final class InvalidTypeException extends Exception {
+    private final Element element;
+
+    InvalidTypeException(Element element, String message) {
+      super(message);
+      this.element = element;
+    }
+
+    Element getElement() {
+      return element;
+    }
+  }
+}
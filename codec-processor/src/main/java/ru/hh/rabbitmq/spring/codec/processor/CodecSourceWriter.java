@@ -0,0 +1,336 @@
+package ru.hh.rabbitmq.spring.codec.processor;
+
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.element.TypeElement;
+import ru.hh.rabbitmq.spring.codec.processor.CodecModel.Property;
+
+/**
+ * Writes java source of generated codec.
+ */
+final class CodecSourceWriter {
+
+  private final CodecModel model;
+  private final StringBuilder out = new StringBuilder(4096);
+
+  CodecSourceWriter(CodecModel model) {
+    this.model = model;
+  }
+
+  String write() {
+    if (!model.getPackageName().isEmpty()) {
+      line(0, "package " + model.getPackageName() + ";");
+      line(0, "");
+    }
+    line(0, "import com.fasterxml.jackson.core.JsonGenerator;");
+    line(0, "import com.fasterxml.jackson.core.JsonParseException;");
+    line(0, "import com.fasterxml.jackson.core.JsonParser;");
+    line(0, "import com.fasterxml.jackson.core.JsonToken;");
+    line(0, "import com.fasterxml.jackson.core.type.TypeReference;");
+    line(0, "import com.fasterxml.jackson.databind.JsonMappingException;");
+    line(0, "import java.io.IOException;");
+    line(0, "import ru.hh.rabbitmq.spring.codec.MessageCodec;");
+    line(0, "");
+    line(0, "/**");
+    line(0, " * Generated by " + MessageCodecProcessor.class.getName() + " for {@link " + model.getTypeName() + "}, do not edit.");
+    line(0, " */");
+    line(0, "public final class " + model.getCodecSimpleName() + " implements MessageCodec<" + model.getTypeName() + "> {");
+    line(0, "");
+    writeTypeReferences();
+    line(1, "@Override");
+    line(1, "public Class<" + model.getTypeName() + "> getType() {");
+    line(2, "return " + model.getTypeName() + ".class;");
+    line(1, "}");
+    line(0, "");
+    writeWrite();
+    line(0, "");
+    writeRead();
+    writeReadChar();
+    line(0, "}");
+    return out.toString();
+  }
+
+  private void writeTypeReferences() {
+    boolean any = false;
+    for (Property property : model.getProperties()) {
+      if (property.setter != null && valueKind(property.type) == ValueKind.OBJECT) {
+        line(1, "private static final TypeReference<" + boxed(property.type) + "> " + typeReferenceName(property)
+            + " = new TypeReference<" + boxed(property.type) + ">() {};");
+        any = true;
+      }
+    }
+    if (any) {
+      line(0, "");
+    }
+  }
+
+  private void writeWrite() {
+    line(1, "@Override");
+    line(1, "public void write(" + model.getTypeName() + " value, JsonGenerator generator) throws IOException {");
+    line(2, "if (value == null) {");
+    line(3, "generator.writeNull();");
+    line(3, "return;");
+    line(2, "}");
+    line(2, "generator.writeStartObject();");
+    for (Property property : model.getProperties()) {
+      if (property.getter == null) {
+        continue;
+      }
+      String name = literal(property.name);
+      switch (valueKind(property.type)) {
+        case NUMBER:
+          line(2, "generator.writeNumberField(" + name + ", " + property.getter + ");");
+          break;
+        case BOOLEAN:
+          line(2, "generator.writeBooleanField(" + name + ", " + property.getter + ");");
+          break;
+        case CHAR:
+          line(2, "generator.writeStringField(" + name + ", String.valueOf(" + property.getter + "));");
+          break;
+        case STRING:
+          line(2, "generator.writeStringField(" + name + ", " + property.getter + ");");
+          break;
+        case BOXED_NUMBER:
+        case BOXED_BOOLEAN:
+        case BOXED_CHAR:
+          line(2, "{");
+          line(3, boxed(property.type) + " propertyValue = " + property.getter + ";");
+          line(3, "if (propertyValue == null) {");
+          line(4, "generator.writeNullField(" + name + ");");
+          line(3, "} else {");
+          line(4, boxedWrite(property.type, name));
+          line(3, "}");
+          line(2, "}");
+          break;
+        default:
+          line(2, "generator.writeFieldName(" + name + ");");
+          line(2, "generator.writeObject(" + property.getter + ");");
+          break;
+      }
+    }
+    line(2, "generator.writeEndObject();");
+    line(1, "}");
+  }
+
+  private String boxedWrite(TypeMirror type, String name) {
+    switch (valueKind(type)) {
+      case BOXED_BOOLEAN:
+        return "generator.writeBooleanField(" + name + ", propertyValue);";
+      case BOXED_CHAR:
+        return "generator.writeStringField(" + name + ", propertyValue.toString());";
+      default:
+        return "generator.writeNumberField(" + name + ", propertyValue);";
+    }
+  }
+
+  private void writeRead() {
+    line(1, "@Override");
+    line(1, "public " + model.getTypeName() + " read(JsonParser parser) throws IOException {");
+    line(2, "JsonToken token = parser.getCurrentToken();");
+    line(2, "if (token == JsonToken.VALUE_NULL) {");
+    line(3, "return null;");
+    line(2, "}");
+    line(2, "if (token != JsonToken.START_OBJECT) {");
+    line(3, "throw new JsonParseException(\"Expected START_OBJECT for " + model.getTypeName()
+        + " but got \" + token, parser.getCurrentLocation());");
+    line(2, "}");
+    line(2, model.getTypeName() + " result = new " + model.getTypeName() + "();");
+    line(2, "while (parser.nextToken() == JsonToken.FIELD_NAME) {");
+    line(3, "String field = parser.getCurrentName();");
+    line(3, "JsonToken valueToken = parser.nextToken();");
+    line(3, "switch (field) {");
+    for (Property property : model.getProperties()) {
+      if (property.setter == null) {
+        continue;
+      }
+      line(4, "case " + literal(property.name) + ":");
+      writeReadProperty(property);
+      line(5, "break;");
+    }
+    line(4, "default:");
+    line(5, "parser.skipChildren();");
+    line(5, "break;");
+    line(3, "}");
+    line(2, "}");
+    line(2, "return result;");
+    line(1, "}");
+  }
+
+  private void writeReadProperty(Property property) {
+    TypeMirror type = property.type;
+    switch (valueKind(type)) {
+      case NUMBER:
+      case BOOLEAN:
+      case CHAR:
+        // absent value keeps primitive default, same as Jackson without FAIL_ON_NULL_FOR_PRIMITIVES
+        line(5, "if (valueToken != JsonToken.VALUE_NULL) {");
+        line(6, String.format(property.setter, primitiveRead(type.getKind())) + ";");
+        line(5, "}");
+        break;
+      case BOXED_NUMBER:
+      case BOXED_BOOLEAN:
+      case BOXED_CHAR:
+        String read = boxed(type) + ".valueOf(" + primitiveRead(unboxedKind(type)) + ")";
+        line(5, String.format(property.setter, "valueToken == JsonToken.VALUE_NULL ? null : " + read) + ";");
+        break;
+      case STRING:
+        // getValueAsString does not consume object or array, their tokens would be taken for fields of this object
+        line(5, "if (valueToken == JsonToken.START_OBJECT || valueToken == JsonToken.START_ARRAY) {");
+        line(6, "parser.skipChildren();");
+        line(5, "} else {");
+        line(6, String.format(property.setter, "parser.getValueAsString()") + ";");
+        line(5, "}");
+        break;
+      default:
+        line(5, String.format(property.setter, "parser.readValueAs(" + typeReferenceName(property) + ")") + ";");
+        break;
+    }
+  }
+
+  private static String primitiveRead(TypeKind kind) {
+    switch (kind) {
+      case BOOLEAN:
+        return "parser.getBooleanValue()";
+      case BYTE:
+        return "parser.getByteValue()";
+      case SHORT:
+        return "parser.getShortValue()";
+      case INT:
+        return "parser.getIntValue()";
+      case LONG:
+        return "parser.getLongValue()";
+      case FLOAT:
+        return "parser.getFloatValue()";
+      case DOUBLE:
+        return "parser.getDoubleValue()";
+      case CHAR:
+        return "readChar(parser)";
+      default:
+        throw new IllegalArgumentException("Not a primitive: " + kind);
+    }
+  }
+
+  private void writeReadChar() {
+    boolean any = false;
+    for (Property property : model.getProperties()) {
+      ValueKind kind = valueKind(property.type);
+      any |= property.setter != null && (kind == ValueKind.CHAR || kind == ValueKind.BOXED_CHAR);
+    }
+    if (!any) {
+      return;
+    }
+    line(0, "");
+    line(1, "private static char readChar(JsonParser parser) throws IOException {");
+    line(2, "String text = parser.getText();");
+    line(2, "if (text.length() != 1) {");
+    line(3, "throw JsonMappingException.from(parser, \"Expected single character but got \\\"\" + text + \"\\\"\");");
+    line(2, "}");
+    line(2, "return text.charAt(0);");
+    line(1, "}");
+  }
+
+  private static String typeReferenceName(Property property) {
+    StringBuilder name = new StringBuilder("TYPE_");
+    for (char c : property.name.toCharArray()) {
+      name.append(Character.isJavaIdentifierPart(c) ? Character.toUpperCase(c) : '_');
+    }
+    return name.toString();
+  }
+
+  private static String boxed(TypeMirror type) {
+    if (!type.getKind().isPrimitive()) {
+      return type.toString();
+    }
+    switch (type.getKind()) {
+      case INT:
+        return "Integer";
+      case CHAR:
+        return "Character";
+      default:
+        String name = type.getKind().name().toLowerCase();
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+  }
+
+  private static String qualifiedName(TypeMirror type) {
+    if (type.getKind() != TypeKind.DECLARED) {
+      return null;
+    }
+    return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+  }
+
+  private static TypeKind unboxedKind(TypeMirror type) {
+    switch (qualifiedName(type)) {
+      case "java.lang.Boolean":
+        return TypeKind.BOOLEAN;
+      case "java.lang.Byte":
+        return TypeKind.BYTE;
+      case "java.lang.Short":
+        return TypeKind.SHORT;
+      case "java.lang.Integer":
+        return TypeKind.INT;
+      case "java.lang.Long":
+        return TypeKind.LONG;
+      case "java.lang.Float":
+        return TypeKind.FLOAT;
+      case "java.lang.Double":
+        return TypeKind.DOUBLE;
+      case "java.lang.Character":
+        return TypeKind.CHAR;
+      default:
+        return TypeKind.NONE;
+    }
+  }
+
+  private static ValueKind valueKind(TypeMirror type) {
+    TypeKind kind = type.getKind();
+    if (kind == TypeKind.BOOLEAN) {
+      return ValueKind.BOOLEAN;
+    }
+    if (kind == TypeKind.CHAR) {
+      return ValueKind.CHAR;
+    }
+    if (kind.isPrimitive()) {
+      return ValueKind.NUMBER;
+    }
+    if ("java.lang.String".equals(qualifiedName(type))) {
+      return ValueKind.STRING;
+    }
+    switch (unboxedKind(type)) {
+      case NONE:
+        return ValueKind.OBJECT;
+      case BOOLEAN:
+        return ValueKind.BOXED_BOOLEAN;
+      case CHAR:
+        return ValueKind.BOXED_CHAR;
+      default:
+        return ValueKind.BOXED_NUMBER;
+    }
+  }
+
+  private static String literal(String value) {
+    StringBuilder literal = new StringBuilder(value.length() + 2).append('"');
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        literal.append('\\').append(c);
+      } else if (c < 0x20 || c > 0x7e) {
+        literal.append(String.format("\\u%04x", (int) c));
+      } else {
+        literal.append(c);
+      }
+    }
+    return literal.append('"').toString();
+  }
+
+  private void line(int indent, String text) {
+    for (int i = 0; i < indent; i++) {
+      out.append("  ");
+    }
+    out.append(text).append('\n');
+  }
+
+  private enum ValueKind {
+    NUMBER, BOOLEAN, CHAR, STRING, BOXED_NUMBER, BOXED_BOOLEAN, BOXED_CHAR, OBJECT
+  }
+}
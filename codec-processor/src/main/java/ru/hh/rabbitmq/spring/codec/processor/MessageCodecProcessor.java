@@ -0,0 +1,137 @@
+package ru.hh.rabbitmq.spring.codec.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * <p>
+ * Generates {@code ru.hh.rabbitmq.spring.codec.MessageCodec} implementation for every class annotated with
+ * {@code ru.hh.rabbitmq.spring.codec.JsonCodec} and registers generated codecs in
+ * {@code META-INF/services/ru.hh.rabbitmq.spring.codec.MessageCodec}.
+ * </p>
+ * <p>
+ * Generated codec is placed in the package of message class and named {@code <SimpleName>_MessageCodec} (enclosing class names are
+ * prepended for nested classes).
+ * </p>
+ */
+public class MessageCodecProcessor extends AbstractProcessor {
+
+  static final String ANNOTATION = "ru.hh.rabbitmq.spring.codec.JsonCodec";
+  static final String SERVICE_FILE = "META-INF/services/ru.hh.rabbitmq.spring.codec.MessageCodec";
+  static final String CODEC_SUFFIX = "_MessageCodec";
+
+  private final List<String> generatedCodecs = new ArrayList<>();
+
+  @Override
+  public Set<String> getSupportedAnnotationTypes() {
+    return Collections.singleton(ANNOTATION);
+  }
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    if (roundEnv.processingOver()) {
+      writeServiceFile();
+      return false;
+    }
+    for (TypeElement annotation : annotations) {
+      for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+        if (element.getKind() != ElementKind.CLASS) {
+          error(element, "@JsonCodec is applicable to classes only");
+          continue;
+        }
+        generateCodec((TypeElement) element);
+      }
+    }
+    return true;
+  }
+
+  private void generateCodec(TypeElement type) {
+    if (!checkCodecCanBeGenerated(type)) {
+      return;
+    }
+    CodecModel model;
+    try {
+      model = CodecModel.create(type, processingEnv.getElementUtils(), processingEnv.getTypeUtils());
+    } catch (CodecModel.InvalidTypeException e) {
+      error(e.getElement(), e.getMessage());
+      return;
+    }
+    String codecName = model.getCodecQualifiedName();
+    try {
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(codecName, type);
+      try (Writer writer = file.openWriter()) {
+        writer.write(new CodecSourceWriter(model).write());
+      }
+    } catch (IOException e) {
+      error(type, "Failed to write " + codecName + ": " + e);
+      return;
+    }
+    generatedCodecs.add(codecName);
+  }
+
+  private boolean checkCodecCanBeGenerated(TypeElement type) {
+    if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+      error(type, "@JsonCodec class must not be abstract");
+      return false;
+    }
+    if (!type.getTypeParameters().isEmpty()) {
+      error(type, "@JsonCodec class must not be generic");
+      return false;
+    }
+    if (type.getModifiers().contains(Modifier.PRIVATE)) {
+      error(type, "@JsonCodec class must not be private");
+      return false;
+    }
+    if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+      error(type, "@JsonCodec nested class must be static");
+      return false;
+    }
+    if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+      error(type, "@JsonCodec class must be top level or static nested class");
+      return false;
+    }
+    return true;
+  }
+
+  private void writeServiceFile() {
+    if (generatedCodecs.isEmpty()) {
+      return;
+    }
+    try {
+      FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+      try (Writer writer = file.openWriter()) {
+        for (String codec : generatedCodecs) {
+          writer.write(codec);
+          writer.write('\n');
+        }
+      }
+    } catch (IOException e) {
+      processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to write " + SERVICE_FILE + ": " + e);
+    }
+  }
+
+  private void error(Element element, String message) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+  }
+}
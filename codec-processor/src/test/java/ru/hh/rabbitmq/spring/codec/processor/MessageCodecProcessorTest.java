@@ -0,0 +1,255 @@
+package ru.hh.rabbitmq.spring.codec.processor;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import ru.hh.rabbitmq.spring.codec.CodecMessageConverter;
+import ru.hh.rabbitmq.spring.codec.MessageCodec;
+
+public class MessageCodecProcessorTest {
+
+  private static final String EVENT_SOURCE = String.join("\n",
+      "package test.codec;",
+      "",
+      "import com.fasterxml.jackson.annotation.JsonIgnore;",
+      "import com.fasterxml.jackson.annotation.JsonProperty;",
+      "import java.util.List;",
+      "import ru.hh.rabbitmq.spring.codec.JsonCodec;",
+      "",
+      "@JsonCodec",
+      "public class Event {",
+      "  public long id;",
+      "  public Integer version;",
+      "  public List<String> tags;",
+      "  @JsonProperty(\"user_name\")",
+      "  private String userName;",
+      "  private boolean active;",
+      "  @JsonIgnore",
+      "  public String secret;",
+      "",
+      "  public String getUserName() { return userName; }",
+      "  public void setUserName(String userName) { this.userName = userName; }",
+      "  public boolean isActive() { return active; }",
+      "  public void setActive(boolean active) { this.active = active; }",
+      "}",
+      "");
+
+  private static final String CODE_SOURCE = String.join("\n",
+      "package test.codec;",
+      "",
+      "import ru.hh.rabbitmq.spring.codec.JsonCodec;",
+      "",
+      "@JsonCodec",
+      "public class Code {",
+      "  public String name;",
+      "  public char letter;",
+      "  public Character boxedLetter;",
+      "  public String alias;",
+      "  public int id;",
+      "}",
+      "");
+
+  private static final String SNAPSHOT_SOURCE = String.join("\n",
+      "package test.codec;",
+      "",
+      "import ru.hh.rabbitmq.spring.codec.JsonCodec;",
+      "",
+      "@JsonCodec",
+      "public class Snapshot {",
+      "  String state;",
+      "  protected int version;",
+      "",
+      "  public String getState() { return state; }",
+      "  public int getVersion() { return version; }",
+      "}",
+      "");
+
+  private static final String PRIVATE_SNAPSHOT_SOURCE = String.join("\n",
+      "package test.codec;",
+      "",
+      "import ru.hh.rabbitmq.spring.codec.JsonCodec;",
+      "",
+      "@JsonCodec",
+      "public class PrivateSnapshot {",
+      "  private String state;",
+      "",
+      "  public String getState() { return state; }",
+      "}",
+      "");
+
+  @Test
+  public void testGeneratedCodecIsCompatibleWithJackson() throws Exception {
+    Path root = Files.createTempDirectory("codec-processor-test");
+    ClassLoader classLoader = compile(root, "test/codec/Event.java", EVENT_SOURCE);
+
+    Path serviceFile = root.resolve("classes/" + MessageCodecProcessor.SERVICE_FILE);
+    List<String> codecs = Files.readAllLines(serviceFile, StandardCharsets.UTF_8);
+    assertEquals(Collections.singletonList("test.codec.Event_MessageCodec"), codecs);
+
+    Class<?> eventClass = classLoader.loadClass("test.codec.Event");
+    MessageCodec<?> codec = (MessageCodec<?>) classLoader.loadClass(codecs.get(0)).getConstructor().newInstance();
+    assertEquals(eventClass, codec.getType());
+
+    Object event = eventClass.getConstructor().newInstance();
+    eventClass.getField("id").set(event, 42L);
+    eventClass.getField("tags").set(event, Arrays.asList("a", "b"));
+    eventClass.getField("secret").set(event, "hidden");
+    eventClass.getMethod("setUserName", String.class).invoke(event, "john");
+    eventClass.getMethod("setActive", boolean.class).invoke(event, true);
+
+    Jackson2JsonMessageConverter jackson = new Jackson2JsonMessageConverter();
+    Message jacksonMessage = jackson.toMessage(event, new MessageProperties());
+
+    Message codecMessage = writeWithCodec(codec, event);
+    Map<?, ?> jacksonTree = new ObjectMapper().readValue(jacksonMessage.getBody(), Map.class);
+    Map<?, ?> codecTree = new ObjectMapper().readValue(codecMessage.getBody(), Map.class);
+    assertEquals(jacksonTree, codecTree);
+    assertFalse(codecTree.containsKey("secret"));
+    assertTrue(codecTree.containsKey("user_name"));
+    assertNull(codecTree.get("version"));
+
+    Object decoded = readWithCodec(codec, jacksonMessage.getBody());
+    assertEquals(42L, eventClass.getField("id").get(decoded));
+    assertEquals(Arrays.asList("a", "b"), eventClass.getField("tags").get(decoded));
+    assertEquals("john", eventClass.getMethod("getUserName").invoke(decoded));
+    assertEquals(true, eventClass.getMethod("isActive").invoke(decoded));
+    assertNull(eventClass.getField("secret").get(decoded));
+  }
+
+  @Test
+  public void testGetterOnlyPropertyRoundTrip() throws Exception {
+    Path root = Files.createTempDirectory("codec-processor-test");
+    ClassLoader classLoader = compile(root, "test/codec/Snapshot.java", SNAPSHOT_SOURCE);
+    Class<?> snapshotClass = classLoader.loadClass("test.codec.Snapshot");
+    MessageCodec<?> codec = (MessageCodec<?>) classLoader.loadClass("test.codec.Snapshot_MessageCodec").getConstructor().newInstance();
+
+    // Jackson fills fields behind getters, so does codec
+    Object snapshot = new ObjectMapper().readValue("{\"state\":\"done\",\"version\":3}", snapshotClass);
+    Message codecMessage = writeWithCodec(codec, snapshot);
+    Object decoded = readWithCodec(codec, codecMessage.getBody());
+    assertEquals("done", snapshotClass.getMethod("getState").invoke(decoded));
+    assertEquals(3, snapshotClass.getMethod("getVersion").invoke(decoded));
+    Object jacksonDecoded = new ObjectMapper().readValue(codecMessage.getBody(), snapshotClass);
+    assertEquals("done", snapshotClass.getMethod("getState").invoke(jacksonDecoded));
+    assertEquals(3, snapshotClass.getMethod("getVersion").invoke(jacksonDecoded));
+  }
+
+  @Test
+  public void testPropertyThatCanNotBeReadIsRejected() throws Exception {
+    Path root = Files.createTempDirectory("codec-processor-test");
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    assertFalse(runCompiler(root, "test/codec/PrivateSnapshot.java", PRIVATE_SNAPSHOT_SOURCE, diagnostics));
+    assertTrue(diagnostics.getDiagnostics().toString(), diagnostics.getDiagnostics().stream()
+        .anyMatch(diagnostic -> diagnostic.getKind() == Diagnostic.Kind.ERROR
+            && diagnostic.getMessage(null).contains("Property 'state' is written, but can't be read")));
+  }
+
+  @Test
+  public void testReadSkipsNonScalarStringAndRejectsEmptyChar() throws Exception {
+    Path root = Files.createTempDirectory("codec-processor-test");
+    ClassLoader classLoader = compile(root, "test/codec/Code.java", CODE_SOURCE);
+    Class<?> codeClass = classLoader.loadClass("test.codec.Code");
+    MessageCodec<?> codec = (MessageCodec<?>) classLoader.loadClass("test.codec.Code_MessageCodec").getConstructor().newInstance();
+
+    // structured value of string field is skipped whole, fields after it are read
+    byte[] body = "{\"name\":{\"first\":\"a\",\"last\":[\"b\"]},\"letter\":\"x\",\"alias\":[1,{\"n\":2}],\"id\":7}"
+        .getBytes(StandardCharsets.UTF_8);
+    Object decoded = readWithCodec(codec, body);
+    assertNull(codeClass.getField("name").get(decoded));
+    assertEquals('x', codeClass.getField("letter").get(decoded));
+    assertNull(codeClass.getField("alias").get(decoded));
+    assertEquals(7, codeClass.getField("id").get(decoded));
+
+    for (String json : Arrays.asList("{\"letter\":\"\"}", "{\"boxedLetter\":\"\"}", "{\"letter\":\"xy\"}")) {
+      try {
+        readWithCodec(codec, json.getBytes(StandardCharsets.UTF_8));
+        fail(json);
+      } catch (JsonMappingException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Expected single character"));
+      }
+    }
+  }
+
+  @Test
+  public void testConverterFallsBackToJacksonWithoutCodec() {
+    CodecMessageConverter converter = new CodecMessageConverter();
+    Message message = converter.toMessage(Collections.singletonMap("key", "value"), new MessageProperties());
+    assertEquals(MessageProperties.CONTENT_TYPE_JSON, message.getMessageProperties().getContentType());
+    Object decoded = converter.fromMessage(message);
+    assertNotNull(decoded);
+    assertEquals(Collections.singletonMap("key", "value"), decoded);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Message writeWithCodec(MessageCodec<?> codec, Object value) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(out)) {
+      ((MessageCodec<Object>) codec).write(value, generator);
+    }
+    return new Message(out.toByteArray(), new MessageProperties());
+  }
+
+  private static Object readWithCodec(MessageCodec<?> codec, byte[] body) throws IOException {
+    ObjectMapper mapper = new ObjectMapper();
+    try (JsonParser parser = mapper.getFactory().createParser(body)) {
+      parser.nextToken();
+      return codec.read(parser);
+    }
+  }
+
+  private static ClassLoader compile(Path root, String fileName, String source) throws IOException {
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+    assertTrue(diagnostics.getDiagnostics().toString(), runCompiler(root, fileName, source, diagnostics));
+    return new URLClassLoader(new URL[] {root.resolve("classes").toUri().toURL()}, MessageCodecProcessorTest.class.getClassLoader());
+  }
+
+  private static boolean runCompiler(Path root, String fileName, String source, DiagnosticCollector<JavaFileObject> diagnostics)
+      throws IOException {
+    Path sources = root.resolve("sources");
+    Path classes = root.resolve("classes");
+    Path sourceFile = sources.resolve(fileName);
+    Files.createDirectories(sourceFile.getParent());
+    Files.createDirectories(classes);
+    Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, StandardCharsets.UTF_8)) {
+      // surefire runs tests from manifest-only jar, real classpath is exposed via separate property
+      String classpath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+      List<String> options = Arrays.asList("-classpath", classpath, "-d", classes.toString(), "-s", sources.toString());
+      JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics, options, null,
+          fileManager.getJavaFileObjects(sourceFile.toFile()));
+      task.setProcessors(Collections.singletonList(new MessageCodecProcessor()));
+      return task.call();
+    }
+  }
+}
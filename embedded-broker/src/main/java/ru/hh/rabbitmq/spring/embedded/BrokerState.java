@@ -0,0 +1,269 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Exchanges, queues and bindings of {@link EmbeddedBroker}. Not thread safe: connections handle every frame holding the monitor of this
+ * object, so topology changes, routing and deliveries are serialized across the whole broker.
+ */
+final class BrokerState {
+  static final String DEFAULT_EXCHANGE = "";
+  static final String DEATH_HEADER = "x-death";
+
+  private final Map<String, Exchange> exchanges = new ConcurrentHashMap<>();
+  private final Map<String, MessageQueue> queues = new ConcurrentHashMap<>();
+
+  BrokerState() {
+    exchanges.put(DEFAULT_EXCHANGE, new Exchange(DEFAULT_EXCHANGE, Exchange.DIRECT));
+    exchanges.put("amq.direct", new Exchange("amq.direct", Exchange.DIRECT));
+    exchanges.put("amq.fanout", new Exchange("amq.fanout", Exchange.FANOUT));
+    exchanges.put("amq.topic", new Exchange("amq.topic", Exchange.TOPIC));
+  }
+
+  @Nullable
+  Exchange getExchange(String name) {
+    return exchanges.get(name);
+  }
+
+  Exchange declareExchange(String name, String type) {
+    return exchanges.computeIfAbsent(name, n -> new Exchange(n, type));
+  }
+
+  void deleteExchange(String name) {
+    exchanges.remove(name);
+  }
+
+  @Nullable
+  MessageQueue getQueue(String name) {
+    return queues.get(name);
+  }
+
+  MessageQueue declareQueue(MessageQueue queue) {
+    MessageQueue existing = queues.putIfAbsent(queue.name, queue);
+    return existing != null ? existing : queue;
+  }
+
+  /**
+   * Removes queue with its bindings and cancels its consumers.
+   *
+   * @return number of messages dropped with the queue
+   */
+  int deleteQueue(MessageQueue queue) {
+    if (queues.remove(queue.name, queue)) {
+      for (Exchange exchange : exchanges.values()) {
+        exchange.unbindAll(queue);
+      }
+    }
+    for (MessageQueue.Consumer consumer : new ArrayList<>(queue.consumers)) {
+      consumer.channel.cancelByBroker(consumer);
+    }
+    queue.consumers.clear();
+    int messageCount = queue.messages.size();
+    queue.messages.clear();
+    return messageCount;
+  }
+
+  /**
+   * Auto-delete queue is deleted when its last consumer is cancelled.
+   */
+  void consumerRemoved(MessageQueue queue) {
+    if (queue.autoDelete && queue.consumers.isEmpty()) {
+      deleteQueue(queue);
+    }
+  }
+
+  /**
+   * Puts message to queues it is routed to and delivers it to ready consumers.
+   *
+   * @return false if message was not routed to any queue
+   */
+  boolean publish(Exchange exchange, String routingKey, BasicProperties properties, byte[] body) {
+    Set<MessageQueue> destinations = new LinkedHashSet<>();
+    if (DEFAULT_EXCHANGE.equals(exchange.name)) {
+      MessageQueue queue = queues.get(routingKey);
+      if (queue != null) {
+        destinations.add(queue);
+      }
+    } else {
+      exchange.route(routingKey, destinations);
+    }
+    QueuedMessage message = new QueuedMessage(exchange.name, routingKey, properties, body, false, QueuedMessage.NEVER_EXPIRES);
+    long messageTtlMillis = parseExpiration(properties.getExpiration());
+    long now = System.nanoTime();
+    for (MessageQueue queue : destinations) {
+      long ttlMillis = minTtl(messageTtlMillis, queue.messageTtlMillis);
+      queue.messages.addLast(ttlMillis == MessageQueue.NO_TTL ? message : message.expiringAt(now + ttlMillis * 1_000_000));
+      dispatch(queue);
+    }
+    return !destinations.isEmpty();
+  }
+
+  private static long parseExpiration(@Nullable String expiration) {
+    if (expiration == null) {
+      return MessageQueue.NO_TTL;
+    }
+    try {
+      return Math.max(0, Long.parseLong(expiration));
+    } catch (NumberFormatException e) {
+      return MessageQueue.NO_TTL;
+    }
+  }
+
+  private static long minTtl(long first, long second) {
+    if (first == MessageQueue.NO_TTL) {
+      return second;
+    }
+    return second == MessageQueue.NO_TTL ? first : Math.min(first, second);
+  }
+
+  /**
+   * Dead-letters expired messages from the head of queue, like RabbitMQ does: message behind one that expires later waits for it.
+   */
+  void expire(MessageQueue queue) {
+    long now = System.nanoTime();
+    while (!queue.messages.isEmpty() && queue.messages.peekFirst().isExpired(now)) {
+      deadLetter(queue, queue.messages.pollFirst(), "expired");
+    }
+  }
+
+  void expireAll() {
+    for (MessageQueue queue : queues.values()) {
+      expire(queue);
+    }
+  }
+
+  /**
+   * Dead-letters messages rejected or nacked without requeue.
+   */
+  void deadLetter(List<Delivery> deliveries) {
+    for (Delivery delivery : deliveries) {
+      if (queues.get(delivery.queue.name) == delivery.queue) {
+        deadLetter(delivery.queue, delivery.message, "rejected");
+      }
+    }
+  }
+
+  /**
+   * Republishes message to dead letter exchange of its queue with x-death header, message is dropped if queue has no dead letter exchange
+   * or it does not exist.
+   */
+  private void deadLetter(MessageQueue queue, QueuedMessage message, String reason) {
+    Exchange exchange = queue.deadLetterExchange == null ? null : exchanges.get(queue.deadLetterExchange);
+    if (exchange == null) {
+      return;
+    }
+    Map<String, Object> headers = message.properties.getHeaders() == null ? new HashMap<>() : new HashMap<>(message.properties.getHeaders());
+    headers.put(DEATH_HEADER, deaths(headers.get(DEATH_HEADER), queue, message, reason));
+    // expiration is removed so message does not expire again in the next queue
+    BasicProperties properties = message.properties.builder().headers(headers).expiration(null).build();
+    String routingKey = queue.deadLetterRoutingKey != null ? queue.deadLetterRoutingKey : message.routingKey;
+    publish(exchange, routingKey, properties, message.body);
+  }
+
+  /**
+   * @return x-death entries with entry of queue and reason moved to the front and its count increased
+   */
+  private static List<Object> deaths(@Nullable Object previous, MessageQueue queue, QueuedMessage message, String reason) {
+    List<Object> deaths = new ArrayList<>();
+    long count = 1;
+    if (previous instanceof List) {
+      for (Object death : (List<?>) previous) {
+        if (death instanceof Map && queue.name.equals(String.valueOf(((Map<?, ?>) death).get("queue")))
+            && reason.equals(String.valueOf(((Map<?, ?>) death).get("reason")))) {
+          count += ((Number) ((Map<?, ?>) death).get("count")).longValue();
+        } else {
+          deaths.add(death);
+        }
+      }
+    }
+    Map<String, Object> death = new HashMap<>();
+    death.put("count", count);
+    death.put("reason", reason);
+    death.put("queue", queue.name);
+    death.put("time", new Date());
+    death.put("exchange", message.exchange);
+    death.put("routing-keys", List.of(message.routingKey));
+    deaths.add(0, death);
+    return deaths;
+  }
+
+  /**
+   * Returns messages to the head of their queues keeping their order, marked as redelivered.
+   */
+  void requeue(List<Delivery> deliveries) {
+    Set<MessageQueue> touched = new LinkedHashSet<>();
+    for (int i = deliveries.size() - 1; i >= 0; i--) {
+      Delivery delivery = deliveries.get(i);
+      if (queues.get(delivery.queue.name) == delivery.queue) {
+        delivery.queue.messages.addFirst(delivery.message.redelivered());
+        touched.add(delivery.queue);
+      }
+    }
+    touched.forEach(this::dispatch);
+  }
+
+  void dispatch(MessageQueue queue) {
+    expire(queue);
+    while (!queue.messages.isEmpty()) {
+      MessageQueue.Consumer consumer = queue.nextReadyConsumer();
+      if (consumer == null) {
+        return;
+      }
+      consumer.channel.deliver(consumer, queue.messages.pollFirst());
+      expire(queue);
+    }
+  }
+
+  void dispatchAll() {
+    queues.values().forEach(this::dispatch);
+  }
+
+  int getMessageCount(String queueName) {
+    MessageQueue queue = queues.get(queueName);
+    return queue == null ? 0 : queue.messages.size();
+  }
+
+  int getConsumerCount(String queueName) {
+    MessageQueue queue = queues.get(queueName);
+    return queue == null ? 0 : queue.consumers.size();
+  }
+
+  boolean queueExists(String queueName) {
+    return queues.containsKey(queueName);
+  }
+
+  List<MessageQueue> getExclusiveQueues(ServerConnection owner) {
+    List<MessageQueue> result = new ArrayList<>();
+    for (MessageQueue queue : queues.values()) {
+      if (queue.owner == owner) {
+        result.add(queue);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Message delivered to consumer or fetched with basic.get and not yet acknowledged.
+   */
+  static final class Delivery {
+    final MessageQueue queue;
+    final QueuedMessage message;
+    @Nullable  // taken with basic.get
+    final MessageQueue.Consumer consumer;
+
+    Delivery(MessageQueue queue, QueuedMessage message, @Nullable MessageQueue.Consumer consumer) {
+      this.queue = queue;
+      this.message = message;
+      this.consumer = consumer;
+    }
+  }
+}
@@ -0,0 +1,293 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * In-process AMQP 0-9-1 server for tests and load runs, speaks the wire protocol so amqp-client, spring-rabbit and
+ * {@code ru.hh.rabbitmq.spring} classes work with it unchanged: point them to {@link #getAddress()} with any username and password.
+ * </p>
+ * <p>
+ * Supported: direct, fanout and topic exchanges (plus default and {@code amq.*} exchanges), queues with bindings, exclusive and auto-delete
+ * queues, basic.publish with mandatory returns, publisher confirms, transactions, basic.consume and basic.get with per-consumer and global
+ * prefetch, ack, nack, reject and recover, channel.flow, message TTL ({@code x-message-ttl} queue argument and {@code expiration} property)
+ * and dead lettering of expired and rejected messages ({@code x-dead-letter-exchange} and {@code x-dead-letter-routing-key} queue
+ * arguments, with {@code x-death} header). Everything is kept in memory and lost on {@link #stop()}; durability, other queue arguments (length limits, priorities),
+ * exchange-to-exchange bindings, virtual hosts and access control are not supported.
+ * </p>
+ * <p>
+ * Failures can be injected while broker is running: {@link #setPublishLatency(Duration)}, {@link #setPublishFailureProbability(double)},
+ * {@link #setRejectConnections(boolean)} and {@link #dropConnections()}. Broker can be started again after {@link #stop()} on the same
+ * port to test reconnection.
+ * </p>
+ * <pre>
+ * try (EmbeddedBroker broker = new EmbeddedBroker().start()) {
+ *   properties.setProperty(ConfigKeys.HOSTS, broker.getAddress());
+ *   ...
+ * }
+ * </pre>
+ */
+public class EmbeddedBroker implements AutoCloseable {
+  private static final Logger logger = LoggerFactory.getLogger(EmbeddedBroker.class);
+  private static final AtomicInteger BROKER_COUNTER = new AtomicInteger();
+  private static final long ACCEPTOR_STOP_TIMEOUT_MS = 5000;
+  private static final long EXPIRY_INTERVAL_MS = 10;
+
+  private final String name;
+  private volatile int port;
+  private final Set<ServerConnection> connections = ConcurrentHashMap.newKeySet();
+  private final LongAdder publishedCount = new LongAdder();
+
+  private volatile BrokerState state = new BrokerState();
+  @Nullable
+  private ServerSocket serverSocket;
+  @Nullable
+  private ScheduledExecutorService scheduler;
+  @Nullable
+  private Thread acceptor;
+
+  private volatile long publishLatencyNanos;
+  private volatile double publishFailureProbability;
+  private volatile boolean rejectConnections;
+
+  /**
+   * Broker listening on a free port chosen when it is started.
+   */
+  public EmbeddedBroker() {
+    this(0);
+  }
+
+  public EmbeddedBroker(int port) {
+    this.port = port;
+    name = "embedded-broker-" + BROKER_COUNTER.incrementAndGet();
+  }
+
+  /**
+   * Starts accepting connections on loopback interface with empty topology.
+   *
+   * @return this broker
+   */
+  public synchronized EmbeddedBroker start() {
+    if (serverSocket != null) {
+      throw new IllegalStateException(name + " is already started");
+    }
+    try {
+      ServerSocket socket = new ServerSocket();
+      socket.setReuseAddress(true);
+      socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+      serverSocket = socket;
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to start " + name + " on port " + port, e);
+    }
+    port = serverSocket.getLocalPort();
+    state = new BrokerState();
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> daemonThread(runnable, name + "-scheduler"));
+    BrokerState startedState = state;
+    scheduler.scheduleWithFixedDelay(() -> {
+      synchronized (startedState) {
+        startedState.expireAll();
+      }
+    }, EXPIRY_INTERVAL_MS, EXPIRY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    ServerSocket socket = serverSocket;
+    acceptor = daemonThread(() -> accept(socket), name + "-acceptor");
+    acceptor.start();
+    logger.info("{} started on port {}", name, port);
+    return this;
+  }
+
+  /**
+   * Closes all connections without closing handshake and discards all exchanges, queues and messages.
+   */
+  public synchronized void stop() {
+    if (serverSocket == null) {
+      return;
+    }
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      logger.warn("failed to close server socket of {}", name, e);
+    }
+    serverSocket = null;
+    try {
+      // socket is released when acceptor leaves accept(), broker can not be started on the same port before that
+      acceptor.join(ACCEPTOR_STOP_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    acceptor = null;
+    dropConnections();
+    scheduler.shutdownNow();
+    scheduler = null;
+    logger.info("{} stopped", name);
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  private void accept(ServerSocket serverSocket) {
+    AtomicInteger connectionCounter = new AtomicInteger();
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        // server socket is closed by stop()
+        return;
+      } catch (IOException e) {
+        logger.warn("{} failed to accept connection", name, e);
+        continue;
+      }
+      if (rejectConnections) {
+        closeQuietly(socket);
+        continue;
+      }
+      try {
+        socket.setTcpNoDelay(true);
+        ServerConnection connection = new ServerConnection(this, state, socket, scheduler);
+        connections.add(connection);
+        daemonThread(connection, name + "-connection-" + connectionCounter.incrementAndGet()).start();
+      } catch (IOException | RuntimeException e) {
+        logger.warn("{} failed to open connection", name, e);
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  void connectionClosed(ServerConnection connection) {
+    connections.remove(connection);
+  }
+
+  void messagePublished() {
+    publishedCount.increment();
+  }
+
+  void publishLatency() throws InterruptedException {
+    long latencyNanos = publishLatencyNanos;
+    if (latencyNanos > 0) {
+      Thread.sleep(latencyNanos / 1_000_000, (int) (latencyNanos % 1_000_000));
+    }
+  }
+
+  boolean shouldFailPublish() {
+    double probability = publishFailureProbability;
+    return probability > 0 && ThreadLocalRandom.current().nextDouble() < probability;
+  }
+
+  /**
+   * Delay before every basic.publish is handled. Connection handles its frames in order, so latency applies to everything sent after the
+   * publish on the same connection, like network or disk latency of a real broker.
+   */
+  public void setPublishLatency(Duration latency) {
+    publishLatencyNanos = latency.toNanos();
+  }
+
+  /**
+   * Probability that published message is not routed: it is nacked if channel is in confirm mode, or silently dropped otherwise.
+   */
+  public void setPublishFailureProbability(double probability) {
+    if (probability < 0 || probability > 1) {
+      throw new IllegalArgumentException("probability must be between 0 and 1, got " + probability);
+    }
+    publishFailureProbability = probability;
+  }
+
+  /**
+   * If set, new connections are closed right after they are accepted, existing connections are not affected.
+   */
+  public void setRejectConnections(boolean rejectConnections) {
+    this.rejectConnections = rejectConnections;
+  }
+
+  /**
+   * Closes sockets of all connections without closing handshake, as if network failed. Unacknowledged messages are requeued.
+   */
+  public void dropConnections() {
+    for (ServerConnection connection : new ArrayList<>(connections)) {
+      connection.closeSocket();
+    }
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  /**
+   * @return address in the form of 'host:port' accepted by {@code hosts} setting of client
+   */
+  public String getAddress() {
+    return "localhost:" + port;
+  }
+
+  /**
+   * @return number of messages ready for delivery, 0 if queue does not exist
+   */
+  public int getMessageCount(String queue) {
+    BrokerState state = this.state;
+    synchronized (state) {
+      return state.getMessageCount(queue);
+    }
+  }
+
+  /**
+   * @return 0 if queue does not exist
+   */
+  public int getConsumerCount(String queue) {
+    BrokerState state = this.state;
+    synchronized (state) {
+      return state.getConsumerCount(queue);
+    }
+  }
+
+  public boolean queueExists(String queue) {
+    BrokerState state = this.state;
+    synchronized (state) {
+      return state.queueExists(queue);
+    }
+  }
+
+  public int getConnectionCount() {
+    return connections.size();
+  }
+
+  /**
+   * @return number of messages published since broker was created, including failed ones
+   */
+  public long getPublishedCount() {
+    return publishedCount.sum();
+  }
+
+  private static Thread daemonThread(Runnable runnable, String threadName) {
+    Thread thread = new Thread(runnable, threadName);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.debug("failed to close socket", e);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+final class Exchange {
+  static final String DIRECT = "direct";
+  static final String FANOUT = "fanout";
+  static final String TOPIC = "topic";
+
+  final String name;
+  final String type;
+  private final List<Binding> bindings = new ArrayList<>();
+
+  Exchange(String name, String type) {
+    this.name = name;
+    this.type = type;
+  }
+
+  static boolean isSupportedType(String type) {
+    return DIRECT.equals(type) || FANOUT.equals(type) || TOPIC.equals(type);
+  }
+
+  void bind(MessageQueue queue, String routingKey) {
+    Binding binding = new Binding(queue, routingKey);
+    if (!bindings.contains(binding)) {
+      bindings.add(binding);
+    }
+  }
+
+  void unbind(MessageQueue queue, String routingKey) {
+    bindings.remove(new Binding(queue, routingKey));
+  }
+
+  void unbindAll(MessageQueue queue) {
+    bindings.removeIf(binding -> binding.queue == queue);
+  }
+
+  void route(String routingKey, Set<MessageQueue> destinations) {
+    for (Binding binding : bindings) {
+      if (matches(binding.routingKey, routingKey)) {
+        destinations.add(binding.queue);
+      }
+    }
+  }
+
+  boolean hasBindings() {
+    return !bindings.isEmpty();
+  }
+
+  private boolean matches(String bindingKey, String routingKey) {
+    switch (type) {
+      case FANOUT:
+        return true;
+      case TOPIC:
+        return matchesTopic(bindingKey.split("\\.", -1), 0, routingKey.split("\\.", -1), 0);
+      default:
+        return bindingKey.equals(routingKey);
+    }
+  }
+
+  /**
+   * '*' matches exactly one word, '#' matches zero or more words.
+   */
+  private static boolean matchesTopic(String[] pattern, int p, String[] words, int w) {
+    if (p == pattern.length) {
+      return w == words.length;
+    }
+    if ("#".equals(pattern[p])) {
+      for (int skip = w; skip <= words.length; skip++) {
+        if (matchesTopic(pattern, p + 1, words, skip)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    if (w == words.length) {
+      return false;
+    }
+    return ("*".equals(pattern[p]) || pattern[p].equals(words[w])) && matchesTopic(pattern, p + 1, words, w + 1);
+  }
+
+  @Override
+  public String toString() {
+    return "exchange '" + name + "' of type " + type + " with bindings " + bindings;
+  }
+
+  private static final class Binding {
+    final MessageQueue queue;
+    final String routingKey;
+
+    Binding(MessageQueue queue, String routingKey) {
+      this.queue = queue;
+      this.routingKey = routingKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Binding)) {
+        return false;
+      }
+      Binding other = (Binding) o;
+      return queue == other.queue && routingKey.equals(other.routingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(queue), routingKey);
+    }
+
+    @Override
+    public String toString() {
+      return queue.name + ':' + routingKey;
+    }
+  }
+}
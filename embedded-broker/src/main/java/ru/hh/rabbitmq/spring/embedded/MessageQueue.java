@@ -0,0 +1,101 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nullable;
+
+final class MessageQueue {
+  static final String MESSAGE_TTL = "x-message-ttl";
+  static final String DEAD_LETTER_EXCHANGE = "x-dead-letter-exchange";
+  static final String DEAD_LETTER_ROUTING_KEY = "x-dead-letter-routing-key";
+  static final long NO_TTL = -1;
+
+  final String name;
+  final boolean autoDelete;
+  // connection that declared exclusive queue, null for shared queues
+  @Nullable
+  final ServerConnection owner;
+  // x-message-ttl argument in milliseconds, NO_TTL if absent
+  final long messageTtlMillis;
+  // x-dead-letter-exchange argument, expired and rejected messages are dropped if null
+  @Nullable
+  final String deadLetterExchange;
+  // x-dead-letter-routing-key argument, routing key of message is kept if null
+  @Nullable
+  final String deadLetterRoutingKey;
+  final Deque<QueuedMessage> messages = new ArrayDeque<>();
+  final List<Consumer> consumers = new ArrayList<>();
+  // set by basic.consume with exclusive flag, no other consumers are allowed then
+  boolean exclusiveConsumer;
+  private int nextConsumer;
+
+  /**
+   * @throws IllegalArgumentException if arguments have wrong types or values
+   */
+  MessageQueue(String name, boolean autoDelete, @Nullable ServerConnection owner, @Nullable Map<String, Object> arguments) {
+    this.name = name;
+    this.autoDelete = autoDelete;
+    this.owner = owner;
+    Object ttl = arguments == null ? null : arguments.get(MESSAGE_TTL);
+    if (ttl != null && (!(ttl instanceof Number) || ((Number) ttl).longValue() < 0)) {
+      throw new IllegalArgumentException("invalid arg '" + MESSAGE_TTL + "': " + ttl);
+    }
+    messageTtlMillis = ttl == null ? NO_TTL : ((Number) ttl).longValue();
+    deadLetterExchange = stringArgument(arguments, DEAD_LETTER_EXCHANGE);
+    deadLetterRoutingKey = stringArgument(arguments, DEAD_LETTER_ROUTING_KEY);
+  }
+
+  @Nullable
+  private static String stringArgument(@Nullable Map<String, Object> arguments, String name) {
+    // strings come as LongString from the wire
+    Object value = arguments == null ? null : arguments.get(name);
+    return value == null ? null : value.toString();
+  }
+
+  /**
+   * @return whether queue declared with other arguments would be the same
+   */
+  boolean isEquivalent(MessageQueue other) {
+    return messageTtlMillis == other.messageTtlMillis
+        && Objects.equals(deadLetterExchange, other.deadLetterExchange)
+        && Objects.equals(deadLetterRoutingKey, other.deadLetterRoutingKey);
+  }
+
+  /**
+   * @return next consumer in round robin order that can take a message, null if all of them are at prefetch limit
+   */
+  @Nullable
+  Consumer nextReadyConsumer() {
+    int size = consumers.size();
+    for (int i = 0; i < size; i++) {
+      Consumer consumer = consumers.get((nextConsumer + i) % size);
+      if (consumer.channel.canDeliver(consumer)) {
+        nextConsumer = (nextConsumer + i + 1) % size;
+        return consumer;
+      }
+    }
+    return null;
+  }
+
+  static final class Consumer {
+    final String tag;
+    final MessageQueue queue;
+    final ServerChannel channel;
+    final boolean noAck;
+    // limit of channel at basic.consume, later basic.qos with global=false does not change it
+    final int prefetchCount;
+    int unacked;
+
+    Consumer(String tag, MessageQueue queue, ServerChannel channel, boolean noAck, int prefetchCount) {
+      this.tag = tag;
+      this.queue = queue;
+      this.channel = channel;
+      this.noAck = noAck;
+      this.prefetchCount = prefetchCount;
+    }
+  }
+}
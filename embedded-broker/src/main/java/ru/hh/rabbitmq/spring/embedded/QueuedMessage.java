@@ -0,0 +1,39 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+
+/**
+ * Message as it was published, shared by all queues it was routed to unless it expires in some of them.
+ */
+final class QueuedMessage {
+  static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+  final String exchange;
+  final String routingKey;
+  final BasicProperties properties;
+  final byte[] body;
+  final boolean redelivered;
+  // System.nanoTime() when message expires in its queue
+  final long expiresAtNanos;
+
+  QueuedMessage(String exchange, String routingKey, BasicProperties properties, byte[] body, boolean redelivered, long expiresAtNanos) {
+    this.exchange = exchange;
+    this.routingKey = routingKey;
+    this.properties = properties;
+    this.body = body;
+    this.redelivered = redelivered;
+    this.expiresAtNanos = expiresAtNanos;
+  }
+
+  QueuedMessage redelivered() {
+    return redelivered ? this : new QueuedMessage(exchange, routingKey, properties, body, true, expiresAtNanos);
+  }
+
+  QueuedMessage expiringAt(long expiresAtNanos) {
+    return expiresAtNanos == this.expiresAtNanos ? this : new QueuedMessage(exchange, routingKey, properties, body, redelivered, expiresAtNanos);
+  }
+
+  boolean isExpired(long nowNanos) {
+    return expiresAtNanos != NEVER_EXPIRES && nowNanos - expiresAtNanos >= 0;
+  }
+}
@@ -0,0 +1,581 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.AMQContentHeader;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.Method;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.hh.rabbitmq.spring.embedded.BrokerState.Delivery;
+
+/**
+ * Server side of AMQP channel: topology methods, publishing with confirms and transactions, consuming with prefetch and acks. All methods
+ * are called holding the monitor of {@link BrokerState}.
+ */
+final class ServerChannel {
+  private static final Logger logger = LoggerFactory.getLogger(ServerChannel.class);
+
+  private final int number;
+  private final ServerConnection connection;
+  private final BrokerState state;
+  private final EmbeddedBroker broker;
+
+  private final Map<String, MessageQueue.Consumer> consumers = new LinkedHashMap<>();
+  private final NavigableMap<Long, Delivery> unacked = new TreeMap<>();
+  private long lastDeliveryTag;
+  // basic.qos with global=false, applies to consumers started later
+  private int consumerPrefetchCount;
+  // basic.qos with global=true, applies to all unacknowledged messages of channel at once
+  private int channelPrefetchCount;
+  private boolean flowActive = true;
+  private boolean confirmMode;
+  private long lastPublishSeqNo;
+  private boolean txMode;
+  private final List<Runnable> txActions = new ArrayList<>();
+  @Nullable
+  private String lastDeclaredQueue;
+  // channel.close is sent, everything but channel.close-ok is ignored
+  private boolean closing;
+
+  // basic.publish which content is being received
+  @Nullable
+  private AMQImpl.Basic.Publish publish;
+  @Nullable
+  private BasicProperties publishProperties;
+  private byte[] publishBody;
+  private int publishBodyReceived;
+
+  ServerChannel(int number, ServerConnection connection, BrokerState state) {
+    this.number = number;
+    this.connection = connection;
+    this.state = state;
+    broker = connection.getBroker();
+  }
+
+  void handleMethod(Method method) {
+    if (closing) {
+      if (method instanceof AMQImpl.Channel.Close) {
+        connection.send(number, new AMQImpl.Channel.CloseOk());
+        connection.channelClosed(number);
+      } else if (method instanceof AMQImpl.Channel.CloseOk) {
+        connection.channelClosed(number);
+      }
+      return;
+    }
+    if (publish != null) {
+      connection.connectionError(AMQP.UNEXPECTED_FRAME, "expected content of basic.publish, got " + method.protocolMethodName(), method);
+      return;
+    }
+
+    if (method instanceof AMQImpl.Basic.Publish) {
+      handlePublish((AMQImpl.Basic.Publish) method);
+    } else if (method instanceof AMQImpl.Basic.Ack) {
+      AMQImpl.Basic.Ack ack = (AMQImpl.Basic.Ack) method;
+      transactional(() -> settle(ack.getDeliveryTag(), ack.getMultiple(), false, false, method));
+    } else if (method instanceof AMQImpl.Basic.Nack) {
+      AMQImpl.Basic.Nack nack = (AMQImpl.Basic.Nack) method;
+      transactional(() -> settle(nack.getDeliveryTag(), nack.getMultiple(), true, nack.getRequeue(), method));
+    } else if (method instanceof AMQImpl.Basic.Reject) {
+      AMQImpl.Basic.Reject reject = (AMQImpl.Basic.Reject) method;
+      transactional(() -> settle(reject.getDeliveryTag(), false, true, reject.getRequeue(), method));
+    } else if (method instanceof AMQImpl.Basic.Consume) {
+      handleConsume((AMQImpl.Basic.Consume) method);
+    } else if (method instanceof AMQImpl.Basic.Cancel) {
+      handleCancel((AMQImpl.Basic.Cancel) method);
+    } else if (method instanceof AMQImpl.Basic.Get) {
+      handleGet((AMQImpl.Basic.Get) method);
+    } else if (method instanceof AMQImpl.Basic.Qos) {
+      AMQImpl.Basic.Qos qos = (AMQImpl.Basic.Qos) method;
+      if (qos.getGlobal()) {
+        channelPrefetchCount = qos.getPrefetchCount();
+      } else {
+        consumerPrefetchCount = qos.getPrefetchCount();
+      }
+      connection.send(number, new AMQImpl.Basic.QosOk());
+      state.dispatchAll();
+    } else if (method instanceof AMQImpl.Basic.Recover || method instanceof AMQImpl.Basic.RecoverAsync) {
+      requeueUnacked();
+      if (method instanceof AMQImpl.Basic.Recover) {
+        connection.send(number, new AMQImpl.Basic.RecoverOk());
+      }
+    } else if (method instanceof AMQImpl.Queue.Declare) {
+      handleQueueDeclare((AMQImpl.Queue.Declare) method);
+    } else if (method instanceof AMQImpl.Queue.Bind) {
+      handleQueueBind((AMQImpl.Queue.Bind) method);
+    } else if (method instanceof AMQImpl.Queue.Unbind) {
+      handleQueueUnbind((AMQImpl.Queue.Unbind) method);
+    } else if (method instanceof AMQImpl.Queue.Purge) {
+      handleQueuePurge((AMQImpl.Queue.Purge) method);
+    } else if (method instanceof AMQImpl.Queue.Delete) {
+      handleQueueDelete((AMQImpl.Queue.Delete) method);
+    } else if (method instanceof AMQImpl.Exchange.Declare) {
+      handleExchangeDeclare((AMQImpl.Exchange.Declare) method);
+    } else if (method instanceof AMQImpl.Exchange.Delete) {
+      handleExchangeDelete((AMQImpl.Exchange.Delete) method);
+    } else if (method instanceof AMQImpl.Confirm.Select) {
+      if (txMode) {
+        channelError(AMQP.PRECONDITION_FAILED, "cannot switch from tx to confirm mode", method);
+        return;
+      }
+      confirmMode = true;
+      if (!((AMQImpl.Confirm.Select) method).getNowait()) {
+        connection.send(number, new AMQImpl.Confirm.SelectOk());
+      }
+    } else if (method instanceof AMQImpl.Tx.Select) {
+      if (confirmMode) {
+        channelError(AMQP.PRECONDITION_FAILED, "cannot switch from confirm to tx mode", method);
+        return;
+      }
+      txMode = true;
+      connection.send(number, new AMQImpl.Tx.SelectOk());
+    } else if (method instanceof AMQImpl.Tx.Commit) {
+      handleCommit(method);
+    } else if (method instanceof AMQImpl.Tx.Rollback) {
+      if (!txMode) {
+        channelError(AMQP.PRECONDITION_FAILED, "channel is not transactional", method);
+        return;
+      }
+      txActions.clear();
+      connection.send(number, new AMQImpl.Tx.RollbackOk());
+    } else if (method instanceof AMQImpl.Channel.Flow) {
+      flowActive = ((AMQImpl.Channel.Flow) method).getActive();
+      connection.send(number, new AMQImpl.Channel.FlowOk(flowActive));
+      state.dispatchAll();
+    } else if (method instanceof AMQImpl.Channel.Close) {
+      release();
+      connection.send(number, new AMQImpl.Channel.CloseOk());
+      connection.channelClosed(number);
+    } else if (method instanceof AMQImpl.Channel.Open) {
+      connection.connectionError(AMQP.CHANNEL_ERROR, "channel " + number + " is already open", method);
+    } else {
+      connection.connectionError(AMQP.NOT_IMPLEMENTED, method.protocolMethodName() + " is not supported by embedded broker", method);
+    }
+  }
+
+  void handleContent(Frame frame) throws IOException {
+    if (closing) {
+      return;
+    }
+    if (frame.type == AMQP.FRAME_HEADER && publish != null && publishProperties == null) {
+      AMQContentHeader header = AMQImpl.readContentHeaderFrom(frame.getInputStream());
+      publishProperties = (BasicProperties) header;
+      publishBody = new byte[(int) header.getBodySize()];
+      publishBodyReceived = 0;
+    } else if (frame.type == AMQP.FRAME_BODY && publishProperties != null) {
+      byte[] payload = frame.getPayload();
+      if (publishBodyReceived + payload.length > publishBody.length) {
+        connection.connectionError(AMQP.FRAME_ERROR, "body of basic.publish is bigger than declared in content header", null);
+        return;
+      }
+      System.arraycopy(payload, 0, publishBody, publishBodyReceived, payload.length);
+      publishBodyReceived += payload.length;
+    } else {
+      connection.connectionError(AMQP.UNEXPECTED_FRAME, "unexpected content frame of type " + frame.type, null);
+      return;
+    }
+    if (publishBodyReceived == publishBody.length) {
+      completePublish();
+    }
+  }
+
+  private void handlePublish(AMQImpl.Basic.Publish method) {
+    if (method.getImmediate()) {
+      connection.connectionError(AMQP.NOT_IMPLEMENTED, "immediate flag is not supported", method);
+      return;
+    }
+    if (state.getExchange(method.getExchange()) == null) {
+      // content frames that follow are ignored as channel is closing
+      channelError(AMQP.NOT_FOUND, "no exchange '" + method.getExchange() + "'", method);
+      return;
+    }
+    publish = method;
+  }
+
+  private void completePublish() {
+    AMQImpl.Basic.Publish method = publish;
+    BasicProperties properties = publishProperties;
+    byte[] body = publishBody;
+    publish = null;
+    publishProperties = null;
+    publishBody = null;
+
+    long seqNo = confirmMode ? ++lastPublishSeqNo : 0;
+    transactional(() -> route(method, properties, body, seqNo));
+  }
+
+  private void route(AMQImpl.Basic.Publish method, BasicProperties properties, byte[] body, long seqNo) {
+    broker.messagePublished();
+    if (broker.shouldFailPublish()) {
+      if (confirmMode) {
+        connection.send(number, new AMQImpl.Basic.Nack(seqNo, false, false));
+      }
+      return;
+    }
+    Exchange exchange = state.getExchange(method.getExchange());
+    if (exchange == null) {
+      channelError(AMQP.NOT_FOUND, "no exchange '" + method.getExchange() + "'", method);
+      return;
+    }
+    boolean routed = state.publish(exchange, method.getRoutingKey(), properties, body);
+    if (!routed && method.getMandatory()) {
+      connection.sendContent(number, new AMQImpl.Basic.Return(AMQP.NO_ROUTE, "NO_ROUTE", exchange.name, method.getRoutingKey()), properties,
+          body);
+    }
+    if (confirmMode) {
+      connection.send(number, new AMQImpl.Basic.Ack(seqNo, false));
+    }
+  }
+
+  private void handleConsume(AMQImpl.Basic.Consume method) {
+    MessageQueue queue = findQueue(method.getQueue(), method);
+    if (queue == null) {
+      return;
+    }
+    String tag = method.getConsumerTag().isEmpty() ? "amq.ctag-" + UUID.randomUUID() : method.getConsumerTag();
+    if (consumers.containsKey(tag)) {
+      connection.connectionError(AMQP.NOT_ALLOWED, "attempt to reuse consumer tag '" + tag + "'", method);
+      return;
+    }
+    if (queue.exclusiveConsumer || method.getExclusive() && !queue.consumers.isEmpty()) {
+      channelError(AMQP.ACCESS_REFUSED, "queue '" + queue.name + "' in exclusive use", method);
+      return;
+    }
+    MessageQueue.Consumer consumer = new MessageQueue.Consumer(tag, queue, this, method.getNoAck(), consumerPrefetchCount);
+    consumers.put(tag, consumer);
+    queue.consumers.add(consumer);
+    queue.exclusiveConsumer = method.getExclusive();
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Basic.ConsumeOk(tag));
+    }
+    state.dispatch(queue);
+  }
+
+  private void handleCancel(AMQImpl.Basic.Cancel method) {
+    MessageQueue.Consumer consumer = consumers.remove(method.getConsumerTag());
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Basic.CancelOk(method.getConsumerTag()));
+    }
+    if (consumer != null) {
+      removeConsumer(consumer);
+    }
+  }
+
+  private void handleGet(AMQImpl.Basic.Get method) {
+    MessageQueue queue = findQueue(method.getQueue(), method);
+    if (queue == null) {
+      return;
+    }
+    state.expire(queue);
+    QueuedMessage message = queue.messages.pollFirst();
+    if (message == null) {
+      connection.send(number, new AMQImpl.Basic.GetEmpty(""));
+      return;
+    }
+    long tag = ++lastDeliveryTag;
+    if (!method.getNoAck()) {
+      unacked.put(tag, new Delivery(queue, message, null));
+    }
+    Method getOk = new AMQImpl.Basic.GetOk(tag, message.redelivered, message.exchange, message.routingKey, queue.messages.size());
+    connection.sendContent(number, getOk, message.properties, message.body);
+  }
+
+  private void settle(long deliveryTag, boolean multiple, boolean rejected, boolean requeue, Method method) {
+    List<Delivery> deliveries;
+    if (multiple) {
+      NavigableMap<Long, Delivery> settled = deliveryTag == 0 ? unacked : unacked.headMap(deliveryTag, true);
+      if (deliveryTag != 0 && !unacked.containsKey(deliveryTag)) {
+        deliveries = null;
+      } else {
+        deliveries = new ArrayList<>(settled.values());
+        settled.clear();
+      }
+    } else {
+      Delivery delivery = unacked.remove(deliveryTag);
+      deliveries = delivery == null ? null : Collections.singletonList(delivery);
+    }
+    if (deliveries == null) {
+      channelError(AMQP.PRECONDITION_FAILED, "unknown delivery tag " + deliveryTag, method);
+      return;
+    }
+    settled(deliveries);
+    if (requeue) {
+      state.requeue(deliveries);
+    } else if (rejected) {
+      state.deadLetter(deliveries);
+    }
+    state.dispatchAll();
+  }
+
+  private void handleCommit(Method method) {
+    if (!txMode) {
+      channelError(AMQP.PRECONDITION_FAILED, "channel is not transactional", method);
+      return;
+    }
+    List<Runnable> actions = new ArrayList<>(txActions);
+    txActions.clear();
+    for (Runnable action : actions) {
+      action.run();
+      if (closing) {
+        return;
+      }
+    }
+    connection.send(number, new AMQImpl.Tx.CommitOk());
+  }
+
+  private void transactional(Runnable action) {
+    if (txMode) {
+      txActions.add(action);
+    } else {
+      action.run();
+    }
+  }
+
+  private void handleQueueDeclare(AMQImpl.Queue.Declare method) {
+    String name = method.getQueue().isEmpty() ? "amq.gen-" + UUID.randomUUID() : method.getQueue();
+    MessageQueue queue = state.getQueue(name);
+    if (queue != null && queue.owner != null && queue.owner != connection) {
+      channelError(AMQP.RESOURCE_LOCKED, "queue '" + name + "' is exclusive to other connection", method);
+      return;
+    }
+    if (queue == null && method.getPassive()) {
+      channelError(AMQP.NOT_FOUND, "no queue '" + name + "'", method);
+      return;
+    }
+    if (!method.getPassive()) {
+      MessageQueue declared;
+      try {
+        declared = new MessageQueue(name, method.getAutoDelete(), method.getExclusive() ? connection : null, method.getArguments());
+      } catch (IllegalArgumentException e) {
+        channelError(AMQP.PRECONDITION_FAILED, e.getMessage() + " for queue '" + name + "'", method);
+        return;
+      }
+      if (queue == null) {
+        queue = state.declareQueue(declared);
+      } else if (!queue.isEquivalent(declared)) {
+        channelError(AMQP.PRECONDITION_FAILED, "inequivalent args for queue '" + name + "'", method);
+        return;
+      }
+    }
+    lastDeclaredQueue = name;
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Queue.DeclareOk(name, queue.messages.size(), queue.consumers.size()));
+    }
+  }
+
+  private void handleQueueBind(AMQImpl.Queue.Bind method) {
+    MessageQueue queue = findQueue(method.getQueue(), method);
+    Exchange exchange = queue == null ? null : findBindableExchange(method.getExchange(), method);
+    if (exchange == null) {
+      return;
+    }
+    exchange.bind(queue, method.getRoutingKey());
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Queue.BindOk());
+    }
+  }
+
+  private void handleQueueUnbind(AMQImpl.Queue.Unbind method) {
+    MessageQueue queue = findQueue(method.getQueue(), method);
+    Exchange exchange = queue == null ? null : findBindableExchange(method.getExchange(), method);
+    if (exchange == null) {
+      return;
+    }
+    exchange.unbind(queue, method.getRoutingKey());
+    connection.send(number, new AMQImpl.Queue.UnbindOk());
+  }
+
+  private void handleQueuePurge(AMQImpl.Queue.Purge method) {
+    MessageQueue queue = findQueue(method.getQueue(), method);
+    if (queue == null) {
+      return;
+    }
+    int messageCount = queue.messages.size();
+    queue.messages.clear();
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Queue.PurgeOk(messageCount));
+    }
+  }
+
+  private void handleQueueDelete(AMQImpl.Queue.Delete method) {
+    String name = method.getQueue().isEmpty() ? lastDeclaredQueue : method.getQueue();
+    MessageQueue queue = name == null ? null : state.getQueue(name);
+    int messageCount = 0;
+    if (queue != null) {
+      if (queue.owner != null && queue.owner != connection) {
+        channelError(AMQP.RESOURCE_LOCKED, "queue '" + name + "' is exclusive to other connection", method);
+        return;
+      }
+      if (method.getIfUnused() && !queue.consumers.isEmpty()) {
+        channelError(AMQP.PRECONDITION_FAILED, "queue '" + name + "' in use", method);
+        return;
+      }
+      if (method.getIfEmpty() && !queue.messages.isEmpty()) {
+        channelError(AMQP.PRECONDITION_FAILED, "queue '" + name + "' is not empty", method);
+        return;
+      }
+      messageCount = state.deleteQueue(queue);
+    }
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Queue.DeleteOk(messageCount));
+    }
+  }
+
+  private void handleExchangeDeclare(AMQImpl.Exchange.Declare method) {
+    String name = method.getExchange();
+    Exchange exchange = state.getExchange(name);
+    if (exchange == null) {
+      if (method.getPassive()) {
+        channelError(AMQP.NOT_FOUND, "no exchange '" + name + "'", method);
+        return;
+      }
+      if (!Exchange.isSupportedType(method.getType())) {
+        connection.connectionError(AMQP.COMMAND_INVALID, "exchange type '" + method.getType() + "' is not supported", method);
+        return;
+      }
+      if (name.startsWith("amq.")) {
+        channelError(AMQP.ACCESS_REFUSED, "exchange name '" + name + "' contains reserved prefix 'amq.'", method);
+        return;
+      }
+      state.declareExchange(name, method.getType());
+    } else if (!method.getPassive() && !exchange.type.equals(method.getType())) {
+      channelError(AMQP.PRECONDITION_FAILED, "inequivalent arg 'type' for exchange '" + name + "': received '" + method.getType()
+          + "' but current is '" + exchange.type + "'", method);
+      return;
+    }
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Exchange.DeclareOk());
+    }
+  }
+
+  private void handleExchangeDelete(AMQImpl.Exchange.Delete method) {
+    String name = method.getExchange();
+    if (BrokerState.DEFAULT_EXCHANGE.equals(name) || name.startsWith("amq.")) {
+      channelError(AMQP.ACCESS_REFUSED, "exchange '" + name + "' can not be deleted", method);
+      return;
+    }
+    Exchange exchange = state.getExchange(name);
+    if (exchange != null && method.getIfUnused() && exchange.hasBindings()) {
+      channelError(AMQP.PRECONDITION_FAILED, "exchange '" + name + "' in use", method);
+      return;
+    }
+    state.deleteExchange(name);
+    if (!method.getNowait()) {
+      connection.send(number, new AMQImpl.Exchange.DeleteOk());
+    }
+  }
+
+  /**
+   * @param name queue name, empty for the queue last declared on this channel
+   * @return queue or null if it does not exist or is exclusive to other connection, channel is closed then
+   */
+  @Nullable
+  private MessageQueue findQueue(String name, Method method) {
+    String queueName = name.isEmpty() && lastDeclaredQueue != null ? lastDeclaredQueue : name;
+    MessageQueue queue = state.getQueue(queueName);
+    if (queue == null) {
+      channelError(AMQP.NOT_FOUND, "no queue '" + queueName + "'", method);
+      return null;
+    }
+    if (queue.owner != null && queue.owner != connection) {
+      channelError(AMQP.RESOURCE_LOCKED, "queue '" + queueName + "' is exclusive to other connection", method);
+      return null;
+    }
+    return queue;
+  }
+
+  @Nullable
+  private Exchange findBindableExchange(String name, Method method) {
+    if (BrokerState.DEFAULT_EXCHANGE.equals(name)) {
+      channelError(AMQP.ACCESS_REFUSED, "operation not permitted on the default exchange", method);
+      return null;
+    }
+    Exchange exchange = state.getExchange(name);
+    if (exchange == null) {
+      channelError(AMQP.NOT_FOUND, "no exchange '" + name + "'", method);
+    }
+    return exchange;
+  }
+
+  boolean canDeliver(MessageQueue.Consumer consumer) {
+    return !closing && flowActive
+        && (channelPrefetchCount == 0 || unacked.size() < channelPrefetchCount)
+        && (consumer.prefetchCount == 0 || consumer.unacked < consumer.prefetchCount);
+  }
+
+  void deliver(MessageQueue.Consumer consumer, QueuedMessage message) {
+    long tag = ++lastDeliveryTag;
+    if (!consumer.noAck) {
+      unacked.put(tag, new Delivery(consumer.queue, message, consumer));
+      consumer.unacked++;
+    }
+    Method deliver = new AMQImpl.Basic.Deliver(consumer.tag, tag, message.redelivered, message.exchange, message.routingKey);
+    connection.sendContent(number, deliver, message.properties, message.body);
+  }
+
+  /**
+   * Consumer is cancelled because its queue is deleted, client is notified with basic.cancel.
+   */
+  void cancelByBroker(MessageQueue.Consumer consumer) {
+    if (consumers.remove(consumer.tag) != null) {
+      connection.send(number, new AMQImpl.Basic.Cancel(consumer.tag, true));
+    }
+  }
+
+  private void removeConsumer(MessageQueue.Consumer consumer) {
+    MessageQueue queue = consumer.queue;
+    queue.consumers.remove(consumer);
+    if (queue.consumers.isEmpty()) {
+      queue.exclusiveConsumer = false;
+    }
+    state.consumerRemoved(queue);
+  }
+
+  private void requeueUnacked() {
+    List<Delivery> deliveries = new ArrayList<>(unacked.values());
+    unacked.clear();
+    settled(deliveries);
+    state.requeue(deliveries);
+  }
+
+  private static void settled(List<Delivery> deliveries) {
+    for (Delivery delivery : deliveries) {
+      if (delivery.consumer != null) {
+        delivery.consumer.unacked--;
+      }
+    }
+  }
+
+  /**
+   * Cancels consumers and requeues unacknowledged messages, called when channel or its connection is closed.
+   */
+  void release() {
+    List<MessageQueue.Consumer> channelConsumers = new ArrayList<>(consumers.values());
+    consumers.clear();
+    channelConsumers.forEach(this::removeConsumer);
+    txActions.clear();
+    publish = null;
+    publishProperties = null;
+    publishBody = null;
+    // closing channel must not take back its own messages
+    closing = true;
+    requeueUnacked();
+  }
+
+  private void channelError(int code, String text, Method cause) {
+    logger.debug("closing channel {}: {} {}", number, code, text);
+    release();
+    connection.send(number, new AMQImpl.Channel.Close(code, text, cause.protocolClassId(), cause.protocolMethodId()));
+  }
+}
@@ -0,0 +1,259 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.impl.AMQImpl;
+import com.rabbitmq.client.impl.Frame;
+import com.rabbitmq.client.impl.Method;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static com.rabbitmq.client.impl.LongStringHelper.asLongString;
+
+/**
+ * Server side of one AMQP 0-9-1 connection. Frames are read by a dedicated thread and handled holding the monitor of {@link BrokerState};
+ * frames are written by whatever thread handles the frame that caused them, so writes are serialized on the output stream.
+ */
+final class ServerConnection implements Runnable {
+  private static final Logger logger = LoggerFactory.getLogger(ServerConnection.class);
+
+  private static final byte[] PROTOCOL_HEADER = {'A', 'M', 'Q', 'P', 0, 0, 9, 1};
+  private static final int CHANNEL_MAX = 2047;
+  private static final int FRAME_MAX = 131072;
+  // frame type, channel, size and frame end
+  private static final int FRAME_OVERHEAD = 8;
+  private static final long CLOSE_OK_TIMEOUT_MS = 1000;
+
+  private final EmbeddedBroker broker;
+  private final BrokerState state;
+  private final Socket socket;
+  private final ScheduledExecutorService scheduler;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private final Map<Integer, ServerChannel> channels = new HashMap<>();
+
+  private volatile int frameMax = FRAME_MAX;
+  @Nullable
+  private volatile ScheduledFuture<?> heartbeats;
+  private boolean closing;
+
+  ServerConnection(EmbeddedBroker broker, BrokerState state, Socket socket, ScheduledExecutorService scheduler) throws IOException {
+    this.broker = broker;
+    this.state = state;
+    this.socket = socket;
+    this.scheduler = scheduler;
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  EmbeddedBroker getBroker() {
+    return broker;
+  }
+
+  @Override
+  public void run() {
+    try {
+      readProtocolHeader();
+      Map<String, Object> capabilities = new HashMap<>();
+      capabilities.put("publisher_confirms", true);
+      capabilities.put("basic.nack", true);
+      capabilities.put("consumer_cancel_notify", true);
+      Map<String, Object> serverProperties = new HashMap<>();
+      serverProperties.put("product", asLongString("EmbeddedBroker"));
+      serverProperties.put("capabilities", capabilities);
+      send(0, new AMQImpl.Connection.Start(0, 9, serverProperties, asLongString("PLAIN AMQPLAIN"), asLongString("en_US")));
+
+      while (!socket.isClosed()) {
+        handleFrame(Frame.readFrom(in));
+      }
+    } catch (EOFException | SocketException e) {
+      logger.debug("connection {} closed: {}", socket.getRemoteSocketAddress(), e.toString());
+    } catch (IOException | RuntimeException e) {
+      logger.warn("connection {} failed, closing it", socket.getRemoteSocketAddress(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closeSocket();
+      release();
+    }
+  }
+
+  private void readProtocolHeader() throws IOException {
+    byte[] header = new byte[PROTOCOL_HEADER.length];
+    in.readFully(header);
+    if (!Arrays.equals(header, PROTOCOL_HEADER)) {
+      synchronized (out) {
+        out.write(PROTOCOL_HEADER);
+        out.flush();
+      }
+      throw new IOException("unsupported protocol header " + Arrays.toString(header));
+    }
+  }
+
+  private void handleFrame(@Nullable Frame frame) throws IOException, InterruptedException {
+    if (frame == null || frame.type == AMQP.FRAME_HEARTBEAT) {
+      return;
+    }
+    Method method = frame.type == AMQP.FRAME_METHOD ? AMQImpl.readMethodFrom(frame.getInputStream()) : null;
+    if (method instanceof AMQImpl.Basic.Publish) {
+      broker.publishLatency();
+    }
+    synchronized (state) {
+      if (frame.channel == 0) {
+        if (method == null) {
+          connectionError(AMQP.UNEXPECTED_FRAME, "unexpected content frame on channel 0", null);
+        } else {
+          handleConnectionMethod(method);
+        }
+        return;
+      }
+      if (closing) {
+        return;
+      }
+
+      ServerChannel channel = channels.get(frame.channel);
+      if (channel == null) {
+        if (method instanceof AMQImpl.Channel.Open) {
+          channels.put(frame.channel, new ServerChannel(frame.channel, this, state));
+          send(frame.channel, new AMQImpl.Channel.OpenOk(asLongString("")));
+        } else {
+          connectionError(AMQP.CHANNEL_ERROR, "channel " + frame.channel + " is not open", method);
+        }
+      } else if (method != null) {
+        channel.handleMethod(method);
+      } else {
+        channel.handleContent(frame);
+      }
+    }
+  }
+
+  private void handleConnectionMethod(Method method) throws IOException {
+    if (method instanceof AMQImpl.Connection.StartOk) {
+      // any credentials are accepted
+      send(0, new AMQImpl.Connection.Tune(CHANNEL_MAX, FRAME_MAX, 0));
+    } else if (method instanceof AMQImpl.Connection.TuneOk) {
+      AMQImpl.Connection.TuneOk tuneOk = (AMQImpl.Connection.TuneOk) method;
+      if (tuneOk.getFrameMax() > 0) {
+        frameMax = Math.min(tuneOk.getFrameMax(), FRAME_MAX);
+      }
+      if (tuneOk.getHeartbeat() > 0) {
+        long intervalMs = SECONDS.toMillis(tuneOk.getHeartbeat()) / 2;
+        heartbeats = scheduler.scheduleAtFixedRate(this::sendHeartbeat, intervalMs, intervalMs, MILLISECONDS);
+      }
+    } else if (method instanceof AMQImpl.Connection.Open) {
+      send(0, new AMQImpl.Connection.OpenOk(""));
+    } else if (method instanceof AMQImpl.Connection.Close) {
+      releaseChannels();
+      send(0, new AMQImpl.Connection.CloseOk());
+      closeSocket();
+    } else if (method instanceof AMQImpl.Connection.CloseOk) {
+      closeSocket();
+    } else if (!closing) {
+      connectionError(AMQP.COMMAND_INVALID, "unexpected method " + method.protocolMethodName() + " on channel 0", method);
+    }
+  }
+
+  /**
+   * Sends connection.close and closes socket when client replies or after timeout. Frames received meanwhile are ignored.
+   */
+  void connectionError(int code, String text, @Nullable Method cause) {
+    logger.debug("closing connection {}: {} {}", socket.getRemoteSocketAddress(), code, text);
+    closing = true;
+    releaseChannels();
+    int classId = cause == null ? 0 : cause.protocolClassId();
+    int methodId = cause == null ? 0 : cause.protocolMethodId();
+    send(0, new AMQImpl.Connection.Close(code, text, classId, methodId));
+    scheduler.schedule(this::closeSocket, CLOSE_OK_TIMEOUT_MS, MILLISECONDS);
+  }
+
+  void channelClosed(int channelNumber) {
+    channels.remove(channelNumber);
+  }
+
+  void send(int channelNumber, Method method) {
+    try {
+      synchronized (out) {
+        method.toFrame(channelNumber).writeTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      logger.debug("failed to send {} to {}, closing connection", method.protocolMethodName(), socket.getRemoteSocketAddress(), e);
+      closeSocket();
+    }
+  }
+
+  void sendContent(int channelNumber, Method method, BasicProperties properties, byte[] body) {
+    try {
+      synchronized (out) {
+        method.toFrame(channelNumber).writeTo(out);
+        properties.toFrame(channelNumber, body.length).writeTo(out);
+        int fragmentSize = frameMax - FRAME_OVERHEAD;
+        for (int offset = 0; offset < body.length; offset += fragmentSize) {
+          Frame.fromBodyFragment(channelNumber, body, offset, Math.min(fragmentSize, body.length - offset)).writeTo(out);
+        }
+        out.flush();
+      }
+    } catch (IOException e) {
+      logger.debug("failed to send {} to {}, closing connection", method.protocolMethodName(), socket.getRemoteSocketAddress(), e);
+      closeSocket();
+    }
+  }
+
+  private void sendHeartbeat() {
+    try {
+      synchronized (out) {
+        new Frame(AMQP.FRAME_HEARTBEAT, 0).writeTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      closeSocket();
+    }
+  }
+
+  /**
+   * Closes socket without closing handshake, client sees it as network failure.
+   */
+  void closeSocket() {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      logger.debug("failed to close socket", e);
+    }
+  }
+
+  private void releaseChannels() {
+    for (ServerChannel channel : channels.values()) {
+      channel.release();
+    }
+    channels.clear();
+  }
+
+  private void release() {
+    ScheduledFuture<?> heartbeats = this.heartbeats;
+    if (heartbeats != null) {
+      heartbeats.cancel(false);
+    }
+    synchronized (state) {
+      releaseChannels();
+      for (MessageQueue queue : state.getExclusiveQueues(this)) {
+        state.deleteQueue(queue);
+      }
+    }
+    broker.connectionClosed(this);
+  }
+}
@@ -0,0 +1,350 @@
+package ru.hh.rabbitmq.spring.embedded;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static java.util.Collections.emptyMap;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EmbeddedBrokerTest {
+  private static final String EXCHANGE = "embedded-exchange";
+  private static final String QUEUE = "embedded-queue";
+
+  private EmbeddedBroker broker;
+  private Connection connection;
+  private Channel channel;
+
+  @Before
+  public void setUp() throws Exception {
+    broker = new EmbeddedBroker().start();
+    connection = connectionFactory().newConnection();
+    channel = connection.createChannel();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (connection.isOpen()) {
+      connection.close();
+    }
+    broker.stop();
+  }
+
+  @Test
+  public void testRouting() throws Exception {
+    channel.exchangeDeclare(EXCHANGE, "topic");
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    channel.queueBind(QUEUE, EXCHANGE, "a.*.c");
+    channel.queueBind(QUEUE, EXCHANGE, "x.#");
+
+    publish(EXCHANGE, "a.b.c", "1");
+    publish(EXCHANGE, "a.b.d", "2");
+    publish(EXCHANGE, "x", "3");
+    publish(EXCHANGE, "x.y.z", "4");
+    publish("", QUEUE, "5");
+    sync();
+
+    assertEquals(4, broker.getMessageCount(QUEUE));
+    assertEquals("1", get(QUEUE));
+    assertEquals("3", get(QUEUE));
+    assertEquals("4", get(QUEUE));
+    assertEquals("5", get(QUEUE));
+    assertNull(channel.basicGet(QUEUE, true));
+  }
+
+  @Test
+  public void testLargeMessage() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    byte[] body = new byte[1024 * 1024];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    channel.basicPublish("", QUEUE, null, body);
+
+    GetResponse response = channel.basicGet(QUEUE, true);
+    assertNotNull(response);
+    assertArrayEquals(body, response.getBody());
+  }
+
+  @Test
+  public void testPrefetchAndAcks() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    for (int i = 0; i < 5; i++) {
+      publish("", QUEUE, Integer.toString(i));
+    }
+    BlockingQueue<Envelope> deliveries = new LinkedBlockingQueue<>();
+    channel.basicQos(2);
+    channel.basicConsume(QUEUE, false, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        deliveries.add(envelope);
+      }
+    });
+
+    Envelope first = deliveries.poll(5, TimeUnit.SECONDS);
+    Envelope second = deliveries.poll(5, TimeUnit.SECONDS);
+    assertNotNull(second);
+    assertNull(deliveries.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(3, broker.getMessageCount(QUEUE));
+
+    channel.basicAck(second.getDeliveryTag(), true);
+    assertNotNull(deliveries.poll(5, TimeUnit.SECONDS));
+    assertNotNull(deliveries.poll(5, TimeUnit.SECONDS));
+    assertEquals(1, broker.getMessageCount(QUEUE));
+    assertFalse(first.isRedeliver());
+  }
+
+  @Test
+  public void testConsumerAndGlobalPrefetch() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    for (int i = 0; i < 5; i++) {
+      publish("", QUEUE, Integer.toString(i));
+    }
+    BlockingQueue<Envelope> deliveries = new LinkedBlockingQueue<>();
+    channel.basicQos(2);
+    channel.basicConsume(QUEUE, false, new DefaultConsumer(channel) {
+      @Override
+      public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        deliveries.add(envelope);
+      }
+    });
+    Envelope first = deliveries.poll(5, TimeUnit.SECONDS);
+    assertNotNull(deliveries.poll(5, TimeUnit.SECONDS));
+
+    // consumer keeps its limit, channel limit applies right away
+    channel.basicQos(4);
+    assertNull(deliveries.poll(100, TimeUnit.MILLISECONDS));
+    channel.basicQos(1, true);
+    channel.basicAck(first.getDeliveryTag(), false);
+    assertNull(deliveries.poll(100, TimeUnit.MILLISECONDS));
+    channel.basicQos(0, true);
+    assertNotNull(deliveries.poll(5, TimeUnit.SECONDS));
+    assertNull(deliveries.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(2, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void testUnackedMessagesAreRequeuedOnClose() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    publish("", QUEUE, "1");
+    Channel consumingChannel = connection.createChannel();
+    GetResponse response = consumingChannel.basicGet(QUEUE, false);
+    assertNotNull(response);
+    assertEquals(0, broker.getMessageCount(QUEUE));
+
+    consumingChannel.close();
+
+    response = channel.basicGet(QUEUE, true);
+    assertNotNull(response);
+    assertTrue(response.getEnvelope().isRedeliver());
+  }
+
+  @Test
+  public void testNackRequeue() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    publish("", QUEUE, "1");
+    GetResponse response = channel.basicGet(QUEUE, false);
+    channel.basicNack(response.getEnvelope().getDeliveryTag(), false, true);
+    sync();
+    assertEquals(1, broker.getMessageCount(QUEUE));
+
+    response = channel.basicGet(QUEUE, false);
+    channel.basicReject(response.getEnvelope().getDeliveryTag(), false);
+    sync();
+    assertEquals(0, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void testTtlAndDeadLettering() throws Exception {
+    String delayQueue = QUEUE + ".delay";
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    channel.queueDeclare(delayQueue, false, false, false, Map.of("x-message-ttl", 100, "x-dead-letter-exchange", "",
+        "x-dead-letter-routing-key", QUEUE));
+    try {
+      channel.queueDeclare(delayQueue, false, false, false, Map.of("x-message-ttl", 200));
+      fail();
+    } catch (IOException e) {
+      assertFalse(channel.isOpen());
+    }
+    channel = connection.createChannel();
+
+    publish("", delayQueue, "1");
+    sync();
+    assertEquals(1, broker.getMessageCount(delayQueue));
+    waitUntil(() -> broker.getMessageCount(QUEUE) == 1);
+    assertEquals(0, broker.getMessageCount(delayQueue));
+
+    GetResponse response = channel.basicGet(QUEUE, false);
+    List<?> deaths = (List<?>) response.getProps().getHeaders().get("x-death");
+    Map<?, ?> death = (Map<?, ?>) deaths.get(0);
+    assertEquals("expired", death.get("reason").toString());
+    assertEquals(delayQueue, death.get("queue").toString());
+    assertEquals(1L, death.get("count"));
+
+    channel.basicReject(response.getEnvelope().getDeliveryTag(), false);
+    sync();
+    assertEquals(0, broker.getMessageCount(QUEUE));
+    assertEquals(0, broker.getMessageCount(delayQueue));
+  }
+
+  @Test
+  public void testConfirmsAndReturns() throws Exception {
+    BlockingQueue<Integer> returns = new LinkedBlockingQueue<>();
+    channel.addReturnListener(returned -> returns.add(returned.getReplyCode()));
+    channel.confirmSelect();
+
+    channel.basicPublish("", "no-such-queue", true, null, new byte[0]);
+    assertTrue(channel.waitForConfirms(5000));
+    assertEquals(AMQP.NO_ROUTE, (int) returns.poll(5, TimeUnit.SECONDS));
+
+    broker.setPublishFailureProbability(1);
+    channel.basicPublish("", "no-such-queue", null, new byte[0]);
+    assertFalse(channel.waitForConfirms(5000));
+    assertEquals(2, broker.getPublishedCount());
+  }
+
+  @Test
+  public void testChannelErrors() throws Exception {
+    try {
+      channel.queueDeclarePassive(QUEUE);
+      fail();
+    } catch (IOException e) {
+      assertFalse(channel.isOpen());
+    }
+    channel = connection.createChannel();
+    channel.exchangeDeclare(EXCHANGE, "direct");
+    try {
+      channel.exchangeDeclare(EXCHANGE, "fanout");
+      fail();
+    } catch (IOException e) {
+      assertFalse(channel.isOpen());
+    }
+    assertTrue(connection.isOpen());
+  }
+
+  @Test
+  public void testExclusiveQueueIsDeletedWithConnection() throws Exception {
+    String queue = channel.queueDeclare().getQueue();
+    assertTrue(broker.queueExists(queue));
+
+    Connection other = connectionFactory().newConnection();
+    try {
+      other.createChannel().queueDeclarePassive(queue);
+      fail();
+    } catch (IOException e) {
+      // locked
+    } finally {
+      other.close();
+    }
+
+    connection.close();
+    waitUntil(() -> !broker.queueExists(queue));
+  }
+
+  @Test
+  public void testTransaction() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    channel.txSelect();
+    publish("", QUEUE, "1");
+    sync();
+    assertEquals(0, broker.getMessageCount(QUEUE));
+    channel.txRollback();
+    publish("", QUEUE, "2");
+    channel.txCommit();
+    assertEquals(1, broker.getMessageCount(QUEUE));
+  }
+
+  @Test
+  public void testDroppedConnectionAndRestart() throws Exception {
+    broker.dropConnections();
+    waitUntil(() -> !connection.isOpen());
+
+    int port = broker.getPort();
+    broker.stop();
+    broker.start();
+    assertEquals(port, broker.getPort());
+
+    broker.setRejectConnections(true);
+    try {
+      connectionFactory().newConnection();
+      fail();
+    } catch (IOException e) {
+      // rejected
+    }
+    broker.setRejectConnections(false);
+    connection = connectionFactory().newConnection();
+    assertTrue(connection.isOpen());
+  }
+
+  @Test
+  public void testPublishLatency() throws Exception {
+    channel.queueDeclare(QUEUE, false, false, false, null);
+    broker.setPublishLatency(Duration.ofMillis(200));
+    long start = System.nanoTime();
+    publish("", QUEUE, "1");
+    sync();
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  private ConnectionFactory connectionFactory() {
+    ConnectionFactory factory = new ConnectionFactory();
+    factory.setHost("localhost");
+    factory.setPort(broker.getPort());
+    factory.setAutomaticRecoveryEnabled(false);
+    return factory;
+  }
+
+  private void publish(String exchange, String routingKey, String body) throws IOException {
+    Map<String, Object> headers = emptyMap();
+    AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder().headers(headers).build();
+    channel.basicPublish(exchange, routingKey, properties, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Frames of a connection are handled in order, so everything sent before is handled when synchronous method returns.
+   */
+  private void sync() throws IOException {
+    channel.queueDeclarePassive(QUEUE);
+  }
+
+  private String get(String queue) throws IOException {
+    GetResponse response = channel.basicGet(queue, true);
+    assertNotNull(response);
+    return new String(response.getBody(), StandardCharsets.UTF_8);
+  }
+
+  private static void waitUntil(Condition condition) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.isMet()) {
+      if (System.nanoTime() > deadline) {
+        fail("condition is not met in 5 seconds");
+      }
+      Thread.sleep(10);
+    }
+  }
+
+  private interface Condition {
+    boolean isMet() throws Exception;
+  }
+}
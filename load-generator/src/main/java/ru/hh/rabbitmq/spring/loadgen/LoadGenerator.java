@@ -0,0 +1,226 @@
+package ru.hh.rabbitmq.spring.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import org.springframework.amqp.core.Binding;
+import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.beans.factory.DisposableBean;
+import ru.hh.rabbitmq.spring.ClientFactory;
+import static ru.hh.rabbitmq.spring.ConfigKeys.HOST;
+import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PASSWORD;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_EXCHANGE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_HOSTS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_ROUTING_KEY;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_HOSTS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUES;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUES_SEPARATOR_PATTERN;
+import static ru.hh.rabbitmq.spring.ConfigKeys.USERNAME;
+import ru.hh.rabbitmq.spring.Receiver;
+import ru.hh.rabbitmq.spring.embedded.EmbeddedBroker;
+import ru.hh.rabbitmq.spring.receive.GenericMessageListener;
+import ru.hh.rabbitmq.spring.send.Publisher;
+import ru.hh.rabbitmq.spring.send.SyncPublisher;
+
+/**
+ * <p>
+ * Drives load through {@link Publisher}s or {@link SyncPublisher}s and {@link Receiver}s created by {@link ClientFactory}, so results include
+ * threading, inner queues, confirms and JSON conversion of this library. Reports throughput and HdrHistogram latency percentiles of publishing
+ * (until publisher future completes or sync send returns) and end-to-end (until receiver's listener gets the message).
+ * </p>
+ * <pre>
+ * java -jar load-generator/target/load-generator.jar [file.properties] [key=value ...]
+ * </pre>
+ * <p>
+ * Properties are {@link ru.hh.rabbitmq.spring.ConfigKeys} settings and {@link LoadSettings} ('loadgen.*') settings, key=value arguments
+ * override the file. Exchange, routing key and queue are 'loadgen' if not set, username and password are 'guest'.
+ * </p>
+ */
+public final class LoadGenerator {
+  private static final String DEFAULT_NAME = "loadgen";
+  private static final String DEFAULT_CREDENTIALS = "guest";
+
+  private final Properties properties;
+  private final LoadSettings settings;
+  private final PrintStream out;
+  private final LoadStats stats = new LoadStats();
+  private long start;
+  private long lastReport;
+
+  LoadGenerator(Properties properties, PrintStream out) {
+    this.properties = properties;
+    this.out = out;
+    settings = new LoadSettings(properties);
+    properties.putIfAbsent(PUBLISHER_EXCHANGE, DEFAULT_NAME);
+    properties.putIfAbsent(PUBLISHER_ROUTING_KEY, DEFAULT_NAME);
+    properties.putIfAbsent(RECEIVER_QUEUES, DEFAULT_NAME);
+    properties.putIfAbsent(USERNAME, DEFAULT_CREDENTIALS);
+    properties.putIfAbsent(PASSWORD, DEFAULT_CREDENTIALS);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Properties properties = new Properties();
+    List<String> overrides = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.contains("=")) {
+        overrides.add(arg);
+      } else {
+        try (InputStream input = Files.newInputStream(Paths.get(arg))) {
+          properties.load(input);
+        }
+      }
+    }
+    for (String override : overrides) {
+      int separator = override.indexOf('=');
+      properties.setProperty(override.substring(0, separator).trim(), override.substring(separator + 1).trim());
+    }
+
+    new LoadGenerator(properties, System.out).run();
+    // threads of spring containers and amqp-client may outlive shutdown for a while
+    System.exit(0);
+  }
+
+  void run() throws InterruptedException {
+    EmbeddedBroker broker = null;
+    if (settings.embedded) {
+      broker = new EmbeddedBroker().start();
+      properties.setProperty(HOSTS, broker.getAddress());
+      properties.remove(PUBLISHER_HOSTS);
+      properties.remove(RECEIVER_HOSTS);
+    }
+    ClientFactory factory = new ClientFactory(properties);
+    if (settings.declare) {
+      declareTopology(factory);
+    }
+
+    List<Receiver> receivers = new ArrayList<>();
+    List<Runnable> publisherStops = new ArrayList<>();
+    List<PublisherDriver> drivers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    try {
+      GenericMessageListener<LoadMessage> listener = message -> stats.messageReceived(message.sentNanos);
+      for (int i = 0; i < settings.receivers; i++) {
+        receivers.add(factory.createReceiver().withJsonListener(listener).start());
+      }
+      double ratePerPublisher = settings.publishers > 0 ? (double) settings.rate / settings.publishers : 0;
+      for (int i = 0; i < settings.publishers; i++) {
+        if (settings.syncPublishers) {
+          SyncPublisher publisher = factory.createSyncPublisherBuilder().withJsonMessageConverter().build();
+          publisher.startAsync().awaitRunning();
+          publisherStops.add(publisher::stopSync);
+          drivers.add(PublisherDriver.sync(publisher, stats, settings.messageSize, ratePerPublisher));
+        } else {
+          Publisher publisher = factory.createPublisherBuilder().withJsonMessageConverter().build();
+          publisher.startSync();
+          publisherStops.add(publisher::stopSync);
+          drivers.add(PublisherDriver.async(publisher, stats, settings.messageSize, ratePerPublisher));
+        }
+      }
+
+      out.println(settings + (broker != null ? ", embedded broker" : ", hosts " + properties.getProperty(HOSTS,
+          properties.getProperty(HOST))));
+      LoadStats.printHeader(out);
+      for (int i = 0; i < drivers.size(); i++) {
+        Thread thread = new Thread(drivers.get(i), "loadgen-publisher-" + i);
+        thread.start();
+        threads.add(thread);
+      }
+
+      start = System.nanoTime();
+      lastReport = start;
+      reportUntil(start + SECONDS.toNanos(settings.warmupSec));
+      out.println("-- warmup done");
+      stats.startMeasuring();
+      reportUntil(System.nanoTime() + SECONDS.toNanos(settings.durationSec));
+      stats.stopMeasuring();
+
+      drivers.forEach(PublisherDriver::stop);
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      publisherStops.forEach(Runnable::run);
+      if (!receivers.isEmpty()) {
+        drain();
+      }
+      stats.printSummary(out, !receivers.isEmpty());
+    } finally {
+      drivers.forEach(PublisherDriver::stop);
+      receivers.forEach(Receiver::shutdown);
+      if (broker != null) {
+        broker.stop();
+      }
+    }
+  }
+
+  private void reportUntil(long end) throws InterruptedException {
+    long intervalNanos = SECONDS.toNanos(settings.reportIntervalSec);
+    while (lastReport < end) {
+      NANOSECONDS.sleep(Math.min(lastReport + intervalNanos, end) - System.nanoTime());
+      report();
+    }
+  }
+
+  private void report() {
+    long now = System.nanoTime();
+    stats.report(out, (now - start) / 1e9, (now - lastReport) / 1e9);
+    lastReport = now;
+  }
+
+  /**
+   * Waits for receivers to get messages left in queues, their latencies are added to totals.
+   */
+  private void drain() throws InterruptedException {
+    out.println("-- publishing stopped");
+    long deadline = System.nanoTime() + SECONDS.toNanos(settings.drainSec);
+    while (stats.getReceivedCount() < stats.getPublishedCount() && System.nanoTime() < deadline) {
+      MILLISECONDS.sleep(100);
+    }
+    report();
+  }
+
+  /**
+   * Declares durable publisher exchange, receiver queues and bindings on every publisher and receiver host.
+   */
+  private void declareTopology(ClientFactory factory) {
+    String exchange = properties.getProperty(PUBLISHER_EXCHANGE);
+    String routingKey = properties.getProperty(PUBLISHER_ROUTING_KEY);
+    List<ConnectionFactory> connectionFactories = new ArrayList<>();
+    connectionFactories.addAll(factory.createConnectionFactories(false, PUBLISHER_HOSTS, HOSTS, HOST));
+    connectionFactories.addAll(factory.createConnectionFactories(false, RECEIVER_HOSTS, HOSTS, HOST));
+    for (ConnectionFactory connectionFactory : connectionFactories) {
+      RabbitAdmin admin = new RabbitAdmin(connectionFactory);
+      DirectExchange directExchange = exchange.isEmpty() ? null : new DirectExchange(exchange);
+      if (directExchange != null) {
+        admin.declareExchange(directExchange);
+      }
+      for (String queueName : RECEIVER_QUEUES_SEPARATOR_PATTERN.split(properties.getProperty(RECEIVER_QUEUES))) {
+        Queue queue = new Queue(queueName.trim());
+        admin.declareQueue(queue);
+        if (directExchange != null) {
+          Binding binding = BindingBuilder.bind(queue).to(directExchange).with(routingKey);
+          admin.declareBinding(binding);
+        }
+      }
+      if (connectionFactory instanceof DisposableBean) {
+        try {
+          ((DisposableBean) connectionFactory).destroy();
+        } catch (Exception e) {
+          throw new IllegalStateException("Failed to close connection after declaring topology", e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package ru.hh.rabbitmq.spring.loadgen;
+
+import ru.hh.rabbitmq.spring.codec.JsonCodec;
+
+/**
+ * Message sent by {@link LoadGenerator}. Publishers and receivers run in one JVM, so {@link System#nanoTime()} of sending is used to
+ * measure end-to-end latency.
+ */
+@JsonCodec
+public class LoadMessage {
+  public long sentNanos;
+  public String payload;
+
+  public LoadMessage() {
+  }
+
+  LoadMessage(long sentNanos, String payload) {
+    this.sentNanos = sentNanos;
+    this.payload = payload;
+  }
+}
@@ -0,0 +1,101 @@
+package ru.hh.rabbitmq.spring.loadgen;
+
+import java.util.Properties;
+import ru.hh.rabbitmq.spring.ConfigException;
+import ru.hh.rabbitmq.spring.PropertiesHelper;
+
+/**
+ * Settings of {@link LoadGenerator}. They are read from the same properties as {@link ru.hh.rabbitmq.spring.ClientFactory} settings, so
+ * publishers and receivers under load are configured exactly as in services.
+ */
+final class LoadSettings {
+  /**
+   * Number of publishers, each has its own connections and is driven by its own thread, 1 by default.
+   */
+  static final String PUBLISHERS = "loadgen.publishers";
+  /**
+   * 'async' for {@link ru.hh.rabbitmq.spring.send.Publisher} (default) or 'sync' for {@link ru.hh.rabbitmq.spring.send.SyncPublisher}.
+   */
+  static final String PUBLISHER_TYPE = "loadgen.publisher.type";
+  /**
+   * Number of receivers, 1 by default. With 0 receivers only publishing is measured.
+   */
+  static final String RECEIVERS = "loadgen.receivers";
+  /**
+   * Size of message payload in bytes before conversion, 1024 by default.
+   */
+  static final String MESSAGE_SIZE = "loadgen.message.size";
+  /**
+   * Messages per second sent by all publishers together, 1000 by default. If 0, publishers send as fast as inner queues accept messages.
+   */
+  static final String RATE = "loadgen.rate";
+  /**
+   * How long load is measured after warmup, 60 by default.
+   */
+  static final String DURATION_SEC = "loadgen.duration.seconds";
+  /**
+   * How long load is applied before measuring, 10 by default.
+   */
+  static final String WARMUP_SEC = "loadgen.warmup.seconds";
+  static final String REPORT_INTERVAL_SEC = "loadgen.report.interval.seconds";
+  /**
+   * How long to wait for receivers to get messages left in queues after publishing stops, 10 by default.
+   */
+  static final String DRAIN_SEC = "loadgen.drain.seconds";
+  /**
+   * Whether to declare publisher exchange, receiver queues and bindings between them before the run, true by default.
+   */
+  static final String DECLARE = "loadgen.declare";
+  /**
+   * Start {@link ru.hh.rabbitmq.spring.embedded.EmbeddedBroker} and run against it instead of configured hosts, false by default.
+   */
+  static final String EMBEDDED = "loadgen.embedded";
+
+  static final String ASYNC = "async";
+  static final String SYNC = "sync";
+
+  final int publishers;
+  final boolean syncPublishers;
+  final int receivers;
+  final int messageSize;
+  final int rate;
+  final int durationSec;
+  final int warmupSec;
+  final int reportIntervalSec;
+  final int drainSec;
+  final boolean declare;
+  final boolean embedded;
+
+  LoadSettings(Properties properties) {
+    PropertiesHelper helper = new PropertiesHelper(properties);
+    publishers = nonNegative(helper, PUBLISHERS, 1);
+    String publisherType = helper.getString(PUBLISHER_TYPE, ASYNC);
+    if (!ASYNC.equals(publisherType) && !SYNC.equals(publisherType)) {
+      throw new ConfigException(String.format("Setting '%s' must be '%s' or '%s', got '%s'", PUBLISHER_TYPE, ASYNC, SYNC, publisherType));
+    }
+    syncPublishers = SYNC.equals(publisherType);
+    receivers = nonNegative(helper, RECEIVERS, 1);
+    messageSize = nonNegative(helper, MESSAGE_SIZE, 1024);
+    rate = nonNegative(helper, RATE, 1000);
+    durationSec = nonNegative(helper, DURATION_SEC, 60);
+    warmupSec = nonNegative(helper, WARMUP_SEC, 10);
+    reportIntervalSec = Math.max(1, nonNegative(helper, REPORT_INTERVAL_SEC, 5));
+    drainSec = nonNegative(helper, DRAIN_SEC, 10);
+    declare = helper.getBoolean(DECLARE, true);
+    embedded = helper.getBoolean(EMBEDDED, false);
+  }
+
+  private static int nonNegative(PropertiesHelper helper, String name, int defaultValue) {
+    int value = helper.getInteger(name, defaultValue);
+    if (value < 0) {
+      throw new ConfigException(String.format("Setting '%s' must not be negative, got %d", name, value));
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d %s publisher(s), %d receiver(s), %d byte messages, %s, %d s warmup, %d s measuring", publishers,
+        syncPublishers ? SYNC : ASYNC, receivers, messageSize, rate > 0 ? rate + " msg/s" : "max rate", warmupSec, durationSec);
+  }
+}
@@ -0,0 +1,169 @@
+package ru.hh.rabbitmq.spring.loadgen;
+
+import java.io.PrintStream;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.concurrent.atomic.LongAdder;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Counters and latency histograms of a load run, in microseconds. Recording is thread safe, reporting is done by one thread.
+ */
+final class LoadStats {
+  private static final int SIGNIFICANT_DIGITS = 3;
+  private static final double[] SUMMARY_PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+  private final Recorder publishLatency = new Recorder(SIGNIFICANT_DIGITS);
+  private final Recorder endToEndLatency = new Recorder(SIGNIFICANT_DIGITS);
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder published = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder received = new LongAdder();
+
+  // accessed by reporting thread only
+  private final Histogram totalPublishLatency = new Histogram(SIGNIFICANT_DIGITS);
+  private final Histogram totalEndToEndLatency = new Histogram(SIGNIFICANT_DIGITS);
+  private final Snapshot last = new Snapshot();
+  private final Snapshot measuringStart = new Snapshot();
+  private final Snapshot measuringEnd = new Snapshot();
+  private long measuringStartNanos = System.nanoTime();
+  private long measuringEndNanos;
+
+  void messageSent() {
+    sent.increment();
+  }
+
+  /**
+   * @param intendedNanos time message was scheduled to be sent, so that latency includes waiting of publisher that fell behind schedule
+   */
+  void publishCompleted(long intendedNanos) {
+    published.increment();
+    publishLatency.recordValue(micros(System.nanoTime() - intendedNanos));
+  }
+
+  void publishFailed() {
+    failed.increment();
+  }
+
+  void publishRejected() {
+    rejected.increment();
+  }
+
+  void messageReceived(long sentNanos) {
+    received.increment();
+    endToEndLatency.recordValue(micros(System.nanoTime() - sentNanos));
+  }
+
+  long getPublishedCount() {
+    return published.sum();
+  }
+
+  long getReceivedCount() {
+    return received.sum();
+  }
+
+  /**
+   * Discards everything recorded so far, called when warmup ends.
+   */
+  void startMeasuring() {
+    publishLatency.getIntervalHistogram();
+    endToEndLatency.getIntervalHistogram();
+    totalPublishLatency.reset();
+    totalEndToEndLatency.reset();
+    last.take(this);
+    measuringStart.take(this);
+    measuringStartNanos = System.nanoTime();
+  }
+
+  /**
+   * Fixes counts of measured period, latencies of messages sent in it and received later are still added to totals.
+   */
+  void stopMeasuring() {
+    measuringEnd.copy(last);
+    measuringEndNanos = System.nanoTime();
+  }
+
+  static void printHeader(PrintStream out) {
+    out.printf("%8s %10s %10s %8s %8s | %-26s | %-26s%n", "time", "sent/s", "recv/s", "failed", "rejected", "publish ms p50/p99/max",
+        "end-to-end ms p50/p99/max");
+  }
+
+  /**
+   * Prints rates and latencies since previous report and adds them to totals.
+   */
+  void report(PrintStream out, double elapsedSec, double intervalSec) {
+    Histogram publish = publishLatency.getIntervalHistogram();
+    Histogram endToEnd = endToEndLatency.getIntervalHistogram();
+    totalPublishLatency.add(publish);
+    totalEndToEndLatency.add(endToEnd);
+    Snapshot current = new Snapshot().take(this);
+    out.printf("%7.1fs %10.0f %10.0f %8d %8d | %8.3f %8.3f %8.3f | %8.3f %8.3f %8.3f%n", elapsedSec,
+        (current.sent - last.sent) / intervalSec, (current.received - last.received) / intervalSec, current.failed - last.failed,
+        current.rejected - last.rejected, millis(publish.getValueAtPercentile(50)), millis(publish.getValueAtPercentile(99)),
+        millis(publish.getMaxValue()), millis(endToEnd.getValueAtPercentile(50)), millis(endToEnd.getValueAtPercentile(99)),
+        millis(endToEnd.getMaxValue()));
+    last.copy(current);
+  }
+
+  void printSummary(PrintStream out, boolean withReceivers) {
+    double seconds = (measuringEndNanos - measuringStartNanos) / 1e9;
+    long sentCount = measuringEnd.sent - measuringStart.sent;
+    long receivedCount = measuringEnd.received - measuringStart.received;
+    out.println();
+    out.printf("measured %.1f s: sent %d (%.0f msg/s), published %d, received %d (%.0f msg/s), failed %d, rejected %d%n", seconds,
+        sentCount, sentCount / seconds, measuringEnd.published - measuringStart.published, receivedCount, receivedCount / seconds,
+        measuringEnd.failed - measuringStart.failed, measuringEnd.rejected - measuringStart.rejected);
+    if (withReceivers && last.received < last.published) {
+      out.printf("%d of %d published messages were not received%n", last.published - last.received, last.published);
+    }
+    out.printf("%-12s", "latency, ms");
+    for (double percentile : SUMMARY_PERCENTILES) {
+      out.printf(" %9s", "p" + (percentile == (long) percentile ? Long.toString((long) percentile) : Double.toString(percentile)));
+    }
+    out.printf(" %9s %9s %10s%n", "max", "mean", "count");
+    printLatencies(out, "publish", totalPublishLatency);
+    printLatencies(out, "end-to-end", totalEndToEndLatency);
+  }
+
+  private static void printLatencies(PrintStream out, String name, Histogram histogram) {
+    out.printf("%-12s", name);
+    for (double percentile : SUMMARY_PERCENTILES) {
+      out.printf(" %9.3f", millis(histogram.getValueAtPercentile(percentile)));
+    }
+    out.printf(" %9.3f %9.3f %10d%n", millis(histogram.getMaxValue()), histogram.getMean() / 1000, histogram.getTotalCount());
+  }
+
+  private static long micros(long nanos) {
+    return Math.max(0, NANOSECONDS.toMicros(nanos));
+  }
+
+  private static double millis(long micros) {
+    return micros / 1000.0;
+  }
+
+  private static final class Snapshot {
+    long sent;
+    long published;
+    long failed;
+    long rejected;
+    long received;
+
+    Snapshot take(LoadStats stats) {
+      sent = stats.sent.sum();
+      published = stats.published.sum();
+      failed = stats.failed.sum();
+      rejected = stats.rejected.sum();
+      received = stats.received.sum();
+      return this;
+    }
+
+    void copy(Snapshot other) {
+      sent = other.sent;
+      published = other.published;
+      failed = other.failed;
+      rejected = other.rejected;
+      received = other.received;
+    }
+  }
+}
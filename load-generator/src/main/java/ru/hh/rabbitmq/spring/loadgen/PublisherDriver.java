@@ -0,0 +1,136 @@
+package ru.hh.rabbitmq.spring.loadgen;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import ru.hh.rabbitmq.spring.send.Publisher;
+import ru.hh.rabbitmq.spring.send.QueueIsFullException;
+import ru.hh.rabbitmq.spring.send.SyncPublisher;
+
+/**
+ * <p>
+ * Sends messages through one publisher on a fixed schedule. Latency is measured from the time message was scheduled to be sent rather
+ * than from the actual call, so publisher that can not keep up with the rate is not hidden by sending less (coordinated omission).
+ * </p>
+ * <p>
+ * Without rate {@link Publisher} is driven with {@link Publisher#offer} that waits for free space in inner queue, and {@link SyncPublisher}
+ * is called in a loop.
+ * </p>
+ */
+abstract class PublisherDriver implements Runnable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PublisherDriver.class);
+
+  protected final LoadStats stats;
+  private final String payload;
+  private final long intervalNanos;
+  private volatile boolean running = true;
+
+  PublisherDriver(LoadStats stats, int messageSize, double rate) {
+    this.stats = stats;
+    payload = Strings.repeat("x", messageSize);
+    intervalNanos = rate > 0 ? (long) (SECONDS.toNanos(1) / rate) : 0;
+  }
+
+  static PublisherDriver async(Publisher publisher, LoadStats stats, int messageSize, double rate) {
+    return new AsyncPublisherDriver(publisher, stats, messageSize, rate);
+  }
+
+  static PublisherDriver sync(SyncPublisher publisher, LoadStats stats, int messageSize, double rate) {
+    return new SyncPublisherDriver(publisher, stats, messageSize, rate);
+  }
+
+  @Override
+  public void run() {
+    long next = System.nanoTime();
+    try {
+      while (running) {
+        long intendedNanos;
+        if (intervalNanos > 0) {
+          long now;
+          while ((now = System.nanoTime()) < next) {
+            LockSupport.parkNanos(next - now);
+          }
+          intendedNanos = next;
+          next += intervalNanos;
+        } else {
+          intendedNanos = System.nanoTime();
+        }
+        stats.messageSent();
+        send(new LoadMessage(intendedNanos, payload), intendedNanos);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  void stop() {
+    running = false;
+  }
+
+  protected boolean isRated() {
+    return intervalNanos > 0;
+  }
+
+  protected abstract void send(LoadMessage message, long intendedNanos) throws InterruptedException;
+
+  private static final class AsyncPublisherDriver extends PublisherDriver {
+    private static final long OFFER_TIMEOUT_MS = 1000;
+
+    private final Publisher publisher;
+
+    AsyncPublisherDriver(Publisher publisher, LoadStats stats, int messageSize, double rate) {
+      super(stats, messageSize, rate);
+      this.publisher = publisher;
+    }
+
+    @Override
+    protected void send(LoadMessage message, long intendedNanos) throws InterruptedException {
+      ListenableFuture<Void> future;
+      try {
+        future = isRated() ? publisher.send(message) : publisher.offer(OFFER_TIMEOUT_MS, message);
+      } catch (QueueIsFullException e) {
+        stats.publishRejected();
+        return;
+      }
+      Futures.addCallback(future, new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+          stats.publishCompleted(intendedNanos);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOGGER.debug("failed to publish message", t);
+          stats.publishFailed();
+        }
+      }, directExecutor());
+    }
+  }
+
+  private static final class SyncPublisherDriver extends PublisherDriver {
+    private final SyncPublisher publisher;
+
+    SyncPublisherDriver(SyncPublisher publisher, LoadStats stats, int messageSize, double rate) {
+      super(stats, messageSize, rate);
+      this.publisher = publisher;
+    }
+
+    @Override
+    protected void send(LoadMessage message, long intendedNanos) {
+      try {
+        publisher.send(message);
+        stats.publishCompleted(intendedNanos);
+      } catch (AmqpException e) {
+        LOGGER.debug("failed to publish message", e);
+        stats.publishFailed();
+      }
+    }
+  }
+}
@@ -49,25 +49,52 @@ public class DatabaseQueueService {
     Optional<Long> batchId;
     int i = 0;
     while(i < maxBatchesToProcessInTx) {
+      DbQueueBatchEvent event = new DbQueueBatchEvent();
+      event.begin();
+      long lookupStartNanos = System.nanoTime();
       batchId = databaseQueueDao.getNextBatchId(queueName, sender.getConsumerName());
       if (!batchId.isPresent()) {
         return;
       }
       Long batchIdValue = batchId.get();
-      List<MessageEventContainer> events = getNextBatchEvents(batchIdValue, sender, maxEventsPerBatchToProcess);
-      events.forEach(messageEventContainer -> {
-        TargetedDestination destination = messageEventContainer.getDestination();
-        try {
-          Object message = Optional.ofNullable(destination.getCorrelationData())
-            .map(correlationData -> (Object) new CorrelatedMessage(correlationData, messageEventContainer.getMessage()))
-            .orElseGet(messageEventContainer::getMessage);
-          MessageSender messageSender = persistentPublisherRegistry.getSender(destination.getSenderKey()).getMessageSender();
-          messageSender.publishMessage(message, destination);
-        } catch (Exception e) {
-          sender.onAmpqException(e, messageEventContainer.getId(), batchIdValue, destination, messageEventContainer.getMessage());
+      long fetchStartNanos = System.nanoTime();
+      event.lookupDuration = fetchStartNanos - lookupStartNanos;
+      event.outcome = DbQueueBatchEvent.FAILED;
+      List<MessageEventContainer> events;
+      int failedEvents = 0;
+      try {
+        events = getNextBatchEvents(batchIdValue, sender, maxEventsPerBatchToProcess);
+        event.events = events.size();
+        long publishStartNanos = System.nanoTime();
+        event.fetchDuration = publishStartNanos - fetchStartNanos;
+        for (MessageEventContainer messageEventContainer : events) {
+          TargetedDestination destination = messageEventContainer.getDestination();
+          try {
+            Object message = Optional.ofNullable(destination.getCorrelationData())
+              .map(correlationData -> (Object) new CorrelatedMessage(correlationData, messageEventContainer.getMessage()))
+              .orElseGet(messageEventContainer::getMessage);
+            MessageSender messageSender = persistentPublisherRegistry.getSender(destination.getSenderKey()).getMessageSender();
+            messageSender.publishMessage(message, destination);
+          } catch (Exception e) {
+            failedEvents++;
+            sender.onAmpqException(e, messageEventContainer.getId(), batchIdValue, destination, messageEventContainer.getMessage());
+          }
         }
-      });
-      databaseQueueDao.finishBatch(batchIdValue);
+        long finishStartNanos = System.nanoTime();
+        event.publishDuration = finishStartNanos - publishStartNanos;
+        databaseQueueDao.finishBatch(batchIdValue);
+        event.finishDuration = System.nanoTime() - finishStartNanos;
+        event.outcome = DbQueueBatchEvent.FINISHED;
+      } finally {
+        event.end();
+        if (event.shouldCommit()) {
+          event.queue = queueName;
+          event.consumer = sender.getConsumerName();
+          event.batchId = batchIdValue;
+          event.failedEvents = failedEvents;
+          event.commit();
+        }
+      }
       LOGGER.debug("Batch {} finished", batchIdValue);
       if (multiBatchOnlyForEmptyBatches && !events.isEmpty()) {
         return;
@@ -0,0 +1,58 @@
+package ru.hh.rabbitmq.spring.persistent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a batch of database queue processed by {@link DatabaseQueueService#sendBatch}, with duration of every phase.
+ */
+@Name("ru.hh.rabbitmq.DbQueueBatch")
+@Label("Database Queue Batch")
+@Category({"RabbitMQ", "Persistent Publisher"})
+@Description("Batch of database queue events sent to RabbitMQ")
+@StackTrace(false)
+class DbQueueBatchEvent extends Event {
+  static final String FINISHED = "finished";
+  static final String FAILED = "failed";
+
+  @Label("Queue")
+  String queue;
+
+  @Label("Consumer")
+  String consumer;
+
+  @Label("Batch Id")
+  long batchId;
+
+  @Label("Events")
+  int events;
+
+  @Label("Failed Events")
+  @Description("Events that were not sent and were passed to error handling of sender")
+  int failedEvents;
+
+  @Label("Next Batch Lookup")
+  @Timespan
+  long lookupDuration;
+
+  @Label("Events Fetch")
+  @Timespan
+  long fetchDuration;
+
+  @Label("Publishing")
+  @Timespan
+  long publishDuration;
+
+  @Label("Batch Finish")
+  @Timespan
+  long finishDuration;
+
+  @Label("Outcome")
+  @Description("finished or failed")
+  String outcome;
+}
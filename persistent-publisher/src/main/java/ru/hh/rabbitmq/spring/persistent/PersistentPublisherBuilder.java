@@ -1,6 +1,7 @@
 package ru.hh.rabbitmq.spring.persistent;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
@@ -11,6 +12,7 @@ import ru.hh.nab.common.properties.FileSettings;
 import ru.hh.nab.metrics.StatsDSender;
 import ru.hh.rabbitmq.spring.ConnectionsFactory;
 import ru.hh.rabbitmq.spring.send.MessageSender;
+import ru.hh.rabbitmq.spring.send.PublishInterceptor;
 import ru.hh.rabbitmq.spring.send.RabbitTemplateFactory;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HOST;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS;
@@ -34,6 +36,7 @@ public class PersistentPublisherBuilder {
 
   private DbQueueProcessor mainDbQueueProcessor;
   private DbQueueProcessor[] additionalQueueConverters = new DbQueueProcessor[0];
+  private final List<PublishInterceptor> interceptors = new ArrayList<>();
 
   PersistentPublisherBuilder(DatabaseQueueService databaseQueueService, PersistentPublisherRegistry persistentPublisherRegistry,
       String serviceName, String publisherKey, FileSettings publisherFileSettings, StatsDSender statsDSender) {
@@ -47,7 +50,7 @@ public class PersistentPublisherBuilder {
   }
 
   public PersistentPublisher build() {
-    MessageSender messageSender = new MessageSender(rabbitTemplate, serviceName, statsDSender);
+    MessageSender messageSender = new MessageSender(rabbitTemplate, serviceName, statsDSender, interceptors);
     String databaseQueueName = Objects.requireNonNull(publisherFileSettings.getString(DB_QUEUE_NAME_PROPERTY),
       DB_QUEUE_NAME_PROPERTY + " must be set");
     Duration retryDelay = Duration.ofSeconds(Objects.requireNonNull(publisherFileSettings.getLong(RETRY_DELAY_SEC_PROPERTY),
@@ -91,6 +94,14 @@ public class PersistentPublisherBuilder {
     return this;
   }
 
+  /**
+   * Adds interceptor of messages sent from database queue to broker, see {@link PublishInterceptor}.
+   */
+  public PersistentPublisherBuilder withInterceptor(PublishInterceptor interceptor) {
+    interceptors.add(interceptor);
+    return this;
+  }
+
   private RabbitTemplate createRabbitTemplate() {
     ConnectionsFactory connectionsFactory = new ConnectionsFactory(publisherFileSettings.getProperties());
     List<ConnectionFactory> connectionFactories = connectionsFactory.createConnectionFactories(true, PUBLISHER_HOSTS, HOSTS, HOST);
@@ -0,0 +1,193 @@
+package ru.hh.rabbitmq.spring;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.rabbitmq.client.Channel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.util.ErrorHandler;
+import ru.hh.rabbitmq.spring.receive.AsyncMessageListener;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptor;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptors;
+import ru.hh.rabbitmq.spring.receive.ReceiveInvocation;
+
+/**
+ * <p>
+ * Calls {@link AsyncMessageListener} and acknowledges every delivery when its future completes, container must use manual acknowledge mode.
+ * Failed deliveries are requeued, unless message can't be converted or listener failed with
+ * {@link org.springframework.amqp.AmqpRejectAndDontRequeueException}, or failed messages are republished for retry if retrier is set.
+ * </p>
+ * <p>
+ * Container must not unpack batches: all messages of a batch are handled concurrently and the batch is acknowledged when all of them are
+ * done.
+ * </p>
+ */
+final class AsyncMessageListenerAdapter implements ChannelAwareMessageListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AsyncMessageListenerAdapter.class);
+
+  private final AsyncMessageListener<Object> listener;
+  @Nullable
+  private final ErrorHandler errorHandler;
+  private final ReceiveInvocation chain;
+  // future returned by listener to the thread that called chain, null if interceptor short-circuited
+  private final ThreadLocal<Future<?>> result = new ThreadLocal<>();
+  @Nullable
+  private final Semaphore slots;
+  private final boolean deBatching;
+  @Nullable
+  private final MessageRetrier retrier;
+  private final ListenerCallback callback;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * @param converter converts messages before passing them to listener, listener gets raw messages if null
+   * @param errorHandler handles failures of listener, they are logged if null
+   * @param maxInFlight max number of messages handled at once, not limited if 0
+   * @param deBatching whether to unpack batches
+   * @param retrier republishes failed messages for retry, they are rejected if null
+   * @param callback gets outcome of every message passed to listener
+   */
+  @SuppressWarnings("unchecked")
+  AsyncMessageListenerAdapter(AsyncMessageListener<?> listener,
+                              @Nullable
+                              MessageConverter converter,
+                              @Nullable
+                              ErrorHandler errorHandler,
+                              Collection<ReceiveInterceptor> interceptors,
+                              int maxInFlight,
+                              boolean deBatching,
+                              @Nullable
+                              MessageRetrier retrier,
+                              ListenerCallback callback) {
+    this.listener = (AsyncMessageListener<Object>) listener;
+    this.errorHandler = errorHandler;
+    slots = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    this.deBatching = deBatching;
+    this.retrier = retrier;
+    this.callback = callback;
+    chain = ReceiveInterceptors.compile(interceptors,
+        (message, channel) -> result.set(this.listener.handleMessage(converter != null ? converter.fromMessage(message) : message)));
+  }
+
+  @Override
+  public void onMessage(Message message, Channel channel) throws InterruptedException {
+    PendingDelivery delivery = new PendingDelivery(channel, message, callback);
+    List<Message> messages;
+    try {
+      messages = deBatching ? MessageBatches.unpack(message) : Collections.singletonList(message);
+    } catch (MessageConversionException e) {
+      handleError(e);
+      callback.rejected(message, false);
+      delivery.fail(false);
+      delivery.acknowledge();
+      return;
+    }
+    if (messages.isEmpty()) {
+      delivery.acknowledge();
+      return;
+    }
+    delivery.setRemaining(messages.size());
+    for (Message fragment : messages) {
+      if (slots != null) {
+        slots.acquire();
+      }
+      inFlight.incrementAndGet();
+      long startNanos = System.nanoTime();
+      Future<?> future;
+      try {
+        chain.proceed(fragment, channel);
+        future = result.get();
+      } catch (Exception e) {
+        done(delivery, channel, fragment, startNanos, e);
+        continue;
+      } finally {
+        result.remove();
+      }
+      if (future == null) {
+        done(delivery, channel, fragment, startNanos, null);
+      } else {
+        onCompletion(future, error -> done(delivery, channel, fragment, startNanos, error));
+      }
+    }
+  }
+
+  /**
+   * @return number of messages passed to listener and not handled yet
+   */
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  private static void onCompletion(Future<?> future, Consumer<Throwable> callback) {
+    if (future instanceof CompletionStage) {
+      ((CompletionStage<?>) future).whenComplete((value, error) -> {
+        // dependent stages wrap failure of the original one
+        callback.accept(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+      });
+    } else if (future instanceof com.google.common.util.concurrent.ListenableFuture) {
+      Futures.addCallback((com.google.common.util.concurrent.ListenableFuture<?>) future, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(@Nullable Object value) {
+          callback.accept(null);
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+          callback.accept(error);
+        }
+      }, MoreExecutors.directExecutor());
+    } else if (future instanceof org.springframework.util.concurrent.ListenableFuture) {
+      ((org.springframework.util.concurrent.ListenableFuture<?>) future).addCallback(value -> callback.accept(null), callback::accept);
+    } else {
+      callback.accept(new IllegalArgumentException("Listener returned unsupported future " + future.getClass().getName()));
+    }
+  }
+
+  private void done(PendingDelivery delivery, Channel channel, Message message, long startNanos, @Nullable Throwable error) {
+    long nanos = System.nanoTime() - startNanos;
+    if (error != null) {
+      callback.failed(message, nanos);
+      if (retrier == null || !retrier.retry(message, channel, error)) {
+        boolean requeue = PendingDelivery.isRecoverable(error);
+        callback.rejected(message, requeue);
+        delivery.fail(requeue);
+      }
+      handleError(error);
+    } else {
+      callback.handled(message, nanos);
+    }
+    if (slots != null) {
+      slots.release();
+    }
+    // message is in flight until its delivery is acknowledged, receiver waits for that before closing channels
+    delivery.done();
+    inFlight.decrementAndGet();
+  }
+
+  private void handleError(Throwable error) {
+    if (errorHandler == null) {
+      LOGGER.warn("async listener failed", error);
+      return;
+    }
+    try {
+      errorHandler.handleError(error);
+    } catch (RuntimeException handlerException) {
+      LOGGER.warn("error handler failed", handlerException);
+    }
+  }
+}
@@ -0,0 +1,317 @@
+package ru.hh.rabbitmq.spring;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.util.ErrorHandler;
+import ru.hh.rabbitmq.spring.receive.BatchMessageListener;
+import ru.hh.rabbitmq.spring.receive.PartialBatchFailureException;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptor;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptors;
+import ru.hh.rabbitmq.spring.receive.ReceiveInvocation;
+
+/**
+ * <p>
+ * Collects messages of every consumer channel into batches for {@link BatchMessageListener}. Container must use manual acknowledge mode:
+ * batch is acknowledged with one {@code basic.ack} with {@code multiple} flag, failed messages are rejected one by one before it (or
+ * republished for retry if retrier is set).
+ * </p>
+ * <p>
+ * Full batch is handled by consumer thread that completed it, expired batches are handled by {@link #flushExpired()} caller.
+ * </p>
+ */
+final class BatchingMessageListener implements ChannelAwareMessageListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingMessageListener.class);
+
+  private final BatchMessageListener<Object> listener;
+  @Nullable
+  private final MessageConverter converter;
+  @Nullable
+  private final ErrorHandler errorHandler;
+  private final ReceiveInvocation chain;
+  private final int size;
+  private final long lingerNanos;
+  private final boolean requeue;
+  @Nullable
+  private final MessageRetrier retrier;
+  private final ListenerCallback callback;
+  private final ConcurrentMap<Channel, PendingBatch> batches = new ConcurrentHashMap<>();
+
+  /**
+   * @param converter converts messages before passing them to listener, listener gets raw messages if null
+   * @param errorHandler handles failures of listener, they are logged if null
+   * @param requeue whether failed messages are requeued or rejected
+   * @param retrier republishes failed messages for retry, they are requeued or rejected if null or republishing fails
+   * @param callback gets outcome of every message passed to listener
+   */
+  @SuppressWarnings("unchecked")
+  BatchingMessageListener(BatchMessageListener<?> listener,
+                          @Nullable
+                          MessageConverter converter,
+                          @Nullable
+                          ErrorHandler errorHandler,
+                          Collection<ReceiveInterceptor> interceptors,
+                          int size,
+                          Duration linger,
+                          boolean requeue,
+                          @Nullable
+                          MessageRetrier retrier,
+                          ListenerCallback callback) {
+    this.listener = (BatchMessageListener<Object>) listener;
+    this.converter = converter;
+    this.errorHandler = errorHandler;
+    this.size = size;
+    lingerNanos = linger.toNanos();
+    this.requeue = requeue;
+    this.retrier = retrier;
+    this.callback = callback;
+    chain = ReceiveInterceptors.compile(interceptors, (message, channel) -> batches.get(channel).add(message));
+  }
+
+  @Override
+  public void onMessage(Message message, Channel channel) {
+    PendingBatch batch = batches.computeIfAbsent(channel, PendingBatch::new);
+    synchronized (batch) {
+      long deliveryTag = message.getMessageProperties().getDeliveryTag();
+      if (batch.lastTag == 0) {
+        batch.firstTag = deliveryTag;
+        batch.startNanos = System.nanoTime();
+      }
+      batch.lastTag = deliveryTag;
+      try {
+        // interceptor that short-circuits leaves message out of batch, it is acknowledged with the batch
+        chain.proceed(message, channel);
+      } catch (Exception e) {
+        handleError("interceptor failed", e);
+        if (retrier == null || !retrier.retry(message, channel, e)) {
+          callback.rejected(message, requeue);
+          batch.failedTags.add(deliveryTag);
+        }
+      }
+      if (batch.messages.size() >= size || System.nanoTime() - batch.startNanos >= lingerNanos) {
+        flush(batch);
+      }
+    }
+  }
+
+  /**
+   * Passes batches waiting longer than linger to listener, forgets batches of closed channels: their messages are redelivered by broker and
+   * reported as unacknowledged.
+   */
+  void flushExpired() {
+    flush(false);
+  }
+
+  /**
+   * Passes all pending batches to listener, forgets batches of closed channels like {@link #flushExpired()}.
+   */
+  void flushAll() {
+    flush(true);
+  }
+
+  /**
+   * @return number of messages waiting in batches or being handled by listener
+   */
+  int getPending() {
+    int pending = 0;
+    for (PendingBatch batch : batches.values()) {
+      pending += batch.size;
+    }
+    return pending;
+  }
+
+  private void flush(boolean all) {
+    Iterator<PendingBatch> iterator = batches.values().iterator();
+    while (iterator.hasNext()) {
+      PendingBatch batch = iterator.next();
+      synchronized (batch) {
+        if (!batch.channel.isOpen()) {
+          iterator.remove();
+          if (!batch.messages.isEmpty()) {
+            LOGGER.warn("channel of batch is closed, its {} messages will be redelivered", batch.messages.size());
+            batch.messages.forEach(callback::unacknowledged);
+            batch.clear();
+          }
+        } else if (batch.lastTag != 0 && (all || System.nanoTime() - batch.startNanos >= lingerNanos)) {
+          flush(batch);
+        }
+      }
+    }
+  }
+
+  private void flush(PendingBatch batch) {
+    // tag -> requeue
+    Map<Long, Boolean> rejected = new HashMap<>();
+    for (Long tag : batch.failedTags) {
+      rejected.put(tag, requeue);
+    }
+    // messages that failed and were republished for retry, they are acknowledged but not handled
+    Set<Message> retried = Collections.newSetFromMap(new IdentityHashMap<>());
+    List<Object> converted = new ArrayList<>(batch.messages.size());
+    List<Message> messages = new ArrayList<>(batch.messages.size());
+    List<Long> tags = new ArrayList<>(batch.messages.size());
+    for (int i = 0; i < batch.messages.size(); i++) {
+      Message message = batch.messages.get(i);
+      try {
+        converted.add(converter != null ? converter.fromMessage(message) : message);
+        messages.add(message);
+        tags.add(batch.tags.get(i));
+      } catch (MessageConversionException e) {
+        // the same message will fail again, so it is never requeued
+        handleError("failed to convert message", e);
+        if (!retry(batch, message, e, retried)) {
+          callback.rejected(message, false);
+          rejected.put(batch.tags.get(i), false);
+        }
+      }
+    }
+
+    if (!converted.isEmpty()) {
+      Set<Message> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+      long startNanos = System.nanoTime();
+      try {
+        listener.handleMessages(converted);
+      } catch (PartialBatchFailureException e) {
+        handleError("batch failed partially", e);
+        for (Integer index : e.getFailedIndexes()) {
+          if (index >= 0 && index < tags.size()) {
+            failed.add(messages.get(index));
+            if (!retry(batch, messages.get(index), e, retried)) {
+              rejected.putIfAbsent(tags.get(index), requeue);
+            }
+          }
+        }
+      } catch (Exception e) {
+        handleError("batch failed", e);
+        failed.addAll(messages);
+        for (int i = 0; i < messages.size(); i++) {
+          if (!retry(batch, messages.get(i), e, retried)) {
+            rejected.putIfAbsent(tags.get(i), requeue);
+          }
+        }
+      }
+      long nanos = System.nanoTime() - startNanos;
+      for (int i = 0; i < messages.size(); i++) {
+        Message message = messages.get(i);
+        if (failed.contains(message)) {
+          callback.failed(message, nanos);
+        }
+        // messages unpacked from the same delivery share its fate
+        Boolean requeueMessage = rejected.get(tags.get(i));
+        if (requeueMessage != null) {
+          callback.rejected(message, requeueMessage);
+        } else if (!failed.contains(message)) {
+          callback.handled(message, nanos);
+        }
+      }
+    }
+
+    try {
+      acknowledge(batch, rejected);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("failed to acknowledge batch, its messages will be redelivered", e);
+      batch.messages.forEach(callback::unacknowledged);
+    } finally {
+      batch.clear();
+    }
+  }
+
+  private boolean retry(PendingBatch batch, Message message, Exception error, Set<Message> retried) {
+    if (retrier != null && retrier.retry(message, batch.channel, error)) {
+      retried.add(message);
+      return true;
+    }
+    return false;
+  }
+
+  private static void acknowledge(PendingBatch batch, Map<Long, Boolean> rejected) throws IOException {
+    Channel channel = batch.channel;
+    if (rejected.isEmpty()) {
+      channel.basicAck(batch.lastTag, true);
+      return;
+    }
+    // deliveries of one channel have consecutive tags, so everything up to the last successful one is acknowledged at once
+    long lastAcked = 0;
+    for (long tag = batch.lastTag; tag >= batch.firstTag; tag--) {
+      if (!rejected.containsKey(tag)) {
+        lastAcked = tag;
+        break;
+      }
+    }
+    if (lastAcked == 0 && !(rejected.containsValue(Boolean.TRUE) && rejected.containsValue(Boolean.FALSE))) {
+      channel.basicNack(batch.lastTag, true, rejected.get(batch.lastTag));
+      return;
+    }
+    for (Map.Entry<Long, Boolean> entry : new TreeMap<>(rejected).entrySet()) {
+      channel.basicNack(entry.getKey(), false, entry.getValue());
+    }
+    if (lastAcked != 0) {
+      channel.basicAck(lastAcked, true);
+    }
+  }
+
+  private void handleError(String message, Exception e) {
+    if (errorHandler == null) {
+      LOGGER.warn(message, e);
+      return;
+    }
+    try {
+      errorHandler.handleError(e);
+    } catch (RuntimeException handlerException) {
+      // batch must be acknowledged anyway
+      LOGGER.warn("error handler failed", handlerException);
+    }
+  }
+
+  private static final class PendingBatch {
+    final Channel channel;
+    final List<Message> messages = new ArrayList<>();
+    // tags of messages, several messages have the same tag if batches of publisher are unpacked
+    final List<Long> tags = new ArrayList<>();
+    final Set<Long> failedTags = new HashSet<>();
+    long firstTag;
+    // 0 if batch is empty, tags start from 1
+    long lastTag;
+    long startNanos;
+    // read without lock of batch, which is held while listener handles it
+    volatile int size;
+
+    PendingBatch(Channel channel) {
+      this.channel = channel;
+    }
+
+    void add(Message message) {
+      messages.add(message);
+      tags.add(lastTag);
+      size = messages.size();
+    }
+
+    void clear() {
+      messages.clear();
+      tags.clear();
+      failedTags.clear();
+      lastTag = 0;
+      size = 0;
+    }
+  }
+}
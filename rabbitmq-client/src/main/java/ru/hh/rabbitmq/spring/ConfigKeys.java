@@ -22,13 +22,17 @@ public interface ConfigKeys {
    */
   String HOST = "host";
   /**
-   * Multiple rabbitmq broker hosts in the form of 'host:port,host:port' or 'host,host'. Either this or {@link #HOST} is required.
+   * Multiple rabbitmq broker hosts in the form of 'host:port,host:port' or 'host,host'. Either this or {@link #HOST} is required. Each host may
+   * be followed by {@link #HOSTS_WEIGHT_SEPARATOR} and weight used by {@link #PUBLISHER_BROKER_SELECTION} strategies: 'host1:port*3,host2:port'.
+   * Default weight is 1.
    */
   String HOSTS = "hosts";
   String HOSTS_SEPARATOR = ",";
   Pattern HOSTS_SEPARATOR_PATTERN = Pattern.compile(HOSTS_SEPARATOR);
   String HOSTS_PORT_SEPARATOR = ":";
   Pattern HOSTS_PORT_SEPARATOR_PATTERN = Pattern.compile(HOSTS_PORT_SEPARATOR);
+  String HOSTS_WEIGHT_SEPARATOR = "*";
+  Pattern HOSTS_WEIGHT_SEPARATOR_PATTERN = Pattern.compile(Pattern.quote(HOSTS_WEIGHT_SEPARATOR));
   /**
    * Same as {{@link #HOSTS} but for publisher only.
    */
@@ -89,10 +93,159 @@ public interface ConfigKeys {
    * Whether or not receiver should use MDC-related headers in message and put them to MDC context
    */
   String RECEIVER_USE_MDC = "receiver.use.mdc";
+  /**
+   * MDC keys receiver puts to MDC context from message headers, separated by {@link #MDC_KEYS_SEPARATOR}. All MDC-related headers are used if not
+   * set.
+   */
+  String RECEIVER_MDC_KEYS = "receiver.mdc.keys";
   /**
    * @see SimpleMessageListenerContainer#setShutdownTimeout(long)
    */
   String RECEIVER_SHUTDOWN_TIMEOUT = "receiver.shutdown.timeout";
+  /**
+   * Makes {@link Receiver#stop()} and {@link Receiver#shutdown()} drain receiver with this timeout, see
+   * {@link Receiver#drain(java.time.Duration)}.
+   */
+  String RECEIVER_DRAIN_TIMEOUT_MS = "receiver.drain.timeout.millis";
+  /**
+   * Whether or not receiver should unpack batches sent by batching publisher and call listener for every message, true by default. See
+   * {@link SimpleMessageListenerContainer#setDeBatchingEnabled(boolean)}.
+   */
+  String RECEIVER_DEBATCHING = "receiver.debatching";
+  /**
+   * Max number of messages passed to {@link ru.hh.rabbitmq.spring.receive.BatchMessageListener} at once, 100 by default.
+   */
+  String RECEIVER_BATCH_SIZE = "receiver.batch.size";
+  /**
+   * How long receiver waits for more messages before passing incomplete batch to
+   * {@link ru.hh.rabbitmq.spring.receive.BatchMessageListener}, 100 by default.
+   */
+  String RECEIVER_BATCH_LINGER_MS = "receiver.batch.linger.millis";
+  /**
+   * What happens to messages of failed batch: 'requeue' (default) returns them to queue, 'reject' rejects them without requeue, so they are
+   * dead-lettered if queue has dead letter exchange.
+   */
+  String RECEIVER_BATCH_FAILURE = "receiver.batch.failure";
+  String RECEIVER_BATCH_FAILURE_REQUEUE = "requeue";
+  String RECEIVER_BATCH_FAILURE_REJECT = "reject";
+  /**
+   * Max number of messages handled by {@link ru.hh.rabbitmq.spring.receive.AsyncMessageListener} at once for all consumers of receiver, not
+   * limited by default (only by prefetch count). Receiver threads wait for free slots when limit is reached.
+   */
+  String RECEIVER_ASYNC_MAX_IN_FLIGHT = "receiver.async.max.inflight";
+  /**
+   * Number of serial lanes for {@link Receiver#withOrderingKey(java.util.function.Function)}, number of available processors by default.
+   */
+  String RECEIVER_ORDERING_LANES = "receiver.ordering.lanes";
+  /**
+   * Max number of IDs remembered by receiver to acknowledge duplicates of handled messages without calling listener, enables deduplication.
+   * Messages are duplicates if they have the same ID and body. Memory is allocated upfront, 14 to 29 bytes per ID (about 3 bytes in
+   * probabilistic mode).
+   */
+  String RECEIVER_DEDUP_SIZE = "receiver.dedup.size";
+  /**
+   * Header with ID of message for deduplication, message id property is used if not set.
+   */
+  String RECEIVER_DEDUP_HEADER = "receiver.dedup.header";
+  /**
+   * How long IDs are remembered for deduplication, 3600 by default.
+   */
+  String RECEIVER_DEDUP_TTL_SECONDS = "receiver.dedup.ttl.seconds";
+  /**
+   * Enables probabilistic deduplication (bloom filters) with given probability to drop message that is not a duplicate, e.g. 0.001.
+   */
+  String RECEIVER_DEDUP_FALSE_POSITIVE_PROBABILITY = "receiver.dedup.false.positive.probability";
+  /**
+   * Max number of times message is passed to listener, enables broker-side retries: failed message is republished to delay queue
+   * '&lt;queue&gt;.retry.&lt;delay in millis&gt;' that dead-letters it back to its queue after delay, message that failed the last attempt
+   * or can't be retried is republished to '&lt;queue&gt;.parking'. Queues are declared by receiver.
+   */
+  String RECEIVER_RETRY_MAX_ATTEMPTS = "receiver.retry.max.attempts";
+  /**
+   * Delay before the first retry, must be positive, 1000 by default.
+   */
+  String RECEIVER_RETRY_INITIAL_DELAY_MS = "receiver.retry.initial.delay.millis";
+  /**
+   * Factor delay is multiplied by for every next retry, 2 by default.
+   */
+  String RECEIVER_RETRY_MULTIPLIER = "receiver.retry.multiplier";
+  /**
+   * Max delay before retry, 60000 by default.
+   */
+  String RECEIVER_RETRY_MAX_DELAY_MS = "receiver.retry.max.delay.millis";
+  /**
+   * Listener container used by receiver: 'simple' (default) hands deliveries to own consumer threads ({@link #RECEIVER_THREADPOOL} of them),
+   * 'direct' calls listener right on consumer work pool of connection ({@link #RECEIVER_THREADPOOL} threads shared by all consumers) and
+   * lets to add or remove queues without restarting other consumers. See
+   * {@link org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer}.
+   */
+  String RECEIVER_CONTAINER = "receiver.container";
+  String RECEIVER_CONTAINER_SIMPLE = "simple";
+  String RECEIVER_CONTAINER_DIRECT = "direct";
+  /**
+   * Number of consumers of every queue for 'direct' {@link #RECEIVER_CONTAINER}, 1 by default.
+   */
+  String RECEIVER_CONSUMERS_PER_QUEUE = "receiver.consumers.per.queue";
+  /**
+   * Per-queue settings are set as 'receiver.queue.&lt;name&gt;.threadpool' and 'receiver.queue.&lt;name&gt;.prefetch.count'. Queue with any of them
+   * is consumed by its own container with its own thread pool on every broker, so slow listener of one queue does not hold consumers of
+   * other queues. Containers share connection of the broker. Settings that are not set are taken from {@link #RECEIVER_THREADPOOL} and
+   * {@link #RECEIVER_PREFETCH_COUNT}. Supported by 'simple' {@link #RECEIVER_CONTAINER} only, autoscaling is not applied to such queues.
+   */
+  String RECEIVER_QUEUE_PREFIX = "receiver.queue.";
+  String RECEIVER_QUEUE_THREADPOOL = ".threadpool";
+  String RECEIVER_QUEUE_PREFETCH_COUNT = ".prefetch.count";
+  /**
+   * Max number of consumers of receiver, enables autoscaling of consumers between {@link #RECEIVER_AUTOSCALING_MIN_CONSUMERS} and this value
+   * driven by queue depth, listener latency and idle time of consumers. Consumers are counted per broker for 'simple'
+   * {@link #RECEIVER_CONTAINER} ({@link #RECEIVER_THREADPOOL} is ignored then) and per queue for 'direct' one.
+   */
+  String RECEIVER_AUTOSCALING_MAX_CONSUMERS = "receiver.autoscaling.max.consumers";
+  /**
+   * Min number of consumers for autoscaling, {@link #RECEIVER_THREADPOOL} (or {@link #RECEIVER_CONSUMERS_PER_QUEUE} for 'direct'
+   * {@link #RECEIVER_CONTAINER}) by default. Receiver starts with this many consumers.
+   */
+  String RECEIVER_AUTOSCALING_MIN_CONSUMERS = "receiver.autoscaling.min.consumers";
+  /**
+   * How often queue depth, listener latency and idle time of consumers are sampled for autoscaling, 5000 by default.
+   */
+  String RECEIVER_AUTOSCALING_INTERVAL_MS = "receiver.autoscaling.interval.millis";
+  /**
+   * Consumers are added when queue backlog is not going to be handled within this time, 1000 by default.
+   */
+  String RECEIVER_AUTOSCALING_DRAIN_MS = "receiver.autoscaling.drain.millis";
+  /**
+   * Consumer is removed when consumers are idle more than this percent of time and the rest of them handle backlog within half of
+   * {@link #RECEIVER_AUTOSCALING_DRAIN_MS}, 50 by default.
+   */
+  String RECEIVER_AUTOSCALING_IDLE_PERCENT = "receiver.autoscaling.idle.percent";
+  /**
+   * Number of consecutive samples consumers must be added after, 2 by default.
+   */
+  String RECEIVER_AUTOSCALING_UP_SAMPLES = "receiver.autoscaling.up.samples";
+  /**
+   * Number of consecutive samples consumer must be removed after, 6 by default.
+   */
+  String RECEIVER_AUTOSCALING_DOWN_SAMPLES = "receiver.autoscaling.down.samples";
+  /**
+   * Max prefetch count of consumer, enables adaptive prefetch: every consumer keeps enough messages buffered to cover round trip to broker
+   * with listener time, between {@link #RECEIVER_PREFETCH_ADAPTIVE_MIN} and this value. {@link #RECEIVER_PREFETCH_COUNT} is the initial
+   * value then. Queues with own 'receiver.queue.&lt;name&gt;.prefetch.count' keep it.
+   */
+  String RECEIVER_PREFETCH_ADAPTIVE_MAX = "receiver.prefetch.adaptive.max";
+  /**
+   * Min prefetch count of consumer for adaptive prefetch, 1 by default.
+   */
+  String RECEIVER_PREFETCH_ADAPTIVE_MIN = "receiver.prefetch.adaptive.min";
+  /**
+   * How often every consumer measures listener time and round trip and adjusts its prefetch count, 1000 by default.
+   */
+  String RECEIVER_PREFETCH_ADAPTIVE_INTERVAL_MS = "receiver.prefetch.adaptive.interval.millis";
+  /**
+   * Whether receiver measures messages buffered by consumers, false by default. Sets metrics collector of amqp-client connection factories
+   * of receiver, unless another one is set, and records every delivery with it.
+   */
+  String RECEIVER_METRICS_BUFFERED = "receiver.metrics.buffered";
 
   /**
    * Name will be used in thread name of publisher workers.
@@ -132,10 +285,54 @@ public interface ConfigKeys {
    * Whether or not publisher should store MDC context to message
    */
   String PUBLISHER_USE_MDC = "publisher.use.mdc";
+  /**
+   * MDC keys publisher stores to message headers, separated by {@link #MDC_KEYS_SEPARATOR}. The whole MDC context is stored if not set.
+   */
+  String PUBLISHER_MDC_KEYS = "publisher.mdc.keys";
+  String MDC_KEYS_SEPARATOR = ",";
+  Pattern MDC_KEYS_SEPARATOR_PATTERN = Pattern.compile(MDC_KEYS_SEPARATOR);
+  /**
+   * Whether or not publisher should store MDC context to a single message header instead of header per key, false by default. Receivers
+   * understand both forms regardless of this setting.
+   */
+  String PUBLISHER_MDC_COMPACT = "publisher.mdc.compact";
   /**
    * How long publisher will wait for inner queue to clear when shutting down
    */
   String PUBLISHER_INNER_QUEUE_SHUTDOWN_MS = "publisher.innerqueue.shutdown.ms";
+  /**
+   * Max number of messages packed into one AMQP message. Batching is enabled for publisher if this is greater than 1, see
+   * {@link ru.hh.rabbitmq.spring.send.Publisher} for batch format.
+   */
+  String PUBLISHER_BATCH_SIZE = "publisher.batch.size";
+  /**
+   * Max size of batch body in bytes, 65536 by default. Message bigger than this is sent as a batch of one.
+   */
+  String PUBLISHER_BATCH_BYTES = "publisher.batch.bytes";
+  /**
+   * How long publisher waits for more messages to the same destination before sending incomplete batch, 10 by default.
+   */
+  String PUBLISHER_BATCH_LINGER_MS = "publisher.batch.linger.millis";
+  /**
+   * Window for {@link ru.hh.rabbitmq.spring.send.Publisher#sendCoalesced(Object, ru.hh.rabbitmq.spring.send.Destination, Object)}, only the
+   * last message with the same key and destination sent within the window is published. 0 (default) disables coalescing.
+   */
+  String PUBLISHER_COALESCING_WINDOW_MS = "publisher.coalescing.window.millis";
+  /**
+   * How publisher distributes tasks between multiple brokers: 'weighted', 'least-outstanding' or 'latency-ewma', see
+   * {@link ru.hh.rabbitmq.spring.send.BrokerSelectionStrategies}. If not set, all brokers take tasks from one shared inner queue.
+   */
+  String PUBLISHER_BROKER_SELECTION = "publisher.broker.selection";
+  /**
+   * Number of worker threads (each sending through its own channel) per broker for publisher, 1 by default. {@link #CHANNEL_CACHE_SIZE} is
+   * raised to this value if it is lower, so channels of workers are reused rather than reopened.
+   */
+  String PUBLISHER_WORKERS_PER_HOST = "publisher.workers.per.host";
+  /**
+   * Whether publisher adds header with publishing time in milliseconds to every message, so receivers measure lag precisely, false by
+   * default. AMQP timestamp of second precision is set either way unless message has one.
+   */
+  String PUBLISHER_PUBLISHED_MILLIS_HEADER = "publisher.published.millis.header";
   /**
    * Should connection factory enable automatic recovering
    */
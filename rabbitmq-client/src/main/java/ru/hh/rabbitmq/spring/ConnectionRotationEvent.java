@@ -0,0 +1,39 @@
+package ru.hh.rabbitmq.spring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for closing of a connection that reached its max age in {@link RefreshingConnectionFactory}.
+ */
+@Name("ru.hh.rabbitmq.ConnectionRotation")
+@Label("Connection Rotation")
+@Category({"RabbitMQ", "Connection"})
+@Description("Connection closed by RefreshingConnectionFactory because of its age")
+@StackTrace(false)
+class ConnectionRotationEvent extends Event {
+  static final String CLOSED = "closed";
+  static final String FAILED = "failed";
+
+  @Label("Host")
+  String host;
+
+  @Label("Port")
+  int port;
+
+  @Label("Age")
+  @Timespan(Timespan.MILLISECONDS)
+  long age;
+
+  @Label("Outcome")
+  @Description("closed or failed")
+  String outcome;
+
+  @Label("Error")
+  String error;
+}
@@ -1,7 +1,9 @@
 package ru.hh.rabbitmq.spring;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.stream.Stream;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
@@ -16,6 +18,7 @@ import static ru.hh.rabbitmq.spring.ConfigKeys.CONNECTION_TIMEOUT_MS;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HEARTBIT_SEC;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS_PORT_SEPARATOR_PATTERN;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS_SEPARATOR_PATTERN;
+import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS_WEIGHT_SEPARATOR_PATTERN;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PASSWORD;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PORT;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_CONFIRMS;
@@ -41,7 +44,8 @@ public class ConnectionsFactory {
     try {
       Integer commonPort = properties.getInteger(PORT);
       // something_HOSTS -> HOSTS -> HOST -> exception
-      return getHosts(properties, throwOnEmpty, hostsSettingNames).map(hostAndPortString -> {
+      return getHosts(properties, throwOnEmpty, hostsSettingNames).map(hostString -> {
+        String hostAndPortString = HOSTS_WEIGHT_SEPARATOR_PATTERN.split(hostString)[0];
         String[] hostAndPort = HOSTS_PORT_SEPARATOR_PATTERN.split(hostAndPortString);
         String host = hostAndPort[0];
         Integer port = commonPort;
@@ -59,6 +63,37 @@ public class ConnectionsFactory {
     }
   }
 
+  /**
+   * Collects weights of hosts from the first of given settings that is set, the same one hosts are taken from, see {@link ConfigKeys#HOSTS}.
+   *
+   * @return weights by 'host:port', hosts without weight are omitted
+   */
+  public static Map<String, Integer> getHostWeights(Properties properties, String... hostsSettingNames) {
+    PropertiesHelper props = new PropertiesHelper(properties);
+    Integer commonPort = props.getInteger(PORT);
+    Map<String, Integer> weights = new HashMap<>();
+    getHosts(props, false, hostsSettingNames).forEach(hostString -> {
+      String[] hostAndWeight = HOSTS_WEIGHT_SEPARATOR_PATTERN.split(hostString);
+      if (hostAndWeight.length < 2) {
+        return;
+      }
+      int weight;
+      try {
+        weight = Integer.parseInt(hostAndWeight[1].trim());
+      } catch (NumberFormatException e) {
+        throw new ConfigException(String.format("Invalid weight of host %s", hostString), e);
+      }
+      if (weight < 1) {
+        throw new ConfigException(String.format("Weight of host %s must be positive", hostString));
+      }
+      String[] hostAndPort = HOSTS_PORT_SEPARATOR_PATTERN.split(hostAndWeight[0]);
+      String host = hasText(hostAndPort[0]) ? hostAndPort[0] : "localhost";
+      Integer port = hostAndPort.length > 1 ? Integer.valueOf(hostAndPort[1]) : commonPort;
+      weights.putIfAbsent(host + ':' + (port == null ? com.rabbitmq.client.ConnectionFactory.DEFAULT_AMQP_PORT : port), weight);
+    });
+    return weights;
+  }
+
   private static Stream<String> getHosts(PropertiesHelper properties, boolean throwOnEmpty, String... settingNames) {
     String value;
     for (String settingName : settingNames) {
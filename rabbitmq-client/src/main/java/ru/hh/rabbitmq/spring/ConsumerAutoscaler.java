@@ -0,0 +1,219 @@
+package ru.hh.rabbitmq.spring;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+
+/**
+ * <p>
+ * Keeps number of consumers of every container between min and max. Every interval it samples depth of container queues (with passive
+ * declare), latency of listener and idle time of consumers:
+ * </p>
+ * <ul>
+ * <li>consumers are added when backlog is not going to be handled within drain time (depth * latency / consumers &gt; drain time), as many
+ * as needed to handle it in time;</li>
+ * <li>one consumer is removed when consumers are idle more than idle percent of time and the rest of them handle backlog within half of
+ * drain time.</li>
+ * </ul>
+ * <p>
+ * Change is applied when the same decision is made for several consecutive samples, so consumers are not added and removed back on every
+ * burst. Consumers of simple container are counted per container, consumers of direct container are counted per queue.
+ * </p>
+ */
+final class ConsumerAutoscaler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConsumerAutoscaler.class);
+
+  private final Map<AbstractMessageListenerContainer, Scaling> scalings = new LinkedHashMap<>();
+  private final int min;
+  private final int max;
+  private final Duration interval;
+  private final long drainNanos;
+  private final int idlePercent;
+  private final int upSamples;
+  private final int downSamples;
+  private final ThreadFactory threadFactory;
+  @Nullable  // created on first start
+  private ScheduledExecutorService scheduler;
+  @Nullable  // while started
+  private ScheduledFuture<?> sampling;
+
+  ConsumerAutoscaler(Collection<AbstractMessageListenerContainer> containers,
+                     int min,
+                     int max,
+                     Duration interval,
+                     Duration drain,
+                     int idlePercent,
+                     int upSamples,
+                     int downSamples,
+                     ThreadFactory threadFactory) {
+    this.min = min;
+    this.max = max;
+    this.interval = interval;
+    drainNanos = drain.toNanos();
+    this.idlePercent = idlePercent;
+    this.upSamples = upSamples;
+    this.downSamples = downSamples;
+    this.threadFactory = threadFactory;
+    for (AbstractMessageListenerContainer container : containers) {
+      scalings.put(container, new Scaling(container));
+    }
+  }
+
+  /**
+   * @return listener that measures time consumers of container spend in given listener, the same listener if container is not scaled
+   */
+  ChannelAwareMessageListener measure(AbstractMessageListenerContainer container, ChannelAwareMessageListener listener) {
+    Scaling scaling = scalings.get(container);
+    if (scaling == null) {
+      return listener;
+    }
+    return (message, channel) -> {
+      long start = System.nanoTime();
+      try {
+        listener.onMessage(message, channel);
+      } finally {
+        scaling.busyNanos.add(System.nanoTime() - start);
+        scaling.handled.increment();
+      }
+    };
+  }
+
+  void start() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+    for (Scaling scaling : scalings.values()) {
+      scaling.reset();
+    }
+    long periodMillis = interval.toMillis();
+    sampling = scheduler.scheduleWithFixedDelay(this::sample, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void stop() {
+    if (sampling != null) {
+      sampling.cancel(false);
+      sampling = null;
+    }
+  }
+
+  void shutdown() {
+    stop();
+    if (scheduler != null) {
+      scheduler.shutdown();
+    }
+  }
+
+  private void sample() {
+    for (Scaling scaling : scalings.values()) {
+      try {
+        scaling.sample();
+      } catch (RuntimeException e) {
+        // broker may be unavailable, next sample will try again
+        LOGGER.warn("failed to sample consumers of {}", scaling.container.getConnectionFactory().getHost(), e);
+      }
+    }
+  }
+
+  private final class Scaling {
+    final AbstractMessageListenerContainer container;
+    final RabbitAdmin admin;
+    final LongAdder busyNanos = new LongAdder();
+    final LongAdder handled = new LongAdder();
+    int consumers = min;
+    int upStreak;
+    int downStreak;
+    long lastSampleNanos;
+
+    Scaling(AbstractMessageListenerContainer container) {
+      this.container = container;
+      admin = new RabbitAdmin(container.getConnectionFactory());
+    }
+
+    void reset() {
+      busyNanos.reset();
+      handled.reset();
+      upStreak = 0;
+      downStreak = 0;
+      lastSampleNanos = System.nanoTime();
+    }
+
+    void sample() {
+      long now = System.nanoTime();
+      long elapsed = now - lastSampleNanos;
+      lastSampleNanos = now;
+      long busy = busyNanos.sumThenReset();
+      long handledCount = handled.sumThenReset();
+      String[] queues = container.getQueueNames();
+      if (queues.length == 0) {
+        return;
+      }
+      long depth = queueDepth(queues);
+      if (handledCount == 0 && depth > 0) {
+        // nothing to estimate latency with, consumers handle very long messages or are not started yet
+        upStreak = 0;
+        downStreak = 0;
+        return;
+      }
+      int parallelism = container instanceof DirectMessageListenerContainer ? consumers * queues.length : consumers;
+      double latency = handledCount > 0 ? (double) busy / handledCount : 0;
+      double drain = depth * latency / parallelism;
+      // busy time is counted when message is handled, so it may exceed the interval
+      double idle = Math.max(0, 100 * (1 - (double) busy / ((double) elapsed * parallelism)));
+
+      if (drain > drainNanos && consumers < max) {
+        downStreak = 0;
+        if (++upStreak >= upSamples) {
+          scale(Math.min(max, (int) Math.ceil(consumers * drain / drainNanos)), depth, latency, idle);
+        }
+      } else if (idle > idlePercent && consumers > min && drain * consumers / (consumers - 1) <= drainNanos / 2) {
+        upStreak = 0;
+        if (++downStreak >= downSamples) {
+          scale(consumers - 1, depth, latency, idle);
+        }
+      } else {
+        upStreak = 0;
+        downStreak = 0;
+      }
+    }
+
+    private long queueDepth(String[] queues) {
+      long depth = 0;
+      for (String queue : queues) {
+        Properties properties = admin.getQueueProperties(queue);
+        if (properties != null) {
+          depth += ((Number) properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).longValue();
+        }
+      }
+      return depth;
+    }
+
+    private void scale(int target, long depth, double latency, double idle) {
+      LOGGER.info("scaling consumers of {} from {} to {}, depth {}, latency {} ms, idle {}%", container.getConnectionFactory().getHost(),
+          consumers, target, depth, String.format("%.1f", latency / 1_000_000), String.format("%.0f", idle));
+      if (container instanceof DirectMessageListenerContainer) {
+        ((DirectMessageListenerContainer) container).setConsumersPerQueue(target);
+      } else {
+        ((SimpleMessageListenerContainer) container).setConcurrentConsumers(target);
+      }
+      consumers = target;
+      upStreak = 0;
+      downStreak = 0;
+    }
+  }
+}
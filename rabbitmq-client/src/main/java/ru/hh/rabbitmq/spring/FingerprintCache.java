@@ -0,0 +1,239 @@
+package ru.hh.rabbitmq.spring;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Bounded set of 64-bit fingerprints that expire after TTL. Fingerprints are kept in a ring of generations: new ones are added to the
+ * current generation, when it is full or older than TTL / generations the oldest generation is cleared and becomes current. Fingerprint
+ * found in an older generation is added to the current one again, so frequently seen fingerprints live longer (approximate LRU). Fingerprint
+ * lives from (generations - 1) / generations of TTL up to TTL, unless evicted by size; at least capacity of the latest fingerprints are
+ * kept by a single stripe.
+ * </p>
+ * <p>
+ * Memory does not depend on load: in exact mode generations are open-addressing tables of longs allocated upfront (14 to 29 bytes per
+ * fingerprint of capacity), in probabilistic mode they are bloom filters of fixed size (about 3 bytes per fingerprint of capacity for 0.1%
+ * false positive probability), which may report fingerprint that was never added.
+ * </p>
+ * <p>
+ * Large caches are split into up to {@link #MAX_STRIPES} stripes by high bits of fingerprint, each with its own generations and lock, so
+ * consumer threads of different queues rarely wait for each other. Fingerprints are uniformly distributed, so every stripe keeps about its
+ * share of capacity of the latest ones.
+ * </p>
+ */
+final class FingerprintCache {
+  static final int GENERATIONS = 4;
+  static final int MAX_STRIPES = 16;
+  // stripe smaller than that would keep noticeably fewer of the latest fingerprints than its share of capacity
+  private static final int MIN_STRIPE_CAPACITY = 1024;
+
+  private final Stripe[] stripes;
+  private final int stripeShift;
+
+  /**
+   * @param falsePositiveProbability enables probabilistic mode if positive
+   */
+  FingerprintCache(int capacity, Duration ttl, double falsePositiveProbability) {
+    int stripeCount = Math.max(1, Math.min(MAX_STRIPES, Integer.highestOneBit(capacity / MIN_STRIPE_CAPACITY)));
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe((capacity + stripeCount - 1) / stripeCount, ttl, falsePositiveProbability);
+    }
+    // high bits choose stripe, low bits choose slot of table
+    stripeShift = 64 - Integer.numberOfTrailingZeros(stripeCount);
+  }
+
+  /**
+   * @return whether fingerprint was added and has not expired yet
+   */
+  boolean contains(long fingerprint) {
+    return stripe(fingerprint).contains(fingerprint);
+  }
+
+  void add(long fingerprint) {
+    stripe(fingerprint).add(fingerprint);
+  }
+
+  private Stripe stripe(long fingerprint) {
+    // shift by 64 is shift by 0 in Java
+    return stripes.length == 1 ? stripes[0] : stripes[(int) (fingerprint >>> stripeShift)];
+  }
+
+  /**
+   * Fingerprints of one range of high bits with own ring of generations and own lock.
+   */
+  private static final class Stripe {
+    private final Generation[] generations = new Generation[GENERATIONS];
+    private final int generationCapacity;
+    private final long generationTtlNanos;
+    private int current;
+    private long currentStartNanos;
+
+    Stripe(int capacity, Duration ttl, double falsePositiveProbability) {
+      // full generations besides the current one keep at least capacity of the latest fingerprints
+      generationCapacity = Math.max(1, (capacity + GENERATIONS - 2) / (GENERATIONS - 1));
+      generationTtlNanos = Math.max(1, ttl.toNanos() / GENERATIONS);
+      for (int i = 0; i < GENERATIONS; i++) {
+        generations[i] = falsePositiveProbability > 0
+            ? new BloomGeneration(generationCapacity, falsePositiveProbability / GENERATIONS)
+            : new TableGeneration(generationCapacity);
+      }
+      currentStartNanos = System.nanoTime();
+    }
+
+    synchronized boolean contains(long fingerprint) {
+      expire();
+      for (int i = 0; i < GENERATIONS; i++) {
+        Generation generation = generations[(current - i + GENERATIONS) % GENERATIONS];
+        if (generation.contains(fingerprint)) {
+          if (i > 0) {
+            add(fingerprint);
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    synchronized void add(long fingerprint) {
+      expire();
+      Generation generation = generations[current];
+      if (generation.contains(fingerprint)) {
+        return;
+      }
+      if (generation.size() >= generationCapacity) {
+        rotate(System.nanoTime());
+        generation = generations[current];
+      }
+      generation.add(fingerprint);
+    }
+
+    private void expire() {
+      long now = System.nanoTime();
+      for (int i = 0; i < GENERATIONS && now - currentStartNanos >= generationTtlNanos; i++) {
+        rotate(currentStartNanos + generationTtlNanos);
+      }
+      if (now - currentStartNanos >= generationTtlNanos) {
+        // everything expired long ago
+        currentStartNanos = now;
+      }
+    }
+
+    private void rotate(long startNanos) {
+      current = (current + 1) % GENERATIONS;
+      generations[current].clear();
+      currentStartNanos = startNanos;
+    }
+  }
+
+  private interface Generation {
+    boolean contains(long fingerprint);
+
+    void add(long fingerprint);
+
+    int size();
+
+    void clear();
+  }
+
+  /**
+   * Open-addressing table with linear probing, 0 marks empty slot.
+   */
+  private static final class TableGeneration implements Generation {
+    private final long[] table;
+    private final int mask;
+    private int size;
+
+    TableGeneration(int capacity) {
+      // load factor is kept between 0.375 and 0.75
+      int length = Integer.highestOneBit(Math.max(2, capacity * 4 / 3) - 1) << 1;
+      table = new long[length];
+      mask = length - 1;
+    }
+
+    @Override
+    public boolean contains(long fingerprint) {
+      long key = fingerprint != 0 ? fingerprint : 1;
+      for (int i = index(key); ; i = (i + 1) & mask) {
+        if (table[i] == key) {
+          return true;
+        }
+        if (table[i] == 0) {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    public void add(long fingerprint) {
+      long key = fingerprint != 0 ? fingerprint : 1;
+      int i = index(key);
+      while (table[i] != 0) {
+        if (table[i] == key) {
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      table[i] = key;
+      size++;
+    }
+
+    private int index(long key) {
+      // fingerprints are hashes already, just mix high bits in
+      return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void clear() {
+      if (size > 0) {
+        Arrays.fill(table, 0);
+        size = 0;
+      }
+    }
+  }
+
+  private static final class BloomGeneration implements Generation {
+    private final int capacity;
+    private final double falsePositiveProbability;
+    private BloomFilter<Long> filter;
+    private int size;
+
+    BloomGeneration(int capacity, double falsePositiveProbability) {
+      this.capacity = capacity;
+      this.falsePositiveProbability = falsePositiveProbability;
+      filter = BloomFilter.create(Funnels.longFunnel(), capacity, falsePositiveProbability);
+    }
+
+    @Override
+    public boolean contains(long fingerprint) {
+      return filter.mightContain(fingerprint);
+    }
+
+    @Override
+    public void add(long fingerprint) {
+      filter.put(fingerprint);
+      size++;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public void clear() {
+      if (size > 0) {
+        filter = BloomFilter.create(Funnels.longFunnel(), capacity, falsePositiveProbability);
+        size = 0;
+      }
+    }
+  }
+}
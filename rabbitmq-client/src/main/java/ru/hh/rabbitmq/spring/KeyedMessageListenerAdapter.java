@@ -0,0 +1,144 @@
+package ru.hh.rabbitmq.spring;
+
+import com.rabbitmq.client.Channel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.util.ErrorHandler;
+
+/**
+ * <p>
+ * Passes every message to one of serial lanes by its key: messages with the same key are handled one by one in delivery order, messages
+ * with different keys are handled in parallel. Messages without key are spread over all lanes. Container must use manual acknowledge mode,
+ * every delivery is acknowledged on its own when its messages are handled.
+ * </p>
+ * <p>
+ * Consumer thread does not wait for lanes, so number of messages waiting in lanes is limited by prefetch count of consumers. Failed message
+ * is requeued (unless it can't be converted or listener failed with {@link org.springframework.amqp.AmqpRejectAndDontRequeueException}),
+ * so it may be handled again after later messages with the same key.
+ * </p>
+ */
+final class KeyedMessageListenerAdapter implements ChannelAwareMessageListener {
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyedMessageListenerAdapter.class);
+
+  private final ChannelAwareMessageListener listener;
+  private final Function<Message, ?> keyExtractor;
+  private final List<ExecutorService> lanes;
+  @Nullable
+  private final ErrorHandler errorHandler;
+  private final boolean deBatching;
+  private final ListenerCallback callback;
+  private final AtomicInteger unkeyed = new AtomicInteger();
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  /**
+   * @param lanes single thread executors
+   * @param errorHandler handles failures of listener, they are logged if null
+   * @param deBatching whether to unpack batches
+   * @param callback gets rejected and unacknowledged messages, listener reports the rest
+   */
+  KeyedMessageListenerAdapter(ChannelAwareMessageListener listener,
+                              Function<Message, ?> keyExtractor,
+                              List<ExecutorService> lanes,
+                              @Nullable
+                              ErrorHandler errorHandler,
+                              boolean deBatching,
+                              ListenerCallback callback) {
+    this.listener = listener;
+    this.keyExtractor = keyExtractor;
+    this.lanes = lanes;
+    this.errorHandler = errorHandler;
+    this.deBatching = deBatching;
+    this.callback = callback;
+  }
+
+  @Override
+  public void onMessage(Message message, Channel channel) {
+    PendingDelivery delivery = new PendingDelivery(channel, message, callback);
+    List<Message> messages;
+    try {
+      messages = deBatching ? MessageBatches.unpack(message) : Collections.singletonList(message);
+    } catch (MessageConversionException e) {
+      handleError(e);
+      callback.rejected(message, false);
+      delivery.fail(false);
+      delivery.acknowledge();
+      return;
+    }
+    if (messages.isEmpty()) {
+      delivery.acknowledge();
+      return;
+    }
+    delivery.setRemaining(messages.size());
+    // MDC context is set by consumer thread while it converts message properties
+    Map<String, String> mdcContext = MDC.getCopyOfContextMap();
+    for (Message fragment : messages) {
+      inFlight.incrementAndGet();
+      try {
+        lane(keyExtractor.apply(fragment)).execute(() -> handle(fragment, channel, delivery, mdcContext));
+      } catch (RuntimeException e) {
+        done(delivery, fragment, e);
+      }
+    }
+  }
+
+  /**
+   * @return number of messages passed to lanes and not handled yet
+   */
+  int getInFlight() {
+    return inFlight.get();
+  }
+
+  private ExecutorService lane(@Nullable Object key) {
+    int hash = key != null ? key.hashCode() : unkeyed.getAndIncrement();
+    return lanes.get(Math.floorMod(hash, lanes.size()));
+  }
+
+  private void handle(Message message, Channel channel, PendingDelivery delivery, @Nullable Map<String, String> mdcContext) {
+    if (mdcContext != null) {
+      MDC.setContextMap(mdcContext);
+    }
+    try {
+      listener.onMessage(message, channel);
+      done(delivery, message, null);
+    } catch (Exception e) {
+      done(delivery, message, e);
+    } finally {
+      MDC.clear();
+    }
+  }
+
+  private void done(PendingDelivery delivery, Message message, @Nullable Exception error) {
+    if (error != null) {
+      boolean requeue = PendingDelivery.isRecoverable(error);
+      callback.rejected(message, requeue);
+      delivery.fail(requeue);
+      handleError(error);
+    }
+    // message is in flight until its delivery is acknowledged, receiver waits for that before closing channels
+    delivery.done();
+    inFlight.decrementAndGet();
+  }
+
+  private void handleError(Throwable error) {
+    if (errorHandler == null) {
+      LOGGER.warn("keyed listener failed", error);
+      return;
+    }
+    try {
+      errorHandler.handleError(error);
+    } catch (RuntimeException handlerException) {
+      LOGGER.warn("error handler failed", handlerException);
+    }
+  }
+}
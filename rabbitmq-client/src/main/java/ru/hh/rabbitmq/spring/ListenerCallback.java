@@ -0,0 +1,29 @@
+package ru.hh.rabbitmq.spring;
+
+import org.springframework.amqp.core.Message;
+
+/**
+ * Outcome of messages passed to listener, listener adapters report it to {@link Receiver} for deduplication and statistics.
+ */
+interface ListenerCallback {
+
+  /**
+   * @param nanos time listener spent on message
+   */
+  void handled(Message message, long nanos);
+
+  /**
+   * @param nanos time listener spent on message before it failed
+   */
+  void failed(Message message, long nanos);
+
+  /**
+   * Message is rejected or requeued, not republished for retry.
+   */
+  void rejected(Message message, boolean requeue);
+
+  /**
+   * Message is not acknowledged or rejected because channel it came from is closed, broker redelivers it.
+   */
+  void unacknowledged(Message message);
+}
@@ -3,19 +3,29 @@ package ru.hh.rabbitmq.spring;
 import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Envelope;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.function.Function;
+import javax.annotation.Nullable;
 import org.slf4j.MDC;
 import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
 
 /**
  * <p>
- * Put everything from MDC context to message headers when serializing message.
+ * Put MDC context to message headers when serializing message: every key to its own {@code _MDC_<key>} header, or all keys to one
+ * {@code _MDC} header as {@code key=value&key=value} ('%', '&' and '=' are escaped as %25, %26 and %3D) if compact encoding is on.
  * </p>
  * <p>
- * Put all MDC-related headers from message to MDC context when deserializing message.
+ * Put MDC-related headers of both forms from message to MDC context when deserializing message.
+ * </p>
+ * <p>
+ * If keys are given, only these keys are put to headers and only headers of these keys are looked up, otherwise the whole context is
+ * propagated.
  * </p>
  * <p>
  * WARNING: when deserializing message, MDC context will always be CLEARED.
@@ -24,19 +34,112 @@ import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter
 public class MDCMessagePropertiesConverter extends DefaultMessagePropertiesConverter {
 
   private static final String MDC_PREFIX = "_MDC_";
+  private static final String MDC_COMPACT_HEADER = "_MDC";
+
+  @Nullable
+  private final String[] keys;
+  @Nullable
+  private final String[] headerNames;
+  private final boolean compact;
+
+  /**
+   * Propagates the whole MDC context, key per header.
+   */
+  public MDCMessagePropertiesConverter() {
+    this(null, false);
+  }
+
+  /**
+   * @param keys MDC keys to propagate, the whole context if null
+   * @param compact whether to put all keys to a single header when serializing
+   */
+  public MDCMessagePropertiesConverter(@Nullable Collection<String> keys, boolean compact) {
+    if (keys != null) {
+      this.keys = keys.toArray(new String[0]);
+      headerNames = new String[this.keys.length];
+      for (int i = 0; i < this.keys.length; i++) {
+        headerNames[i] = MDC_PREFIX + this.keys[i];
+      }
+    } else {
+      this.keys = null;
+      headerNames = null;
+    }
+    this.compact = compact;
+  }
+
+  @Nullable
+  public Collection<String> getKeys() {
+    return keys != null ? Arrays.asList(keys) : null;
+  }
 
   @Override
   public BasicProperties fromMessageProperties(MessageProperties source, String charset) {
     BasicProperties properties = super.fromMessageProperties(source, charset);
-    Map<String, String> mdcContext = MDC.getCopyOfContextMap();
-    if (mdcContext != null && !mdcContext.isEmpty()) {
+    Map<String, Object> mdcHeaders = keys != null ? whitelistedHeaders(MDC::get) : allHeaders(MDC.getCopyOfContextMap());
+    if (mdcHeaders != null) {
       Map<String, Object> headers = new HashMap<>(properties.getHeaders());
+      headers.putAll(mdcHeaders);
+      properties = properties.builder().headers(headers).build();
+    }
+    return properties;
+  }
+
+  /**
+   * Encodes MDC context the same way it is encoded when serializing message, so headers can be computed once and reused for many
+   * messages sent with the same context.
+   *
+   * @return headers to add to message, empty if there is nothing to propagate
+   */
+  public Map<String, Object> toHeaders(@Nullable Map<String, String> mdcContext) {
+    if (mdcContext == null) {
+      return Collections.emptyMap();
+    }
+    Map<String, Object> headers = keys != null ? whitelistedHeaders(mdcContext::get) : allHeaders(mdcContext);
+    return headers != null ? headers : Collections.emptyMap();
+  }
+
+  @Nullable
+  private Map<String, Object> whitelistedHeaders(Function<String, String> mdcContext) {
+    Map<String, Object> headers = null;
+    StringBuilder encoded = null;
+    for (int i = 0; i < keys.length; i++) {
+      String value = mdcContext.apply(keys[i]);
+      if (value == null) {
+        continue;
+      }
+      if (headers == null) {
+        headers = new HashMap<>();
+      }
+      if (compact) {
+        encoded = appendEncoded(encoded, keys[i], value);
+      } else {
+        headers.put(headerNames[i], value);
+      }
+    }
+    if (encoded != null) {
+      headers.put(MDC_COMPACT_HEADER, encoded.toString());
+    }
+    return headers;
+  }
+
+  @Nullable
+  private Map<String, Object> allHeaders(@Nullable Map<String, String> mdcContext) {
+    if (mdcContext == null || mdcContext.isEmpty()) {
+      return null;
+    }
+    Map<String, Object> headers = new HashMap<>();
+    if (compact) {
+      StringBuilder encoded = null;
+      for (Entry<String, String> entry : mdcContext.entrySet()) {
+        encoded = appendEncoded(encoded, entry.getKey(), entry.getValue());
+      }
+      headers.put(MDC_COMPACT_HEADER, encoded.toString());
+    } else {
       for (Entry<String, String> entry : mdcContext.entrySet()) {
         headers.put(MDC_PREFIX + entry.getKey(), entry.getValue());
       }
-      properties = properties.builder().headers(headers).build();
     }
-    return properties;
+    return headers;
   }
 
   @Override
@@ -46,14 +149,104 @@ public class MDCMessagePropertiesConverter extends DefaultMessagePropertiesConve
     if (source != null) {
       Map<String, Object> headers = source.getHeaders();
       if (headers != null) {
-        for (Entry<String, Object> header : headers.entrySet()) {
-          if (header.getKey().startsWith(MDC_PREFIX) && header.getValue() != null) {
-            String key = header.getKey().substring(MDC_PREFIX.length());
-            MDC.put(key, header.getValue().toString());
+        if (keys != null) {
+          for (int i = 0; i < keys.length; i++) {
+            Object value = headers.get(headerNames[i]);
+            if (value != null) {
+              MDC.put(keys[i], value.toString());
+            }
+          }
+        } else {
+          for (Entry<String, Object> header : headers.entrySet()) {
+            if (header.getKey().startsWith(MDC_PREFIX) && header.getValue() != null) {
+              String key = header.getKey().substring(MDC_PREFIX.length());
+              MDC.put(key, header.getValue().toString());
+            }
           }
         }
+        Object encoded = headers.get(MDC_COMPACT_HEADER);
+        if (encoded != null) {
+          putDecoded(encoded.toString());
+        }
       }
     }
     return super.toMessageProperties(source, envelope, charset);
   }
+
+  private static StringBuilder appendEncoded(@Nullable StringBuilder encoded, String key, String value) {
+    if (encoded == null) {
+      encoded = new StringBuilder(64);
+    } else {
+      encoded.append('&');
+    }
+    escape(encoded, key);
+    encoded.append('=');
+    escape(encoded, value);
+    return encoded;
+  }
+
+  private static void escape(StringBuilder encoded, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '%') {
+        encoded.append("%25");
+      } else if (c == '&') {
+        encoded.append("%26");
+      } else if (c == '=') {
+        encoded.append("%3D");
+      } else {
+        encoded.append(c);
+      }
+    }
+  }
+
+  private void putDecoded(String encoded) {
+    int start = 0;
+    while (start < encoded.length()) {
+      int end = encoded.indexOf('&', start);
+      if (end < 0) {
+        end = encoded.length();
+      }
+      int separator = encoded.indexOf('=', start);
+      if (separator > start && separator < end) {
+        String key = unescape(encoded, start, separator);
+        if (isPropagated(key)) {
+          MDC.put(key, unescape(encoded, separator + 1, end));
+        }
+      }
+      start = end + 1;
+    }
+  }
+
+  private boolean isPropagated(String key) {
+    if (keys == null) {
+      return true;
+    }
+    for (String propagated : keys) {
+      if (propagated.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String unescape(String encoded, int start, int end) {
+    int escape = encoded.indexOf('%', start);
+    if (escape < 0 || escape >= end) {
+      return encoded.substring(start, end);
+    }
+    StringBuilder decoded = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = encoded.charAt(i);
+      int high = i + 2 < end ? Character.digit(encoded.charAt(i + 1), 16) : -1;
+      int low = i + 2 < end ? Character.digit(encoded.charAt(i + 2), 16) : -1;
+      if (c == '%' && high >= 0 && low >= 0) {
+        decoded.append((char) (high * 16 + low));
+        i += 2;
+      } else {
+        decoded.append(c);
+      }
+    }
+    return decoded.toString();
+  }
 }
@@ -0,0 +1,42 @@
+package ru.hh.rabbitmq.spring;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+final class MessageBatches {
+
+  private MessageBatches() {
+  }
+
+  /**
+   * Unpacks batch the same way {@link org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer} does, messages share
+   * properties of the batch.
+   *
+   * @return messages of batch, or the message itself if it is not a batch
+   * @throws MessageConversionException if batch is malformed
+   */
+  static List<Message> unpack(Message message) {
+    MessageProperties properties = message.getMessageProperties();
+    if (!MessageProperties.BATCH_FORMAT_LENGTH_HEADER4.equals(properties.getHeaders().get(MessageProperties.SPRING_BATCH_FORMAT))) {
+      return Collections.singletonList(message);
+    }
+    properties.getHeaders().remove(MessageProperties.SPRING_BATCH_FORMAT);
+    List<Message> messages = new ArrayList<>();
+    ByteBuffer buffer = ByteBuffer.wrap(message.getBody());
+    while (buffer.hasRemaining()) {
+      int length = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+      if (length < 0 || length > buffer.remaining()) {
+        throw new MessageConversionException("Insufficient batch data at offset " + buffer.position());
+      }
+      byte[] body = new byte[length];
+      buffer.get(body);
+      messages.add(new Message(body, properties));
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,109 @@
+package ru.hh.rabbitmq.spring;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.rabbitmq.client.Channel;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.core.Ordered;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptor;
+import ru.hh.rabbitmq.spring.receive.ReceiveInvocation;
+
+/**
+ * <p>
+ * Interceptor that acknowledges duplicates of already handled messages without calling listener. Message is a duplicate if it has the same
+ * ID (message id or value of configured header) and body as a message handled before, so messages unpacked from one batch, which share
+ * properties, are told apart. Messages without ID are always passed to listener.
+ * </p>
+ * <p>
+ * Message is remembered when listener handles it successfully, see {@link #handled(Message)}, so failed messages are handled again when
+ * redelivered. The same message redelivered while the first delivery is still being handled is not detected.
+ * </p>
+ * <p>
+ * Body is hashed once: fingerprint is kept in {@link #FINGERPRINT_HEADER} of received message until it is handled, value of this header
+ * that came from broker is replaced. It is not republished by {@link MessageRetrier}.
+ * </p>
+ */
+final class MessageDeduplicator implements ReceiveInterceptor, Ordered {
+  static final String FINGERPRINT_HEADER = "x-dedup-fingerprint";
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  @Nullable  // message id is used if null
+  private final String header;
+  private final FingerprintCache cache;
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  MessageDeduplicator(@Nullable String header, FingerprintCache cache) {
+    this.header = header;
+    this.cache = cache;
+  }
+
+  @Override
+  public void intercept(Message message, Channel channel, ReceiveInvocation next) throws Exception {
+    Long fingerprint = fingerprint(message);
+    Map<String, Object> headers = message.getMessageProperties().getHeaders();
+    if (fingerprint == null) {
+      headers.remove(FINGERPRINT_HEADER);
+    } else {
+      if (cache.contains(fingerprint)) {
+        hits.increment();
+        return;
+      }
+      misses.increment();
+      headers.put(FINGERPRINT_HEADER, fingerprint);
+    }
+    next.proceed(message, channel);
+  }
+
+  /**
+   * Remembers message handled by listener.
+   */
+  void handled(Message message) {
+    Object fingerprint = message.getMessageProperties().getHeaders().remove(FINGERPRINT_HEADER);
+    if (fingerprint == null) {
+      // properties were replaced by another interceptor
+      fingerprint = fingerprint(message);
+    }
+    if (fingerprint != null) {
+      cache.add((Long) fingerprint);
+    }
+  }
+
+  /**
+   * @return number of duplicates since previous call
+   */
+  long getAndResetHits() {
+    return hits.sumThenReset();
+  }
+
+  /**
+   * @return number of messages with ID that were not duplicates since previous call
+   */
+  long getAndResetMisses() {
+    return misses.sumThenReset();
+  }
+
+  @Override
+  public int getOrder() {
+    // duplicates are dropped before any work is done by other interceptors
+    return Ordered.HIGHEST_PRECEDENCE;
+  }
+
+  @Nullable
+  private Long fingerprint(Message message) {
+    MessageProperties properties = message.getMessageProperties();
+    Object id = header != null ? properties.getHeaders().get(header) : properties.getMessageId();
+    if (id == null) {
+      return null;
+    }
+    return HASH_FUNCTION.newHasher()
+        .putUnencodedChars(id.toString())
+        .putBytes(message.getBody())
+        .hash()
+        .asLong();
+  }
+}
@@ -0,0 +1,166 @@
+package ru.hh.rabbitmq.spring;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+
+/**
+ * <p>
+ * Retries failed messages with delays kept by broker instead of consumers: failed message is republished with number of failed attempts
+ * in {@link #ATTEMPT_HEADER} to delay queue of its queue, which has message TTL and dead-letters expired messages back to the queue
+ * through default exchange. Delays grow exponentially up to max delay, every delay has its own queue because broker expires messages from
+ * the head of queue only. Message that failed the last attempt, or failed with error that can't be fixed by retry (see
+ * {@link PendingDelivery#isRecoverable(Throwable)}), is republished to parking queue with the error in {@link #ERROR_HEADER}.
+ * </p>
+ * <p>
+ * Queues are declared on every connection when the first message of a queue fails. Copy is published on consumer channel before the
+ * original message is acknowledged, so broker gets the copy first.
+ * </p>
+ */
+final class MessageRetrier {
+  static final String ATTEMPT_HEADER = "x-retry-attempt";
+  static final String ERROR_HEADER = "x-retry-error";
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageRetrier.class);
+  private static final String DELAY_QUEUE_INFIX = ".retry.";
+  private static final String PARKING_QUEUE_SUFFIX = ".parking";
+  private static final int MAX_ERROR_LENGTH = 1000;
+
+  private final int maxAttempts;
+  // delay after attempt i + 1 failed
+  private final long[] delaysMillis;
+  private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+  // closed connections are forgotten, queues are declared again on new ones in case broker lost them
+  private final Map<Connection, Set<String>> declaredQueues = Collections.synchronizedMap(new WeakHashMap<>());
+  private final LongAdder retried = new LongAdder();
+  private final LongAdder parked = new LongAdder();
+
+  MessageRetrier(int maxAttempts, Duration initialDelay, double multiplier, Duration maxDelay) {
+    this.maxAttempts = maxAttempts;
+    delaysMillis = new long[maxAttempts - 1];
+    double delay = initialDelay.toMillis();
+    for (int i = 0; i < delaysMillis.length; i++) {
+      delaysMillis[i] = (long) Math.min(delay, maxDelay.toMillis());
+      delay *= multiplier;
+    }
+  }
+
+  /**
+   * Republishes failed message to delay or parking queue of the queue it was consumed from, message must be acknowledged then.
+   *
+   * @return false if message was not republished and must be rejected as without retries
+   */
+  boolean retry(Message message, Channel channel, Throwable error) {
+    MessageProperties properties = message.getMessageProperties();
+    String queue = properties.getConsumerQueue();
+    if (queue == null) {
+      return false;
+    }
+    try {
+      int attempt = failedAttempts(properties) + 1;
+      boolean park = attempt >= maxAttempts || !isRecoverable(error);
+      String target = park ? queue + PARKING_QUEUE_SUFFIX : queue + DELAY_QUEUE_INFIX + delaysMillis[attempt - 1];
+      declare(channel.getConnection(), target, park ? null : delayArguments(queue, delaysMillis[attempt - 1]));
+      BasicProperties basicProperties = propertiesConverter.fromMessageProperties(properties, StandardCharsets.UTF_8.name());
+      Map<String, Object> headers = basicProperties.getHeaders() == null ? new HashMap<>() : new HashMap<>(basicProperties.getHeaders());
+      headers.remove(MessageDeduplicator.FINGERPRINT_HEADER);
+      headers.put(ATTEMPT_HEADER, attempt);
+      if (park) {
+        String description = error.toString();
+        headers.put(ERROR_HEADER, description.length() > MAX_ERROR_LENGTH ? description.substring(0, MAX_ERROR_LENGTH) : description);
+      }
+      channel.basicPublish("", target, basicProperties.builder().headers(headers).build(), message.getBody());
+      (park ? parked : retried).increment();
+      return true;
+    } catch (IOException | TimeoutException | RuntimeException e) {
+      LOGGER.warn("failed to republish message of {} to delay or parking queue, it is rejected", queue, e);
+      return false;
+    }
+  }
+
+  /**
+   * @return number of messages republished to delay queues since previous call
+   */
+  long getAndResetRetried() {
+    return retried.sumThenReset();
+  }
+
+  /**
+   * @return number of messages republished to parking queues since previous call
+   */
+  long getAndResetParked() {
+    return parked.sumThenReset();
+  }
+
+  /**
+   * Header may come from another producer, so the value is clamped to {@code [0, maxAttempts]}.
+   */
+  private int failedAttempts(MessageProperties properties) {
+    Object value = properties.getHeaders().get(ATTEMPT_HEADER);
+    long attempts;
+    if (value instanceof Number) {
+      attempts = ((Number) value).longValue();
+    } else {
+      try {
+        attempts = value == null ? 0 : Long.parseLong(value.toString());
+      } catch (NumberFormatException e) {
+        attempts = 0;
+      }
+    }
+    return (int) Math.max(0, Math.min(attempts, maxAttempts));
+  }
+
+  /**
+   * Listener adapters may wrap the original error.
+   */
+  static boolean isRecoverable(Throwable error) {
+    for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+      if (!PendingDelivery.isRecoverable(cause)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Map<String, Object> delayArguments(String queue, long delayMillis) {
+    Map<String, Object> arguments = new HashMap<>();
+    arguments.put("x-message-ttl", delayMillis);
+    arguments.put("x-dead-letter-exchange", "");
+    arguments.put("x-dead-letter-routing-key", queue);
+    return arguments;
+  }
+
+  private void declare(Connection connection, String queue, @Nullable Map<String, Object> arguments) throws IOException, TimeoutException {
+    Set<String> declared = declaredQueues.computeIfAbsent(connection, key -> ConcurrentHashMap.newKeySet());
+    if (declared.contains(queue)) {
+      return;
+    }
+    // failed declaration closes channel, so consumer channel is not used for it
+    Channel channel = connection.createChannel();
+    try {
+      channel.queueDeclare(queue, true, false, false, arguments);
+    } finally {
+      if (channel.isOpen()) {
+        channel.close();
+      }
+    }
+    declared.add(queue);
+  }
+}
@@ -0,0 +1,77 @@
+package ru.hh.rabbitmq.spring;
+
+import com.rabbitmq.client.Channel;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+/**
+ * Delivery that is acknowledged on its own once all messages unpacked from it are handled, possibly out of delivery order. Container must
+ * use manual acknowledge mode.
+ */
+final class PendingDelivery {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PendingDelivery.class);
+
+  private final Channel channel;
+  private final Message message;
+  private final ListenerCallback callback;
+  private final AtomicInteger remaining = new AtomicInteger();
+  private volatile boolean failed;
+  private volatile boolean requeue = true;
+
+  /**
+   * @param callback gets delivery that can't be acknowledged
+   */
+  PendingDelivery(Channel channel, Message message, ListenerCallback callback) {
+    this.channel = channel;
+    this.message = message;
+    this.callback = callback;
+  }
+
+  void setRemaining(int messages) {
+    remaining.set(messages);
+  }
+
+  /**
+   * Marks delivery as failed, it is requeued unless any of its messages must not be.
+   */
+  void fail(boolean requeue) {
+    failed = true;
+    if (!requeue) {
+      this.requeue = false;
+    }
+  }
+
+  /**
+   * Marks one more message of delivery as handled, acknowledges delivery when it is the last one.
+   */
+  void done() {
+    if (remaining.decrementAndGet() == 0) {
+      acknowledge();
+    }
+  }
+
+  void acknowledge() {
+    long tag = message.getMessageProperties().getDeliveryTag();
+    try {
+      if (failed) {
+        channel.basicNack(tag, false, requeue);
+      } else {
+        channel.basicAck(tag, false);
+      }
+    } catch (Exception e) {
+      LOGGER.warn("failed to acknowledge message, it will be redelivered", e);
+      callback.unacknowledged(message);
+    }
+  }
+
+  /**
+   * @return whether message failed with given error may succeed if redelivered
+   */
+  static boolean isRecoverable(Throwable error) {
+    return !(error instanceof MessageConversionException || error instanceof AmqpRejectAndDontRequeueException);
+  }
+}
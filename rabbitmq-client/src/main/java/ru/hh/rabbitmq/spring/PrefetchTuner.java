@@ -0,0 +1,107 @@
+package ru.hh.rabbitmq.spring;
+
+import com.rabbitmq.client.Channel;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+
+/**
+ * <p>
+ * Keeps prefetch count of every consumer between min and max, so that consumer has enough messages buffered to stay busy while its acks
+ * travel to broker and next messages travel back: target is round trip divided by listener time per message, plus the message being
+ * handled. Fast listener behind slow link gets deep buffer, slow listener gets shallow one and leaves messages in queue for other
+ * consumers.
+ * </p>
+ * <p>
+ * Consumers are started with max as their own prefetch count, adjusted count is set with channel-wide basic.qos (global=true): broker
+ * applies it at once, while per-consumer basic.qos applies to consumers started later only. Every consumer has its own channel, so channel
+ * limit is consumer limit. Consumer sends basic.qos every interval after handling a message, round trip of the call is the round trip
+ * sample.
+ * </p>
+ */
+final class PrefetchTuner {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchTuner.class);
+
+  private final Set<AbstractMessageListenerContainer> containers;
+  private final int min;
+  private final int max;
+  private final int initial;
+  private final long intervalNanos;
+  // closed channels are forgotten, consumer started on new channel is tuned from initial count
+  private final Map<Channel, Tuning> tunings = Collections.synchronizedMap(new WeakHashMap<>());
+
+  PrefetchTuner(Collection<AbstractMessageListenerContainer> containers, int min, int max, int initial, Duration interval) {
+    this.containers = new HashSet<>(containers);
+    this.min = min;
+    this.max = max;
+    this.initial = initial;
+    intervalNanos = interval.toNanos();
+  }
+
+  /**
+   * @return listener that measures time consumers of container spend in given listener and adjusts their prefetch count, the same listener
+   * if container is not tuned
+   */
+  ChannelAwareMessageListener tune(AbstractMessageListenerContainer container, ChannelAwareMessageListener listener) {
+    if (!containers.contains(container)) {
+      return listener;
+    }
+    return (message, channel) -> {
+      long start = System.nanoTime();
+      try {
+        listener.onMessage(message, channel);
+      } finally {
+        tunings.computeIfAbsent(channel, key -> new Tuning()).handled(channel, System.nanoTime() - start);
+      }
+    };
+  }
+
+  /**
+   * Measurements of one consumer, messages of a consumer are handled one at a time.
+   */
+  private final class Tuning {
+    long busyNanos;
+    int handled;
+    double roundTripNanos;
+    int prefetchCount;
+    long nextTuneNanos = System.nanoTime();
+
+    synchronized void handled(Channel channel, long elapsedNanos) {
+      busyNanos += elapsedNanos;
+      handled++;
+      long now = System.nanoTime();
+      if (now - nextTuneNanos < 0) {
+        return;
+      }
+      double latency = (double) busyNanos / handled;
+      int target = prefetchCount == 0 ? initial : (int) Math.max(min, Math.min(max, Math.ceil(roundTripNanos / Math.max(latency, 1)) + 1));
+      busyNanos = 0;
+      handled = 0;
+      nextTuneNanos = now + intervalNanos;
+      try {
+        long start = System.nanoTime();
+        channel.basicQos(target, true);
+        long roundTrip = System.nanoTime() - start;
+        roundTripNanos = roundTripNanos == 0 ? roundTrip : 0.75 * roundTripNanos + 0.25 * roundTrip;
+      } catch (IOException | RuntimeException e) {
+        // channel is closing, consumer is restarted on new channel
+        LOGGER.debug("failed to set prefetch count of {}", channel, e);
+        return;
+      }
+      if (target != prefetchCount) {
+        LOGGER.debug("prefetch count of {} changed from {} to {}, latency {} ms, round trip {} ms", channel, prefetchCount, target,
+            String.format("%.2f", latency / 1_000_000), String.format("%.2f", roundTripNanos / 1_000_000));
+        prefetchCount = target;
+      }
+    }
+  }
+}
@@ -1,7 +1,10 @@
 package ru.hh.rabbitmq.spring;
 
+import java.util.List;
 import java.util.Properties;
 import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class PropertiesHelper {
 
@@ -59,6 +62,17 @@ public class PropertiesHelper {
     return value == null ? defaultValue : Boolean.valueOf(value);
   }
 
+  /**
+   * @return trimmed non-empty parts of the value split by separator, null if property is not set
+   */
+  public List<String> getStringList(String name, Pattern separator) {
+    String value = getString(name);
+    if (value == null) {
+      return null;
+    }
+    return separator.splitAsStream(value).map(String::trim).filter(part -> !part.isEmpty()).collect(Collectors.toList());
+  }
+
   private static <T> T safeParseNumber(String value, Function<String, T> parser, T defaultValue) {
     if (value == null) {
       return defaultValue;
@@ -0,0 +1,39 @@
+package ru.hh.rabbitmq.spring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for invocation of {@link Receiver} listener, including conversion of message.
+ */
+@Name("ru.hh.rabbitmq.Receive")
+@Label("Receive")
+@Category({"RabbitMQ", "Receiver"})
+@Description("Listener of Receiver handling a message, including conversion")
+@StackTrace(false)
+class ReceiveEvent extends Event {
+  static final String HANDLED = "handled";
+  static final String FAILED = "failed";
+
+  @Label("Queue")
+  String queue;
+
+  @Label("Body Size")
+  @DataAmount
+  long bodySize;
+
+  @Label("Redelivered")
+  boolean redelivered;
+
+  @Label("Outcome")
+  @Description("handled or failed")
+  String outcome;
+
+  @Label("Error")
+  String error;
+}
@@ -1,26 +1,56 @@
 package ru.hh.rabbitmq.spring;
 
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageListener;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.AbstractConnectionFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
 import org.springframework.amqp.rabbit.listener.AbstractMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.rabbit.listener.adapter.MessageListenerAdapter;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
@@ -30,13 +60,58 @@ import org.springframework.util.ErrorHandler;
 import ru.hh.nab.metrics.Counters;
 import ru.hh.nab.metrics.StatsDSender;
 import ru.hh.nab.metrics.Tag;
+import static ru.hh.rabbitmq.spring.ConfigKeys.MDC_KEYS_SEPARATOR_PATTERN;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_ASYNC_MAX_IN_FLIGHT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_DOWN_SAMPLES;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_DRAIN_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_IDLE_PERCENT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_INTERVAL_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_MAX_CONSUMERS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_MIN_CONSUMERS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_AUTOSCALING_UP_SAMPLES;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_BATCH_FAILURE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_BATCH_FAILURE_REJECT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_BATCH_FAILURE_REQUEUE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_BATCH_LINGER_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_BATCH_SIZE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_CONSUMERS_PER_QUEUE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_CONTAINER;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_CONTAINER_DIRECT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_CONTAINER_SIMPLE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DEBATCHING;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DEDUP_FALSE_POSITIVE_PROBABILITY;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DRAIN_TIMEOUT_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DEDUP_HEADER;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DEDUP_SIZE;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_DEDUP_TTL_SECONDS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_MDC_KEYS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_METRICS_BUFFERED;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_NAME;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_PREFETCH_ADAPTIVE_INTERVAL_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_PREFETCH_ADAPTIVE_MAX;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_PREFETCH_ADAPTIVE_MIN;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_PREFETCH_COUNT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_ORDERING_LANES;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUES;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUE_PREFETCH_COUNT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUE_PREFIX;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUE_THREADPOOL;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_QUEUES_SEPARATOR_PATTERN;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_RETRY_INITIAL_DELAY_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_RETRY_MAX_ATTEMPTS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_RETRY_MAX_DELAY_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_RETRY_MULTIPLIER;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_THREADPOOL;
 import static ru.hh.rabbitmq.spring.ConfigKeys.RECEIVER_USE_MDC;
+import ru.hh.rabbitmq.spring.codec.CodecMessageConverter;
+import ru.hh.rabbitmq.spring.receive.AsyncMessageListener;
+import ru.hh.rabbitmq.spring.receive.BatchMessageListener;
+import ru.hh.rabbitmq.spring.receive.DrainReport;
 import ru.hh.rabbitmq.spring.receive.GenericMessageListener;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptor;
+import ru.hh.rabbitmq.spring.receive.ReceiveInterceptors;
+import ru.hh.rabbitmq.spring.receive.ReceiveInvocation;
+import ru.hh.rabbitmq.spring.util.TaggedCounters;
 
 /**
  * <p>
@@ -50,12 +125,103 @@ import ru.hh.rabbitmq.spring.receive.GenericMessageListener;
 public class Receiver {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Receiver.class);
+  private static final long DRAIN_POLL_MILLIS = 10;
 
-  private final Map<SimpleMessageListenerContainer, ExecutorService> containers;
-  private final Map<SimpleMessageListenerContainer, String> names;
+  private final Map<AbstractMessageListenerContainer, ExecutorService> containers;
+  private final Map<AbstractMessageListenerContainer, String> names;
+  // containers of queues without own settings, one per broker
+  private final List<AbstractMessageListenerContainer> sharedContainers;
+  // queue with own settings -> its containers, one per broker
+  private final Map<String, List<AbstractMessageListenerContainer>> bulkheads;
+  private final boolean direct;
 
   @Nullable  // when monitoring is turned off
-  private Counters receiverCounters;
+  private TaggedCounters receiverCounters;
+  @Nullable  // when monitoring is turned off
+  private final ReceiverMetrics metrics;
+  private final ListenerCallback listenerCallback = new ListenerCallback() {
+    @Override
+    public void handled(Message message, long nanos) {
+      messageHandled(message);
+      if (metrics != null) {
+        metrics.handled(message, nanos);
+      }
+    }
+
+    @Override
+    public void failed(Message message, long nanos) {
+      if (metrics != null) {
+        metrics.failed(message, nanos);
+      }
+    }
+
+    @Override
+    public void rejected(Message message, boolean requeue) {
+      if (metrics != null) {
+        metrics.rejected(message, requeue);
+      }
+    }
+
+    @Override
+    public void unacknowledged(Message message) {
+      unacknowledged.increment();
+    }
+  };
+  // number of messages sync listener is handling
+  private final AtomicInteger handling = new AtomicInteger();
+
+  private final List<ReceiveInterceptor> interceptors = new ArrayList<>();
+  @Nullable  // until listener is set
+  private Object listener;
+  @Nullable  // until batch listener is set
+  private BatchMessageListener<?> batchListener;
+  @Nullable  // until async listener is set
+  private AsyncMessageListener<?> asyncListener;
+  @Nullable  // converter of batch or async listener
+  private MessageConverter listenerConverter;
+  @Nullable  // when batch listener is not set
+  private BatchingMessageListener batchingListener;
+  private final int batchSize;
+  private final Duration batchLinger;
+  private final boolean requeueFailedBatches;
+  private final int asyncMaxInFlight;
+  private final boolean deBatching;
+  private final String commonName;
+  @Nullable  // created with the first batch listener
+  private ScheduledExecutorService batchFlusher;
+  @Nullable  // while started with batch listener
+  private ScheduledFuture<?> batchFlushing;
+  @Nullable  // when autoscaling is turned off
+  private final ConsumerAutoscaler autoscaler;
+  @Nullable  // when adaptive prefetch is turned off
+  private final PrefetchTuner prefetchTuner;
+  @Nullable  // until ordering key is set
+  private Function<Message, ?> orderingKey;
+  private final int orderingLanes;
+  @Nullable  // created with the first ordering key
+  private List<ExecutorService> lanes;
+  @Nullable  // until error handler is set
+  private ErrorHandler errorHandler;
+  @Nullable  // when deduplication is turned off
+  private final MessageDeduplicator deduplicator;
+  @Nullable  // when retries are turned off
+  private final MessageRetrier retrier;
+
+  @Nullable  // spring default is used if null
+  private final Long shutdownTimeout;
+  @Nullable  // stop and shutdown do not drain if null
+  private final Duration drainTimeout;
+  // number of messages async, keyed or batch listener has not acknowledged yet
+  private IntSupplier inFlight = () -> 0;
+  private final LongAdder unacknowledged = new LongAdder();
+  private volatile boolean draining;
+  // containers are being stopped during drain
+  private volatile boolean drainStopping;
+  private volatile long drainDeadlineNanos;
+  private final LongAdder drainProcessed = new LongAdder();
+  private final LongAdder drainRequeued = new LongAdder();
+  // consumers cancelled during drain
+  private final Set<String> drainCancelled = ConcurrentHashMap.newKeySet();
 
   private final AtomicBoolean shutDown = new AtomicBoolean(false);
 
@@ -66,54 +232,319 @@ public class Receiver {
            @Nullable
            StatsDSender statsDSender) {
     PropertiesHelper props = new PropertiesHelper(properties);
-    Map<SimpleMessageListenerContainer, ExecutorService> containers = new LinkedHashMap<>(connectionFactories.size());
-    Map<SimpleMessageListenerContainer, String> names = new LinkedHashMap<>(connectionFactories.size());
+    Map<AbstractMessageListenerContainer, ExecutorService> containers = new LinkedHashMap<>(connectionFactories.size());
+    Map<AbstractMessageListenerContainer, String> names = new LinkedHashMap<>(connectionFactories.size());
 
     String commonName = props.getString(RECEIVER_NAME, "");
     String queueNames = props.getString(RECEIVER_QUEUES);
     int threadPoolSize = props.getInteger(RECEIVER_THREADPOOL, 1);
     Long shutdownTimeout = props.getLong(ConfigKeys.RECEIVER_SHUTDOWN_TIMEOUT);
+    this.shutdownTimeout = shutdownTimeout;
+    Long drainTimeoutMillis = props.getLong(RECEIVER_DRAIN_TIMEOUT_MS);
+    if (drainTimeoutMillis != null && drainTimeoutMillis < 0) {
+      throw new ConfigException(RECEIVER_DRAIN_TIMEOUT_MS + " must not be negative");
+    }
+    drainTimeout = drainTimeoutMillis != null ? Duration.ofMillis(drainTimeoutMillis) : null;
     Integer prefetchCount = props.getInteger(RECEIVER_PREFETCH_COUNT);
+    Integer adaptivePrefetchMax = props.getInteger(RECEIVER_PREFETCH_ADAPTIVE_MAX);
+    int adaptivePrefetchMin = props.getInteger(RECEIVER_PREFETCH_ADAPTIVE_MIN, 1);
+    int initialPrefetchCount = prefetchCount != null ? prefetchCount : adaptivePrefetchMin;
+    if (adaptivePrefetchMax != null) {
+      if (adaptivePrefetchMin < 1 || initialPrefetchCount < adaptivePrefetchMin || adaptivePrefetchMax < initialPrefetchCount) {
+        throw new ConfigException(String.format("Expected 0 < %s <= %s <= %s, got %s, %s and %s", RECEIVER_PREFETCH_ADAPTIVE_MIN,
+            RECEIVER_PREFETCH_COUNT, RECEIVER_PREFETCH_ADAPTIVE_MAX, adaptivePrefetchMin, initialPrefetchCount, adaptivePrefetchMax));
+      }
+      // consumers start with max, tuner lowers it for the channel
+      prefetchCount = adaptivePrefetchMax;
+    }
     boolean useMDC = props.getBoolean(RECEIVER_USE_MDC, false);
+    List<String> mdcKeys = props.getStringList(RECEIVER_MDC_KEYS, MDC_KEYS_SEPARATOR_PATTERN);
+    deBatching = props.getBoolean(RECEIVER_DEBATCHING, true);
+    this.commonName = commonName;
+    batchSize = props.getInteger(RECEIVER_BATCH_SIZE, 100);
+    if (batchSize < 1) {
+      throw new ConfigException(RECEIVER_BATCH_SIZE + " must be positive");
+    }
+    batchLinger = Duration.ofMillis(props.getInteger(RECEIVER_BATCH_LINGER_MS, 100));
+    if (batchLinger.isNegative()) {
+      throw new ConfigException(RECEIVER_BATCH_LINGER_MS + " must not be negative");
+    }
+    String batchFailure = props.getString(RECEIVER_BATCH_FAILURE, RECEIVER_BATCH_FAILURE_REQUEUE);
+    if (!RECEIVER_BATCH_FAILURE_REQUEUE.equals(batchFailure) && !RECEIVER_BATCH_FAILURE_REJECT.equals(batchFailure)) {
+      throw new ConfigException(String.format("Unknown %s: %s, expected one of %s, %s", RECEIVER_BATCH_FAILURE, batchFailure,
+          RECEIVER_BATCH_FAILURE_REQUEUE, RECEIVER_BATCH_FAILURE_REJECT));
+    }
+    requeueFailedBatches = RECEIVER_BATCH_FAILURE_REQUEUE.equals(batchFailure);
+    asyncMaxInFlight = props.getInteger(RECEIVER_ASYNC_MAX_IN_FLIGHT, 0);
+    if (asyncMaxInFlight < 0) {
+      throw new ConfigException(RECEIVER_ASYNC_MAX_IN_FLIGHT + " must not be negative");
+    }
 
-    for (ConnectionFactory factory : connectionFactories) {
-      SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(factory);
-      container.setAutoDeclare(false);
+    Integer dedupSize = props.getInteger(RECEIVER_DEDUP_SIZE);
+    if (dedupSize != null) {
+      double falsePositiveProbability = Double.parseDouble(props.getString(RECEIVER_DEDUP_FALSE_POSITIVE_PROBABILITY, "0"));
+      if (dedupSize < 1 || falsePositiveProbability < 0 || falsePositiveProbability >= 1) {
+        throw new ConfigException(String.format("Expected positive %s and %s in [0, 1), got %s and %s", RECEIVER_DEDUP_SIZE,
+            RECEIVER_DEDUP_FALSE_POSITIVE_PROBABILITY, dedupSize, falsePositiveProbability));
+      }
+      Duration ttl = Duration.ofSeconds(props.getLong(RECEIVER_DEDUP_TTL_SECONDS, 3600L));
+      deduplicator = new MessageDeduplicator(props.getString(RECEIVER_DEDUP_HEADER), new FingerprintCache(dedupSize, ttl, falsePositiveProbability));
+      interceptors.add(deduplicator);
+    } else {
+      deduplicator = null;
+    }
 
-      // set default queue names
-      if (queueNames != null) {
-        container.setQueueNames(RECEIVER_QUEUES_SEPARATOR_PATTERN.splitAsStream(queueNames).toArray(String[]::new));
+    Integer retryMaxAttempts = props.getInteger(RECEIVER_RETRY_MAX_ATTEMPTS);
+    if (retryMaxAttempts != null) {
+      Duration initialDelay = Duration.ofMillis(props.getLong(RECEIVER_RETRY_INITIAL_DELAY_MS, 1000L));
+      double multiplier = Double.parseDouble(props.getString(RECEIVER_RETRY_MULTIPLIER, "2"));
+      Duration maxDelay = Duration.ofMillis(props.getLong(RECEIVER_RETRY_MAX_DELAY_MS, 60000L));
+      // zero delay would redeliver failed message right away, again and again
+      if (retryMaxAttempts < 1 || initialDelay.isNegative() || initialDelay.isZero() || multiplier < 1 || maxDelay.compareTo(initialDelay) < 0) {
+        throw new ConfigException(String.format("Expected positive %s and %s, %s >= 1 and %s >= %s, got %s, %s, %s and %s",
+            RECEIVER_RETRY_MAX_ATTEMPTS, RECEIVER_RETRY_INITIAL_DELAY_MS, RECEIVER_RETRY_MULTIPLIER, RECEIVER_RETRY_MAX_DELAY_MS,
+            RECEIVER_RETRY_INITIAL_DELAY_MS, retryMaxAttempts, initialDelay.toMillis(), multiplier, maxDelay.toMillis()));
       }
+      retrier = new MessageRetrier(retryMaxAttempts, initialDelay, multiplier, maxDelay);
+    } else {
+      retrier = null;
+    }
 
-      // configure thread pool
-      final String name = "rabbit-receiver-" + commonName + '-' + factory.getHost() + ':' + factory.getPort();
-      ThreadFactory threadFactory = buildThreadFactory(name);
-      ExecutorService executor = newFixedThreadPool(threadPoolSize, threadFactory);
-      container.setTaskExecutor(executor);
-      container.setConcurrentConsumers(threadPoolSize);
+    orderingLanes = props.getInteger(RECEIVER_ORDERING_LANES, Runtime.getRuntime().availableProcessors());
+    if (orderingLanes < 1) {
+      throw new ConfigException(RECEIVER_ORDERING_LANES + " must be positive");
+    }
+
+    String containerType = props.getString(RECEIVER_CONTAINER, RECEIVER_CONTAINER_SIMPLE);
+    if (!RECEIVER_CONTAINER_SIMPLE.equals(containerType) && !RECEIVER_CONTAINER_DIRECT.equals(containerType)) {
+      throw new ConfigException(String.format("Unknown %s: %s, expected one of %s, %s", RECEIVER_CONTAINER, containerType,
+          RECEIVER_CONTAINER_SIMPLE, RECEIVER_CONTAINER_DIRECT));
+    }
+    direct = RECEIVER_CONTAINER_DIRECT.equals(containerType);
+    int consumersPerQueue = props.getInteger(RECEIVER_CONSUMERS_PER_QUEUE, 1);
+    if (consumersPerQueue < 1) {
+      throw new ConfigException(RECEIVER_CONSUMERS_PER_QUEUE + " must be positive");
+    }
+    Integer maxConsumers = props.getInteger(RECEIVER_AUTOSCALING_MAX_CONSUMERS);
+    int minConsumers = props.getInteger(RECEIVER_AUTOSCALING_MIN_CONSUMERS, direct ? consumersPerQueue : threadPoolSize);
+    if (maxConsumers != null) {
+      if (minConsumers < 1 || maxConsumers < minConsumers) {
+        throw new ConfigException(String.format("Expected 0 < %s <= %s, got %s and %s", RECEIVER_AUTOSCALING_MIN_CONSUMERS,
+            RECEIVER_AUTOSCALING_MAX_CONSUMERS, minConsumers, maxConsumers));
+      }
+      consumersPerQueue = direct ? minConsumers : consumersPerQueue;
+    }
+
+    Map<String, Integer> queueThreadPools = new LinkedHashMap<>();
+    Map<String, Integer> queuePrefetchCounts = new LinkedHashMap<>();
+    for (String property : properties.stringPropertyNames()) {
+      if (!property.startsWith(RECEIVER_QUEUE_PREFIX)) {
+        continue;
+      }
+      if (property.endsWith(RECEIVER_QUEUE_THREADPOOL)) {
+        queueThreadPools.put(queueOf(property, RECEIVER_QUEUE_THREADPOOL), getPositiveInteger(props, property));
+      } else if (property.endsWith(RECEIVER_QUEUE_PREFETCH_COUNT)) {
+        queuePrefetchCounts.put(queueOf(property, RECEIVER_QUEUE_PREFETCH_COUNT), getPositiveInteger(props, property));
+      }
+    }
+    Set<String> bulkheadQueues = new TreeSet<>(queueThreadPools.keySet());
+    bulkheadQueues.addAll(queuePrefetchCounts.keySet());
+    if (direct && !bulkheadQueues.isEmpty()) {
+      throw new ConfigException("Per-queue settings are supported by " + RECEIVER_CONTAINER_SIMPLE + " " + RECEIVER_CONTAINER + " only");
+    }
+
+    Consumer<AbstractMessageListenerContainer> commonSettings = container -> {
+      container.setAutoDeclare(false);
       if (shutdownTimeout != null) {
         container.setShutdownTimeout(shutdownTimeout);
       }
+      if (useMDC) {
+        container.setMessagePropertiesConverter(new MDCMessagePropertiesConverter(mdcKeys, false));
+      }
+      // listener is called for every message of a batch, batch is acked after all of them are handled
+      container.setDeBatchingEnabled(deBatching);
+    };
+    List<AbstractMessageListenerContainer> sharedContainers = new ArrayList<>(connectionFactories.size());
+    List<AbstractMessageListenerContainer> tunedContainers = new ArrayList<>();
+    Map<String, List<AbstractMessageListenerContainer>> bulkheads = new LinkedHashMap<>();
 
+    for (ConnectionFactory factory : connectionFactories) {
+      final String name = "rabbit-receiver-" + commonName + '-' + factory.getHost() + ':' + factory.getPort();
+      ThreadFactory threadFactory = buildThreadFactory(name);
+      ExecutorService executor;
+      if (maxConsumers != null && !direct) {
+        // threads of removed consumers are released
+        ThreadPoolExecutor elasticExecutor = new ThreadPoolExecutor(maxConsumers, maxConsumers, 1, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<>(), threadFactory);
+        elasticExecutor.allowCoreThreadTimeOut(true);
+        executor = elasticExecutor;
+      } else {
+        executor = newFixedThreadPool(threadPoolSize, threadFactory);
+      }
+
+      AbstractMessageListenerContainer container;
+      if (direct) {
+        DirectContainer directContainer = new DirectContainer(factory);
+        directContainer.setConsumersPerQueue(consumersPerQueue);
+        directContainer.setBeanName(name);
+        // listener is called by consumer work pool of connection, without handing deliveries to other threads
+        ((AbstractConnectionFactory) factory).setExecutor(executor);
+        container = directContainer;
+      } else {
+        SimpleMessageListenerContainer simpleContainer = new SimpleMessageListenerContainer(factory);
+        simpleContainer.setTaskExecutor(executor);
+        simpleContainer.setConcurrentConsumers(maxConsumers != null ? minConsumers : threadPoolSize);
+        container = simpleContainer;
+      }
+      commonSettings.accept(container);
       // configure prefetch count
       if (prefetchCount != null) {
         container.setPrefetchCount(prefetchCount);
       }
-
-      if (useMDC) {
-        container.setMessagePropertiesConverter(new MDCMessagePropertiesConverter());
-      }
-
       containers.put(container, executor);
       names.put(container, name);
+      sharedContainers.add(container);
+      tunedContainers.add(container);
+
+      // isolated containers and thread pools for queues with own settings, connection is shared
+      for (String queue : bulkheadQueues) {
+        String queueName = name + '-' + queue;
+        int queueThreadPoolSize = queueThreadPools.getOrDefault(queue, threadPoolSize);
+        ExecutorService queueExecutor = newFixedThreadPool(queueThreadPoolSize, buildThreadFactory(queueName));
+        SimpleMessageListenerContainer queueContainer = new SimpleMessageListenerContainer(factory);
+        queueContainer.setTaskExecutor(queueExecutor);
+        queueContainer.setConcurrentConsumers(queueThreadPoolSize);
+        commonSettings.accept(queueContainer);
+        Integer queuePrefetchCount = queuePrefetchCounts.getOrDefault(queue, prefetchCount);
+        if (queuePrefetchCount != null) {
+          queueContainer.setPrefetchCount(queuePrefetchCount);
+        }
+        if (!queuePrefetchCounts.containsKey(queue)) {
+          tunedContainers.add(queueContainer);
+        }
+        containers.put(queueContainer, queueExecutor);
+        names.put(queueContainer, queueName);
+        bulkheads.computeIfAbsent(queue, key -> new ArrayList<>()).add(queueContainer);
+      }
     }
     this.containers = Collections.unmodifiableMap(containers);
     this.names = Collections.unmodifiableMap(names);
+    this.sharedContainers = Collections.unmodifiableList(sharedContainers);
+    this.bulkheads = Collections.unmodifiableMap(bulkheads);
+
+    // set default queue names
+    if (queueNames != null) {
+      forEachContainerOf(RECEIVER_QUEUES_SEPARATOR_PATTERN.splitAsStream(queueNames).toArray(String[]::new),
+          AbstractMessageListenerContainer::setQueueNames);
+    }
+
+    if (maxConsumers != null) {
+      Duration interval = Duration.ofMillis(props.getInteger(RECEIVER_AUTOSCALING_INTERVAL_MS, 5000));
+      if (interval.isNegative() || interval.isZero()) {
+        throw new ConfigException(RECEIVER_AUTOSCALING_INTERVAL_MS + " must be positive");
+      }
+      Duration drain = Duration.ofMillis(props.getInteger(RECEIVER_AUTOSCALING_DRAIN_MS, 1000));
+      if (drain.isNegative() || drain.isZero()) {
+        throw new ConfigException(RECEIVER_AUTOSCALING_DRAIN_MS + " must be positive");
+      }
+      int idlePercent = props.getInteger(RECEIVER_AUTOSCALING_IDLE_PERCENT, 50);
+      if (idlePercent < 0 || idlePercent > 100) {
+        throw new ConfigException(String.format("Expected 0 <= %s <= 100, got %s", RECEIVER_AUTOSCALING_IDLE_PERCENT, idlePercent));
+      }
+      int upSamples = props.getInteger(RECEIVER_AUTOSCALING_UP_SAMPLES, 2);
+      if (upSamples < 1) {
+        throw new ConfigException(RECEIVER_AUTOSCALING_UP_SAMPLES + " must be positive");
+      }
+      int downSamples = props.getInteger(RECEIVER_AUTOSCALING_DOWN_SAMPLES, 6);
+      if (downSamples < 1) {
+        throw new ConfigException(RECEIVER_AUTOSCALING_DOWN_SAMPLES + " must be positive");
+      }
+      autoscaler = new ConsumerAutoscaler(sharedContainers, minConsumers, maxConsumers, interval, drain, idlePercent, upSamples, downSamples,
+          buildThreadFactory("rabbit-receiver-" + commonName + "-autoscaler"));
+    } else {
+      autoscaler = null;
+    }
+
+    if (adaptivePrefetchMax != null) {
+      Duration interval = Duration.ofMillis(props.getInteger(RECEIVER_PREFETCH_ADAPTIVE_INTERVAL_MS, 1000));
+      if (interval.isNegative() || interval.isZero()) {
+        throw new ConfigException(RECEIVER_PREFETCH_ADAPTIVE_INTERVAL_MS + " must be positive");
+      }
+      prefetchTuner = new PrefetchTuner(tunedContainers, adaptivePrefetchMin, adaptivePrefetchMax, initialPrefetchCount, interval);
+    } else {
+      prefetchTuner = null;
+    }
 
     if (statsDSender != null) {
-      receiverCounters = new Counters(20);
-      statsDSender.sendPeriodically(() -> statsDSender.sendCounters(serviceName + ".rabbit.receivers.messages", receiverCounters));
+      metrics = new ReceiverMetrics(commonName, connectionFactories, props.getBoolean(RECEIVER_METRICS_BUFFERED, false), serviceName,
+          statsDSender);
+      receiverCounters = new TaggedCounters("queue", 20);
+      statsDSender.sendPeriodically(
+          () -> statsDSender.sendCounters(serviceName + ".rabbit.receivers.messages", receiverCounters.flush()));
+      if (deduplicator != null) {
+        Counters dedupCounters = new Counters(2);
+        Tag hit = new Tag("result", "hit");
+        Tag miss = new Tag("result", "miss");
+        statsDSender.sendPeriodically(() -> {
+          dedupCounters.add((int) deduplicator.getAndResetHits(), hit);
+          dedupCounters.add((int) deduplicator.getAndResetMisses(), miss);
+          statsDSender.sendCounters(serviceName + ".rabbit.receivers.dedup", dedupCounters);
+        });
+      }
+      if (retrier != null) {
+        Counters retryCounters = new Counters(2);
+        Tag retry = new Tag("result", "retry");
+        Tag park = new Tag("result", "park");
+        statsDSender.sendPeriodically(() -> {
+          retryCounters.add((int) retrier.getAndResetRetried(), retry);
+          retryCounters.add((int) retrier.getAndResetParked(), park);
+          statsDSender.sendCounters(serviceName + ".rabbit.receivers.retries", retryCounters);
+        });
+      }
+    } else {
+      metrics = null;
+    }
+  }
+
+  private static String queueOf(String property, String suffix) {
+    return property.substring(RECEIVER_QUEUE_PREFIX.length(), property.length() - suffix.length());
+  }
+
+  private static int getPositiveInteger(PropertiesHelper props, String property) {
+    Integer value = props.getInteger(property);
+    if (value == null || value < 1) {
+      throw new ConfigException(String.format("Expected positive integer in %s, got '%s'", property, props.getString(property)));
     }
+    return value;
+  }
+
+  /**
+   * Passes queues with own settings to their containers one by one, the rest of queues are passed to shared containers at once.
+   */
+  private void forEachContainerOf(String[] queues, BiConsumer<AbstractMessageListenerContainer, String[]> action) {
+    List<String> sharedQueues = new ArrayList<>(queues.length);
+    for (String queue : queues) {
+      List<AbstractMessageListenerContainer> queueContainers = bulkheads.get(queue);
+      if (queueContainers == null) {
+        sharedQueues.add(queue);
+      } else {
+        queueContainers.forEach(container -> action.accept(container, new String[] {queue}));
+      }
+    }
+    if (!sharedQueues.isEmpty()) {
+      String[] names = sharedQueues.toArray(new String[0]);
+      sharedContainers.forEach(container -> action.accept(container, names));
+    }
+  }
+
+  /**
+   * Containers that are started with receiver: containers that have queues, or all of them if none has.
+   */
+  private Collection<AbstractMessageListenerContainer> listeningContainers() {
+    List<AbstractMessageListenerContainer> listening = containers.keySet().stream()
+        .filter(container -> container.getQueueNames().length > 0)
+        .collect(Collectors.toList());
+    return listening.isEmpty() ? containers.keySet() : listening;
   }
 
   private static ThreadFactory buildThreadFactory(String name) {
@@ -134,8 +565,23 @@ public class Receiver {
    * behavior.
    * 
    * @return list of all broker containers
+   * @throws IllegalStateException if receiver uses 'direct' {@link ConfigKeys#RECEIVER_CONTAINER}, use {@link #getListenerContainers()}
    */
+  @SuppressWarnings("unchecked")
   public Iterable<SimpleMessageListenerContainer> getContainers() {
+    checkNotShutDown();
+    if (direct) {
+      throw new IllegalStateException("Receiver uses direct containers, see getListenerContainers(): " + this);
+    }
+    return (Iterable<SimpleMessageListenerContainer>) (Iterable<?>) containers.keySet();
+  }
+
+  /**
+   * Same as {@link #getContainers()} for containers of any type.
+   *
+   * @return list of all broker containers
+   */
+  public Iterable<AbstractMessageListenerContainer> getListenerContainers() {
     checkNotShutDown();
     return containers.keySet();
   }
@@ -150,8 +596,71 @@ public class Receiver {
    */
   public Receiver forQueues(String... names) {
     checkNotStarted();
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
-      container.setQueueNames(names);
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
+      container.setQueueNames();
+    }
+    forEachContainerOf(names, AbstractMessageListenerContainer::setQueueNames);
+    return this;
+  }
+
+  /**
+   * Add queues to listen to, can be called while receiver is running. Direct containers start consumers of added queues only, simple
+   * containers restart all consumers.
+   *
+   * @param names
+   *          queue names to add
+   * @return this
+   */
+  public Receiver addQueues(String... names) {
+    checkNotShutDown();
+    boolean active = isActive();
+    forEachContainerOf(names, (container, queues) -> {
+      container.addQueueNames(queues);
+      // container of queue with own settings is not started until it has queues
+      if (active && !container.isActive()) {
+        container.start();
+      }
+    });
+    return this;
+  }
+
+  /**
+   * Stop listening to queues, can be called while receiver is running. Direct containers cancel consumers of removed queues only, simple
+   * containers restart all consumers.
+   *
+   * @param names
+   *          queue names to remove
+   * @return this
+   */
+  public Receiver removeQueues(String... names) {
+    checkNotShutDown();
+    Set<String> removed = new HashSet<>(Arrays.asList(names));
+    List<AbstractMessageListenerContainer> emptied = containers.keySet().stream()
+        .filter(container -> container.getQueueNames().length > 0 && removed.containsAll(Arrays.asList(container.getQueueNames())))
+        .collect(Collectors.toList());
+    // containers left without queues are stopped, unless receiver is left without queues at all
+    if (emptied.size() < listeningContainers().size()) {
+      emptied.forEach(AbstractMessageListenerContainer::stop);
+    }
+    forEachContainerOf(names, AbstractMessageListenerContainer::removeQueueNames);
+    return this;
+  }
+
+  /**
+   * Change number of consumers of every queue, can be called while receiver is running. Overrides {@link ConfigKeys#RECEIVER_CONSUMERS_PER_QUEUE}.
+   *
+   * @param consumers
+   *          consumers per queue
+   * @return this
+   * @throws IllegalStateException if receiver does not use 'direct' {@link ConfigKeys#RECEIVER_CONTAINER}
+   */
+  public Receiver withConsumersPerQueue(int consumers) {
+    checkNotShutDown();
+    if (!direct) {
+      throw new IllegalStateException("Consumers per queue are set for direct containers only: " + this);
+    }
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
+      ((DirectMessageListenerContainer) container).setConsumersPerQueue(consumers);
     }
     return this;
   }
@@ -189,35 +698,405 @@ public class Receiver {
     if (ErrorHandler.class.isAssignableFrom(listener.getClass())) {
       withErrorHandler((ErrorHandler) listener);
     }
+    this.listener = listener;
+    batchListener = null;
+    asyncListener = null;
+    listenerConverter = null;
+    applyListener();
+    return this;
+  }
 
-    if (receiverCounters != null) {
-      listener = wrapIntoMonitoringListener(listener);
+  /**
+   * Set listener that will receive and process messages in batches, see {@link BatchMessageListener}. If listener implements
+   * {@link ErrorHandler}, it will handle failures of batches. Must be called before {@link #start()}.
+   *
+   * @param listener
+   *          listener to set
+   * @return this
+   */
+  public Receiver withBatchListener(BatchMessageListener<Message> listener) {
+    return withBatchListenerObject(listener, null);
+  }
+
+  /**
+   * Set listener and converter that will receive and process messages in batches, see {@link BatchMessageListener}. Message that can't be
+   * converted is rejected without requeue. If listener implements {@link ErrorHandler}, it will handle failures of batches. Must be called
+   * before {@link #start()}.
+   *
+   * @param listener
+   *          listener to set
+   * @param converter
+   *          converter to use
+   * @return this
+   */
+  public Receiver withBatchListener(BatchMessageListener<?> listener, MessageConverter converter) {
+    return withBatchListenerObject(listener, converter);
+  }
+
+  /**
+   * Set listener that will receive json messages in batches, conversion is the same as for {@link #withJsonListener(GenericMessageListener)}.
+   * See {@link #withBatchListener(BatchMessageListener, MessageConverter)}.
+   *
+   * @param listener
+   *          listener to set
+   * @return this
+   */
+  public Receiver withJsonBatchListener(BatchMessageListener<?> listener) {
+    return withBatchListenerObject(listener, new CodecMessageConverter());
+  }
+
+  private Receiver withBatchListenerObject(BatchMessageListener<?> listener, @Nullable MessageConverter converter) {
+    checkNotStarted();
+    this.listener = null;
+    batchListener = listener;
+    asyncListener = null;
+    listenerConverter = converter;
+    applyListener();
+    return this;
+  }
+
+  /**
+   * Set listener that will process messages asynchronously, see {@link AsyncMessageListener}. If listener implements {@link ErrorHandler},
+   * it will handle failures. Must be called before {@link #start()}.
+   *
+   * @param listener
+   *          listener to set
+   * @return this
+   */
+  public Receiver withAsyncListener(AsyncMessageListener<Message> listener) {
+    return withAsyncListenerObject(listener, null);
+  }
+
+  /**
+   * Set listener and converter that will process messages asynchronously, see {@link AsyncMessageListener}. Message that can't be converted
+   * is rejected without requeue. If listener implements {@link ErrorHandler}, it will handle failures. Must be called before {@link #start()}.
+   *
+   * @param listener
+   *          listener to set
+   * @param converter
+   *          converter to use
+   * @return this
+   */
+  public Receiver withAsyncListener(AsyncMessageListener<?> listener, MessageConverter converter) {
+    return withAsyncListenerObject(listener, converter);
+  }
+
+  /**
+   * Set listener that will process json messages asynchronously, conversion is the same as for
+   * {@link #withJsonListener(GenericMessageListener)}. See {@link #withAsyncListener(AsyncMessageListener, MessageConverter)}.
+   *
+   * @param listener
+   *          listener to set
+   * @return this
+   */
+  public Receiver withJsonAsyncListener(AsyncMessageListener<?> listener) {
+    return withAsyncListenerObject(listener, new CodecMessageConverter());
+  }
+
+  private Receiver withAsyncListenerObject(AsyncMessageListener<?> listener, @Nullable MessageConverter converter) {
+    checkNotStarted();
+    this.listener = null;
+    batchListener = null;
+    asyncListener = listener;
+    listenerConverter = converter;
+    applyListener();
+    return this;
+  }
+
+  /**
+   * Handle messages with the same key one by one in delivery order and messages with different keys in parallel, on
+   * {@link ConfigKeys#RECEIVER_ORDERING_LANES} serial lanes. Messages with null key are spread over all lanes. Every message is acknowledged
+   * when it is handled, so consumers take next messages while previous ones wait in lanes (up to prefetch count). Failed message is requeued
+   * and may be handled after later messages with the same key. Applies to listeners set with {@code withListener} methods, must be called
+   * before {@link #start()}.
+   * <p>
+   * Message is acknowledged on channel it came from, so messages still waiting in lanes when that channel is closed (receiver is stopped,
+   * consumer is restarted or removed by autoscaling) are redelivered and handled again. Use {@link #drain(Duration)} to stop without that.
+   *
+   * @param keyExtractor
+   *          extracts key from raw message
+   * @return this
+   */
+  public Receiver withOrderingKey(Function<Message, ?> keyExtractor) {
+    checkNotStarted();
+    orderingKey = keyExtractor;
+    if (lanes == null) {
+      List<ExecutorService> lanes = new ArrayList<>(orderingLanes);
+      for (int i = 0; i < orderingLanes; i++) {
+        lanes.add(Executors.newSingleThreadExecutor(buildThreadFactory("rabbit-receiver-" + commonName + "-lane-" + i)));
+      }
+      this.lanes = Collections.unmodifiableList(lanes);
     }
+    if (listener != null || batchListener != null || asyncListener != null) {
+      applyListener();
+    }
+    return this;
+  }
 
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
-      container.setMessageListener(listener);
+  /**
+   * Same as {@link #withOrderingKey(Function)} with value of message header as a key.
+   *
+   * @param header
+   *          name of header with key
+   * @return this
+   */
+  public Receiver withOrderingKeyHeader(String header) {
+    return withOrderingKey(message -> message.getMessageProperties().getHeaders().get(header));
+  }
+
+  /**
+   * Add interceptor of received messages, see {@link ReceiveInterceptor} for order of interceptors. Must be called before {@link #start()}.
+   *
+   * @param interceptor
+   *          interceptor to add
+   * @return this
+   */
+  public Receiver withInterceptor(ReceiveInterceptor interceptor) {
+    checkNotStarted();
+    interceptors.add(interceptor);
+    if (listener != null || batchListener != null || asyncListener != null) {
+      applyListener();
     }
     return this;
   }
 
-  private Object wrapIntoMonitoringListener(Object listener) {
+  private void applyListener() {
+    if (orderingKey != null && (batchListener != null || asyncListener != null)) {
+      throw new IllegalStateException("Ordering key is supported by message listeners only: " + this);
+    }
+    ChannelAwareMessageListener wrappedListener;
+    AcknowledgeMode acknowledgeMode;
+    if (batchListener != null) {
+      ErrorHandler errorHandler = batchListener instanceof ErrorHandler ? (ErrorHandler) batchListener : null;
+      batchingListener = new BatchingMessageListener(batchListener, listenerConverter, errorHandler, interceptors, batchSize, batchLinger,
+          requeueFailedBatches, retrier, listenerCallback);
+      wrappedListener = batchingListener;
+      inFlight = batchingListener::getPending;
+      acknowledgeMode = AcknowledgeMode.MANUAL;
+    } else if (asyncListener != null) {
+      batchingListener = null;
+      ErrorHandler errorHandler = asyncListener instanceof ErrorHandler ? (ErrorHandler) asyncListener : null;
+      AsyncMessageListenerAdapter asyncAdapter = new AsyncMessageListenerAdapter(asyncListener, listenerConverter, errorHandler, interceptors,
+          asyncMaxInFlight, deBatching, retrier, listenerCallback);
+      wrappedListener = asyncAdapter;
+      inFlight = asyncAdapter::getInFlight;
+      acknowledgeMode = AcknowledgeMode.MANUAL;
+    } else if (orderingKey != null) {
+      batchingListener = null;
+      KeyedMessageListenerAdapter keyedAdapter = new KeyedMessageListenerAdapter(retrying(wrapIntoMonitoringListener(listener)), orderingKey,
+          lanes, errorHandler, deBatching, listenerCallback);
+      wrappedListener = keyedAdapter;
+      inFlight = keyedAdapter::getInFlight;
+      acknowledgeMode = AcknowledgeMode.MANUAL;
+    } else {
+      batchingListener = null;
+      wrappedListener = retrying(wrapIntoMonitoringListener(listener));
+      inFlight = () -> 0;
+      acknowledgeMode = AcknowledgeMode.AUTO;
+    }
+    wrappedListener = measured(drainAware(wrappedListener, acknowledgeMode), acknowledgeMode);
+    if (metrics != null) {
+      IntSupplier adapterInFlight = inFlight;
+      metrics.register(() -> handling.get() + adapterInFlight.getAsInt());
+    }
+    // async and keyed listeners unpack batches themselves to acknowledge them once
+    boolean containerDeBatching = deBatching && asyncListener == null && (batchListener != null || orderingKey == null);
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
+      ChannelAwareMessageListener containerListener = prefetchTuner != null ? prefetchTuner.tune(container, wrappedListener) : wrappedListener;
+      container.setMessageListener(autoscaler != null ? autoscaler.measure(container, containerListener) : containerListener);
+      container.setAcknowledgeMode(acknowledgeMode);
+      container.setDeBatchingEnabled(containerDeBatching);
+    }
+  }
+
+  private ChannelAwareMessageListener wrapIntoMonitoringListener(Object listener) {
+    ReceiveInvocation invocation;
     if (listener instanceof MessageListener) {
       MessageListener messageListener = (MessageListener) listener;
-      return (MessageListener) message -> {
-        messageListener.onMessage(message);
-        increaseReceivedMessageCount(message);
-      };
+      invocation = (message, channel) -> messageListener.onMessage(message);
     } else {
-      ChannelAwareMessageListener channelAwareMessageListener = (ChannelAwareMessageListener) listener;
-      return (ChannelAwareMessageListener) (message, channel) -> {
-        channelAwareMessageListener.onMessage(message, channel);
-        increaseReceivedMessageCount(message);
+      invocation = ((ChannelAwareMessageListener) listener)::onMessage;
+    }
+    ReceiveInvocation chain = ReceiveInterceptors.compile(interceptors, invocation);
+
+    return (message, channel) -> {
+      ReceiveEvent event = startReceiveEvent();
+      long startNanos = System.nanoTime();
+      try {
+        chain.proceed(message, channel);
+        event.outcome = ReceiveEvent.HANDLED;
+      } catch (Exception e) {
+        event.error = e.toString();
+        listenerCallback.failed(message, System.nanoTime() - startNanos);
+        throw e;
+      } finally {
+        commit(event, message);
+      }
+      listenerCallback.handled(message, System.nanoTime() - startNanos);
+    };
+  }
+
+  /**
+   * Reports lag and buffered messages of every delivery. In auto acknowledge mode container rejects or requeues message listener failed
+   * with, it is reported here.
+   */
+  private ChannelAwareMessageListener measured(ChannelAwareMessageListener listener, AcknowledgeMode acknowledgeMode) {
+    ReceiverMetrics metrics = this.metrics;
+    if (metrics == null) {
+      return listener;
+    }
+    if (acknowledgeMode == AcknowledgeMode.MANUAL) {
+      return (message, channel) -> {
+        metrics.received(message, channel);
+        listener.onMessage(message, channel);
       };
     }
+    return (message, channel) -> {
+      metrics.received(message, channel);
+      handling.incrementAndGet();
+      try {
+        listener.onMessage(message, channel);
+      } catch (Exception e) {
+        metrics.rejected(message, MessageRetrier.isRecoverable(e));
+        throw e;
+      } finally {
+        handling.decrementAndGet();
+      }
+    };
+  }
+
+  /**
+   * <p>
+   * Consumers keep handling prefetched messages while receiver is drained, messages they take after deadline are requeued instead: their
+   * channels are closed at deadline, so they would be redelivered anyway.
+   * </p>
+   * <p>
+   * Batch, async and keyed listeners acknowledge messages later on channel they came from, while containers close channel of consumer as
+   * soon as it is cancelled and returns from the last message. So such consumer cancels itself on its first message during drain, which
+   * leaves channel of simple consumer open until container is stopped, and does not return from messages that may be the last ones until
+   * listener acknowledges everything it got.
+   * </p>
+   */
+  private ChannelAwareMessageListener drainAware(ChannelAwareMessageListener listener, AcknowledgeMode acknowledgeMode) {
+    return (message, channel) -> {
+      if (!draining) {
+        listener.onMessage(message, channel);
+        return;
+      }
+      if (System.nanoTime() - drainDeadlineNanos >= 0) {
+        drainRequeued.increment();
+        if (acknowledgeMode == AcknowledgeMode.MANUAL) {
+          listenerCallback.rejected(message, true);
+          channel.basicNack(message.getMessageProperties().getDeliveryTag(), false, true);
+          return;
+        }
+        // stopping container does not call error handler and requeues message
+        throw new AmqpException("Drain deadline passed, message is requeued");
+      }
+      drainProcessed.increment();
+      if (acknowledgeMode == AcknowledgeMode.AUTO) {
+        listener.onMessage(message, channel);
+        return;
+      }
+      String consumerTag = message.getMessageProperties().getConsumerTag();
+      if (consumerTag != null && drainCancelled.add(consumerTag)) {
+        cancelConsumer(channel, consumerTag);
+      }
+      listener.onMessage(message, channel);
+      // direct consumer closes channel once it returns after cancel-ok, simple consumer once it is stopped and its messages run out
+      if (direct || drainStopping) {
+        awaitSettled(drainDeadlineNanos);
+      }
+    };
+  }
+
+  private void cancelConsumer(Channel channel, String consumerTag) {
+    try {
+      channel.basicCancel(consumerTag);
+    } catch (IOException | RuntimeException e) {
+      LOGGER.debug("failed to cancel consumer {} of {}", consumerTag, this, e);
+      return;
+    }
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
+      if (container instanceof DirectContainer) {
+        ((DirectContainer) container).forget(consumerTag);
+      }
+    }
   }
 
-  private void increaseReceivedMessageCount(Message message) {
-    receiverCounters.add(1, new Tag("queue", message.getMessageProperties().getConsumerQueue()));
+  /**
+   * Flushes batches and waits for async and keyed listeners until nothing is left unacknowledged or deadline passes.
+   *
+   * @return whether nothing is left unacknowledged
+   */
+  private boolean awaitSettled(long deadlineNanos) throws InterruptedException {
+    while (true) {
+      if (batchingListener != null) {
+        batchingListener.flushAll();
+      }
+      if (inFlight.getAsInt() == 0) {
+        return true;
+      }
+      if (System.nanoTime() - deadlineNanos >= 0) {
+        return false;
+      }
+      Thread.sleep(DRAIN_POLL_MILLIS);
+    }
+  }
+
+  /**
+   * Failed message is acknowledged if it is republished for retry, error is reported here as listener does not fail then.
+   */
+  private ChannelAwareMessageListener retrying(ChannelAwareMessageListener listener) {
+    if (retrier == null) {
+      return listener;
+    }
+    return (message, channel) -> {
+      try {
+        listener.onMessage(message, channel);
+      } catch (Exception e) {
+        if (!retrier.retry(message, channel, e)) {
+          throw e;
+        }
+        if (errorHandler == null) {
+          LOGGER.warn("listener failed, message is republished for retry", e);
+          return;
+        }
+        try {
+          errorHandler.handleError(e);
+        } catch (RuntimeException handlerException) {
+          // message must be acknowledged anyway, it is republished already
+          LOGGER.warn("error handler failed", handlerException);
+        }
+      }
+    };
+  }
+
+  private static ReceiveEvent startReceiveEvent() {
+    ReceiveEvent event = new ReceiveEvent();
+    event.begin();
+    event.outcome = ReceiveEvent.FAILED;
+    return event;
+  }
+
+  private static void commit(ReceiveEvent event, Message message) {
+    event.end();
+    if (event.shouldCommit()) {
+      MessageProperties properties = message.getMessageProperties();
+      event.queue = properties.getConsumerQueue();
+      event.bodySize = message.getBody().length;
+      event.redelivered = Boolean.TRUE.equals(properties.isRedelivered());
+      event.commit();
+    }
+  }
+
+  private void messageHandled(Message message) {
+    if (deduplicator != null) {
+      deduplicator.handled(message);
+    }
+    if (receiverCounters != null) {
+      receiverCounters.add(message.getMessageProperties().getConsumerQueue(), 1);
+    }
   }
 
   /**
@@ -250,15 +1129,21 @@ public class Receiver {
    */
   public Receiver withErrorHandler(ErrorHandler errorHandler) {
     checkNotStarted();
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
+    this.errorHandler = errorHandler;
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
       container.setErrorHandler(errorHandler);
     }
+    // keyed listener calls error handler itself
+    if (orderingKey != null && listener != null) {
+      applyListener();
+    }
     return this;
   }
 
   /**
-   * Set listener that will receive json messages. Conversion to java types is performed by Jackson2. See {@link Jackson2JsonMessageConverter} for
-   * details. If listener implements {@link ErrorHandler}, it will be set to handle errors as well. Must be called before {@link #start()}.
+   * Set listener that will receive json messages. Conversion to java types is performed by generated codecs if available (see
+   * {@link CodecMessageConverter}) or by Jackson2 otherwise. See {@link Jackson2JsonMessageConverter} for details. If listener implements
+   * {@link ErrorHandler}, it will be set to handle errors as well. Must be called before {@link #start()}.
    * 
    * @param listener
    *          listener to set
@@ -266,7 +1151,7 @@ public class Receiver {
    */
   public Receiver withJsonListener(GenericMessageListener<?> listener) {
     checkNotStarted();
-    Jackson2JsonMessageConverter converter = new Jackson2JsonMessageConverter();
+    CodecMessageConverter converter = new CodecMessageConverter();
     MessageListenerAdapter adapter = new MessageListenerAdapter(listener, converter);
     if (ErrorHandler.class.isAssignableFrom(listener.getClass())) {
       withErrorHandler((ErrorHandler) listener);
@@ -275,7 +1160,7 @@ public class Receiver {
   }
 
   public boolean isActive() {
-    return containers.keySet().stream().allMatch(AbstractMessageListenerContainer::isActive);
+    return listeningContainers().stream().allMatch(AbstractMessageListenerContainer::isActive);
   }
 
   public boolean isShutDown() {
@@ -307,9 +1192,20 @@ public class Receiver {
    */
   public Receiver start() {
     checkNotStarted();
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
+    for (AbstractMessageListenerContainer container : listeningContainers()) {
       container.start();
     }
+    if (batchingListener != null) {
+      if (batchFlusher == null) {
+        batchFlusher = Executors.newSingleThreadScheduledExecutor(buildThreadFactory("rabbit-receiver-" + commonName + "-batch"));
+      }
+      // expired batches are handled between linger and 1.5 linger after their first message
+      long periodNanos = Math.max(batchLinger.toNanos() / 2, TimeUnit.MILLISECONDS.toNanos(1));
+      batchFlushing = batchFlusher.scheduleWithFixedDelay(batchingListener::flushExpired, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+    if (autoscaler != null) {
+      autoscaler.start();
+    }
     LOGGER.debug("started {}", this);
     return this;
   }
@@ -320,12 +1216,107 @@ public class Receiver {
    */
   public Receiver stop() {
     checkStarted();
-    doStop();
+    stopReceiving();
     return this;
   }
 
+  /**
+   * <p>
+   * Stop receiving messages gracefully: consumers of all containers are cancelled and handle messages they have prefetched until timeout.
+   * Channels of consumers stay open until batch, async and keyed listeners acknowledge messages they got. Channels of consumers that did not
+   * finish in time are closed, so broker requeues the rest of their messages at once, and messages consumers take after timeout are
+   * requeued without passing them to listener.
+   * </p>
+   * <p>
+   * Once this is called, configuration methods can be used again, like after {@link #stop()}.
+   * </p>
+   *
+   * @return what happened to messages received before drain
+   */
+  public DrainReport drain(Duration timeout) {
+    checkStarted();
+    return doDrain(timeout);
+  }
+
+  private void stopReceiving() {
+    if (drainTimeout != null) {
+      doDrain(drainTimeout);
+    } else {
+      doStop();
+    }
+  }
+
+  private DrainReport doDrain(Duration timeout) {
+    long startNanos = System.nanoTime();
+    long deadlineNanos = startNanos + timeout.toNanos();
+    drainProcessed.reset();
+    drainRequeued.reset();
+    drainCancelled.clear();
+    long unacknowledgedBefore = unacknowledged.sum();
+    drainDeadlineNanos = deadlineNanos;
+    draining = true;
+    try {
+      if (autoscaler != null) {
+        autoscaler.stop();
+      }
+      if (batchFlushing != null) {
+        batchFlushing.cancel(false);
+        batchFlushing = null;
+      }
+      // consumers of batch, async and keyed listeners cancel themselves, see drainAware, channels must stay open until they are settled
+      awaitSettled(deadlineNanos);
+      drainStopping = true;
+      // containers wait for their consumers one by one, so every container is stopped by its own thread to share the deadline
+      ExecutorService stopper = Executors.newCachedThreadPool(buildThreadFactory("rabbit-receiver-" + commonName + "-drain"));
+      List<Future<?>> stops = new ArrayList<>(containers.size());
+      for (AbstractMessageListenerContainer container : containers.keySet()) {
+        container.setShutdownTimeout(timeout.toMillis());
+        stops.add(stopper.submit(() -> container.stop()));
+      }
+      stopper.shutdown();
+      for (Future<?> stop : stops) {
+        try {
+          stop.get();
+        } catch (ExecutionException e) {
+          LOGGER.warn("failed to stop container of {}", this, e.getCause());
+        }
+      }
+      boolean consumersFinished = System.nanoTime() - deadlineNanos < 0;
+      // consumers that were stopped after deadline leave messages unacknowledged, batches of their closed channels are dropped here
+      if (batchingListener != null) {
+        batchingListener.flushAll();
+      }
+      long requeued = drainRequeued.sum();
+      int abandoned = inFlight.getAsInt() + (int) (unacknowledged.sum() - unacknowledgedBefore);
+      DrainReport report = new DrainReport(drainProcessed.sum(), requeued, abandoned, consumersFinished && requeued == 0 && abandoned == 0,
+          Duration.ofNanos(System.nanoTime() - startNanos));
+      LOGGER.info("drained {}: {}", this, report);
+      return report;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while draining " + this, e);
+    } finally {
+      draining = false;
+      drainStopping = false;
+      for (AbstractMessageListenerContainer container : containers.keySet()) {
+        container.setShutdownTimeout(shutdownTimeout != null ? shutdownTimeout : AbstractMessageListenerContainer.DEFAULT_SHUTDOWN_TIMEOUT);
+      }
+    }
+  }
+
   private void doStop() {
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
+    if (autoscaler != null) {
+      autoscaler.stop();
+    }
+    if (batchFlushing != null) {
+      batchFlushing.cancel(false);
+      batchFlushing = null;
+    }
+    if (batchingListener != null) {
+      // handle pending batches while channels are still open, otherwise their messages are redelivered
+      batchingListener.flushAll();
+    }
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
       container.stop();
     }
     LOGGER.debug("stopped {}", this);
@@ -356,14 +1347,24 @@ public class Receiver {
       throw new IllegalStateException("Already shut down: " + this);
     }
     if (isActive()) {
-      doStop();
+      stopReceiving();
     }
-    for (SimpleMessageListenerContainer container : containers.keySet()) {
+    for (AbstractMessageListenerContainer container : containers.keySet()) {
       container.shutdown();
       CachingConnectionFactory factory = (CachingConnectionFactory) container.getConnectionFactory();
       factory.destroy();
     }
-    for (ExecutorService executor : containers.values()) {
+    if (batchFlusher != null) {
+      batchFlusher.shutdown();
+    }
+    if (autoscaler != null) {
+      autoscaler.shutdown();
+    }
+    List<ExecutorService> executors = new ArrayList<>(containers.values());
+    if (lanes != null) {
+      executors.addAll(lanes);
+    }
+    for (ExecutorService executor : executors) {
       if (now) {
         executor.shutdownNow();
       } else {
@@ -381,4 +1382,23 @@ public class Receiver {
     return String.join(",", names.values());
   }
 
+  /**
+   * Direct container that can forget consumers receiver cancelled itself: otherwise container cancels them again when stopped, and proxy of
+   * their closed channel opens a new one for that.
+   */
+  private static final class DirectContainer extends DirectMessageListenerContainer {
+
+    DirectContainer(ConnectionFactory connectionFactory) {
+      super(connectionFactory);
+    }
+
+    void forget(String consumerTag) {
+      synchronized (consumersMonitor) {
+        // element type of consumers is package private
+        List<?> directConsumers = consumers;
+        directConsumers.removeIf(consumer -> consumerTag.equals(((DefaultConsumer) consumer).getConsumerTag()));
+      }
+    }
+  }
+
 }
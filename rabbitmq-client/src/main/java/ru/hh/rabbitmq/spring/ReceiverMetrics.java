@@ -0,0 +1,199 @@
+package ru.hh.rabbitmq.spring;
+
+import com.google.common.collect.MapMaker;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.MetricsCollector;
+import com.rabbitmq.client.NoOpMetricsCollector;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.function.IntSupplier;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.AbstractConnectionFactory;
+import org.springframework.amqp.rabbit.connection.ChannelProxy;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+import ru.hh.rabbitmq.spring.send.MessageSender;
+
+/**
+ * <p>
+ * Instrumentation of {@link Receiver}, sent with {@link StatsDSender#sendPeriodically(Runnable)} under
+ * {@code <serviceName>.rabbit.receivers.*}, tagged with queue:
+ * </p>
+ * <ul>
+ * <li>{@code handleTimeMicros} - time listener spent on message, until its future completed for async listener, time of the whole batch
+ * for batch listener;</li>
+ * <li>{@code lagMillis} - time from publishing message to passing it to listener, measured with
+ * {@value MessageSender#PUBLISHED_MILLIS_HEADER} header that publishers of this library set if it is enabled, or with AMQP
+ * {@code timestamp} property of second precision otherwise, so clocks of hosts add to it;</li>
+ * <li>{@code bufferedMessages} - messages consumer has received after the one passed to listener, that is how much of prefetch window is
+ * waiting on client side, only if {@link ConfigKeys#RECEIVER_METRICS_BUFFERED} is enabled;</li>
+ * <li>{@code errors} - messages listener failed;</li>
+ * <li>{@code nacks} - messages rejected or requeued, tagged with {@code requeue};</li>
+ * <li>{@code inFlight} - messages listener took and has not finished at the moment of reporting, tagged with receiver name instead of
+ * queue.</li>
+ * </ul>
+ */
+final class ReceiverMetrics {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReceiverMetrics.class);
+  private static final int[] PERCENTILES = {50, 95, 99, 100};
+  private static final int MAX_HISTOGRAM_SIZE = 2000;
+  private static final String UNKNOWN = "unknown";
+
+  private final Histograms handleTimes = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms lags = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  @Nullable  // when buffered messages are not measured
+  private final Histograms buffered;
+  private final Histograms inFlights = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Counters errors = new Counters(20);
+  private final Counters nacks = new Counters(40);
+  // queue -> [queue], [queue, requeue=true], [queue, requeue=false]
+  private final ConcurrentMap<String, Tag[][]> tags = new ConcurrentHashMap<>();
+  private final Tag receiverTag;
+
+  private volatile IntSupplier inFlight = () -> 0;
+
+  /**
+   * @param measureBuffered whether to set metrics collector of connection factories to measure buffered messages
+   */
+  ReceiverMetrics(String receiverName, List<ConnectionFactory> connectionFactories, boolean measureBuffered, @Nullable String serviceName,
+                  StatsDSender statsDSender) {
+    receiverTag = new Tag("receiver", receiverName);
+    if (measureBuffered) {
+      buffered = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+      for (ConnectionFactory factory : connectionFactories) {
+        if (factory instanceof AbstractConnectionFactory) {
+          DeliveredTags.install(((AbstractConnectionFactory) factory).getRabbitConnectionFactory());
+        }
+      }
+    } else {
+      buffered = null;
+    }
+    String prefix = serviceName + ".rabbit.receivers.";
+    statsDSender.sendPeriodically(() -> {
+      inFlights.save(inFlight.getAsInt(), receiverTag);
+
+      statsDSender.sendHistograms(prefix + "handleTimeMicros", handleTimes, PERCENTILES);
+      statsDSender.sendHistograms(prefix + "lagMillis", lags, PERCENTILES);
+      if (buffered != null) {
+        statsDSender.sendHistograms(prefix + "bufferedMessages", buffered, PERCENTILES);
+      }
+      statsDSender.sendHistograms(prefix + "inFlight", inFlights, PERCENTILES);
+      statsDSender.sendCounters(prefix + "errors", errors);
+      statsDSender.sendCounters(prefix + "nacks", nacks);
+    });
+  }
+
+  /**
+   * @param inFlight number of messages listener took and has not finished
+   */
+  void register(IntSupplier inFlight) {
+    this.inFlight = inFlight;
+  }
+
+  /**
+   * Called by consumer for every delivery before it is passed to listener.
+   */
+  void received(Message message, Channel channel) {
+    MessageProperties properties = message.getMessageProperties();
+    Tag[] queueTags = tagsOf(properties.getConsumerQueue())[0];
+    long publishedMillis = publishedMillis(properties);
+    if (publishedMillis >= 0) {
+      lags.save((int) Math.max(0, Math.min(System.currentTimeMillis() - publishedMillis, Integer.MAX_VALUE)), queueTags);
+    }
+    if (buffered != null) {
+      long lastTag = DeliveredTags.lastTag(channel instanceof ChannelProxy ? ((ChannelProxy) channel).getTargetChannel() : channel);
+      if (lastTag > 0) {
+        buffered.save((int) Math.max(0, lastTag - properties.getDeliveryTag()), queueTags);
+      }
+    }
+  }
+
+  void handled(Message message, long nanos) {
+    handleTimes.save(toMicros(nanos), tagsOf(message.getMessageProperties().getConsumerQueue())[0]);
+  }
+
+  void failed(Message message, long nanos) {
+    Tag[] queueTags = tagsOf(message.getMessageProperties().getConsumerQueue())[0];
+    handleTimes.save(toMicros(nanos), queueTags);
+    errors.add(1, queueTags);
+  }
+
+  void rejected(Message message, boolean requeue) {
+    nacks.add(1, tagsOf(message.getMessageProperties().getConsumerQueue())[requeue ? 1 : 2]);
+  }
+
+  private Tag[][] tagsOf(@Nullable String queue) {
+    return tags.computeIfAbsent(queue != null ? queue : UNKNOWN, key -> {
+      Tag queueTag = new Tag("queue", key);
+      return new Tag[][] {{queueTag}, {queueTag, new Tag("requeue", "true")}, {queueTag, new Tag("requeue", "false")}};
+    });
+  }
+
+  /**
+   * @return publishing time from header of this library's publishers, or from AMQP timestamp of second precision, -1 if neither is set
+   */
+  private static long publishedMillis(MessageProperties properties) {
+    Object header = properties.getHeaders().get(MessageSender.PUBLISHED_MILLIS_HEADER);
+    if (header instanceof Number) {
+      return ((Number) header).longValue();
+    }
+    Date timestamp = properties.getTimestamp();
+    return timestamp != null ? timestamp.getTime() : -1;
+  }
+
+  private static int toMicros(long nanos) {
+    return (int) Math.min(NANOSECONDS.toMicros(nanos), Integer.MAX_VALUE);
+  }
+
+  /**
+   * Remembers the last delivery tag every channel received, deliveries of a channel are passed to listener in the same order. One instance
+   * is shared by receivers of the same connection factory; factory with other collector set is left as is, buffered messages are not
+   * measured for it then. Tag is stored in holder created once per channel, so deliveries do not allocate.
+   */
+  private static final class DeliveredTags extends NoOpMetricsCollector {
+    // weak keys compare by identity and let go closed channels
+    private static final ConcurrentMap<Channel, AtomicLong> LAST_TAGS = new MapMaker().weakKeys().makeMap();
+    private static final DeliveredTags INSTANCE = new DeliveredTags();
+
+    static void install(com.rabbitmq.client.ConnectionFactory factory) {
+      MetricsCollector collector = factory.getMetricsCollector();
+      if (collector == INSTANCE) {
+        return;
+      }
+      if (collector != null && collector.getClass() != NoOpMetricsCollector.class) {
+        LOGGER.debug("metrics collector {} is set, buffered messages are not measured for {}", collector, factory.getHost());
+        return;
+      }
+      factory.setMetricsCollector(INSTANCE);
+    }
+
+    /**
+     * @return 0 if channel received nothing or is not measured
+     */
+    static long lastTag(@Nullable Channel channel) {
+      AtomicLong tag = channel != null ? LAST_TAGS.get(channel) : null;
+      return tag != null ? tag.get() : 0;
+    }
+
+    @Override
+    public void consumedMessage(Channel channel, long deliveryTag, String consumerTag) {
+      AtomicLong tag = LAST_TAGS.get(channel);
+      if (tag == null) {
+        tag = LAST_TAGS.computeIfAbsent(channel, key -> new AtomicLong());
+      }
+      // deliveries of a channel come from its single dispatch thread
+      tag.lazySet(deliveryTag);
+    }
+  }
+}
@@ -49,12 +49,26 @@ public class RefreshingConnectionFactory extends ConnectionFactory {
 
     @Override
     public boolean isOpen() {
-      if (System.currentTimeMillis() - creationTimestamp >= maxAgeMillis) {
+      long age = System.currentTimeMillis() - creationTimestamp;
+      if (age >= maxAgeMillis) {
           if (delegate.isOpen()) {
+            ConnectionRotationEvent event = new ConnectionRotationEvent();
+            event.begin();
+            event.outcome = ConnectionRotationEvent.FAILED;
             try {
               close();
+              event.outcome = ConnectionRotationEvent.CLOSED;
             } catch (IOException e) {
+              event.error = e.toString();
               LOGGER.error("Failed to close connection {}", delegate);
+            } finally {
+              event.end();
+              if (event.shouldCommit()) {
+                event.host = delegate.getAddress().getHostAddress();
+                event.port = delegate.getPort();
+                event.age = age;
+                event.commit();
+              }
             }
           }
       }
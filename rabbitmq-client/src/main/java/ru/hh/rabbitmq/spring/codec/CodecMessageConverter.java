@@ -0,0 +1,96 @@
+package ru.hh.rabbitmq.spring.codec;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractJavaTypeMapper;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+/**
+ * <p>
+ * Json converter that uses generated {@link MessageCodec} when one is registered for message class and falls back to
+ * {@link Jackson2JsonMessageConverter} otherwise.
+ * </p>
+ * <p>
+ * Messages are wire-compatible with {@link Jackson2JsonMessageConverter}: same content type and same type id header are used, so either
+ * side can be switched independently.
+ * </p>
+ */
+public class CodecMessageConverter implements MessageConverter {
+
+  private static final String CHARSET = "UTF-8";
+
+  private final JsonFactory jsonFactory;
+  private final Jackson2JsonMessageConverter fallback;
+
+  /**
+   * Uses object mapper configured same way as in {@link Jackson2JsonMessageConverter#Jackson2JsonMessageConverter()}.
+   */
+  public CodecMessageConverter() {
+    this(new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false));
+  }
+
+  public CodecMessageConverter(ObjectMapper objectMapper) {
+    jsonFactory = objectMapper.getFactory();
+    fallback = new Jackson2JsonMessageConverter(objectMapper);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+    MessageCodec<Object> codec = object == null ? null : (MessageCodec<Object>) MessageCodecs.forClass(object.getClass());
+    if (codec == null) {
+      return fallback.toMessage(object, messageProperties);
+    }
+    byte[] body;
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+      try (JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+        codec.write(object, generator);
+      }
+      body = out.toByteArray();
+    } catch (IOException e) {
+      throw new MessageConversionException("Failed to convert message content with " + codec.getClass().getName(), e);
+    }
+    messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+    messageProperties.setContentEncoding(CHARSET);
+    messageProperties.setContentLength(body.length);
+    messageProperties.setHeader(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME, codec.getType().getName());
+    return new Message(body, messageProperties);
+  }
+
+  @Override
+  public Object fromMessage(Message message) throws MessageConversionException {
+    MessageCodec<?> codec = findCodec(message.getMessageProperties());
+    if (codec == null) {
+      return fallback.fromMessage(message);
+    }
+    try (JsonParser parser = jsonFactory.createParser(message.getBody())) {
+      parser.nextToken();
+      return codec.read(parser);
+    } catch (IOException e) {
+      throw new MessageConversionException("Failed to convert message content with " + codec.getClass().getName(), e);
+    }
+  }
+
+  private static MessageCodec<?> findCodec(MessageProperties properties) {
+    if (MessageCodecs.isEmpty()) {
+      return null;
+    }
+    String contentType = properties.getContentType();
+    if (contentType == null || !contentType.contains("json")) {
+      return null;
+    }
+    Object typeId = properties.getHeaders().get(AbstractJavaTypeMapper.DEFAULT_CLASSID_FIELD_NAME);
+    return typeId == null ? null : MessageCodecs.forClassName(typeId.toString());
+  }
+}
@@ -0,0 +1,23 @@
+package ru.hh.rabbitmq.spring.codec;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Marks message class for compile-time generation of {@link MessageCodec}. Generation is performed by annotation processor from
+ * {@code ru.hh.rabbitmq.spring:codec-processor} artifact, which must be present on compiler classpath.
+ * </p>
+ * <p>
+ * Generated codec handles public fields and public getter/setter pairs, the class must have non-private no-arg constructor.
+ * Properties of primitive, boxed and {@link String} types are written and read directly, other properties are delegated to Jackson.
+ * </p>
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface JsonCodec {
+}
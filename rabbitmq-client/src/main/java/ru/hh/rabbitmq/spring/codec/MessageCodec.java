@@ -0,0 +1,23 @@
+package ru.hh.rabbitmq.spring.codec;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import java.io.IOException;
+
+/**
+ * Specialized json serializer and deserializer for single message class. Implementations are generated for classes annotated with
+ * {@link JsonCodec} and are registered in {@link MessageCodecs} using {@link java.util.ServiceLoader}.
+ *
+ * @param <T> message type
+ */
+public interface MessageCodec<T> {
+
+  Class<T> getType();
+
+  void write(T value, JsonGenerator generator) throws IOException;
+
+  /**
+   * @param parser parser positioned at the first token of value
+   */
+  T read(JsonParser parser) throws IOException;
+}
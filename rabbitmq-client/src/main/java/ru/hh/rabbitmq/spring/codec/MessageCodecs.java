@@ -0,0 +1,46 @@
+package ru.hh.rabbitmq.spring.codec;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of generated {@link MessageCodec}s, loaded once from {@code META-INF/services/ru.hh.rabbitmq.spring.codec.MessageCodec}.
+ */
+public final class MessageCodecs {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MessageCodecs.class);
+
+  private static final Map<String, MessageCodec<?>> CODECS = load();
+
+  private MessageCodecs() {
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public static <T> MessageCodec<T> forClass(Class<T> type) {
+    return (MessageCodec<T>) CODECS.get(type.getName());
+  }
+
+  @Nullable
+  public static MessageCodec<?> forClassName(String className) {
+    return CODECS.get(className);
+  }
+
+  public static boolean isEmpty() {
+    return CODECS.isEmpty();
+  }
+
+  private static Map<String, MessageCodec<?>> load() {
+    Map<String, MessageCodec<?>> codecs = new HashMap<>();
+    for (MessageCodec<?> codec : ServiceLoader.load(MessageCodec.class, MessageCodecs.class.getClassLoader())) {
+      codecs.put(codec.getType().getName(), codec);
+    }
+    LOGGER.debug("loaded {} generated message codecs", codecs.size());
+    return Collections.unmodifiableMap(codecs);
+  }
+}
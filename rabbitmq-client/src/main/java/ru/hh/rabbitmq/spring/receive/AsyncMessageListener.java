@@ -0,0 +1,33 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Listener of {@link ru.hh.rabbitmq.spring.Receiver} that handles messages asynchronously, e.g. by calling other services with
+ * non-blocking client. Receiver thread does not wait for returned future and takes the next message, message is acknowledged when future
+ * completes successfully and rejected (requeued) when it fails, so acks go out of order of delivery.
+ * </p>
+ * <p>
+ * Number of messages handled at once is limited by prefetch count of consumers and by
+ * {@link ru.hh.rabbitmq.spring.ConfigKeys#RECEIVER_ASYNC_MAX_IN_FLIGHT}.
+ * </p>
+ * <p>
+ * Message can only be acknowledged on channel it came from. If that channel is closed before future completes (receiver is stopped,
+ * consumer is restarted after connection failure or removed by autoscaling), broker redelivers the message, so it may be handled twice.
+ * Listener must tolerate that, e.g. with {@link ru.hh.rabbitmq.spring.ConfigKeys#RECEIVER_DEDUP_SIZE}; use
+ * {@link ru.hh.rabbitmq.spring.Receiver#drain(java.time.Duration)} to stop without redeliveries.
+ * </p>
+ *
+ * @param <T> type of messages after conversion, {@link org.springframework.amqp.core.Message} if listener is set without converter
+ */
+@FunctionalInterface
+public interface AsyncMessageListener<T> {
+
+  /**
+   * @return {@link java.util.concurrent.CompletionStage} (e.g. {@link java.util.concurrent.CompletableFuture}), guava
+   *   {@link com.google.common.util.concurrent.ListenableFuture} or spring {@link org.springframework.util.concurrent.ListenableFuture}
+   *   completed when message is handled, null if message is handled already
+   */
+  Future<?> handleMessage(T message) throws Exception;
+}
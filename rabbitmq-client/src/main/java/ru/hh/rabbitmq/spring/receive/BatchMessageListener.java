@@ -0,0 +1,27 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Listener of {@link ru.hh.rabbitmq.spring.Receiver} that handles messages in batches, e.g. to write them to database in one statement.
+ * Batch is passed to listener when it reaches {@link ru.hh.rabbitmq.spring.ConfigKeys#RECEIVER_BATCH_SIZE} messages or when its first message
+ * waits longer than {@link ru.hh.rabbitmq.spring.ConfigKeys#RECEIVER_BATCH_LINGER_MS}. Batch is collected from messages prefetched by one
+ * consumer, so prefetch count should not be lower than batch size.
+ * </p>
+ * <p>
+ * All messages of batch are acknowledged with a single ack when listener returns. If listener throws {@link PartialBatchFailureException},
+ * only listed messages are rejected, any other exception rejects the whole batch; rejected messages are requeued or dead-lettered according
+ * to {@link ru.hh.rabbitmq.spring.ConfigKeys#RECEIVER_BATCH_FAILURE}.
+ * </p>
+ *
+ * @param <T> type of messages after conversion, {@link org.springframework.amqp.core.Message} if listener is set without converter
+ */
+@FunctionalInterface
+public interface BatchMessageListener<T> {
+
+  /**
+   * @param messages batch in order of delivery, never empty
+   */
+  void handleMessages(List<T> messages) throws Exception;
+}
@@ -0,0 +1,67 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import java.time.Duration;
+
+/**
+ * What happened to messages of {@link ru.hh.rabbitmq.spring.Receiver} while it was drained.
+ */
+public final class DrainReport {
+  private final long processed;
+  private final long requeued;
+  private final int abandoned;
+  private final boolean completed;
+  private final Duration duration;
+
+  public DrainReport(long processed, long requeued, int abandoned, boolean completed, Duration duration) {
+    this.processed = processed;
+    this.requeued = requeued;
+    this.abandoned = abandoned;
+    this.completed = completed;
+    this.duration = duration;
+  }
+
+  /**
+   * @return number of prefetched messages passed to listener after consumers were cancelled
+   */
+  public long getProcessed() {
+    return processed;
+  }
+
+  /**
+   * @return number of prefetched messages requeued without passing them to listener because deadline passed, not counting messages
+   * requeued by broker when channels of consumers that did not finish were closed
+   */
+  public long getRequeued() {
+    return requeued;
+  }
+
+  /**
+   * @return number of messages async, keyed or batch listeners did not acknowledge before their channels were closed, broker redelivers
+   * them
+   */
+  public int getAbandoned() {
+    return abandoned;
+  }
+
+  /**
+   * @return whether all received messages were handled and acknowledged before deadline, so none of them is redelivered
+   */
+  public boolean isCompleted() {
+    return completed;
+  }
+
+  public Duration getDuration() {
+    return duration;
+  }
+
+  @Override
+  public String toString() {
+    return "DrainReport{" +
+      "processed=" + processed +
+      ", requeued=" + requeued +
+      ", abandoned=" + abandoned +
+      ", completed=" + completed +
+      ", duration=" + duration.toMillis() + "ms" +
+      '}';
+  }
+}
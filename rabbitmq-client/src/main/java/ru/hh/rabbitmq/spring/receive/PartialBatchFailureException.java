@@ -0,0 +1,31 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.Nullable;
+
+/**
+ * Thrown by {@link BatchMessageListener} when only some messages of batch failed, the rest of batch is acknowledged.
+ */
+public class PartialBatchFailureException extends Exception {
+
+  private final Set<Integer> failedIndexes;
+
+  /**
+   * @param failedIndexes indexes of failed messages in list passed to listener
+   */
+  public PartialBatchFailureException(Collection<Integer> failedIndexes, @Nullable Throwable cause) {
+    super("failed " + failedIndexes.size() + " messages of batch", cause);
+    this.failedIndexes = Collections.unmodifiableSet(new TreeSet<>(failedIndexes));
+  }
+
+  public PartialBatchFailureException(Collection<Integer> failedIndexes) {
+    this(failedIndexes, null);
+  }
+
+  public Set<Integer> getFailedIndexes() {
+    return failedIndexes;
+  }
+}
@@ -0,0 +1,29 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import com.rabbitmq.client.Channel;
+import org.springframework.amqp.core.Message;
+import org.springframework.core.Ordered;
+
+/**
+ * <p>
+ * Intercepts messages received by {@link ru.hh.rabbitmq.spring.Receiver} before they are converted and passed to listener, e.g. to restore
+ * tracing context or audit payloads. Messages of batches are intercepted one by one if receiver unpacks batches.
+ * </p>
+ * <p>
+ * Interceptor continues handling by calling {@link ReceiveInvocation#proceed} of the next one, it may replace message. If interceptor returns
+ * without calling it (short-circuits), message is acknowledged without calling listener; to reject message throw exception, it is handled by
+ * error handler of receiver the same way exception of listener is.
+ * </p>
+ * <p>
+ * Interceptors are called in order of registration, unless they implement {@link Ordered} or are annotated with
+ * {@link org.springframework.core.annotation.Order}. Interceptors are called by receiver threads concurrently.
+ * </p>
+ */
+@FunctionalInterface
+public interface ReceiveInterceptor {
+
+  /**
+   * @param channel channel message was received from
+   */
+  void intercept(Message message, Channel channel, ReceiveInvocation next) throws Exception;
+}
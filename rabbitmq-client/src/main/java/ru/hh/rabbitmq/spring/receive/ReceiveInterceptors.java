@@ -0,0 +1,27 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import java.util.Collection;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+
+public final class ReceiveInterceptors {
+
+  private ReceiveInterceptors() {
+  }
+
+  /**
+   * Sorts interceptors and links them into a chain once, so that calling the chain does not allocate.
+   *
+   * @return invocation of the first interceptor, or {@code terminal} itself if there are no interceptors
+   */
+  public static ReceiveInvocation compile(Collection<? extends ReceiveInterceptor> interceptors, ReceiveInvocation terminal) {
+    ReceiveInterceptor[] sorted = interceptors.toArray(new ReceiveInterceptor[0]);
+    AnnotationAwareOrderComparator.sort(sorted);
+    ReceiveInvocation invocation = terminal;
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      ReceiveInterceptor interceptor = sorted[i];
+      ReceiveInvocation next = invocation;
+      invocation = (message, channel) -> interceptor.intercept(message, channel, next);
+    }
+    return invocation;
+  }
+}
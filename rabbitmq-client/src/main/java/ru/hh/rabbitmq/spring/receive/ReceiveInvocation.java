@@ -0,0 +1,13 @@
+package ru.hh.rabbitmq.spring.receive;
+
+import com.rabbitmq.client.Channel;
+import org.springframework.amqp.core.Message;
+
+/**
+ * Rest of {@link ReceiveInterceptor} chain, ending with listener of receiver.
+ */
+@FunctionalInterface
+public interface ReceiveInvocation {
+
+  void proceed(Message message, Channel channel) throws Exception;
+}
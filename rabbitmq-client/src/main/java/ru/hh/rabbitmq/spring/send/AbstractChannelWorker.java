@@ -3,9 +3,12 @@ package ru.hh.rabbitmq.spring.send;
 import com.google.common.util.concurrent.AbstractService;
 import static java.lang.Thread.currentThread;
 import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 
@@ -13,11 +16,21 @@ abstract class AbstractChannelWorker extends AbstractService {
   private static final Logger LOGGER = LoggerFactory.getLogger(AbstractChannelWorker.class);
 
   protected final MessageSender messageSender;
+  @Nullable
+  protected final PublisherMetrics metrics;
   private final Sleeper sleeper;
   private final Thread thread;
+  private final LongAdder busyNanos = new LongAdder();
+  // 0 while worker is waiting for tasks
+  private volatile long busySinceNanos;
 
-  protected AbstractChannelWorker(String name, MessageSender messageSender, Duration pollingInterval) {
+  protected AbstractChannelWorker(String name,
+                                  MessageSender messageSender,
+                                  @Nullable
+                                  PublisherMetrics metrics,
+                                  Duration pollingInterval) {
     this.messageSender = messageSender;
+    this.metrics = metrics;
     sleeper = pollingInterval.isZero() ? () -> {} : () -> Thread.sleep(pollingInterval.toMillis());
     thread = new Thread(name) {
       @Override
@@ -48,14 +61,91 @@ abstract class AbstractChannelWorker extends AbstractService {
 
   protected abstract void handleTask() throws InterruptedException;
 
-  protected void processPublishTask(PublishTaskFuture task) {
-    if (task.getMdcContext() != null) {
-      MDC.clear();
-      if (task.getMdcContext().isPresent()) {
-        MDC.setContextMap(task.getMdcContext().get());
+  /**
+   * @param sender sender of the broker task is sent through, not necessarily the one of this worker
+   */
+  protected void processPublishTask(PublishTaskFuture task, MessageSender sender) {
+    // context of publishing thread goes straight to message headers, MDC of worker thread is left untouched
+    MdcSnapshot mdcSnapshot = task.getMdcSnapshot();
+    Map<String, Object> mdcHeaders = mdcSnapshot != null ? mdcSnapshot.getHeaders() : Collections.emptyMap();
+    for (Map.Entry<Object, Destination> entry : task.getMessages().entrySet()) {
+      publishMessage(sender, entry.getKey(), entry.getValue(), mdcHeaders);
+    }
+  }
+
+  protected void publishMessage(MessageSender sender, Object message, Destination destination, Map<String, Object> mdcHeaders) {
+    if (metrics == null) {
+      sender.publishMessage(message, destination, mdcHeaders);
+      return;
+    }
+    // confirm may come before publishing returns
+    metrics.messageSending(message);
+    try {
+      sender.publishMessage(message, destination, mdcHeaders);
+    } catch (RuntimeException e) {
+      metrics.messageFailed(message);
+      throw e;
+    }
+  }
+
+  /**
+   * Records failed send attempt and waits before the next one.
+   */
+  protected void awaitRetry(String brokerName, int attempt, RuntimeException cause, Duration delay) throws InterruptedException {
+    if (metrics != null) {
+      metrics.retry(brokerName);
+    }
+    PublishRetryEvent event = new PublishRetryEvent();
+    event.begin();
+    try {
+      Thread.sleep(delay.toMillis());
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.broker = brokerName;
+        event.attempt = attempt;
+        event.error = cause.toString();
+        event.commit();
       }
     }
-    messageSender.publishMessages(task.getMessages());
+  }
+
+  protected void busy() {
+    busySinceNanos = System.nanoTime();
+  }
+
+  protected void idle() {
+    long since = busySinceNanos;
+    if (since != 0) {
+      busyNanos.add(System.nanoTime() - since);
+      busySinceNanos = 0;
+    }
+  }
+
+  /**
+   * @return time spent sending tasks since previous call, not including the task being sent now
+   */
+  long getAndResetBusyNanos() {
+    return busyNanos.sumThenReset();
+  }
+
+  /**
+   * @return how long current task is being sent, 0 if worker is waiting for tasks
+   */
+  long getBusyForNanos() {
+    long since = busySinceNanos;
+    return since == 0 ? 0 : System.nanoTime() - since;
+  }
+
+  String getName() {
+    return thread.getName();
+  }
+
+  /**
+   * @return number of messages taken from inner queue but not sent yet
+   */
+  int getPendingMessages() {
+    return 0;
   }
 
   @Override
@@ -1,5 +1,6 @@
 package ru.hh.rabbitmq.spring.send;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import static java.util.Collections.unmodifiableList;
 import java.util.List;
@@ -9,10 +10,11 @@ import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
 import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
 import ru.hh.rabbitmq.spring.ConfigException;
+import ru.hh.rabbitmq.spring.codec.CodecMessageConverter;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_NAME;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_PUBLISHED_MILLIS_HEADER;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_TRANSACTIONAL;
 import ru.hh.rabbitmq.spring.PropertiesHelper;
 
@@ -20,6 +22,8 @@ public abstract class AbstractPublisherBuilder {
 
   protected final String commonName;
   protected final Collection<HhRabbitTemplate> templates;
+  protected final List<PublishInterceptor> interceptors = new ArrayList<>();
+  protected final boolean publishedMillisHeader;
 
   protected AbstractPublisherBuilder(Collection<ConnectionFactory> connectionFactories, Properties properties) {
     PropertiesHelper props = new PropertiesHelper(properties);
@@ -31,6 +35,7 @@ public abstract class AbstractPublisherBuilder {
     }
 
     commonName = props.getString(PUBLISHER_NAME, "");
+    publishedMillisHeader = props.getBoolean(PUBLISHER_PUBLISHED_MILLIS_HEADER, false);
     RabbitTemplateFactory templateFactory = new RabbitTemplateFactory(properties);
     List<HhRabbitTemplate> templates = connectionFactories.stream().map(templateFactory::createTemplate).collect(Collectors.toList());
     this.templates = unmodifiableList(templates);
@@ -48,7 +53,7 @@ public abstract class AbstractPublisherBuilder {
   }
 
   protected void withJsonMessageConverterInternal() {
-    Jackson2JsonMessageConverter converter = new Jackson2JsonMessageConverter();
+    CodecMessageConverter converter = new CodecMessageConverter();
     withMessageConverterInternal(converter);
   }
 
@@ -63,4 +68,11 @@ public abstract class AbstractPublisherBuilder {
       template.setReturnCallback(callback);
     }
   }
+
+  /**
+   * Adds interceptor of all messages sent by publisher, see {@link PublishInterceptor} for order of interceptors.
+   */
+  protected void withInterceptorInternal(PublishInterceptor interceptor) {
+    interceptors.add(interceptor);
+  }
 }
@@ -0,0 +1,278 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import static java.lang.Thread.currentThread;
+
+/**
+ * <p>
+ * Packs messages taken from inner queue into {@link MessageBatch batches}, one open batch per exchange, routing key and MDC context. Batch is
+ * sent when it reaches {@link BatchingSettings#getSize()} messages or {@link BatchingSettings#getBytes()} bytes, or when
+ * {@link BatchingSettings#getLinger()} passes since its first message. Message that can't share properties with open batch closes it.
+ * </p>
+ * <p>
+ * Task is completed when all batches containing its messages are sent. {@link CorrelatedMessage}s are sent one by one, as correlation data
+ * can't be attached to a single message of a batch.
+ * </p>
+ */
+class BatchingChannelWorker extends AbstractChannelWorker {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchingChannelWorker.class);
+
+  private final Broker broker;
+  private final Duration retrySendDelay;
+  private final BatchingSettings settings;
+
+  // insertion order is creation order, so first batch is the one to expire first
+  private final Map<BatchKey, PendingBatch> batches = new LinkedHashMap<>();
+  // number of open batches containing messages of the task (plus one while the task is being added)
+  private final Map<PublishTaskFuture, Integer> unsentBatches = new IdentityHashMap<>();
+  private volatile int pendingMessages;
+
+  BatchingChannelWorker(String name,
+                        MessageSender messageSender,
+                        @Nullable
+                        PublisherMetrics metrics,
+                        Broker broker,
+                        Duration retrySendDelay,
+                        BatchingSettings settings) {
+    super(name, messageSender, metrics, Duration.ZERO);
+    this.broker = broker;
+    this.retrySendDelay = retrySendDelay;
+    this.settings = settings;
+  }
+
+  @Override
+  protected void handleTask() throws InterruptedException {
+    PublishTaskFuture task;
+    if (batches.isEmpty()) {
+      task = broker.take();
+    } else {
+      long waitNanos = batches.values().iterator().next().deadlineNanos - System.nanoTime();
+      task = broker.poll(waitNanos);
+    }
+    busy();
+    try {
+      if (task != null && !task.isCancelled()) {
+        addTask(task);
+      }
+      flushExpired();
+    } finally {
+      idle();
+    }
+  }
+
+  @Override
+  int getPendingMessages() {
+    return pendingMessages;
+  }
+
+  private void addTask(PublishTaskFuture task) {
+    broker.taskStarted();
+    if (metrics != null) {
+      metrics.taskTaken(task);
+    }
+    acquire(task);
+    try {
+      for (Map.Entry<Object, Destination> entry : task.getMessages().entrySet()) {
+        addMessage(task, entry.getKey(), entry.getValue());
+      }
+    } catch (MessageConversionException e) {
+      // messages of the task that are already packed will still be sent
+      LOGGER.error("failed to convert message, task is failed", e);
+      task.fail(e);
+    } finally {
+      release(task);
+    }
+  }
+
+  private void addMessage(PublishTaskFuture task, Object message, Destination destination) {
+    BatchKey key = new BatchKey(messageSender.getExchange(destination), messageSender.getRoutingKey(destination), task.getMdcSnapshot());
+    PendingBatch batch = batches.get(key);
+
+    if (message instanceof CorrelatedMessage) {
+      // keep order of messages to the same destination
+      if (batch != null) {
+        flush(key, batch);
+      }
+      sendUntilSuccess(sender -> publishMessage(sender, message, destination, key.getMdcHeaders()));
+      return;
+    }
+
+    Message converted = messageSender.toMessage(message);
+    boolean fits = batch != null && batch.messages.bytes() + MessageBatch.bytesOf(converted) <= settings.getBytes();
+    if (batch != null && (!fits || !batch.messages.canAppend(converted))) {
+      flush(key, batch);
+      batch = null;
+    }
+    if (batch == null) {
+      batch = new PendingBatch(new MessageBatch(key.exchange, key.routingKey, converted), destination,
+          System.nanoTime() + settings.getLinger().toNanos());
+      batches.put(key, batch);
+    } else {
+      batch.messages.append(converted);
+    }
+    pendingMessages++;
+    if (batch.tasks.put(task, Boolean.TRUE) == null) {
+      acquire(task);
+    }
+
+    if (batch.messages.size() >= settings.getSize() || batch.messages.bytes() >= settings.getBytes()) {
+      flush(key, batch);
+    }
+  }
+
+  private void flushExpired() {
+    long now = System.nanoTime();
+    List<Map.Entry<BatchKey, PendingBatch>> expired = new ArrayList<>();
+    for (Map.Entry<BatchKey, PendingBatch> entry : batches.entrySet()) {
+      if (entry.getValue().deadlineNanos - now > 0) {
+        break;
+      }
+      expired.add(entry);
+    }
+    for (Map.Entry<BatchKey, PendingBatch> entry : expired) {
+      flush(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void flush(BatchKey key, PendingBatch batch) {
+    batches.remove(key);
+    sendUntilSuccess(sender -> sender.publishBatch(batch.messages, batch.destination, key.getMdcHeaders()));
+    pendingMessages -= batch.messages.size();
+    for (PublishTaskFuture task : batch.tasks.keySet()) {
+      release(task);
+    }
+  }
+
+  private void acquire(PublishTaskFuture task) {
+    unsentBatches.merge(task, 1, Integer::sum);
+  }
+
+  private void release(PublishTaskFuture task) {
+    Integer count = unsentBatches.get(task);
+    if (count == null) {
+      // already failed
+      return;
+    }
+    if (count > 1) {
+      unsentBatches.put(task, count - 1);
+    } else {
+      unsentBatches.remove(task);
+      task.complete();
+      broker.taskFinished();
+      if (metrics != null) {
+        metrics.taskSent(task);
+      }
+    }
+  }
+
+  private void sendUntilSuccess(Consumer<MessageSender> send) {
+    int attempts = 0;
+    try (BrokerFailover failover = new BrokerFailover(broker)) {
+      while (true) {
+        attempts++;
+        Broker target = failover.startAttempt();
+        try {
+          send.accept(target.getMessageSender());
+          failover.succeeded();
+          return;
+
+        } catch (RuntimeException e) {
+          boolean moved = failover.failed();
+          final String message = String.format("failed to send batch through %s: %s, %s", target, e.toString(),
+              moved ? "retrying through another broker" : "waiting before next attempt");
+          if (e instanceof AmqpException) {
+            LOGGER.warn(message, e);
+          } else {
+            LOGGER.error(message, e);
+          }
+          if (!moved) {
+            try {
+              awaitRetry(target.getName(), attempts, e, retrySendDelay);
+            } catch (InterruptedException ie) {
+              currentThread().interrupt();
+              throw failPending(new RuntimeException("failed to retry batch: got interrupted signal, dropping pending batches", ie));
+            }
+            failover.retry();
+          }
+
+          if (!isRunning() || currentThread().isInterrupted()) {
+            throw failPending(new RuntimeException("failed to retry batch: BatchingChannelWorker is stopped, dropping pending batches"));
+          }
+        }
+      }
+    }
+  }
+
+  private RuntimeException failPending(RuntimeException e) {
+    for (PublishTaskFuture task : unsentBatches.keySet()) {
+      task.fail(e);
+      broker.taskFinished();
+    }
+    unsentBatches.clear();
+    batches.clear();
+    pendingMessages = 0;
+    return e;
+  }
+
+  private static final class PendingBatch {
+    final MessageBatch messages;
+    final Destination destination;
+    final long deadlineNanos;
+    final Map<PublishTaskFuture, Boolean> tasks = new IdentityHashMap<>();
+
+    PendingBatch(MessageBatch messages, Destination destination, long deadlineNanos) {
+      this.messages = messages;
+      this.destination = destination;
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+
+  private static final class BatchKey {
+    final String exchange;
+    final String routingKey;
+    @Nullable
+    final MdcSnapshot mdcSnapshot;
+
+    BatchKey(String exchange, String routingKey, @Nullable MdcSnapshot mdcSnapshot) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.mdcSnapshot = mdcSnapshot;
+    }
+
+    Map<String, Object> getMdcHeaders() {
+      return mdcSnapshot != null ? mdcSnapshot.getHeaders() : Collections.emptyMap();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof BatchKey)) {
+        return false;
+      }
+      BatchKey other = (BatchKey) o;
+      return Objects.equals(exchange, other.exchange) && Objects.equals(routingKey, other.routingKey)
+          && Objects.equals(mdcSnapshot, other.mdcSnapshot);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(exchange, routingKey, mdcSnapshot);
+    }
+  }
+}
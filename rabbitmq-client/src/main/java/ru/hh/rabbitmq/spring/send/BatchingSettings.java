@@ -0,0 +1,64 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.time.Duration;
+import javax.annotation.Nullable;
+import ru.hh.rabbitmq.spring.ConfigException;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_BATCH_BYTES;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_BATCH_LINGER_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_BATCH_SIZE;
+import ru.hh.rabbitmq.spring.PropertiesHelper;
+
+final class BatchingSettings {
+  static final int DEFAULT_SIZE = 100;
+  static final int DEFAULT_BYTES = 64 * 1024;
+  static final int DEFAULT_LINGER_MS = 10;
+
+  private final int size;
+  private final int bytes;
+  private final Duration linger;
+
+  BatchingSettings(int size, int bytes, Duration linger) {
+    if (size < 1) {
+      throw new ConfigException(PUBLISHER_BATCH_SIZE + " must be positive");
+    }
+    if (bytes < 1) {
+      throw new ConfigException(PUBLISHER_BATCH_BYTES + " must be positive");
+    }
+    if (linger.isNegative()) {
+      throw new ConfigException(PUBLISHER_BATCH_LINGER_MS + " must not be negative");
+    }
+    this.size = size;
+    this.bytes = bytes;
+    this.linger = linger;
+  }
+
+  /**
+   * @return settings or null if batching is not configured
+   */
+  @Nullable
+  static BatchingSettings fromProperties(PropertiesHelper props) {
+    int size = props.getInteger(PUBLISHER_BATCH_SIZE, 1);
+    if (size <= 1) {
+      return null;
+    }
+    int bytes = props.getInteger(PUBLISHER_BATCH_BYTES, DEFAULT_BYTES);
+    int lingerMs = props.getInteger(PUBLISHER_BATCH_LINGER_MS, DEFAULT_LINGER_MS);
+    return new BatchingSettings(size, bytes, Duration.ofMillis(lingerMs));
+  }
+
+  static BatchingSettings defaults() {
+    return new BatchingSettings(DEFAULT_SIZE, DEFAULT_BYTES, Duration.ofMillis(DEFAULT_LINGER_MS));
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  int getBytes() {
+    return bytes;
+  }
+
+  Duration getLinger() {
+    return linger;
+  }
+}
@@ -0,0 +1,212 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+
+/**
+ * <p>
+ * Broker of {@link Publisher}: inner queue its workers take tasks from, sender and statistics for {@link BrokerSelectionStrategy}.
+ * </p>
+ * <p>
+ * Broker is unavailable while any worker retries failed send through it and for retry delay after the last failed send. Workers send
+ * through another available broker instead of unavailable one, idle workers take tasks queued for unavailable brokers.
+ * </p>
+ */
+final class Broker implements BrokerStats {
+  private static final double LATENCY_EWMA_ALPHA = 0.2;
+  // how often idle worker looks for tasks queued for unavailable brokers
+  private static final long STEAL_INTERVAL_NANOS = MILLISECONDS.toNanos(50);
+
+  private final String name;
+  private final int weight;
+  private final BlockingQueue<PublishTaskFuture> taskQueue;
+  private final MessageSender messageSender;
+  private final long retryDelayNanos;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger retryingWorkers = new AtomicInteger();
+  private volatile double latencyEwmaNanos;
+  private volatile boolean failed;
+  private volatile long failedAtNanos;
+
+  private List<Broker> brokers = Collections.emptyList();
+  @Nullable
+  private BrokerSelectionStrategy failoverStrategy;
+  // false if all brokers share the same queue
+  private boolean stealing;
+
+  Broker(String name, int weight, BlockingQueue<PublishTaskFuture> taskQueue, MessageSender messageSender, Duration retryDelay) {
+    this.name = name;
+    this.weight = weight;
+    this.taskQueue = taskQueue;
+    this.messageSender = messageSender;
+    retryDelayNanos = retryDelay.toNanos();
+  }
+
+  /**
+   * Called once all brokers of publisher are created, before workers are started.
+   *
+   * @param failoverStrategy chooses broker to send through when this one is unavailable
+   */
+  void setBrokers(List<Broker> brokers, BrokerSelectionStrategy failoverStrategy) {
+    this.brokers = brokers;
+    this.failoverStrategy = failoverStrategy;
+    stealing = brokers.stream().anyMatch(broker -> broker.taskQueue != taskQueue);
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getWeight() {
+    return weight;
+  }
+
+  @Override
+  public int getOutstanding() {
+    return taskQueue.size() + inFlight.get() + messageSender.getTemplate().getUnconfirmedCount();
+  }
+
+  @Override
+  public double getLatencyEwmaNanos() {
+    return latencyEwmaNanos;
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return retryingWorkers.get() == 0 && (!failed || System.nanoTime() - failedAtNanos >= retryDelayNanos);
+  }
+
+  BlockingQueue<PublishTaskFuture> getTaskQueue() {
+    return taskQueue;
+  }
+
+  MessageSender getMessageSender() {
+    return messageSender;
+  }
+
+  /**
+   * Waits for task of this broker, or takes task queued for unavailable broker if this one is available.
+   */
+  PublishTaskFuture take() throws InterruptedException {
+    if (!stealing) {
+      return taskQueue.take();
+    }
+    PublishTaskFuture task;
+    do {
+      task = poll(STEAL_INTERVAL_NANOS);
+    } while (task == null);
+    return task;
+  }
+
+  /**
+   * Same as {@link #take()}, but waits no longer than timeout.
+   *
+   * @return null if there is no task for this broker
+   */
+  @Nullable
+  PublishTaskFuture poll(long timeoutNanos) throws InterruptedException {
+    if (!stealing) {
+      return timeoutNanos > 0 ? taskQueue.poll(timeoutNanos, NANOSECONDS) : taskQueue.poll();
+    }
+    long deadlineNanos = System.nanoTime() + timeoutNanos;
+    while (true) {
+      PublishTaskFuture task = taskQueue.poll();
+      if (task == null) {
+        task = steal();
+      }
+      if (task != null) {
+        return task;
+      }
+      long waitNanos = Math.min(deadlineNanos - System.nanoTime(), STEAL_INTERVAL_NANOS);
+      if (waitNanos <= 0) {
+        return null;
+      }
+      task = taskQueue.poll(waitNanos, NANOSECONDS);
+      if (task != null) {
+        return task;
+      }
+    }
+  }
+
+  @Nullable
+  private PublishTaskFuture steal() {
+    if (!isAvailable()) {
+      return null;
+    }
+    for (Broker broker : brokers) {
+      if (broker.taskQueue != taskQueue && !broker.isAvailable()) {
+        PublishTaskFuture task = broker.taskQueue.poll();
+        if (task != null) {
+          return task;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return broker to send through: this one if it is available, another available broker otherwise
+   */
+  Broker sendingBroker() {
+    return isAvailable() ? this : failover(this);
+  }
+
+  /**
+   * @return available broker to retry send that failed on {@code failedBroker}, {@code failedBroker} itself if there is none
+   */
+  Broker failover(Broker failedBroker) {
+    if (brokers.size() < 2) {
+      return failedBroker;
+    }
+    Broker selected = brokers.get(failoverStrategy.select(brokers));
+    return selected.isAvailable() ? selected : failedBroker;
+  }
+
+  void taskStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  void taskFinished() {
+    inFlight.decrementAndGet();
+  }
+
+  void retryStarted() {
+    retryingWorkers.incrementAndGet();
+  }
+
+  void retryFinished() {
+    retryingWorkers.decrementAndGet();
+  }
+
+  void sendSucceeded(long nanos) {
+    failed = false;
+    recordLatency(nanos);
+  }
+
+  /**
+   * Failed attempt counts in latency with retry delay it costs, so average of failing broker grows.
+   */
+  void sendFailed(long nanos) {
+    failedAtNanos = System.nanoTime();
+    failed = true;
+    recordLatency(nanos + retryDelayNanos);
+  }
+
+  private synchronized void recordLatency(long nanos) {
+    double current = latencyEwmaNanos;
+    latencyEwmaNanos = current == 0 ? nanos : current + LATENCY_EWMA_ALPHA * (nanos - current);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
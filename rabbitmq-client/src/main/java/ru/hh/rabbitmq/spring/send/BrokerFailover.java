@@ -0,0 +1,73 @@
+package ru.hh.rabbitmq.spring.send;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>
+ * Chooses broker for every attempt of one send of worker: broker of the worker if it is available, another available broker otherwise.
+ * After failed attempt send moves to another available broker right away, the same broker is retried after delay only if there is no other.
+ * </p>
+ * <p>
+ * Broker being retried is {@link BrokerStats#isAvailable() unavailable} until the send succeeds, moves to another broker or is closed.
+ * </p>
+ */
+final class BrokerFailover implements AutoCloseable {
+  private final Broker broker;
+  private Broker current;
+  @Nullable
+  private Broker retrying;
+  private long attemptStartNanos;
+
+  /**
+   * @param broker broker of the worker
+   */
+  BrokerFailover(Broker broker) {
+    this.broker = broker;
+    current = broker.sendingBroker();
+  }
+
+  /**
+   * @return broker to send through
+   */
+  Broker startAttempt() {
+    attemptStartNanos = System.nanoTime();
+    return current;
+  }
+
+  void succeeded() {
+    current.sendSucceeded(System.nanoTime() - attemptStartNanos);
+  }
+
+  /**
+   * @return true if next attempt goes to another broker right away, false if caller must wait before retrying the same broker
+   */
+  boolean failed() {
+    current.sendFailed(System.nanoTime() - attemptStartNanos);
+    if (retrying != current) {
+      if (retrying != null) {
+        retrying.retryFinished();
+      }
+      current.retryStarted();
+      retrying = current;
+    }
+    Broker next = broker.failover(current);
+    boolean moved = next != current;
+    current = next;
+    return moved;
+  }
+
+  /**
+   * Called after waiting, another broker may be available by now.
+   */
+  void retry() {
+    current = broker.failover(current);
+  }
+
+  @Override
+  public void close() {
+    if (retrying != null) {
+      retrying.retryFinished();
+      retrying = null;
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import ru.hh.rabbitmq.spring.ConfigException;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_BROKER_SELECTION;
+
+/**
+ * Built-in {@link BrokerSelectionStrategy} implementations. Every method returns new instance. All of them skip brokers that are not
+ * {@link BrokerStats#isAvailable() available}, unless none is.
+ */
+public final class BrokerSelectionStrategies {
+
+  public static final String WEIGHTED = "weighted";
+  public static final String LEAST_OUTSTANDING = "least-outstanding";
+  public static final String LATENCY_EWMA = "latency-ewma";
+
+  private BrokerSelectionStrategies() {
+  }
+
+  /**
+   * Smooth weighted round robin: broker with weight 3 gets 3 of every 4 tasks when paired with broker of weight 1, interleaved rather than
+   * in bursts. Unavailable brokers are skipped.
+   */
+  public static BrokerSelectionStrategy weighted() {
+    return new Weighted();
+  }
+
+  /**
+   * Broker with the least outstanding tasks and unconfirmed messages per unit of weight. Slow or unavailable broker accumulates outstanding
+   * work and stops getting new tasks.
+   */
+  public static BrokerSelectionStrategy leastOutstanding() {
+    return new LeastOutstanding();
+  }
+
+  /**
+   * Broker with the least expected wait: latency average multiplied by outstanding work and divided by weight. Brokers that have not sent
+   * anything yet are preferred, so all brokers are probed.
+   */
+  public static BrokerSelectionStrategy latencyEwma() {
+    return new LatencyEwma();
+  }
+
+  /**
+   * @param name one of {@link #WEIGHTED}, {@link #LEAST_OUTSTANDING}, {@link #LATENCY_EWMA}
+   */
+  public static BrokerSelectionStrategy forName(String name) {
+    switch (name) {
+      case WEIGHTED:
+        return weighted();
+      case LEAST_OUTSTANDING:
+        return leastOutstanding();
+      case LATENCY_EWMA:
+        return latencyEwma();
+      default:
+        throw new ConfigException(String.format("Unknown %s: %s, expected one of %s, %s, %s", PUBLISHER_BROKER_SELECTION, name, WEIGHTED,
+            LEAST_OUTSTANDING, LATENCY_EWMA));
+    }
+  }
+
+  private static final class Weighted implements BrokerSelectionStrategy {
+    private long[] currentWeights;
+
+    @Override
+    public synchronized int select(List<? extends BrokerStats> brokers) {
+      if (currentWeights == null) {
+        currentWeights = new long[brokers.size()];
+      }
+      boolean anyAvailable = anyAvailable(brokers);
+      int selected = -1;
+      long totalWeight = 0;
+      for (int i = 0; i < brokers.size(); i++) {
+        BrokerStats broker = brokers.get(i);
+        if (anyAvailable && !broker.isAvailable()) {
+          continue;
+        }
+        totalWeight += broker.getWeight();
+        currentWeights[i] += broker.getWeight();
+        if (selected < 0 || currentWeights[i] > currentWeights[selected]) {
+          selected = i;
+        }
+      }
+      if (selected < 0) {
+        // all brokers became unavailable while selecting
+        return 0;
+      }
+      currentWeights[selected] -= totalWeight;
+      return selected;
+    }
+  }
+
+  /**
+   * Picks broker with minimal cost, starting from the next broker on every call so that ties are spread evenly.
+   */
+  private abstract static class MinimalCost implements BrokerSelectionStrategy {
+    private final AtomicInteger offset = new AtomicInteger();
+
+    @Override
+    public int select(List<? extends BrokerStats> brokers) {
+      int size = brokers.size();
+      int start = Math.floorMod(offset.getAndIncrement(), size);
+      boolean anyAvailable = anyAvailable(brokers);
+      int selected = -1;
+      double minCost = 0;
+      for (int i = 0; i < size; i++) {
+        int index = (start + i) % size;
+        BrokerStats broker = brokers.get(index);
+        if (anyAvailable && !broker.isAvailable()) {
+          continue;
+        }
+        double cost = cost(broker);
+        if (selected < 0 || cost < minCost) {
+          minCost = cost;
+          selected = index;
+        }
+      }
+      // all brokers may become unavailable while selecting
+      return selected < 0 ? start : selected;
+    }
+
+    protected abstract double cost(BrokerStats broker);
+  }
+
+  private static final class LeastOutstanding extends MinimalCost {
+    @Override
+    protected double cost(BrokerStats broker) {
+      return (double) broker.getOutstanding() / broker.getWeight();
+    }
+  }
+
+  private static final class LatencyEwma extends MinimalCost {
+    @Override
+    protected double cost(BrokerStats broker) {
+      // +1 so that brokers without history or outstanding work are still ordered by the other factor
+      return (broker.getLatencyEwmaNanos() + 1) * (broker.getOutstanding() + 1) / broker.getWeight();
+    }
+  }
+
+  private static boolean anyAvailable(List<? extends BrokerStats> brokers) {
+    for (BrokerStats broker : brokers) {
+      if (broker.isAvailable()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,23 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.util.List;
+
+/**
+ * <p>
+ * Chooses broker for the next task of multi-host {@link Publisher}. Called concurrently from publishing threads, implementation must be thread
+ * safe. Instance may keep state, so it must not be shared between publishers.
+ * </p>
+ * <p>
+ * If inner queue of the chosen broker is full, task goes to another broker with free space.
+ * </p>
+ *
+ * @see BrokerSelectionStrategies
+ */
+public interface BrokerSelectionStrategy {
+
+  /**
+   * @param brokers all brokers of publisher, same list in the same order on every call
+   * @return index of the broker in {@code brokers}
+   */
+  int select(List<? extends BrokerStats> brokers);
+}
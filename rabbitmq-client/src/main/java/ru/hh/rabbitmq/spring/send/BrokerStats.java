@@ -0,0 +1,34 @@
+package ru.hh.rabbitmq.spring.send;
+
+/**
+ * Live view of one broker of {@link Publisher}, passed to {@link BrokerSelectionStrategy}. Values change concurrently with selection.
+ */
+public interface BrokerStats {
+
+  /**
+   * @return 'host:port' of the broker
+   */
+  String getName();
+
+  /**
+   * @return weight configured in hosts list, see {@link ru.hh.rabbitmq.spring.ConfigKeys#HOSTS}
+   */
+  int getWeight();
+
+  /**
+   * @return number of tasks waiting in inner queue of the broker or being sent, plus messages not confirmed by the broker yet
+   */
+  int getOutstanding();
+
+  /**
+   * @return exponentially weighted moving average of send attempt time in nanoseconds, failed attempt counts with retry delay added, 0 if
+   * nothing was sent yet
+   */
+  double getLatencyEwmaNanos();
+
+  /**
+   * @return false while a worker retries failed send through the broker and for retry delay after the last failed send, built-in strategies
+   * skip unavailable brokers unless all of them are unavailable
+   */
+  boolean isAvailable();
+}
@@ -1,7 +1,7 @@
 package ru.hh.rabbitmq.spring.send;
 
 import java.time.Duration;
-import java.util.concurrent.BlockingQueue;
+import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.amqp.AmqpException;
@@ -10,47 +10,100 @@ import static java.lang.Thread.currentThread;
 class ChannelWorker extends AbstractChannelWorker {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChannelWorker.class);
 
-  private final BlockingQueue<PublishTaskFuture> taskQueue;
+  private final Broker broker;
   private final Duration retrySendDelay;
 
-  ChannelWorker(String name, MessageSender messageSender, BlockingQueue<PublishTaskFuture> taskQueue, Duration retrySendDelay) {
-    super(name, messageSender, Duration.ZERO);
-    this.taskQueue = taskQueue;
+  ChannelWorker(String name,
+                MessageSender messageSender,
+                @Nullable
+                PublisherMetrics metrics,
+                Broker broker,
+                Duration retrySendDelay) {
+    super(name, messageSender, metrics, Duration.ZERO);
+    this.broker = broker;
     this.retrySendDelay = retrySendDelay;
   }
 
   @Override
   protected void handleTask() throws InterruptedException {
-    final PublishTaskFuture task = taskQueue.take();
-    executeTaskUntilSuccess(task);
+    final PublishTaskFuture task = broker.take();
+    busy();
+    broker.taskStarted();
+    if (metrics != null) {
+      metrics.taskTaken(task);
+    }
+    try {
+      executeTaskUntilSuccess(task);
+    } finally {
+      broker.taskFinished();
+      idle();
+    }
   }
 
   private void executeTaskUntilSuccess(final PublishTaskFuture task) {
-    while (!task.isCancelled()) {
-      try {
-        processPublishTask(task);
-        task.complete();
-        return;
-
-      } catch (RuntimeException e) {
-        final String message = String.format("failed to process task: %s, waiting before next attempt", e.toString());
-        if (e instanceof AmqpException) {
-          LOGGER.warn(message, e);
-        } else {
-          LOGGER.error(message, e);
-        }
+    PublishTaskEvent event = new PublishTaskEvent();
+    event.begin();
+    String outcome = PublishTaskEvent.DROPPED;
+    int attempts = 0;
+    try {
+      attempts = sendUntilSuccess(task);
+      outcome = attempts > 0 ? PublishTaskEvent.SENT : PublishTaskEvent.CANCELLED;
+    } finally {
+      event.end();
+      if (event.shouldCommit()) {
+        event.broker = broker.getName();
+        event.messages = task.getMessages().size();
+        event.attempts = attempts;
+        event.outcome = outcome;
+        event.commit();
+      }
+    }
+  }
 
+  /**
+   * @return number of attempts it took to send the task, 0 if it was cancelled
+   */
+  private int sendUntilSuccess(final PublishTaskFuture task) {
+    int attempts = 0;
+    try (BrokerFailover failover = new BrokerFailover(broker)) {
+      while (!task.isCancelled()) {
+        attempts++;
+        Broker target = failover.startAttempt();
         try {
-          Thread.sleep(retrySendDelay.toMillis());
-        } catch (InterruptedException ie) {
-          currentThread().interrupt();
-          throw new RuntimeException("failed to retry task: got interrupted signal, dropping task", ie);
-        }
+          processPublishTask(task, target.getMessageSender());
+          failover.succeeded();
+          task.complete();
+          if (metrics != null) {
+            metrics.taskSent(task);
+          }
+          return attempts;
+
+        } catch (RuntimeException e) {
+          boolean moved = failover.failed();
+          final String message = String.format("failed to process task through %s: %s, %s", target, e.toString(),
+              moved ? "retrying through another broker" : "waiting before next attempt");
+          if (e instanceof AmqpException) {
+            LOGGER.warn(message, e);
+          } else {
+            LOGGER.error(message, e);
+          }
+
+          if (!moved) {
+            try {
+              awaitRetry(target.getName(), attempts, e, retrySendDelay);
+            } catch (InterruptedException ie) {
+              currentThread().interrupt();
+              throw new RuntimeException("failed to retry task: got interrupted signal, dropping task", ie);
+            }
+            failover.retry();
+          }
 
-        if (!isRunning() || currentThread().isInterrupted()) {
-          throw new RuntimeException("failed to retry task: ChannelWorker is stopped, dropping task");
+          if (!isRunning() || currentThread().isInterrupted()) {
+            throw new RuntimeException("failed to retry task: ChannelWorker is stopped, dropping task");
+          }
         }
       }
     }
+    return 0;
   }
 }
@@ -0,0 +1,55 @@
+package ru.hh.rabbitmq.spring.send;
+
+import com.google.common.collect.MapMaker;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+/**
+ * Measures time from publishing {@link CorrelatedMessage} to its confirm. Send time is recorded before publishing, as confirm may come
+ * before publishing method returns.
+ */
+class ConfirmTimer {
+  // weak keys compare by identity and let go correlation data that is never confirmed
+  private final ConcurrentMap<CorrelationData, Long> sentNanos = new MapMaker().weakKeys().makeMap();
+
+  void sending(Object message) {
+    CorrelationData correlationData = getCorrelationData(message);
+    if (correlationData != null) {
+      sentNanos.put(correlationData, System.nanoTime());
+    }
+  }
+
+  /**
+   * Forgets message that was not published, so it does not count as waiting for confirm.
+   */
+  void failed(Object message) {
+    CorrelationData correlationData = getCorrelationData(message);
+    if (correlationData != null) {
+      sentNanos.remove(correlationData);
+    }
+  }
+
+  /**
+   * @return nanoseconds since message was published, -1 if it was not published by this publisher or is already confirmed
+   */
+  long confirmed(@Nullable CorrelationData correlationData) {
+    if (correlationData == null) {
+      return -1;
+    }
+    Long sent = sentNanos.remove(correlationData);
+    return sent != null ? System.nanoTime() - sent : -1;
+  }
+
+  /**
+   * @return number of published messages waiting for confirm
+   */
+  int getPending() {
+    return sentNanos.size();
+  }
+
+  @Nullable
+  private static CorrelationData getCorrelationData(Object message) {
+    return message instanceof CorrelatedMessage ? ((CorrelatedMessage) message).getCorrelationData() : null;
+  }
+}
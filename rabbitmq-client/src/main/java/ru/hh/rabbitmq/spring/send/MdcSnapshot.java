@@ -0,0 +1,47 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable MDC context captured on publisher side together with message headers it is encoded to. The same instance is shared by all
+ * messages published while the context stays unchanged, so workers just copy ready headers to messages.
+ */
+final class MdcSnapshot {
+  static final MdcSnapshot EMPTY = new MdcSnapshot(Collections.emptyMap(), Collections.emptyMap());
+
+  private final Map<String, String> context;
+  private final Map<String, Object> headers;
+  private final int hashCode;
+
+  MdcSnapshot(Map<String, String> context, Map<String, Object> headers) {
+    this.context = Collections.unmodifiableMap(context);
+    this.headers = Collections.unmodifiableMap(headers);
+    hashCode = context.hashCode();
+  }
+
+  Map<String, String> getContext() {
+    return context;
+  }
+
+  Map<String, Object> getHeaders() {
+    return headers;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    MdcSnapshot that = (MdcSnapshot) o;
+    return hashCode == that.hashCode && context.equals(that.context);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
@@ -0,0 +1,130 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import static java.lang.invoke.MethodType.methodType;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.slf4j.MDC;
+import org.slf4j.spi.MDCAdapter;
+import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
+
+/**
+ * <p>
+ * Captures MDC context of publishing threads. Last snapshot of every thread is cached and returned again while MDC stays unchanged, so
+ * publishing many messages within one context copies and encodes it only once.
+ * </p>
+ * <p>
+ * Logback replaces context map of thread on every change after the map was read, so with Logback unchanged context is detected by identity
+ * of the map, without copying or comparing it. With other MDC adapters context is copied (or whitelisted keys are looked up) and compared
+ * with the cached one on every capture.
+ * </p>
+ */
+final class MdcSnapshots {
+  private static final String LOGBACK_MDC_ADAPTER = "ch.qos.logback.classic.util.LogbackMDCAdapter";
+  @Nullable
+  private static final MethodHandle PROPERTY_MAP = propertyMapGetter();
+
+  private final MDCMessagePropertiesConverter converter;
+  @Nullable
+  private final String[] keys;
+  private final ThreadLocal<LastCapture> last = ThreadLocal.withInitial(LastCapture::new);
+
+  MdcSnapshots(MDCMessagePropertiesConverter converter) {
+    this.converter = converter;
+    Collection<String> keys = converter.getKeys();
+    this.keys = keys != null ? keys.toArray(new String[0]) : null;
+  }
+
+  MdcSnapshot capture() {
+    LastCapture last = this.last.get();
+    Map<String, String> propertyMap = null;
+    if (PROPERTY_MAP != null) {
+      propertyMap = getPropertyMap();
+      if (propertyMap == last.propertyMap) {
+        return last.snapshot;
+      }
+      last.propertyMap = propertyMap;
+    }
+
+    MdcSnapshot snapshot = last.snapshot;
+    if (keys != null) {
+      // only whitelisted keys are propagated, look them up one by one instead of copying the whole context
+      if (matchesWhitelisted(snapshot.getContext())) {
+        return snapshot;
+      }
+      Map<String, String> context = new HashMap<>();
+      for (String key : keys) {
+        String value = MDC.get(key);
+        if (value != null) {
+          context.put(key, value);
+        }
+      }
+      return cache(last, context);
+    }
+    Map<String, String> context = PROPERTY_MAP != null ? propertyMap : MDC.getCopyOfContextMap();
+    if (context == null || context.isEmpty()) {
+      context = MdcSnapshot.EMPTY.getContext();
+    }
+    if (context.equals(snapshot.getContext())) {
+      return snapshot;
+    }
+    // map of adapter is not changed in place once read, but snapshot must not depend on that
+    return cache(last, PROPERTY_MAP != null ? new HashMap<>(context) : context);
+  }
+
+  private boolean matchesWhitelisted(Map<String, String> context) {
+    int present = 0;
+    for (String key : keys) {
+      String value = MDC.get(key);
+      if (value != null) {
+        if (!value.equals(context.get(key))) {
+          return false;
+        }
+        present++;
+      }
+    }
+    return present == context.size();
+  }
+
+  private MdcSnapshot cache(LastCapture last, Map<String, String> context) {
+    MdcSnapshot snapshot = context.isEmpty() ? MdcSnapshot.EMPTY : new MdcSnapshot(context, converter.toHeaders(context));
+    last.snapshot = snapshot;
+    return snapshot;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Nullable
+  private static Map<String, String> getPropertyMap() {
+    try {
+      return (Map<String, String>) PROPERTY_MAP.invokeExact();
+    } catch (Throwable e) {
+      throw new IllegalStateException("failed to get MDC context map", e);
+    }
+  }
+
+  /**
+   * @return getter of context map bound to Logback MDC adapter, null if another adapter is used
+   */
+  @Nullable
+  private static MethodHandle propertyMapGetter() {
+    MDCAdapter adapter = MDC.getMDCAdapter();
+    if (adapter == null || !adapter.getClass().getName().equals(LOGBACK_MDC_ADAPTER)) {
+      return null;
+    }
+    try {
+      return MethodHandles.publicLookup().findVirtual(adapter.getClass(), "getPropertyMap", methodType(Map.class)).bindTo(adapter);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private static final class LastCapture {
+    // context map of Logback adapter the snapshot was taken from
+    @Nullable
+    Map<String, String> propertyMap;
+    MdcSnapshot snapshot = MdcSnapshot.EMPTY;
+  }
+}
@@ -0,0 +1,91 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.MessagePropertiesBuilder;
+
+/**
+ * <p>
+ * Messages for the same exchange and routing key packed into one AMQP message. Format is the one used by spring-amqp
+ * {@code SimpleBatchingStrategy}, so batches are unpacked by listener containers out of the box: body is a sequence of 4 byte big-endian
+ * length of message body followed by the body itself, header {@value MessageProperties#SPRING_BATCH_FORMAT} is set to
+ * {@value MessageProperties#BATCH_FORMAT_LENGTH_HEADER4}.
+ * </p>
+ * <p>
+ * Unpacked messages share properties of the batch, so only messages with same properties (content type, headers etc.) may be packed
+ * together, see {@link #canAppend(Message)}.
+ * </p>
+ */
+class MessageBatch {
+  static final int LENGTH_HEADER_BYTES = 4;
+
+  private final String exchange;
+  private final String routingKey;
+  private final MessageProperties properties;
+  private final List<byte[]> bodies = new ArrayList<>();
+  private int bytes;
+
+  MessageBatch(String exchange, String routingKey, Message first) {
+    this.exchange = exchange;
+    this.routingKey = routingKey;
+    // first message may be the one of application, batch headers must not leak into it
+    properties = MessagePropertiesBuilder.fromClonedProperties(first.getMessageProperties()).build();
+    append(first);
+  }
+
+  String getExchange() {
+    return exchange;
+  }
+
+  String getRoutingKey() {
+    return routingKey;
+  }
+
+  int size() {
+    return bodies.size();
+  }
+
+  /**
+   * @return size of batch body in bytes
+   */
+  int bytes() {
+    return bytes;
+  }
+
+  static int bytesOf(Message message) {
+    return message.getBody().length + LENGTH_HEADER_BYTES;
+  }
+
+  boolean canAppend(Message message) {
+    MessageProperties other = message.getMessageProperties();
+    return Objects.equals(properties.getContentType(), other.getContentType())
+        && Objects.equals(properties.getContentEncoding(), other.getContentEncoding())
+        && Objects.equals(properties.getDeliveryMode(), other.getDeliveryMode())
+        && Objects.equals(properties.getPriority(), other.getPriority())
+        && Objects.equals(properties.getExpiration(), other.getExpiration())
+        && Objects.equals(properties.getType(), other.getType())
+        && Objects.equals(properties.getMessageId(), other.getMessageId())
+        && Objects.equals(properties.getCorrelationId(), other.getCorrelationId())
+        && Objects.equals(properties.getHeaders(), other.getHeaders());
+  }
+
+  void append(Message message) {
+    bodies.add(message.getBody());
+    bytes += bytesOf(message);
+  }
+
+  Message toMessage() {
+    ByteBuffer body = ByteBuffer.allocate(bytes);
+    for (byte[] messageBody : bodies) {
+      body.putInt(messageBody.length);
+      body.put(messageBody);
+    }
+    properties.setHeader(MessageProperties.SPRING_BATCH_FORMAT, MessageProperties.BATCH_FORMAT_LENGTH_HEADER4);
+    properties.setContentLength(bytes);
+    return new Message(body.array(), properties);
+  }
+}
@@ -1,35 +1,75 @@
 package ru.hh.rabbitmq.spring.send;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Map;
-import java.util.Optional;
 import javax.annotation.Nullable;
 import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.core.MessagePropertiesBuilder;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
-import ru.hh.nab.metrics.Counters;
 import ru.hh.nab.metrics.StatsDSender;
-import ru.hh.nab.metrics.Tag;
+import ru.hh.rabbitmq.spring.util.TaggedCounters;
 
 public class MessageSender {
+  /**
+   * Header with publishing time in milliseconds, receivers measure lag with it as AMQP {@code timestamp} has whole second precision. Set
+   * only if {@link ru.hh.rabbitmq.spring.ConfigKeys#PUBLISHER_PUBLISHED_MILLIS_HEADER} is enabled.
+   */
+  public static final String PUBLISHED_MILLIS_HEADER = "x-published-millis";
+
   private final RabbitTemplate template;
+  private final PublishInvocation chain;
+  private final boolean publishedMillisHeader;
   @Nullable
-  private final Counters publishedCounters;
+  private final TaggedCounters publishedCounters;
   @Nullable
-  private final Counters errorsCounters;
+  private final TaggedCounters errorsCounters;
 
   public MessageSender(RabbitTemplate template,
                 @Nullable
                 String serviceName,
                 @Nullable
                 StatsDSender statsDSender) {
+    this(template, serviceName, statsDSender, Collections.emptyList());
+  }
+
+  /**
+   * @param interceptors called for every AMQP message before it is sent, see {@link PublishInterceptor}
+   */
+  public MessageSender(RabbitTemplate template,
+                @Nullable
+                String serviceName,
+                @Nullable
+                StatsDSender statsDSender,
+                Collection<? extends PublishInterceptor> interceptors) {
+    this(template, serviceName, statsDSender, interceptors, false);
+  }
+
+  /**
+   * @param publishedMillisHeader whether to add {@link #PUBLISHED_MILLIS_HEADER} to every message
+   */
+  public MessageSender(RabbitTemplate template,
+                @Nullable
+                String serviceName,
+                @Nullable
+                StatsDSender statsDSender,
+                Collection<? extends PublishInterceptor> interceptors,
+                boolean publishedMillisHeader) {
     this.template = template;
+    this.publishedMillisHeader = publishedMillisHeader;
+    chain = PublishInterceptors.compile(interceptors,
+        (message, exchange, routingKey, correlationData) -> template.send(exchange, routingKey, message, correlationData));
     if (statsDSender != null) {
-      publishedCounters = new Counters(20);
-      errorsCounters = new Counters(20);
+      publishedCounters = new TaggedCounters("routing_key", 20);
+      errorsCounters = new TaggedCounters("routing_key", 20);
 
       statsDSender.sendPeriodically(() -> {
-        statsDSender.sendCounters(serviceName + ".rabbit.publishers.messages", publishedCounters);
-        statsDSender.sendCounters(serviceName + ".rabbit.publishers.errors", errorsCounters);
+        statsDSender.sendCounters(serviceName + ".rabbit.publishers.messages", publishedCounters.flush());
+        statsDSender.sendCounters(serviceName + ".rabbit.publishers.errors", errorsCounters.flush());
       });
 
     } else {
@@ -47,6 +87,13 @@ public class MessageSender {
   }
 
   public void publishMessage(Object message, Destination destination) {
+    publishMessage(message, destination, Collections.emptyMap());
+  }
+
+  /**
+   * @param headers added to the converted message before interceptors are called, used to apply MDC context captured by publisher
+   */
+  void publishMessage(Object message, Destination destination, Map<String, Object> headers) {
     CorrelationData correlationData = null;
     if (message instanceof CorrelatedMessage) {
       CorrelatedMessage correlated = (CorrelatedMessage) message;
@@ -54,13 +101,22 @@ public class MessageSender {
       message = correlated.getMessage();
     }
 
+    PublishEvent event = new PublishEvent();
+    event.begin();
+    event.outcome = PublishEvent.FAILED;
     try {
-      if (destination != null && destination.getRoutingKey() != null) {
-          template.convertAndSend(destination.getExchange(), destination.getRoutingKey(), message, correlationData);
-      } else {
-          template.correlationConvertAndSend(message, correlationData);
+      Message converted = toMessage(message);
+      if (converted == message) {
+        // message of application may be sent again, so headers and timestamp are added to its copy
+        converted = new Message(converted.getBody(), MessagePropertiesBuilder.fromClonedProperties(converted.getMessageProperties()).build());
       }
+      addHeaders(converted, headers);
+      stampTimestamp(converted);
+      event.bodySize = converted.getBody().length;
+      chain.proceed(converted, getExchange(destination), getRoutingKey(destination), correlationData);
+      event.outcome = PublishEvent.SENT;
     } catch (AmqpException e) {
+      event.error = e.toString();
       if (errorsCounters != null) {
         addValueToCountersWithDestinationTag(errorsCounters, destination);
       }
@@ -69,15 +125,101 @@ public class MessageSender {
       if (publishedCounters != null) {
         addValueToCountersWithDestinationTag(publishedCounters, destination);
       }
+      commit(event, destination, 1, correlationData != null);
     }
   }
 
+  /**
+   * Sends batch as one AMQP message, counters are increased by number of messages in batch.
+   */
+  void publishBatch(MessageBatch batch, @Nullable Destination destination) {
+    publishBatch(batch, destination, Collections.emptyMap());
+  }
+
+  void publishBatch(MessageBatch batch, @Nullable Destination destination, Map<String, Object> headers) {
+    PublishEvent event = new PublishEvent();
+    event.begin();
+    event.outcome = PublishEvent.FAILED;
+    try {
+      Message converted = batch.toMessage();
+      addHeaders(converted, headers);
+      stampTimestamp(converted);
+      chain.proceed(converted, batch.getExchange(), batch.getRoutingKey(), null);
+      event.outcome = PublishEvent.SENT;
+    } catch (AmqpException e) {
+      event.error = e.toString();
+      if (errorsCounters != null) {
+        addValueToCountersWithDestinationTag(errorsCounters, destination, batch.size());
+      }
+      throw e;
+    } finally {
+      if (publishedCounters != null) {
+        addValueToCountersWithDestinationTag(publishedCounters, destination, batch.size());
+      }
+      event.bodySize = batch.bytes();
+      commit(event, destination, batch.size(), false);
+    }
+  }
+
+  private void commit(PublishEvent event, @Nullable Destination destination, int messages, boolean correlated) {
+    event.end();
+    if (event.shouldCommit()) {
+      event.exchange = getExchange(destination);
+      event.routingKey = getRoutingKey(destination);
+      event.messages = messages;
+      event.correlated = correlated;
+      event.commit();
+    }
+  }
+
+  /**
+   * Converts message the same way {@link RabbitTemplate#convertAndSend(Object)} does.
+   */
+  Message toMessage(Object message) {
+    if (message instanceof Message) {
+      return (Message) message;
+    }
+    return template.getMessageConverter().toMessage(message, new MessageProperties());
+  }
+
+  private static void addHeaders(Message message, Map<String, Object> headers) {
+    if (!headers.isEmpty()) {
+      message.getMessageProperties().getHeaders().putAll(headers);
+    }
+  }
+
+  /**
+   * Receivers measure lag of message with {@link #PUBLISHED_MILLIS_HEADER} if it is enabled, with AMQP timestamp otherwise; timestamp set
+   * by application is kept.
+   */
+  private void stampTimestamp(Message message) {
+    MessageProperties properties = message.getMessageProperties();
+    long now = System.currentTimeMillis();
+    if (publishedMillisHeader) {
+      properties.setHeader(PUBLISHED_MILLIS_HEADER, now);
+    }
+    if (properties.getTimestamp() == null) {
+      properties.setTimestamp(new Date(now));
+    }
+  }
+
+  String getExchange(@Nullable Destination destination) {
+    return destination != null && destination.getRoutingKey() != null ? destination.getExchange() : template.getExchange();
+  }
+
+  String getRoutingKey(@Nullable Destination destination) {
+    return destination != null && destination.getRoutingKey() != null ? destination.getRoutingKey() : template.getRoutingKey();
+  }
+
   RabbitTemplate getTemplate() {
     return template;
   }
 
-  private static void addValueToCountersWithDestinationTag(Counters counters, Destination destination) {
-    String routingKey = Optional.ofNullable(destination).map(Destination::getRoutingKey).orElse("unknown");
-    counters.add(1, new Tag("routing_key", routingKey));
+  private static void addValueToCountersWithDestinationTag(TaggedCounters counters, Destination destination) {
+    addValueToCountersWithDestinationTag(counters, destination, 1);
+  }
+
+  private static void addValueToCountersWithDestinationTag(TaggedCounters counters, Destination destination, int value) {
+    counters.add(destination != null ? destination.getRoutingKey() : null, value);
   }
 }
@@ -0,0 +1,157 @@
+package ru.hh.rabbitmq.spring.send;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Keeps only the last message for the same key and destination during coalescing window, then passes it to the inner queue of publisher.
+ * Window starts with the first message for the key, later messages replace pending one without extending the window.
+ * </p>
+ * <p>
+ * All messages coalesced into one share the result: futures returned for superseded messages complete when the last one is sent.
+ * </p>
+ */
+class PublishCoalescer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PublishCoalescer.class);
+
+  private final Duration window;
+  private final Consumer<PublishTaskFuture> taskQueue;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentMap<CoalescingKey, PendingMessage> pending = new ConcurrentHashMap<>();
+  // submits hold read lock, so flushAll sees every message submitted before it stopped coalescer
+  private final ReadWriteLock stopLock = new ReentrantReadWriteLock();
+  private final String name;
+  private boolean stopped;
+
+  PublishCoalescer(String name, Duration window, Consumer<PublishTaskFuture> taskQueue) {
+    this.name = name;
+    this.window = window;
+    this.taskQueue = taskQueue;
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat(name).setDaemon(true).build());
+  }
+
+  /**
+   * @param mdcSnapshot MDC context to send message with, null if publisher does not use MDC
+   * @return future of sending, failed if coalescer is already stopped
+   */
+  ListenableFuture<Void> submit(Object key, @Nullable Destination destination, Object message, @Nullable MdcSnapshot mdcSnapshot) {
+    CoalescingKey coalescingKey = new CoalescingKey(key, destination);
+    PendingMessage pendingMessage;
+    stopLock.readLock().lock();
+    try {
+      if (stopped) {
+        return Futures.immediateFailedFuture(new IllegalStateException(name + " is stopped, message is not sent"));
+      }
+      pendingMessage = pending.compute(coalescingKey, (k, current) -> {
+        if (current == null) {
+          return new PendingMessage(destination, message, mdcSnapshot);
+        }
+        current.message = message;
+        current.mdcSnapshot = mdcSnapshot;
+        return current;
+      });
+      if (pendingMessage.scheduled.compareAndSet(false, true)) {
+        scheduler.schedule(() -> flush(coalescingKey, pendingMessage), window.toNanos(), TimeUnit.NANOSECONDS);
+      }
+    } finally {
+      stopLock.readLock().unlock();
+    }
+    // cancelling result of one caller must not cancel sending of the message for others
+    return Futures.nonCancellationPropagating(pendingMessage.result);
+  }
+
+  /**
+   * Passes all pending messages to the inner queue and stops scheduling, messages submitted after that fail.
+   */
+  void flushAll() {
+    stopLock.writeLock().lock();
+    try {
+      stopped = true;
+    } finally {
+      stopLock.writeLock().unlock();
+    }
+    for (Map.Entry<CoalescingKey, PendingMessage> entry : pending.entrySet()) {
+      flush(entry.getKey(), entry.getValue());
+    }
+    scheduler.shutdownNow();
+  }
+
+  private void flush(CoalescingKey key, PendingMessage pendingMessage) {
+    // removal is atomic with replacement in submit, so message can't be replaced after this point
+    if (!pending.remove(key, pendingMessage)) {
+      return;
+    }
+    PublishTaskFuture task = new PublishTaskFuture(pendingMessage.destination, Collections.singletonList(pendingMessage.message));
+    task.setMdcSnapshot(pendingMessage.mdcSnapshot);
+    try {
+      taskQueue.accept(task);
+      pendingMessage.result.setFuture(task);
+    } catch (RuntimeException e) {
+      LOGGER.warn("failed to enqueue coalesced message", e);
+      pendingMessage.result.setException(e);
+    }
+  }
+
+  private static final class PendingMessage {
+    final Destination destination;
+    final SettableFuture<Void> result = SettableFuture.create();
+    final AtomicBoolean scheduled = new AtomicBoolean();
+    volatile Object message;
+    @Nullable
+    volatile MdcSnapshot mdcSnapshot;
+
+    PendingMessage(Destination destination, Object message, @Nullable MdcSnapshot mdcSnapshot) {
+      this.destination = destination;
+      this.message = message;
+      this.mdcSnapshot = mdcSnapshot;
+    }
+  }
+
+  private static final class CoalescingKey {
+    final Object key;
+    final String exchange;
+    final String routingKey;
+
+    CoalescingKey(Object key, @Nullable Destination destination) {
+      this.key = key;
+      exchange = destination != null ? destination.getExchange() : null;
+      routingKey = destination != null ? destination.getRoutingKey() : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof CoalescingKey)) {
+        return false;
+      }
+      CoalescingKey other = (CoalescingKey) o;
+      return key.equals(other.key) && Objects.equals(exchange, other.exchange) && Objects.equals(routingKey, other.routingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(key, exchange, routingKey);
+    }
+  }
+}
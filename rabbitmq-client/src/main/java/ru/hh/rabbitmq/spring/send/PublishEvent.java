@@ -0,0 +1,46 @@
+package ru.hh.rabbitmq.spring.send;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for sending of one AMQP message by {@link MessageSender}, including conversion.
+ */
+@Name("ru.hh.rabbitmq.Publish")
+@Label("Publish")
+@Category({"RabbitMQ", "Publisher"})
+@Description("AMQP message sent by MessageSender, including conversion")
+@StackTrace(false)
+class PublishEvent extends Event {
+  static final String SENT = "sent";
+  static final String FAILED = "failed";
+
+  @Label("Exchange")
+  String exchange;
+
+  @Label("Routing Key")
+  String routingKey;
+
+  @Label("Messages")
+  @Description("Number of messages packed into AMQP message, 1 if it is not a batch")
+  int messages;
+
+  @Label("Body Size")
+  @DataAmount
+  long bodySize;
+
+  @Label("Correlated")
+  boolean correlated;
+
+  @Label("Outcome")
+  @Description("sent or failed")
+  String outcome;
+
+  @Label("Error")
+  String error;
+}
@@ -0,0 +1,27 @@
+package ru.hh.rabbitmq.spring.send;
+
+import javax.annotation.Nullable;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.core.Ordered;
+
+/**
+ * <p>
+ * Intercepts AMQP messages sent by {@link MessageSender}, after conversion and before sending, e.g. to stamp tracing headers or audit payloads.
+ * Batch packed by {@link Publisher} or {@link SyncPublisher#sendBatch} is intercepted as one AMQP message.
+ * </p>
+ * <p>
+ * Interceptor continues sending by calling {@link PublishInvocation#proceed} of the next one, it may replace message or destination. Message
+ * is not sent (short-circuited) if interceptor returns without calling it, it is still counted as published. Exception thrown by interceptor
+ * fails publishing the same way exception of broker does.
+ * </p>
+ * <p>
+ * Interceptors are called in order of registration, unless they implement {@link Ordered} or are annotated with
+ * {@link org.springframework.core.annotation.Order}. Interceptors are called by publisher worker threads concurrently.
+ * </p>
+ */
+@FunctionalInterface
+public interface PublishInterceptor {
+
+  void intercept(Message message, String exchange, String routingKey, @Nullable CorrelationData correlationData, PublishInvocation next);
+}
@@ -0,0 +1,28 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.util.Collection;
+import org.springframework.core.annotation.AnnotationAwareOrderComparator;
+
+public final class PublishInterceptors {
+
+  private PublishInterceptors() {
+  }
+
+  /**
+   * Sorts interceptors and links them into a chain once, so that calling the chain does not allocate.
+   *
+   * @return invocation of the first interceptor, or {@code terminal} itself if there are no interceptors
+   */
+  public static PublishInvocation compile(Collection<? extends PublishInterceptor> interceptors, PublishInvocation terminal) {
+    PublishInterceptor[] sorted = interceptors.toArray(new PublishInterceptor[0]);
+    AnnotationAwareOrderComparator.sort(sorted);
+    PublishInvocation invocation = terminal;
+    for (int i = sorted.length - 1; i >= 0; i--) {
+      PublishInterceptor interceptor = sorted[i];
+      PublishInvocation next = invocation;
+      invocation = (message, exchange, routingKey, correlationData) -> interceptor.intercept(message, exchange, routingKey, correlationData,
+          next);
+    }
+    return invocation;
+  }
+}
@@ -0,0 +1,14 @@
+package ru.hh.rabbitmq.spring.send;
+
+import javax.annotation.Nullable;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+/**
+ * Rest of {@link PublishInterceptor} chain, ending with sending message to broker.
+ */
+@FunctionalInterface
+public interface PublishInvocation {
+
+  void proceed(Message message, String exchange, String routingKey, @Nullable CorrelationData correlationData);
+}
@@ -0,0 +1,29 @@
+package ru.hh.rabbitmq.spring.send;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a failed send attempt of publisher worker, lasts while worker waits before next attempt.
+ */
+@Name("ru.hh.rabbitmq.PublishRetry")
+@Label("Publish Retry")
+@Category({"RabbitMQ", "Publisher"})
+@Description("Failed send attempt of Publisher worker and delay before next attempt")
+@StackTrace(false)
+class PublishRetryEvent extends Event {
+
+  @Label("Broker")
+  String broker;
+
+  @Label("Attempt")
+  @Description("Number of failed attempt, starting from 1")
+  int attempt;
+
+  @Label("Error")
+  String error;
+}
@@ -0,0 +1,36 @@
+package ru.hh.rabbitmq.spring.send;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a task taken from inner queue by {@link ChannelWorker}, lasts until all messages of the task are sent, including
+ * retries.
+ */
+@Name("ru.hh.rabbitmq.PublishTask")
+@Label("Publish Task")
+@Category({"RabbitMQ", "Publisher"})
+@Description("Task of Publisher processed by worker, including retries")
+@StackTrace(false)
+class PublishTaskEvent extends Event {
+  static final String SENT = "sent";
+  static final String CANCELLED = "cancelled";
+  static final String DROPPED = "dropped";
+
+  @Label("Broker")
+  String broker;
+
+  @Label("Messages")
+  int messages;
+
+  @Label("Attempts")
+  int attempts;
+
+  @Label("Outcome")
+  @Description("sent, cancelled or dropped")
+  String outcome;
+}
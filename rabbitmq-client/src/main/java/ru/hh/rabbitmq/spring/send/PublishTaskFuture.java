@@ -6,14 +6,17 @@ import com.google.common.util.concurrent.SettableFuture;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import javax.annotation.Nullable;
 
 class PublishTaskFuture extends ForwardingFuture<Void> implements ListenableFuture<Void> {
   private final Map<Object, Destination> messages;
   private final SettableFuture<Void> future = SettableFuture.create();
-  private Optional<Map<String, String>> mdcContext;
+  // task is created right before it is added to inner queue
+  private final long enqueuedNanos = System.nanoTime();
+  @Nullable
+  private MdcSnapshot mdcSnapshot;
 
   PublishTaskFuture(Destination destination, Collection<Object> messages) {
     this.messages = messages.stream().collect(HashMap::new, (m, v) -> m.put(v, destination), HashMap::putAll);
@@ -37,12 +40,20 @@ class PublishTaskFuture extends ForwardingFuture<Void> implements ListenableFutu
     return messages;
   }
 
-  Optional<Map<String, String>> getMdcContext() {
-    return mdcContext;
+  long getEnqueuedNanos() {
+    return enqueuedNanos;
   }
 
-  void setMdcContext(Map<String, String> mdcContext) {
-    this.mdcContext = Optional.ofNullable(mdcContext);
+  /**
+   * @return MDC context to send messages with, null if publisher does not use MDC
+   */
+  @Nullable
+  MdcSnapshot getMdcSnapshot() {
+    return mdcSnapshot;
+  }
+
+  void setMdcSnapshot(@Nullable MdcSnapshot mdcSnapshot) {
+    this.mdcSnapshot = mdcSnapshot;
   }
 
   void complete() {
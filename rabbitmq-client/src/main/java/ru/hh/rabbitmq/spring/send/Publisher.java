@@ -11,8 +11,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -21,38 +23,88 @@ import java.util.concurrent.TimeoutException;
 import javax.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.slf4j.MDC;
+import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
 import ru.hh.nab.metrics.StatsDSender;
 import ru.hh.rabbitmq.spring.ConfigKeys;
-
+import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
+
+/**
+ * <p>
+ * Asynchronous publisher, sends messages from inner queue using {@link ConfigKeys#PUBLISHER_WORKERS_PER_HOST} workers (threads with own
+ * channels) per broker. With more than one worker per broker messages may be sent in order different from the order of sending to publisher.
+ * </p>
+ * <p>
+ * If {@link ConfigKeys#PUBLISHER_BATCH_SIZE} is greater than 1, messages to the same exchange and routing key are packed into one AMQP message
+ * in spring-amqp batch format: header {@code springBatchFormat=lengthHeader4}, body is a sequence of 4 byte big-endian length followed by
+ * message body. All messages of a batch share its properties and headers, messages with different properties are never packed together.
+ * {@link ru.hh.rabbitmq.spring.Receiver} unpacks batches and calls listener for each message.
+ * </p>
+ * <p>
+ * By default all brokers take tasks from one shared inner queue, so the first free worker gets the task. If {@link BrokerSelectionStrategy}
+ * is set (see {@link ConfigKeys#PUBLISHER_BROKER_SELECTION}), every broker has its own inner queue of
+ * {@link ConfigKeys#PUBLISHER_INNER_QUEUE_SIZE} and the strategy decides where each task goes.
+ * </p>
+ * <p>
+ * Broker is {@link BrokerStats#isAvailable() unavailable} while its send is retried and for {@link ConfigKeys#PUBLISHER_RETRY_DELAY_MS} after
+ * failed send. Worker sends through another available broker instead of unavailable one, including retries of its current task, and idle
+ * workers take tasks queued for unavailable brokers, so tasks do not wait for failed broker to come back while another one works.
+ * </p>
+ * <p>
+ * If {@link StatsDSender} is given to builder, latencies, retries, workers and inner queue are reported, see {@link PublisherMetrics}.
+ * </p>
+ */
 public class Publisher extends AbstractService {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(Publisher.class);
 
-  private final BlockingQueue<PublishTaskFuture> taskQueue;
+  private final List<Broker> brokers;
+  // distinct inner queues of brokers, single shared queue if there is no broker selection strategy
+  private final Collection<BlockingQueue<PublishTaskFuture>> taskQueues;
+  @Nullable
+  private final BrokerSelectionStrategy brokerSelectionStrategy;
 
-  private final Collection<ChannelWorker> workers;
+  private final Collection<AbstractChannelWorker> workers;
   private final String name;
-  private final boolean useMDC;
+  @Nullable
+  private final MdcSnapshots mdcSnapshots;
+  @Nullable
+  private final PublisherMetrics metrics;
   private final int innerQueueShutdownMs;
+  @Nullable
+  private final PublishCoalescer coalescer;
 
   Publisher(String commonName,
             int innerQueueSize,
             Collection<? extends RabbitTemplate> templates,
             int retryDelayMs,
-            boolean useMDC,
+            @Nullable
+            MDCMessagePropertiesConverter mdcConverter,
             int innerQueueShutdownMs,
             @Nullable
             String serviceName,
             @Nullable
-            StatsDSender statsDSender) {
-
-    taskQueue = new ArrayBlockingQueue<>(innerQueueSize);
-
-    final List<ChannelWorker> workers = new ArrayList<>(templates.size());
+            StatsDSender statsDSender,
+            @Nullable
+            PublisherMetrics metrics,
+            @Nullable
+            BatchingSettings batchingSettings,
+            Duration coalescingWindow,
+            @Nullable
+            BrokerSelectionStrategy brokerSelectionStrategy,
+            Map<String, Integer> hostWeights,
+            int workersPerHost,
+            List<PublishInterceptor> interceptors,
+            boolean publishedMillisHeader) {
+
+    this.brokerSelectionStrategy = brokerSelectionStrategy;
+    BlockingQueue<PublishTaskFuture> sharedTaskQueue = brokerSelectionStrategy == null ? new ArrayBlockingQueue<>(innerQueueSize) : null;
+
+    final List<Broker> brokers = new ArrayList<>(templates.size());
+    final Set<BlockingQueue<PublishTaskFuture>> taskQueues = Collections.newSetFromMap(new IdentityHashMap<>());
+    final List<AbstractChannelWorker> workers = new ArrayList<>(templates.size() * workersPerHost);
     final List<String> connectionFactoriesNames = new ArrayList<>(templates.size());
     for (RabbitTemplate template : templates) {
       ConnectionFactory connectionFactory = template.getConnectionFactory();
@@ -60,19 +112,58 @@ public class Publisher extends AbstractService {
       String connectionFactoryName = connectionFactory.getHost() + ':' + connectionFactory.getPort();
       connectionFactoriesNames.add(connectionFactoryName);
 
-      String workerName = "rabbit-publisher-" + commonName + '-' + connectionFactoryName;
-      MessageSender messageSender = new MessageSender(template, serviceName, statsDSender);
-      ChannelWorker worker = new ChannelWorker(workerName, messageSender, taskQueue, Duration.ofMillis(retryDelayMs));
-      workers.add(worker);
+      MessageSender messageSender = new MessageSender(template, serviceName, statsDSender, interceptors, publishedMillisHeader);
+      BlockingQueue<PublishTaskFuture> taskQueue = sharedTaskQueue != null ? sharedTaskQueue : new ArrayBlockingQueue<>(innerQueueSize);
+      Broker broker = new Broker(connectionFactoryName, hostWeights.getOrDefault(connectionFactoryName, 1), taskQueue, messageSender,
+          Duration.ofMillis(retryDelayMs));
+      brokers.add(broker);
+      taskQueues.add(taskQueue);
+
+      // every worker thread holds a channel while sending, keep them all cached instead of opening and closing on every send
+      if (connectionFactory instanceof CachingConnectionFactory) {
+        CachingConnectionFactory cachingConnectionFactory = (CachingConnectionFactory) connectionFactory;
+        if (cachingConnectionFactory.getChannelCacheSize() < workersPerHost) {
+          cachingConnectionFactory.setChannelCacheSize(workersPerHost);
+        }
+      }
+
+      for (int i = 0; i < workersPerHost; i++) {
+        String workerName = "rabbit-publisher-" + commonName + '-' + connectionFactoryName + (workersPerHost > 1 ? "-" + i : "");
+        AbstractChannelWorker worker;
+        if (batchingSettings != null) {
+          worker = new BatchingChannelWorker(workerName, messageSender, metrics, broker, Duration.ofMillis(retryDelayMs), batchingSettings);
+        } else {
+          worker = new ChannelWorker(workerName, messageSender, metrics, broker, Duration.ofMillis(retryDelayMs));
+        }
+        workers.add(worker);
+      }
 
       connectionFactoriesNames.add(connectionFactoryName);
     }
     this.workers = Collections.unmodifiableList(workers);
+    this.brokers = Collections.unmodifiableList(brokers);
+    BrokerSelectionStrategy failoverStrategy =
+        brokerSelectionStrategy != null ? brokerSelectionStrategy : BrokerSelectionStrategies.leastOutstanding();
+    for (Broker broker : brokers) {
+      broker.setBrokers(this.brokers, failoverStrategy);
+    }
+    this.taskQueues = Collections.unmodifiableCollection(new ArrayList<>(taskQueues));
     name = getClass().getSimpleName() + '{' + commonName + ',' + String.join(",", connectionFactoriesNames) + '}';
 
-    this.useMDC = useMDC;
+    mdcSnapshots = mdcConverter != null ? new MdcSnapshots(mdcConverter) : null;
+
+    this.metrics = metrics;
+    if (metrics != null) {
+      metrics.register(this.workers, this::getQueuedTasks, this::getRemainingCapacity);
+    }
 
     this.innerQueueShutdownMs = innerQueueShutdownMs;
+
+    if (coalescingWindow.isZero()) {
+      coalescer = null;
+    } else {
+      coalescer = new PublishCoalescer("rabbit-publisher-" + commonName + "-coalescer", coalescingWindow, this::enqueue);
+    }
   }
 
   public void startSync() {
@@ -108,13 +199,22 @@ public class Publisher extends AbstractService {
 
   @Override
   protected void doStop() {
-    // wait till inner queue is empty
+    if (coalescer != null) {
+      coalescer.flushAll();
+    }
+
+    // wait till inner queue is empty and batching workers have sent everything
     long maxWaitTimeMs = currentTimeMillis() + innerQueueShutdownMs;
-    while (currentTimeMillis() < maxWaitTimeMs && !taskQueue.isEmpty()) {
+    while (currentTimeMillis() < maxWaitTimeMs && (getQueuedTasks() > 0 || getPendingMessages() > 0)) {
       sleepUninterruptibly(100, MILLISECONDS);
     }
-    if (!taskQueue.isEmpty()) {
-      LOGGER.warn("Shutting down with {} tasks still in inner queue, they will be dropped", taskQueue.size());
+    int queuedTasks = getQueuedTasks();
+    if (queuedTasks > 0) {
+      LOGGER.warn("Shutting down with {} tasks still in inner queue, they will be dropped", queuedTasks);
+    }
+    int pendingMessages = getPendingMessages();
+    if (pendingMessages > 0) {
+      LOGGER.warn("Shutting down with {} messages still in unsent batches, they will be dropped", pendingMessages);
     }
 
     for (Service worker : workers) {
@@ -127,6 +227,18 @@ public class Publisher extends AbstractService {
     notifyStopped();
   }
 
+  private int getQueuedTasks() {
+    return taskQueues.stream().mapToInt(BlockingQueue::size).sum();
+  }
+
+  private int getRemainingCapacity() {
+    return taskQueues.stream().mapToInt(BlockingQueue::remainingCapacity).sum();
+  }
+
+  private int getPendingMessages() {
+    return workers.stream().mapToInt(AbstractChannelWorker::getPendingMessages).sum();
+  }
+
   /**
    * Potentially blocking method, enqueues messages internally, waiting if necessary, throws exception if local queue is full.
    * <p>
@@ -214,9 +326,17 @@ public class Publisher extends AbstractService {
 
   private void offerFuture(PublishTaskFuture future, long timeoutMs) throws InterruptedException {
     checkAndCopyMDC(future);
-    boolean added = taskQueue.offer(future, timeoutMs, MILLISECONDS);
-    if (!added) {
-      throw new QueueIsFullException(toString());
+    BlockingQueue<PublishTaskFuture> taskQueue = selectTaskQueue(future);
+    if (taskQueue == null) {
+      // all queues are full, wait for the preferred one
+      int selected = brokerSelectionStrategy == null ? 0 : brokerSelectionStrategy.select(brokers);
+      taskQueue = brokers.get(selected).getTaskQueue();
+      if (!taskQueue.offer(future, timeoutMs, MILLISECONDS)) {
+        throw new QueueIsFullException(toString());
+      }
+    }
+    if (metrics != null) {
+      metrics.sampleQueue();
     }
     LOGGER.trace("task added with {} messages, queue size is {}", future.getMessages().size(), taskQueue.size());
   }
@@ -301,32 +421,109 @@ public class Publisher extends AbstractService {
     return future;
   }
 
+  /**
+   * <p>
+   * Nonblocking method, keeps the message for {@link ConfigKeys#PUBLISHER_COALESCING_WINDOW_MS} before passing it to inner queue. If another
+   * message with equal key and same destination is sent within the window, it replaces the pending one, so only the last message is sent.
+   * Window starts with the first message and is not extended by replacements. Key must implement {@code equals()} and {@code hashCode()}.
+   * </p>
+   * <p>
+   * Futures returned for replaced messages are completed along with the future of the message that is actually sent. If coalescing is not
+   * configured, message is enqueued immediately. Inner queue overflow fails the future instead of throwing {@link QueueIsFullException}.
+   * </p>
+   *
+   * @return ListenableFuture that gets completed after successful sending of the last message for the key
+   */
+  public ListenableFuture<Void> sendCoalesced(Object key, Destination destination, Object message) {
+    checkNotNull(key, "Key can't be null");
+    checkNotNull(destination, "Destination can't be null");
+    return coalesce(key, destination, message);
+  }
+
+  /**
+   * Same as {@link #sendCoalesced(Object, Destination, Object)}, configuration options {@link ConfigKeys#PUBLISHER_EXCHANGE} and
+   * {@link ConfigKeys#PUBLISHER_ROUTING_KEY} must be set.
+   */
+  public ListenableFuture<Void> sendCoalesced(Object key, Object message) {
+    checkNotNull(key, "Key can't be null");
+    return coalesce(key, null, message);
+  }
+
+  private ListenableFuture<Void> coalesce(Object key, @Nullable Destination destination, Object message) {
+    if (coalescer == null) {
+      PublishTaskFuture future = new PublishTaskFuture(destination, Collections.singletonList(message));
+      addFuture(future);
+      return future;
+    }
+    checkStarted();
+    return coalescer.submit(key, destination, message, mdcSnapshots != null ? mdcSnapshots.capture() : null);
+  }
+
   private void addFuture(PublishTaskFuture future) {
     checkAndCopyMDC(future);
-    try {
-      taskQueue.add(future);
-      LOGGER.trace("task added with {} messages, queue size is {}", future.getMessages().size(), taskQueue.size());
+    enqueue(future);
+  }
+
+  private void enqueue(PublishTaskFuture future) {
+    BlockingQueue<PublishTaskFuture> taskQueue = selectTaskQueue(future);
+    if (taskQueue == null) {
+      throw new QueueIsFullException(toString());
+    }
+    if (metrics != null) {
+      metrics.sampleQueue();
     }
-    catch (IllegalStateException e) {
-      throw new QueueIsFullException(toString(), e);
+    LOGGER.trace("task added with {} messages, queue size is {}", future.getMessages().size(), taskQueue.size());
+  }
+
+  /**
+   * Adds task to the queue of the broker chosen by strategy, or to the queue of any other broker if that one is full.
+   *
+   * @return queue task was added to, null if all queues are full
+   */
+  @Nullable
+  private BlockingQueue<PublishTaskFuture> selectTaskQueue(PublishTaskFuture future) {
+    if (brokerSelectionStrategy == null) {
+      BlockingQueue<PublishTaskFuture> taskQueue = brokers.get(0).getTaskQueue();
+      return taskQueue.offer(future) ? taskQueue : null;
     }
+    int selected = brokerSelectionStrategy.select(brokers);
+    for (int i = 0; i < brokers.size(); i++) {
+      BlockingQueue<PublishTaskFuture> taskQueue = brokers.get((selected + i) % brokers.size()).getTaskQueue();
+      if (taskQueue.offer(future)) {
+        return taskQueue;
+      }
+    }
+    return null;
   }
 
   private void checkAndCopyMDC(PublishTaskFuture future) {
     checkStarted();
-    if (useMDC) {
-      future.setMdcContext(MDC.getCopyOfContextMap());
+    if (mdcSnapshots != null) {
+      future.setMdcSnapshot(mdcSnapshots.capture());
     }
   }
 
+  /**
+   * @return number of tasks in inner queues of all brokers
+   */
   public int getInnerQueueSize() {
     checkStarted();
-    return taskQueue.size();
+    return getQueuedTasks();
   }
 
+  /**
+   * @return remaining capacity of inner queues of all brokers
+   */
   public int getInnerQueueRemainingCapacity() {
     checkStarted();
-    return taskQueue.remainingCapacity();
+    return getRemainingCapacity();
+  }
+
+  /**
+   * @return statistics of brokers in the same order as used by {@link BrokerSelectionStrategy}
+   */
+  public List<? extends BrokerStats> getBrokerStats() {
+    return brokers;
   }
 
   private void checkStarted() {
@@ -1,6 +1,8 @@
 package ru.hh.rabbitmq.spring.send;
 
+import java.time.Duration;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Properties;
 import javax.annotation.Nullable;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
@@ -8,9 +10,16 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
 import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
 import org.springframework.amqp.support.converter.MessageConverter;
 import ru.hh.nab.metrics.StatsDSender;
+import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_BROKER_SELECTION;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_COALESCING_WINDOW_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_HOSTS;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_INNER_QUEUE_SHUTDOWN_MS;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_INNER_QUEUE_SIZE;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_RETRY_DELAY_MS;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_WORKERS_PER_HOST;
+import ru.hh.rabbitmq.spring.ConfigException;
+import ru.hh.rabbitmq.spring.ConnectionsFactory;
 import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
 import ru.hh.rabbitmq.spring.PropertiesHelper;
 
@@ -19,11 +28,21 @@ public class PublisherBuilder extends AbstractPublisherBuilder {
   private final int innerQueueSize;
   private final int innerQueueShutdownMs;
   private final int retryDelayMs;
-  private final boolean useMDC;
+  @Nullable
+  private final MDCMessagePropertiesConverter mdcConverter;
+  @Nullable
+  private final BatchingSettings batchingSettings;
+  private final Duration coalescingWindow;
+  private final Map<String, Integer> hostWeights;
+  private final int workersPerHost;
+  @Nullable
+  private BrokerSelectionStrategy brokerSelectionStrategy;
   @Nullable
   private final StatsDSender statsDSender;
   @Nullable
   private final String serviceName;
+  @Nullable
+  private final PublisherMetrics metrics;
 
   public PublisherBuilder(Collection<ConnectionFactory> connectionFactories,
                           Properties properties,
@@ -34,11 +53,27 @@ public class PublisherBuilder extends AbstractPublisherBuilder {
     super(connectionFactories, properties);
     this.serviceName = serviceName;
     this.statsDSender = statsDSender;
+    metrics = statsDSender != null ? new PublisherMetrics(commonName, serviceName, statsDSender) : null;
     PropertiesHelper props = new PropertiesHelper(properties);
     innerQueueSize = props.getInteger(PUBLISHER_INNER_QUEUE_SIZE, 1000);
     innerQueueShutdownMs = props.getInteger(PUBLISHER_INNER_QUEUE_SHUTDOWN_MS, 3000);
     retryDelayMs = props.getInteger(PUBLISHER_RETRY_DELAY_MS, 2000);
-    useMDC = checkIsUsingMdc(templates);
+    mdcConverter = getMdcConverter(templates);
+    batchingSettings = BatchingSettings.fromProperties(props);
+    int coalescingWindowMs = props.getInteger(PUBLISHER_COALESCING_WINDOW_MS, 0);
+    if (coalescingWindowMs < 0) {
+      throw new ConfigException(PUBLISHER_COALESCING_WINDOW_MS + " must not be negative");
+    }
+    coalescingWindow = Duration.ofMillis(coalescingWindowMs);
+    hostWeights = ConnectionsFactory.getHostWeights(properties, PUBLISHER_HOSTS, HOSTS);
+    workersPerHost = props.getInteger(PUBLISHER_WORKERS_PER_HOST, 1);
+    if (workersPerHost < 1) {
+      throw new ConfigException(PUBLISHER_WORKERS_PER_HOST + " must be positive");
+    }
+    String brokerSelection = props.getString(PUBLISHER_BROKER_SELECTION);
+    if (brokerSelection != null) {
+      brokerSelectionStrategy = BrokerSelectionStrategies.forName(brokerSelection);
+    }
   }
 
   public PublisherBuilder withMessageConverter(MessageConverter converter) {
@@ -51,8 +86,11 @@ public class PublisherBuilder extends AbstractPublisherBuilder {
     return this;
   }
 
+  /**
+   * If {@link StatsDSender} is given, callback is wrapped to measure time from sending {@link CorrelatedMessage} to its confirm.
+   */
   public PublisherBuilder withConfirmCallback(ConfirmCallback callback) {
-    withConfirmCallbackInternal(callback);
+    withConfirmCallbackInternal(metrics != null ? metrics.timingConfirmCallback(callback) : callback);
     return this;
   }
 
@@ -61,12 +99,30 @@ public class PublisherBuilder extends AbstractPublisherBuilder {
     return this;
   }
 
+  /**
+   * Overrides {@link ru.hh.rabbitmq.spring.ConfigKeys#PUBLISHER_BROKER_SELECTION}. Strategy instance must not be shared between publishers.
+   */
+  public PublisherBuilder withBrokerSelectionStrategy(BrokerSelectionStrategy strategy) {
+    brokerSelectionStrategy = strategy;
+    return this;
+  }
+
+  public PublisherBuilder withInterceptor(PublishInterceptor interceptor) {
+    withInterceptorInternal(interceptor);
+    return this;
+  }
+
   public Publisher build() {
-    return new Publisher(commonName, innerQueueSize, templates, retryDelayMs, useMDC, innerQueueShutdownMs, serviceName, statsDSender);
+    return new Publisher(commonName, innerQueueSize, templates, retryDelayMs, mdcConverter, innerQueueShutdownMs, serviceName, statsDSender,
+        metrics, batchingSettings, coalescingWindow, brokerSelectionStrategy, hostWeights, workersPerHost, interceptors, publishedMillisHeader);
   }
 
-  private static boolean checkIsUsingMdc(Collection<HhRabbitTemplate> templates) {
+  @Nullable
+  private static MDCMessagePropertiesConverter getMdcConverter(Collection<HhRabbitTemplate> templates) {
     HhRabbitTemplate template = templates.iterator().next();
-    return template.getMessagePropertiesConverter() instanceof MDCMessagePropertiesConverter;
+    if (template.getMessagePropertiesConverter() instanceof MDCMessagePropertiesConverter) {
+      return (MDCMessagePropertiesConverter) template.getMessagePropertiesConverter();
+    }
+    return null;
   }
 }
@@ -0,0 +1,145 @@
+package ru.hh.rabbitmq.spring.send;
+
+import java.util.Collection;
+import java.util.Collections;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import java.util.function.IntSupplier;
+import javax.annotation.Nullable;
+import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/**
+ * <p>
+ * Instrumentation of {@link Publisher}, sent with {@link StatsDSender#sendPeriodically(Runnable)} under
+ * {@code <serviceName>.rabbit.publishers.*}, tagged with publisher name:
+ * </p>
+ * <ul>
+ * <li>{@code queueTimeMicros} - time task spent in inner queue before worker took it;</li>
+ * <li>{@code sendTimeMicros} - time from enqueueing task to sending all of its messages, including retries and batching linger;</li>
+ * <li>{@code confirmTimeMicros} - time from sending {@link CorrelatedMessage} to receiving confirm for it, measured only if confirm callback
+ * is set with {@link PublisherBuilder#withConfirmCallback};</li>
+ * <li>{@code pendingConfirms} - published {@link CorrelatedMessage}s waiting for confirm, sampled on reporting if confirm callback is
+ * set;</li>
+ * <li>{@code retries} - failed send attempts, tagged with broker;</li>
+ * <li>{@code workerBusyMillis} - time worker spent sending, tagged with worker;</li>
+ * <li>{@code workerStuckMillis} - how long worker has been sending its current task at the moment of reporting, tagged with worker;</li>
+ * <li>{@code queueDepth}, {@code queueRemainingCapacity} - size and remaining capacity of inner queues, sampled on every enqueue and on
+ * reporting.</li>
+ * </ul>
+ */
+class PublisherMetrics {
+  private static final int[] PERCENTILES = {50, 95, 99, 100};
+  private static final int MAX_HISTOGRAM_SIZE = 2000;
+
+  private final Tag publisherTag;
+  private final Histograms queueTimes = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms sendTimes = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms confirmTimes = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms queueDepths = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms queueRemainingCapacities = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Histograms pendingConfirms = new Histograms(MAX_HISTOGRAM_SIZE, 20);
+  private final Counters retries = new Counters(20);
+  private final Counters workerBusyTimes = new Counters(50);
+  private final Counters workerStuckTimes = new Counters(50);
+  private final ConfirmTimer confirmTimer = new ConfirmTimer();
+  private final String prefix;
+  private final StatsDSender statsDSender;
+
+  private volatile Collection<AbstractChannelWorker> workers = Collections.emptyList();
+  private volatile IntSupplier queueDepth = () -> 0;
+  private volatile IntSupplier queueRemainingCapacity = () -> 0;
+
+  private volatile boolean confirmsTimed;
+
+  PublisherMetrics(String publisherName, @Nullable String serviceName, StatsDSender statsDSender) {
+    publisherTag = new Tag("publisher", publisherName);
+    prefix = serviceName + ".rabbit.publishers.";
+    this.statsDSender = statsDSender;
+  }
+
+  /**
+   * Starts periodic sending, called once publisher is built so that builders that are never built do not report anything.
+   */
+  void register(Collection<AbstractChannelWorker> workers, IntSupplier queueDepth, IntSupplier queueRemainingCapacity) {
+    this.workers = workers;
+    this.queueDepth = queueDepth;
+    this.queueRemainingCapacity = queueRemainingCapacity;
+    statsDSender.sendPeriodically(this::send);
+  }
+
+  private void send() {
+    sampleQueue();
+    if (confirmsTimed) {
+      pendingConfirms.save(confirmTimer.getPending(), publisherTag);
+    }
+    for (AbstractChannelWorker worker : workers) {
+      Tag workerTag = new Tag("worker", worker.getName());
+      workerBusyTimes.add(toMillis(worker.getAndResetBusyNanos()), publisherTag, workerTag);
+      workerStuckTimes.add(toMillis(worker.getBusyForNanos()), publisherTag, workerTag);
+    }
+
+    statsDSender.sendHistograms(prefix + "queueTimeMicros", queueTimes, PERCENTILES);
+    statsDSender.sendHistograms(prefix + "sendTimeMicros", sendTimes, PERCENTILES);
+    statsDSender.sendHistograms(prefix + "confirmTimeMicros", confirmTimes, PERCENTILES);
+    statsDSender.sendHistograms(prefix + "pendingConfirms", pendingConfirms, PERCENTILES);
+    statsDSender.sendHistograms(prefix + "queueDepth", queueDepths, PERCENTILES);
+    statsDSender.sendHistograms(prefix + "queueRemainingCapacity", queueRemainingCapacities, PERCENTILES);
+    statsDSender.sendCounters(prefix + "retries", retries);
+    statsDSender.sendCounters(prefix + "workerBusyMillis", workerBusyTimes);
+    statsDSender.sendCounters(prefix + "workerStuckMillis", workerStuckTimes);
+  }
+
+  /**
+   * Wraps callback so that confirms of {@link CorrelatedMessage}s are timed.
+   */
+  ConfirmCallback timingConfirmCallback(ConfirmCallback callback) {
+    confirmsTimed = true;
+    return (correlationData, ack, cause) -> {
+      long elapsedNanos = confirmTimer.confirmed(correlationData);
+      if (elapsedNanos >= 0) {
+        confirmTimes.save(toMicros(elapsedNanos), publisherTag);
+      }
+      callback.confirm(correlationData, ack, cause);
+    };
+  }
+
+  void sampleQueue() {
+    queueDepths.save(queueDepth.getAsInt(), publisherTag);
+    queueRemainingCapacities.save(queueRemainingCapacity.getAsInt(), publisherTag);
+  }
+
+  void taskTaken(PublishTaskFuture task) {
+    queueTimes.save(toMicros(System.nanoTime() - task.getEnqueuedNanos()), publisherTag);
+  }
+
+  void taskSent(PublishTaskFuture task) {
+    sendTimes.save(toMicros(System.nanoTime() - task.getEnqueuedNanos()), publisherTag);
+  }
+
+  void messageSending(Object message) {
+    if (confirmsTimed) {
+      confirmTimer.sending(message);
+    }
+  }
+
+  void messageFailed(Object message) {
+    if (confirmsTimed) {
+      confirmTimer.failed(message);
+    }
+  }
+
+  void retry(String brokerName) {
+    retries.add(1, publisherTag, new Tag("broker", brokerName));
+  }
+
+  private static int toMicros(long nanos) {
+    return (int) Math.min(NANOSECONDS.toMicros(nanos), Integer.MAX_VALUE);
+  }
+
+  private static int toMillis(long nanos) {
+    return (int) Math.min(NANOSECONDS.toMillis(nanos), Integer.MAX_VALUE);
+  }
+}
@@ -1,11 +1,15 @@
 package ru.hh.rabbitmq.spring.send;
 
+import java.util.List;
 import java.util.Properties;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
 import ru.hh.rabbitmq.spring.PropertiesHelper;
+import static ru.hh.rabbitmq.spring.ConfigKeys.MDC_KEYS_SEPARATOR_PATTERN;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_EXCHANGE;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_MANDATORY;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_MDC_COMPACT;
+import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_MDC_KEYS;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_ROUTING_KEY;
 import static ru.hh.rabbitmq.spring.ConfigKeys.PUBLISHER_USE_MDC;
 
@@ -13,12 +17,16 @@ public class RabbitTemplateFactory {
   private Destination destination;
   private Boolean mandatory;
   private Boolean useMDC;
+  private List<String> mdcKeys;
+  private boolean compactMDC;
 
   public RabbitTemplateFactory(Properties properties) {
     PropertiesHelper props = new PropertiesHelper(properties);
     destination = createDestination(props);
     mandatory = props.getBoolean(PUBLISHER_MANDATORY);
     useMDC = props.getBoolean(PUBLISHER_USE_MDC, false);
+    mdcKeys = props.getStringList(PUBLISHER_MDC_KEYS, MDC_KEYS_SEPARATOR_PATTERN);
+    compactMDC = props.getBoolean(PUBLISHER_MDC_COMPACT, false);
   }
 
   public HhRabbitTemplate createTemplate(ConnectionFactory factory) {
@@ -37,7 +45,7 @@ public class RabbitTemplateFactory {
     }
 
     if (Boolean.TRUE.equals(useMDC)) {
-      template.setMessagePropertiesConverter(new MDCMessagePropertiesConverter());
+      template.setMessagePropertiesConverter(new MDCMessagePropertiesConverter(mdcKeys, compactMDC));
     }
     return template;
   }
@@ -2,24 +2,29 @@ package ru.hh.rabbitmq.spring.send;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.AbstractService;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.support.CorrelationData;
+import ru.hh.rabbitmq.spring.ConfigKeys;
 
 public class SyncPublisher extends AbstractService {
 
   private final String name;
   private final MessageSender messageSender;
+  private final BatchingSettings batchingSettings;
 
-  SyncPublisher(String commonName, RabbitTemplate template, MessageSender messageSender) {
+  SyncPublisher(String commonName, RabbitTemplate template, MessageSender messageSender, BatchingSettings batchingSettings) {
     ConnectionFactory connectionFactory = template.getConnectionFactory();
     String connectionFactoryName = connectionFactory.getHost() + ':' + connectionFactory.getPort();
     name = getClass().getSimpleName() + '{' + commonName + ',' + connectionFactoryName + '}';
     this.messageSender = messageSender;
+    this.batchingSettings = batchingSettings;
   }
 
   @VisibleForTesting
@@ -72,6 +77,57 @@ public class SyncPublisher extends AbstractService {
     send(null, message);
   }
 
+  /**
+   * <p>
+   * Blocking method, packs messages into as few AMQP messages as {@link ConfigKeys#PUBLISHER_BATCH_SIZE} and
+   * {@link ConfigKeys#PUBLISHER_BATCH_BYTES} allow (see {@link Publisher} for batch format) and sends them, or throws {@link AmqpException}.
+   * Messages with different properties are sent in different batches, {@link CorrelatedMessage}s are sent one by one, order of messages is
+   * preserved.
+   * </p>
+   * <p>
+   * If exception is thrown, some of the batches might have already been sent.
+   * </p>
+   */
+  public void sendBatch(Destination destination, Collection<?> messages) throws AmqpException {
+    checkStarted();
+    String exchange = messageSender.getExchange(destination);
+    String routingKey = messageSender.getRoutingKey(destination);
+    MessageBatch batch = null;
+    for (Object message : messages) {
+      if (message instanceof CorrelatedMessage) {
+        // correlation data can't be attached to a message inside batch
+        if (batch != null) {
+          messageSender.publishBatch(batch, destination);
+          batch = null;
+        }
+        messageSender.publishMessage(message, destination);
+        continue;
+      }
+      Message converted = messageSender.toMessage(message);
+      if (batch != null && (batch.size() >= batchingSettings.getSize()
+          || batch.bytes() + MessageBatch.bytesOf(converted) > batchingSettings.getBytes()
+          || !batch.canAppend(converted))) {
+        messageSender.publishBatch(batch, destination);
+        batch = null;
+      }
+      if (batch == null) {
+        batch = new MessageBatch(exchange, routingKey, converted);
+      } else {
+        batch.append(converted);
+      }
+    }
+    if (batch != null) {
+      messageSender.publishBatch(batch, destination);
+    }
+  }
+
+  /**
+   * Same as {@link #sendBatch(Destination, Collection)} using default exchange and routing key.
+   */
+  public void sendBatch(Collection<?> messages) throws AmqpException {
+    sendBatch(null, messages);
+  }
+
   @Override
   public String toString() {
     return name;
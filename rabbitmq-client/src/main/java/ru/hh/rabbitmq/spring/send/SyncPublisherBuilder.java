@@ -10,12 +10,14 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate.ReturnCallback;
 import org.springframework.amqp.support.converter.MessageConverter;
 import ru.hh.nab.metrics.StatsDSender;
 import ru.hh.rabbitmq.spring.ConfigException;
+import ru.hh.rabbitmq.spring.PropertiesHelper;
 
 public class SyncPublisherBuilder extends AbstractPublisherBuilder {
   @Nullable
   private final String serviceName;
   @Nullable
   private final StatsDSender statsDSender;
+  private final BatchingSettings batchingSettings;
 
   public SyncPublisherBuilder(Collection<ConnectionFactory> connectionFactories,
                               Properties properties,
@@ -29,6 +31,8 @@ public class SyncPublisherBuilder extends AbstractPublisherBuilder {
     if (templates.size() > 1) {
       throw new ConfigException("Multiple hosts are not allowed for sync publisher");
     }
+    BatchingSettings batchingSettings = BatchingSettings.fromProperties(new PropertiesHelper(properties));
+    this.batchingSettings = batchingSettings != null ? batchingSettings : BatchingSettings.defaults();
   }
 
   public SyncPublisherBuilder setTransactional(boolean transactional) {
@@ -58,10 +62,15 @@ public class SyncPublisherBuilder extends AbstractPublisherBuilder {
     return this;
   }
 
+  public SyncPublisherBuilder withInterceptor(PublishInterceptor interceptor) {
+    withInterceptorInternal(interceptor);
+    return this;
+  }
+
   public SyncPublisher build() {
     RabbitTemplate template = templates.iterator().next();
-    MessageSender messageSender = new MessageSender(template, serviceName, statsDSender);
-    return new SyncPublisher(commonName, template, messageSender);
+    MessageSender messageSender = new MessageSender(template, serviceName, statsDSender, interceptors, publishedMillisHeader);
+    return new SyncPublisher(commonName, template, messageSender, batchingSettings);
   }
 
 }
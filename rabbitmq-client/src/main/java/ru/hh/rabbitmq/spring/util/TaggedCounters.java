@@ -0,0 +1,75 @@
+package ru.hh.rabbitmq.spring.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Tag;
+
+/**
+ * <p>
+ * Counters with single tag for hot paths: {@link Tag} instance is created once per tag value and counts are accumulated in {@link LongAdder}s,
+ * so counting a message neither allocates nor contends on shared {@link Counters}. Accumulated counts are moved to {@link Counters} by
+ * {@link #flush()}, which is meant to be called from {@link ru.hh.nab.metrics.StatsDSender#sendPeriodically(Runnable)}.
+ * </p>
+ * <p>
+ * At most {@code maxNumOfCounters} tag values are cached, counts for other values go to {@link Counters} directly.
+ * </p>
+ */
+public class TaggedCounters {
+  private static final String UNKNOWN = "unknown";
+
+  private final String tagName;
+  private final int maxNumOfCounters;
+  private final Counters counters;
+  private final ConcurrentMap<String, TaggedAdder> adders = new ConcurrentHashMap<>();
+
+  public TaggedCounters(String tagName, int maxNumOfCounters) {
+    this.tagName = tagName;
+    this.maxNumOfCounters = maxNumOfCounters;
+    counters = new Counters(maxNumOfCounters);
+  }
+
+  /**
+   * @param tagValue value of the tag, null is counted as "unknown"
+   */
+  public void add(@Nullable String tagValue, int value) {
+    String key = tagValue != null ? tagValue : UNKNOWN;
+    TaggedAdder adder = adders.get(key);
+    if (adder == null) {
+      if (adders.size() >= maxNumOfCounters) {
+        counters.add(value, new Tag(tagName, key));
+        return;
+      }
+      adder = adders.computeIfAbsent(key, k -> new TaggedAdder(new Tag(tagName, k)));
+    }
+    adder.count.add(value);
+  }
+
+  /**
+   * Moves counts accumulated since previous call to {@link Counters}.
+   *
+   * @return counters to send
+   */
+  public Counters flush() {
+    for (Map.Entry<String, TaggedAdder> entry : adders.entrySet()) {
+      TaggedAdder adder = entry.getValue();
+      long count = adder.count.sumThenReset();
+      if (count > 0) {
+        counters.add((int) Math.min(count, Integer.MAX_VALUE), adder.tag);
+      }
+    }
+    return counters;
+  }
+
+  private static final class TaggedAdder {
+    final Tag tag;
+    final LongAdder count = new LongAdder();
+
+    TaggedAdder(Tag tag) {
+      this.tag = tag;
+    }
+  }
+}
@@ -1,12 +1,18 @@
 package ru.hh.rabbitmq.spring;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.junit.Test;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static ru.hh.rabbitmq.spring.ConfigKeys.HOSTS;
 
 
@@ -87,6 +93,115 @@ public class ClientFactoryIntegrationTest {
     assertEquals(testPort, connectionFactories.get(0).getPort());
   }
 
+  @Test
+  public void testParseHostWeights() {
+    Properties properties = new Properties();
+    properties.setProperty(ConfigKeys.HOSTS, "localhost:123*3,otherhost");
+    properties.setProperty(ConfigKeys.USERNAME, "guest");
+    properties.setProperty(ConfigKeys.PASSWORD, "guest");
+    ClientFactory clientFactory = new ClientFactory(properties);
+    List<ConnectionFactory> connectionFactories = clientFactory.createConnectionFactories(true, HOSTS);
+    assertEquals(2, connectionFactories.size());
+    assertEquals("localhost", connectionFactories.get(0).getHost());
+    assertEquals(123, connectionFactories.get(0).getPort());
+
+    Map<String, Integer> weights = ConnectionsFactory.getHostWeights(properties, HOSTS);
+    assertEquals(Collections.singletonMap("localhost:123", 3), weights);
+  }
+
+  @Test
+  public void testHostWeightsFromSettingOfHosts() {
+    Properties properties = new Properties();
+    properties.setProperty(ConfigKeys.HOSTS, "common*5");
+    properties.setProperty(ConfigKeys.PUBLISHER_HOSTS, "publisher*2,other");
+    Map<String, Integer> weights = ConnectionsFactory.getHostWeights(properties, ConfigKeys.PUBLISHER_HOSTS, HOSTS);
+    assertEquals(Collections.singletonMap("publisher:5672", 2), weights);
+
+    properties.remove(ConfigKeys.PUBLISHER_HOSTS);
+    weights = ConnectionsFactory.getHostWeights(properties, ConfigKeys.PUBLISHER_HOSTS, HOSTS);
+    assertEquals(Collections.singletonMap("common:5672", 5), weights);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testInvalidHostWeight() {
+    Properties properties = new Properties();
+    properties.setProperty(ConfigKeys.HOSTS, "localhost*0");
+    ConnectionsFactory.getHostWeights(properties, HOSTS);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testNegativeCoalescingWindow() {
+    Properties properties = new Properties();
+    properties.setProperty(ConfigKeys.HOSTS, "localhost");
+    properties.setProperty(ConfigKeys.USERNAME, "guest");
+    properties.setProperty(ConfigKeys.PASSWORD, "guest");
+    properties.setProperty(ConfigKeys.PUBLISHER_COALESCING_WINDOW_MS, "-1");
+    publisher(properties);
+  }
+
+  @Test
+  public void testInvalidAutoscaling() {
+    Map<String, String> invalid = new LinkedHashMap<>();
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_MIN_CONSUMERS, "5");
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_INTERVAL_MS, "0");
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_DRAIN_MS, "-1");
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_IDLE_PERCENT, "101");
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_UP_SAMPLES, "0");
+    invalid.put(ConfigKeys.RECEIVER_AUTOSCALING_DOWN_SAMPLES, "-1");
+    for (Map.Entry<String, String> setting : invalid.entrySet()) {
+      Properties properties = receiverProperties();
+      properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_MAX_CONSUMERS, "4");
+      properties.setProperty(setting.getKey(), setting.getValue());
+      try {
+        new ClientFactory(properties).createReceiver();
+        fail(setting.getKey());
+      } catch (ConfigException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains(setting.getKey()));
+      }
+    }
+  }
+
+  @Test
+  public void testInvalidQueueBulkheads() {
+    for (String suffix : Arrays.asList(ConfigKeys.RECEIVER_QUEUE_THREADPOOL, ConfigKeys.RECEIVER_QUEUE_PREFETCH_COUNT)) {
+      String property = ConfigKeys.RECEIVER_QUEUE_PREFIX + "queue" + suffix;
+      for (String value : Arrays.asList("0", "-1", "many", "")) {
+        Properties properties = receiverProperties();
+        properties.setProperty(property, value);
+        try {
+          new ClientFactory(properties).createReceiver();
+          fail(property + '=' + value);
+        } catch (ConfigException e) {
+          assertTrue(e.getMessage(), e.getMessage().contains(property));
+        }
+      }
+    }
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testZeroInitialRetryDelay() {
+    Properties properties = receiverProperties();
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_MAX_ATTEMPTS, "3");
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_INITIAL_DELAY_MS, "0");
+    new ClientFactory(properties).createReceiver();
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testQueueBulkheadsWithDirectContainer() {
+    Properties properties = receiverProperties();
+    properties.setProperty(ConfigKeys.RECEIVER_CONTAINER, ConfigKeys.RECEIVER_CONTAINER_DIRECT);
+    properties.setProperty(ConfigKeys.RECEIVER_QUEUE_PREFIX + "queue" + ConfigKeys.RECEIVER_QUEUE_THREADPOOL, "2");
+    new ClientFactory(properties).createReceiver();
+  }
+
+  private static Properties receiverProperties() {
+    Properties properties = new Properties();
+    properties.setProperty(ConfigKeys.HOSTS, "localhost");
+    properties.setProperty(ConfigKeys.USERNAME, "guest");
+    properties.setProperty(ConfigKeys.PASSWORD, "guest");
+    return properties;
+  }
+
   private void publisher(Properties properties) {
     ClientFactory factory = new ClientFactory(properties);
     factory.createPublisherBuilder();
@@ -0,0 +1,35 @@
+package ru.hh.rabbitmq.spring;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.time.Duration;
+import java.util.Random;
+import org.junit.Test;
+
+public class FingerprintCacheTest {
+
+  @Test
+  public void testStripedCacheKeepsLatestFingerprints() {
+    int capacity = 64 * 1024;
+    FingerprintCache cache = new FingerprintCache(capacity, Duration.ofHours(1), 0);
+    Random random = new Random(1);
+    long[] fingerprints = new long[capacity * 2];
+    for (int i = 0; i < fingerprints.length; i++) {
+      fingerprints[i] = random.nextLong();
+      cache.add(fingerprints[i]);
+    }
+    // every stripe keeps about its share of capacity of the latest fingerprints, the oldest ones are evicted by size
+    for (int i = fingerprints.length - capacity * 9 / 10; i < fingerprints.length; i++) {
+      assertTrue(cache.contains(fingerprints[i]));
+    }
+    int evicted = 0;
+    for (int i = 0; i < capacity / 4; i++) {
+      if (!cache.contains(fingerprints[i])) {
+        evicted++;
+      }
+    }
+    assertEquals(capacity / 4, evicted);
+    assertFalse(cache.contains(random.nextLong()));
+  }
+}
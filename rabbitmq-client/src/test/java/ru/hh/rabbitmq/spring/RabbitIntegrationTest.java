@@ -1,23 +1,60 @@
 package ru.hh.rabbitmq.spring;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.slf4j.MDC;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.core.RabbitTemplate.ConfirmCallback;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.core.Ordered;
+import ru.hh.rabbitmq.spring.embedded.EmbeddedBroker;
+import ru.hh.rabbitmq.spring.receive.AsyncMessageListener;
+import ru.hh.rabbitmq.spring.receive.BatchMessageListener;
+import ru.hh.rabbitmq.spring.receive.DrainReport;
 import ru.hh.rabbitmq.spring.receive.MapMessageListener;
+import ru.hh.rabbitmq.spring.receive.PartialBatchFailureException;
+import ru.hh.rabbitmq.spring.send.BrokerSelectionStrategies;
 import ru.hh.rabbitmq.spring.send.CorrelatedMessage;
 import ru.hh.rabbitmq.spring.send.Destination;
+import ru.hh.rabbitmq.spring.send.MessageSender;
+import ru.hh.rabbitmq.spring.send.PublishInterceptor;
+import ru.hh.rabbitmq.spring.send.PublishInvocation;
 import ru.hh.rabbitmq.spring.send.Publisher;
 import ru.hh.rabbitmq.spring.send.QueueIsFullException;
 
@@ -275,18 +312,990 @@ public class RabbitIntegrationTest extends AsyncRabbitIntegrationTestBase {
     receiver.shutdown();
   }
 
+  @Test
+  public void testMDCKeysCompact() throws InterruptedException {
+    Properties publisherProperties = appendDirections(properties(HOST1));
+    publisherProperties.setProperty(ConfigKeys.PUBLISHER_USE_MDC, "true");
+    publisherProperties.setProperty(ConfigKeys.PUBLISHER_MDC_KEYS, "requestId, user, session");
+    publisherProperties.setProperty(ConfigKeys.PUBLISHER_MDC_COMPACT, "true");
+    Publisher publisher = new ClientFactory(publisherProperties).createPublisherBuilder().withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties receiverProperties = appendDirections(propertiesAllHosts());
+    receiverProperties.setProperty(ConfigKeys.RECEIVER_USE_MDC, "true");
+    receiverProperties.setProperty(ConfigKeys.RECEIVER_MDC_KEYS, "requestId,user");
+    MessageHandler handler = new MessageHandler(true);
+    Receiver receiver = new ClientFactory(receiverProperties).createReceiver().withJsonListener(handler).start();
+
+    MDC.put("requestId", "a&b=c%d");
+    MDC.put("user", "42");
+    MDC.put("session", "not used by receiver");
+    MDC.put("unlisted", "not sent");
+    publisher.send(new HashMap<>(ImmutableMap.of("data", HOST1)));
+    MDC.clear();
+
+    assertNotNull(handler.get());
+    assertEquals(ImmutableMap.of("requestId", "a&b=c%d", "user", "42"), handler.getMDC());
+
+    // snapshot cached by publishing thread must follow MDC changes
+    MDC.put("user", "43");
+    publisher.send(new HashMap<>(ImmutableMap.of("data", HOST1)));
+    assertNotNull(handler.get());
+    assertEquals(ImmutableMap.of("user", "43"), handler.getMDC());
+    publisher.send(new HashMap<>(ImmutableMap.of("data", HOST1)));
+    MDC.clear();
+    assertNotNull(handler.get());
+    assertEquals(ImmutableMap.of("user", "43"), handler.getMDC());
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testBatching() throws InterruptedException, ExecutionException {
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.PUBLISHER_BATCH_SIZE, "10");
+    Publisher publisher = publisher(properties, true, false).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    int messagesCount = 25;
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < messagesCount; i++) {
+      futures.add(publisher.send(new HashMap<>(ImmutableMap.of("data", Integer.toString(i)))));
+    }
+    for (ListenableFuture<Void> future : futures) {
+      future.get();
+    }
+    // two full batches and the rest sent after linger
+    assertEquals(3, messageCount(HOST1, QUEUE1));
+
+    MessageHandler handler = new MessageHandler(false, messagesCount);
+    Receiver receiver = receiverAllHosts(true).withJsonListener(handler).forQueues(QUEUE1).start();
+    for (int i = 0; i < messagesCount; i++) {
+      Map<String, Object> receivedMessage = handler.get();
+      assertNotNull(receivedMessage);
+      assertEquals(Integer.toString(i), receivedMessage.get("data"));
+    }
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testCoalescing() throws InterruptedException, ExecutionException {
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.PUBLISHER_COALESCING_WINDOW_MS, "1000");
+    Publisher publisher = publisher(properties, true, false).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    MessageHandler handler = new MessageHandler(false, 10);
+    Receiver receiver = receiverAllHosts(true).withJsonListener(handler).forQueues(QUEUE1).start();
+
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      futures.add(publisher.sendCoalesced("entity", new HashMap<>(ImmutableMap.of("data", Integer.toString(i)))));
+    }
+    for (ListenableFuture<Void> future : futures) {
+      future.get();
+    }
+
+    Map<String, Object> receivedMessage = handler.get();
+    assertNotNull(receivedMessage);
+    assertEquals("9", receivedMessage.get("data"));
+    assertNull(handler.get());
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testQueuedTasksCompleteWhenBrokerFails() throws Exception {
+    for (String strategy : Arrays.asList(BrokerSelectionStrategies.WEIGHTED, BrokerSelectionStrategies.LEAST_OUTSTANDING,
+        BrokerSelectionStrategies.LATENCY_EWMA)) {
+      for (boolean batching : Arrays.asList(false, true)) {
+        purgeQueues();
+        assertQueuedTasksComplete(strategy, batching);
+      }
+    }
+  }
+
+  private static void assertQueuedTasksComplete(String strategy, boolean batching) throws Exception {
+    EmbeddedBroker failedBroker = new EmbeddedBroker().start();
+    failedBroker.stop();
+    Properties properties = baseProperties();
+    properties.setProperty(ConfigKeys.HOSTS, HOST1 + ConfigKeys.HOSTS_SEPARATOR + failedBroker.getAddress());
+    properties.setProperty(ConfigKeys.PUBLISHER_BROKER_SELECTION, strategy);
+    properties.setProperty(ConfigKeys.PUBLISHER_RETRY_DELAY_MS, "100");
+    if (batching) {
+      properties.setProperty(ConfigKeys.PUBLISHER_BATCH_SIZE, "5");
+    }
+    Publisher publisher = publisher(properties, true, false).build();
+    publisher.startSync();
+    try {
+      // failure is not known until the first send, so part of tasks is queued for the failed broker
+      int messagesCount = 100;
+      List<ListenableFuture<Void>> futures = new ArrayList<>();
+      for (int i = 0; i < messagesCount; i++) {
+        futures.add(publisher.send("message-" + i));
+      }
+      for (ListenableFuture<Void> future : futures) {
+        future.get(10, TimeUnit.SECONDS);
+      }
+      assertEquals(strategy + (batching ? " with batching" : ""), messagesCount, receiveAll(HOST1, QUEUE1));
+    } finally {
+      publisher.stopSync();
+    }
+  }
+
+  /**
+   * @return number of messages in queue, counting every message of a batch
+   */
+  private static int receiveAll(String host, String queue) throws InterruptedException {
+    int count = 0;
+    Message message;
+    while ((message = receive(host, queue, 200)) != null) {
+      Object batchFormat = message.getMessageProperties().getHeaders().get(MessageProperties.SPRING_BATCH_FORMAT);
+      if (!MessageProperties.BATCH_FORMAT_LENGTH_HEADER4.equals(batchFormat)) {
+        count++;
+        continue;
+      }
+      ByteBuffer body = ByteBuffer.wrap(message.getBody());
+      while (body.hasRemaining()) {
+        int length = body.getInt();
+        body.position(body.position() + length);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testWorkersPerHost() throws InterruptedException, ExecutionException {
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.PUBLISHER_WORKERS_PER_HOST, "3");
+    Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+    CountDownLatch concurrent = new CountDownLatch(3);
+    PublishInterceptor interceptor = (message, exchange, routingKey, correlationData, next) -> {
+      threads.add(Thread.currentThread().getName());
+      // every worker holds its task until all of them took one
+      concurrent.countDown();
+      try {
+        concurrent.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      next.proceed(message, exchange, routingKey, correlationData);
+    };
+    Publisher publisher = publisher(properties, true, false).withJsonMessageConverter().withInterceptor(interceptor).build();
+    publisher.startSync();
+
+    int messagesCount = 9;
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+    for (int i = 0; i < messagesCount; i++) {
+      futures.add(publisher.send(new HashMap<>(ImmutableMap.of("data", Integer.toString(i)))));
+    }
+    for (ListenableFuture<Void> future : futures) {
+      future.get();
+    }
+    assertEquals(0, concurrent.getCount());
+    Set<String> suffixes = threads.stream().map(name -> name.substring(name.lastIndexOf('-'))).collect(Collectors.toSet());
+    assertEquals(new HashSet<>(Arrays.asList("-0", "-1", "-2")), suffixes);
+    assertEquals(messagesCount, messageCount(HOST1, QUEUE1));
+
+    publisher.stopSync();
+  }
+
+  @Test
+  public void testInterceptors() throws InterruptedException, ExecutionException {
+    PublishInterceptor second = (message, exchange, routingKey, correlationData, next) -> {
+      String body = new String(message.getBody(), StandardCharsets.UTF_8);
+      if (!body.contains("drop")) {
+        message.getMessageProperties().setHeader("trace", message.getMessageProperties().getHeaders().get("trace") + ",second");
+        next.proceed(message, exchange, routingKey, correlationData);
+      }
+    };
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter()
+        .withInterceptor(second)
+        .withInterceptor(new FirstPublishInterceptor())
+        .build();
+    publisher.startSync();
+
+    List<String> receivedTraces = Collections.synchronizedList(new ArrayList<>());
+    MessageHandler handler = new MessageHandler(false, 2);
+    Receiver receiver = receiverAllHosts(true)
+        .withJsonListener(handler)
+        .withInterceptor((message, channel, next) -> {
+          receivedTraces.add(message.getMessageProperties().getHeaders().get("trace").toString());
+          next.proceed(message, channel);
+        })
+        .forQueues(QUEUE1)
+        .start();
+
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "drop"))).get();
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "keep"))).get();
+
+    Map<String, Object> receivedMessage = handler.get();
+    assertNotNull(receivedMessage);
+    assertEquals("keep", receivedMessage.get("data"));
+    assertNull(handler.get());
+    assertEquals(Collections.singletonList("first,second"), receivedTraces);
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testBatchListener() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+    for (String data : Arrays.asList("0", "1", "2", "3", "4", "5", "fail")) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", data))).get();
+    }
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_BATCH_SIZE, "5");
+    properties.setProperty(ConfigKeys.RECEIVER_BATCH_LINGER_MS, "200");
+    ArrayBlockingQueue<List<Object>> batches = new ArrayBlockingQueue<>(3);
+    AtomicBoolean failed = new AtomicBoolean();
+    BatchMessageListener<Map<String, Object>> listener = messages -> {
+      List<Object> data = new ArrayList<>();
+      messages.forEach(message -> data.add(message.get("data")));
+      batches.add(data);
+      int index = data.indexOf("fail");
+      if (index >= 0 && failed.compareAndSet(false, true)) {
+        throw new PartialBatchFailureException(Collections.singleton(index));
+      }
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonBatchListener(listener).start();
+
+    // full batch, then incomplete one after linger, then failed message requeued
+    assertEquals(Arrays.asList("0", "1", "2", "3", "4"), batches.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(Arrays.asList("5", "fail"), batches.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertEquals(Collections.singletonList("fail"), batches.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    assertNull(batches.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testAsyncListener() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    ArrayBlockingQueue<Entry<Object, CompletableFuture<Void>>> pending = new ArrayBlockingQueue<>(4);
+    AsyncMessageListener<Map<String, Object>> listener = message -> {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      pending.add(new SimpleEntry<>(message.get("data"), future));
+      return future;
+    };
+    Receiver receiver = receiverAllHosts(true).withJsonAsyncListener(listener).forQueues(QUEUE1).start();
+    for (String data : Arrays.asList("1", "2", "3")) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", data))).get();
+    }
+
+    // the only receiver thread does not wait for futures
+    List<Entry<Object, CompletableFuture<Void>>> received = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      received.add(pending.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(Arrays.asList("1", "2", "3"), received.stream().map(Entry::getKey).collect(Collectors.toList()));
+
+    received.get(2).getValue().complete(null);
+    received.get(1).getValue().complete(null);
+    received.get(0).getValue().completeExceptionally(new IllegalStateException("failed"));
+    Entry<Object, CompletableFuture<Void>> redelivered = pending.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull(redelivered);
+    assertEquals("1", redelivered.getKey());
+    redelivered.getValue().complete(null);
+    assertNull(pending.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testAsyncListenerRedeliveredAfterStop() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    ArrayBlockingQueue<CompletableFuture<Void>> pending = new ArrayBlockingQueue<>(1);
+    AsyncMessageListener<Map<String, Object>> listener = message -> {
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      pending.add(future);
+      return future;
+    };
+    Receiver receiver = receiverAllHosts(true).withJsonAsyncListener(listener).forQueues(QUEUE1).start();
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "1"))).get();
+    CompletableFuture<Void> future = pending.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull(future);
+
+    // channel message came from is closed before future completes, so ack is lost and broker redelivers message
+    receiver.stop();
+    future.complete(null);
+    Message redelivered = receive(HOST1, QUEUE1, TIMEOUT_MILLIS);
+    assertNotNull(redelivered);
+    assertTrue(redelivered.getMessageProperties().isRedelivered());
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testDirectContainer() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, false).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.RECEIVER_NAME, "direct");
+    properties.setProperty(ConfigKeys.RECEIVER_CONTAINER, ConfigKeys.RECEIVER_CONTAINER_DIRECT);
+    ArrayBlockingQueue<Entry<Object, String>> received = new ArrayBlockingQueue<>(4);
+    MapMessageListener listener = message -> received.add(new SimpleEntry<>(message.get("data"), Thread.currentThread().getName()));
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener).forQueues(QUEUE1).start();
+
+    publisher.send(new Destination(EXCHANGE, ROUTING_KEY1), new HashMap<>(ImmutableMap.of("data", QUEUE1))).get();
+    Entry<Object, String> message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull(message);
+    assertEquals(QUEUE1, message.getKey());
+    // listener is called by consumer work pool of connection
+    assertTrue(message.getValue(), message.getValue().startsWith("rabbit-receiver-direct-"));
+
+    // queues are changed without restarting the receiver
+    receiver.addQueues(QUEUE2).removeQueues(QUEUE1);
+    publisher.send(new Destination(EXCHANGE, ROUTING_KEY2), new HashMap<>(ImmutableMap.of("data", QUEUE2))).get();
+    message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull(message);
+    assertEquals(QUEUE2, message.getKey());
+    publisher.send(new Destination(EXCHANGE, ROUTING_KEY1), new HashMap<>(ImmutableMap.of("data", QUEUE1))).get();
+    assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testAutoscaling() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_PREFETCH_COUNT, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_MIN_CONSUMERS, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_MAX_CONSUMERS, "4");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_INTERVAL_MS, "100");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_DRAIN_MS, "100");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_UP_SAMPLES, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_AUTOSCALING_DOWN_SAMPLES, "1");
+    ArrayBlockingQueue<String> threads = new ArrayBlockingQueue<>(100);
+    MapMessageListener listener = message -> {
+      Thread.sleep(20);
+      threads.add(Thread.currentThread().getName());
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener).start();
+    SimpleMessageListenerContainer container = receiver.getContainers().iterator().next();
+    assertEquals(1, container.getActiveConsumerCount());
+
+    for (int i = 0; i < 100; i++) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", i))).get();
+    }
+    Set<String> threadNames = new HashSet<>();
+    for (int i = 0; i < 100; i++) {
+      threadNames.add(threads.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    // backlog is handled by more consumers
+    assertTrue(threadNames.toString(), threadNames.size() > 1);
+
+    // idle consumers are removed
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (container.getActiveConsumerCount() > 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, container.getActiveConsumerCount());
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testAdaptivePrefetch() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_PREFETCH_COUNT, "20");
+    properties.setProperty(ConfigKeys.RECEIVER_PREFETCH_ADAPTIVE_MAX, "20");
+    properties.setProperty(ConfigKeys.RECEIVER_PREFETCH_ADAPTIVE_INTERVAL_MS, "50");
+    AtomicInteger handled = new AtomicInteger();
+    MapMessageListener listener = message -> {
+      Thread.sleep(20);
+      handled.incrementAndGet();
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener);
+    int count = 100;
+    for (int i = 0; i < count; i++) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", i))).get();
+    }
+    receiver.start();
+
+    // consumer takes initial 20 messages, round trip to local broker is much shorter than listener time, so it is left with 2
+    Thread.sleep(800);
+    int ready = messageCount(HOST1, QUEUE1);
+    int unacked = count - handled.get() - ready;
+    assertTrue("unacked " + unacked, unacked <= 3);
+    assertTrue("ready " + ready, ready > 0);
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testQueueBulkheads() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, false).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.RECEIVER_QUEUES, QUEUE1 + ConfigKeys.RECEIVER_QUEUES_SEPARATOR + QUEUE2);
+    properties.setProperty(ConfigKeys.RECEIVER_THREADPOOL, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_QUEUE_PREFIX + QUEUE2 + ConfigKeys.RECEIVER_QUEUE_THREADPOOL, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_QUEUE_PREFIX + QUEUE2 + ConfigKeys.RECEIVER_QUEUE_PREFETCH_COUNT, "1");
+    CountDownLatch slowQueueReleased = new CountDownLatch(1);
+    ArrayBlockingQueue<Entry<Object, String>> received = new ArrayBlockingQueue<>(4);
+    MapMessageListener listener = message -> {
+      if (QUEUE2.equals(message.get("data"))) {
+        slowQueueReleased.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      received.add(new SimpleEntry<>(message.get("data"), Thread.currentThread().getName()));
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener).start();
+
+    publisher.send(new Destination(EXCHANGE, ROUTING_KEY2), new HashMap<>(ImmutableMap.of("data", QUEUE2))).get();
+    publisher.send(new Destination(EXCHANGE, ROUTING_KEY1), new HashMap<>(ImmutableMap.of("data", QUEUE1))).get();
+    // slow queue does not hold the only thread of other queues
+    Entry<Object, String> message = received.poll(TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+    assertNotNull(message);
+    assertEquals(QUEUE1, message.getKey());
+
+    slowQueueReleased.countDown();
+    message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    assertNotNull(message);
+    assertEquals(QUEUE2, message.getKey());
+    assertTrue(message.getValue(), message.getValue().contains(QUEUE2));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testOrderingKey() throws InterruptedException, ExecutionException {
+    PublishInterceptor entityHeader = (message, exchange, routingKey, correlationData, next) -> {
+      String body = new String(message.getBody(), StandardCharsets.UTF_8);
+      message.getMessageProperties().setHeader("entity", body.contains("\"entity\":\"a\"") ? "a" : "b");
+      next.proceed(message, exchange, routingKey, correlationData);
+    };
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().withInterceptor(entityHeader).build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_THREADPOOL, "1");
+    properties.setProperty(ConfigKeys.RECEIVER_ORDERING_LANES, "4");
+    ArrayBlockingQueue<String> received = new ArrayBlockingQueue<>(40);
+    Set<String> threads = Collections.synchronizedSet(new HashSet<>());
+    MapMessageListener listener = message -> {
+      Thread.sleep(5);
+      threads.add(Thread.currentThread().getName());
+      received.add(message.get("entity") + "-" + message.get("seq"));
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener).withOrderingKeyHeader("entity").start();
+
+    for (int seq = 0; seq < 20; seq++) {
+      for (String entity : Arrays.asList("a", "b")) {
+        publisher.send(new HashMap<>(ImmutableMap.of("entity", entity, "seq", seq))).get();
+      }
+    }
+    Map<String, List<Integer>> sequences = new HashMap<>();
+    for (int i = 0; i < 40; i++) {
+      String message = received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      assertNotNull(message);
+      String[] parts = message.split("-");
+      sequences.computeIfAbsent(parts[0], key -> new ArrayList<>()).add(Integer.valueOf(parts[1]));
+    }
+    // messages with the same key are handled in order, different keys are handled by different lanes
+    List<Integer> expected = IntStream.range(0, 20).boxed().collect(Collectors.toList());
+    assertEquals(expected, sequences.get("a"));
+    assertEquals(expected, sequences.get("b"));
+    assertEquals(2, threads.size());
+    assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testOrderingKeyRedeliveredAfterStop() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    MapMessageListener listener = message -> {
+      started.countDown();
+      release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    };
+    Receiver receiver = receiverAllHosts(true).withJsonListener(listener).withOrderingKeyHeader("entity").forQueues(QUEUE1).start();
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "1"))).get();
+    assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+    // channel message came from is closed while it is in lane, so ack is lost and broker redelivers message
+    receiver.stop();
+    release.countDown();
+    Message redelivered = receive(HOST1, QUEUE1, TIMEOUT_MILLIS);
+    assertNotNull(redelivered);
+    assertTrue(redelivered.getMessageProperties().isRedelivered());
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testDeduplication() throws InterruptedException, ExecutionException {
+    PublishInterceptor messageId = (message, exchange, routingKey, correlationData, next) -> {
+      message.getMessageProperties().setMessageId("same-id");
+      next.proceed(message, exchange, routingKey, correlationData);
+    };
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().withInterceptor(messageId).build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_DEDUP_SIZE, "1000");
+    ArrayBlockingQueue<Object> received = new ArrayBlockingQueue<>(10);
+    AtomicBoolean failed = new AtomicBoolean();
+    MapMessageListener listener = message -> {
+      if ("failing".equals(message.get("data")) && failed.compareAndSet(false, true)) {
+        throw new IllegalStateException("failed");
+      }
+      received.add(message.get("data"));
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withJsonListener(listener).start();
+
+    for (String data : Arrays.asList("first", "first", "second", "failing", "first")) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", data))).get();
+    }
+    // duplicates are acked without calling listener, failed message is handled when redelivered
+    List<Object> handled = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      handled.add(received.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(Arrays.asList("first", "second", "failing"), handled);
+    assertTrue(failed.get());
+    assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testRetries() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_MAX_ATTEMPTS, "3");
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_INITIAL_DELAY_MS, "100");
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_MULTIPLIER, "2");
+    ArrayBlockingQueue<String> attempts = new ArrayBlockingQueue<>(10);
+    Map<String, List<Long>> attemptMillis = new HashMap<>();
+    Receiver receiver = new ClientFactory(properties).createReceiver().withListener((message, channel) -> {
+      String data = new String(message.getBody(), StandardCharsets.UTF_8).contains("poison") ? "poison" : "flaky";
+      Object failedAttempts = message.getMessageProperties().getHeaders().get(MessageRetrier.ATTEMPT_HEADER);
+      // queue publishes the map to test thread
+      attemptMillis.computeIfAbsent(data, key -> new ArrayList<>()).add(System.nanoTime() / 1_000_000);
+      attempts.add(data + "-" + failedAttempts);
+      if ("poison".equals(data) || failedAttempts == null) {
+        throw new IllegalStateException(data + " failed");
+      }
+    }).start();
+
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "flaky"))).get();
+    publisher.send(new HashMap<>(ImmutableMap.of("data", "poison"))).get();
+    List<String> handled = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      handled.add(attempts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    // failed message comes back after growing delay with number of failed attempts, the last failure parks it
+    assertEquals(Arrays.asList("flaky-null", "flaky-1"), handled.stream().filter(a -> a.startsWith("flaky")).collect(Collectors.toList()));
+    assertEquals(Arrays.asList("poison-null", "poison-1", "poison-2"),
+        handled.stream().filter(a -> a.startsWith("poison")).collect(Collectors.toList()));
+    List<Long> poisonMillis = attemptMillis.get("poison");
+    assertTrue(poisonMillis.get(1) - poisonMillis.get(0) >= 100);
+    assertTrue(poisonMillis.get(2) - poisonMillis.get(1) >= 200);
+
+    Message parked = receive(HOST1, QUEUE1 + ".parking", TIMEOUT_MILLIS);
+    assertNotNull(parked);
+    assertTrue(new String(parked.getBody(), StandardCharsets.UTF_8).contains("poison"));
+    assertEquals(3, ((Number) parked.getMessageProperties().getHeaders().get(MessageRetrier.ATTEMPT_HEADER)).intValue());
+    assertTrue(parked.getMessageProperties().getHeaders().get(MessageRetrier.ERROR_HEADER).toString().contains("poison failed"));
+    assertNull(attempts.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+    deleteQueues(HOST1, QUEUE1 + ".retry.100", QUEUE1 + ".retry.200", QUEUE1 + ".parking");
+  }
+
+  @Test
+  public void testRetriesWithForeignHeaders() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_MAX_ATTEMPTS, "3");
+    properties.setProperty(ConfigKeys.RECEIVER_RETRY_INITIAL_DELAY_MS, "100");
+    properties.setProperty(ConfigKeys.RECEIVER_DEDUP_SIZE, "1000");
+    ArrayBlockingQueue<String> attempts = new ArrayBlockingQueue<>(10);
+    Receiver receiver = new ClientFactory(properties).createReceiver().withListener(message -> {
+      String data = new String(message.getBody(), StandardCharsets.UTF_8);
+      Map<String, Object> headers = message.getMessageProperties().getHeaders();
+      assertTrue(headers.get(MessageDeduplicator.FINGERPRINT_HEADER) instanceof Long);
+      attempts.add(data + "-" + headers.get(MessageRetrier.ATTEMPT_HEADER));
+      throw new IllegalStateException(data + " failed");
+    }).start();
+
+    // header set by another producer is clamped: negative counts as no failed attempts, overflowing one parks the message
+    MessageProperties negative = messageProperties();
+    negative.setMessageId("negative");
+    negative.setHeader(MessageRetrier.ATTEMPT_HEADER, -5);
+    publisher.send(new Message("negative".getBytes(StandardCharsets.UTF_8), negative)).get();
+    MessageProperties overflowing = messageProperties();
+    overflowing.setMessageId("overflowing");
+    overflowing.setHeader(MessageRetrier.ATTEMPT_HEADER, Long.MAX_VALUE);
+    // deduplicator computes its own fingerprint and does not republish it
+    overflowing.setHeader(MessageDeduplicator.FINGERPRINT_HEADER, "foreign");
+    publisher.send(new Message("overflowing".getBytes(StandardCharsets.UTF_8), overflowing)).get();
+    Set<String> handled = new HashSet<>();
+    for (int i = 0; i < 4; i++) {
+      handled.add(attempts.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+    assertEquals(new HashSet<>(Arrays.asList("negative--5", "negative-1", "negative-2", "overflowing-" + Long.MAX_VALUE)), handled);
+
+    Set<String> parkedBodies = new HashSet<>();
+    for (int i = 0; i < 2; i++) {
+      Message parked = receive(HOST1, QUEUE1 + ".parking", TIMEOUT_MILLIS);
+      assertNotNull(parked);
+      assertNull(parked.getMessageProperties().getHeaders().get(MessageDeduplicator.FINGERPRINT_HEADER));
+      parkedBodies.add(new String(parked.getBody(), StandardCharsets.UTF_8));
+    }
+    assertEquals(new HashSet<>(Arrays.asList("negative", "overflowing")), parkedBodies);
+    assertNull(attempts.poll(500, TimeUnit.MILLISECONDS));
+
+    publisher.stopSync();
+    receiver.shutdown();
+    deleteQueues(HOST1, QUEUE1 + ".retry.100", QUEUE1 + ".retry.200", QUEUE1 + ".parking");
+  }
+
+  @Test
+  public void testDrain() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_PREFETCH_COUNT, "10");
+    CountDownLatch started = new CountDownLatch(1);
+    Set<String> handled = Collections.synchronizedSet(new HashSet<>());
+    Receiver receiver = new ClientFactory(properties).createReceiver().withListener(message -> {
+      started.countDown();
+      handled.add(new String(message.getBody(), StandardCharsets.UTF_8));
+      try {
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+
+    int count = 30;
+    for (int i = 0; i < count; i++) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", i))).get();
+    }
+    receiver.start();
+    assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    DrainReport report = receiver.drain(Duration.ofMillis(TIMEOUT_MILLIS));
+    assertTrue(report.isCompleted());
+    assertTrue(report.getProcessed() > 0);
+    assertEquals(0, report.getAbandoned());
+    assertFalse(receiver.isActive());
+
+    // prefetched messages are handled, the rest stay in queue, nothing is redelivered
+    int left = 0;
+    Message message;
+    while ((message = receive(HOST1, QUEUE1, 200)) != null) {
+      assertTrue(handled.add(new String(message.getBody(), StandardCharsets.UTF_8)));
+      left++;
+    }
+    assertEquals(count, handled.size());
+    assertTrue(left > 0);
+
+    publisher.stopSync();
+    receiver.shutdown();
+  }
+
+  @Test
+  public void testDrainAsyncListener() throws InterruptedException, ExecutionException {
+    testDrainAsyncListener(ConfigKeys.RECEIVER_CONTAINER_SIMPLE);
+  }
+
+  @Test
+  public void testDrainAsyncListenerDirect() throws InterruptedException, ExecutionException {
+    testDrainAsyncListener(ConfigKeys.RECEIVER_CONTAINER_DIRECT);
+  }
+
+  private void testDrainAsyncListener(String container) throws InterruptedException, ExecutionException {
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_CONTAINER, container);
+    int count = 10;
+    CountDownLatch started = new CountDownLatch(count);
+    Set<String> handled = Collections.synchronizedSet(new HashSet<>());
+    AtomicInteger duplicates = new AtomicInteger();
+    AsyncMessageListener<Message> listener = message -> {
+      started.countDown();
+      return CompletableFuture.runAsync(() -> {
+        sleep(50);
+        if (!handled.add(new String(message.getBody(), StandardCharsets.UTF_8))) {
+          duplicates.incrementAndGet();
+        }
+      });
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withAsyncListener(listener);
+    assertDrainAcknowledges(receiver, started, count);
+    assertEquals(count, handled.size());
+    assertEquals(0, duplicates.get());
+  }
+
+  @Test
+  public void testDrainKeyedListener() throws InterruptedException, ExecutionException {
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_ORDERING_LANES, "2");
+    int count = 10;
+    CountDownLatch started = new CountDownLatch(1);
+    Set<String> handled = Collections.synchronizedSet(new HashSet<>());
+    AtomicInteger duplicates = new AtomicInteger();
+    Receiver receiver = new ClientFactory(properties).createReceiver().withListener(message -> {
+      started.countDown();
+      sleep(50);
+      if (!handled.add(new String(message.getBody(), StandardCharsets.UTF_8))) {
+        duplicates.incrementAndGet();
+      }
+    }).withOrderingKey(message -> message.getBody().length);
+    assertDrainAcknowledges(receiver, started, count);
+    assertEquals(count, handled.size());
+    assertEquals(0, duplicates.get());
+  }
+
+  @Test
+  public void testDrainBatchListener() throws InterruptedException, ExecutionException {
+    Properties properties = appendDirections(properties(HOST1));
+    properties.setProperty(ConfigKeys.RECEIVER_BATCH_SIZE, "4");
+    properties.setProperty(ConfigKeys.RECEIVER_BATCH_LINGER_MS, String.valueOf(TIMEOUT_MILLIS * 10));
+    int count = 10;
+    CountDownLatch started = new CountDownLatch(2);
+    Set<String> handled = Collections.synchronizedSet(new HashSet<>());
+    AtomicInteger duplicates = new AtomicInteger();
+    BatchMessageListener<Message> listener = messages -> {
+      for (Message message : messages) {
+        if (!handled.add(new String(message.getBody(), StandardCharsets.UTF_8))) {
+          duplicates.incrementAndGet();
+        }
+      }
+      started.countDown();
+    };
+    Receiver receiver = new ClientFactory(properties).createReceiver().withBatchListener(listener);
+    // two full batches are handled, the rest waits in incomplete batch until drain flushes it
+    assertDrainAcknowledges(receiver, started, count);
+    assertEquals(count, handled.size());
+    assertEquals(0, duplicates.get());
+  }
+
+  private static void assertDrainAcknowledges(Receiver receiver, CountDownLatch started, int count)
+      throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+    for (int i = 0; i < count; i++) {
+      publisher.send(new HashMap<>(ImmutableMap.of("data", i))).get();
+    }
+    publisher.stopSync();
+
+    receiver.start();
+    assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    DrainReport report = receiver.drain(Duration.ofMillis(TIMEOUT_MILLIS));
+    assertTrue(report.isCompleted());
+    assertEquals(0, report.getAbandoned());
+
+    // every message is acknowledged before its channel is closed, so broker has nothing to redeliver
+    assertEquals(0, messageCount(HOST1, QUEUE1));
+    assertNull(receive(HOST1, QUEUE1, 200));
+    receiver.shutdown();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testPublishTimestamp() throws InterruptedException, ExecutionException {
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.PUBLISHER_PUBLISHED_MILLIS_HEADER, "true");
+    Publisher publisher = publisher(properties, true, false).build();
+    publisher.startSync();
+
+    // receivers measure lag from millisecond header publisher stamps, application message is not changed
+    Message sent = new Message("data".getBytes(StandardCharsets.UTF_8), messageProperties());
+    long before = System.currentTimeMillis();
+    publisher.send(sent).get();
+    long after = System.currentTimeMillis();
+    Message message = receive(HOST1, QUEUE1, TIMEOUT_MILLIS);
+    assertNotNull(message);
+    assertPublishedBetween(message, before, after);
+    assertNull(sent.getMessageProperties().getTimestamp());
+    assertTrue(sent.getMessageProperties().getHeaders().isEmpty());
+
+    publisher.stopSync();
+  }
+
+  @Test
+  public void testPublishTimestampWithoutHeader() throws InterruptedException, ExecutionException {
+    Publisher publisher = publisher(HOST1, true).build();
+    publisher.startSync();
+
+    // header is not added by default, AMQP timestamp is
+    long before = System.currentTimeMillis();
+    publisher.send(new Message("data".getBytes(StandardCharsets.UTF_8), messageProperties())).get();
+    long after = System.currentTimeMillis();
+    Message message = receive(HOST1, QUEUE1, TIMEOUT_MILLIS);
+    assertNotNull(message);
+    assertNull(message.getMessageProperties().getHeaders().get(MessageSender.PUBLISHED_MILLIS_HEADER));
+    long timestamp = message.getMessageProperties().getTimestamp().getTime();
+    assertTrue(timestamp >= before / 1000 * 1000 && timestamp <= after);
+
+    publisher.stopSync();
+  }
+
+  @Test
+  public void testPublishTimestampOfBatch() throws InterruptedException, ExecutionException {
+    Properties properties = properties(HOST1);
+    properties.setProperty(ConfigKeys.PUBLISHER_BATCH_SIZE, "2");
+    properties.setProperty(ConfigKeys.PUBLISHER_PUBLISHED_MILLIS_HEADER, "true");
+    Publisher publisher = publisher(properties, true, false).build();
+    publisher.startSync();
+
+    MessageProperties messageProperties = messageProperties();
+    long before = System.currentTimeMillis();
+    publisher.send(new Message("first".getBytes(StandardCharsets.UTF_8), messageProperties));
+    publisher.send(new Message("second".getBytes(StandardCharsets.UTF_8), messageProperties)).get();
+    long after = System.currentTimeMillis();
+    Message message = receive(HOST1, QUEUE1, TIMEOUT_MILLIS);
+    assertNotNull(message);
+    Map<String, Object> headers = message.getMessageProperties().getHeaders();
+    assertEquals(MessageProperties.BATCH_FORMAT_LENGTH_HEADER4, headers.get(MessageProperties.SPRING_BATCH_FORMAT));
+    assertPublishedBetween(message, before, after);
+    assertNull(messageProperties.getTimestamp());
+    assertTrue(messageProperties.getHeaders().isEmpty());
+
+    publisher.stopSync();
+  }
+
+  private static MessageProperties messageProperties() {
+    MessageProperties properties = new MessageProperties();
+    // properties of message published as is must have correlation id, spring-amqp can't hash them otherwise
+    properties.setCorrelationId("timestamp");
+    return properties;
+  }
+
+  private static void assertPublishedBetween(Message message, long before, long after) {
+    MessageProperties properties = message.getMessageProperties();
+    long publishedMillis = ((Number) properties.getHeaders().get(MessageSender.PUBLISHED_MILLIS_HEADER)).longValue();
+    assertTrue(publishedMillis >= before && publishedMillis <= after);
+    // AMQP timestamp is truncated to seconds
+    assertEquals(publishedMillis / 1000 * 1000, properties.getTimestamp().getTime());
+  }
+
+  @Test
+  public void testFlightRecorderEvents() throws Exception {
+    Publisher publisher = publisher(HOST1, true).withJsonMessageConverter().build();
+    publisher.startSync();
+    MessageHandler handler = new MessageHandler();
+    Receiver receiver = receiverAllHosts(true).withJsonListener(handler).forQueues(QUEUE1).start();
+
+    Path dump = Files.createTempFile("rabbit", ".jfr");
+    try (Recording recording = new Recording()) {
+      for (String event : Arrays.asList("ru.hh.rabbitmq.PublishTask", "ru.hh.rabbitmq.Publish", "ru.hh.rabbitmq.Receive")) {
+        recording.enable(event).withThreshold(Duration.ZERO);
+      }
+      recording.start();
+      publisher.send(new HashMap<>(ImmutableMap.of("data", "jfr"))).get();
+      assertNotNull(handler.get());
+      // receive event is committed after listener returns, stop waits for it
+      receiver.stop();
+      recording.stop();
+      recording.dump(dump);
+    } finally {
+      publisher.stopSync();
+      receiver.shutdown();
+    }
+
+    Map<String, RecordedEvent> events = new HashMap<>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+      events.put(event.getEventType().getName(), event);
+    }
+    Files.delete(dump);
+
+    RecordedEvent task = events.get("ru.hh.rabbitmq.PublishTask");
+    assertEquals("sent", task.getString("outcome"));
+    assertEquals(1, task.getInt("messages"));
+    assertEquals(1, task.getInt("attempts"));
+
+    RecordedEvent publish = events.get("ru.hh.rabbitmq.Publish");
+    assertEquals(EXCHANGE, publish.getString("exchange"));
+    assertEquals(ROUTING_KEY1, publish.getString("routingKey"));
+    assertEquals("sent", publish.getString("outcome"));
+    assertTrue(publish.getLong("bodySize") > 0);
+
+    RecordedEvent receive = events.get("ru.hh.rabbitmq.Receive");
+    assertEquals(QUEUE1, receive.getString("queue"));
+    assertEquals("handled", receive.getString("outcome"));
+    assertEquals(publish.getLong("bodySize"), receive.getLong("bodySize"));
+  }
+
+  private static class FirstPublishInterceptor implements PublishInterceptor, Ordered {
+    @Override
+    public void intercept(Message message, String exchange, String routingKey, CorrelationData correlationData, PublishInvocation next) {
+      message.getMessageProperties().setHeader("trace", "first");
+      next.proceed(message, exchange, routingKey, correlationData);
+    }
+
+    @Override
+    public int getOrder() {
+      return Ordered.HIGHEST_PRECEDENCE;
+    }
+  }
+
   private static class MessageHandler implements MapMessageListener {
-    private ArrayBlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(1);
+    private ArrayBlockingQueue<Map<String, Object>> queue;
     private ArrayBlockingQueue<Map<String, String>> mdcContextQueue = new ArrayBlockingQueue<>(1);
 
     private boolean useMDC;
 
     public MessageHandler() {
-      this.useMDC = false;
+      this(false);
     }
 
     public MessageHandler(boolean useMDC) {
+      this(useMDC, 1);
+    }
+
+    public MessageHandler(boolean useMDC, int capacity) {
       this.useMDC = useMDC;
+      this.queue = new ArrayBlockingQueue<>(capacity);
     }
 
     @Override
@@ -4,12 +4,16 @@ import java.util.Properties;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
 import org.springframework.amqp.core.DirectExchange;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import ru.hh.rabbitmq.spring.embedded.EmbeddedBroker;
 
 public class RabbitIntegrationTestBase {
 
@@ -25,15 +29,23 @@ public class RabbitIntegrationTestBase {
   public static final String QUEUE2 = "hh-rabbit-client-spring-queue-2";
   public static final String EXCHANGE = "hh-rabbit-client-spring-exchange";
 
+  private static EmbeddedBroker[] embeddedBrokers;
+
   @BeforeClass
   public static void beforeClass() {
-    String host1 = System.getProperty("rabbit.integrationtest.host1");
-    String host2 = System.getProperty("rabbit.integrationtest.host2");
-    if (host1 != null) {
-      HOST1 = host1;
-    }
-    if (host2 != null) {
-      HOST2 = host2;
+    if (Boolean.getBoolean("rabbit.integrationtest.embedded")) {
+      embeddedBrokers = new EmbeddedBroker[] { new EmbeddedBroker().start(), new EmbeddedBroker().start() };
+      HOST1 = embeddedBrokers[0].getAddress();
+      HOST2 = embeddedBrokers[1].getAddress();
+    } else {
+      String host1 = System.getProperty("rabbit.integrationtest.host1");
+      String host2 = System.getProperty("rabbit.integrationtest.host2");
+      if (host1 != null) {
+        HOST1 = host1;
+      }
+      if (host2 != null) {
+        HOST2 = host2;
+      }
     }
     HOSTS = new String[] { HOST1, HOST2 };
     for (String host : HOSTS) {
@@ -46,6 +58,12 @@ public class RabbitIntegrationTestBase {
     for (String host : HOSTS) {
       tearDown(getConnectionFactory(host));
     }
+    if (embeddedBrokers != null) {
+      for (EmbeddedBroker broker : embeddedBrokers) {
+        broker.stop();
+      }
+      embeddedBrokers = null;
+    }
   }
 
   @Before
@@ -93,9 +111,61 @@ public class RabbitIntegrationTestBase {
     connectionFactory.destroy();
   }
 
+  /**
+   * Takes message from queue that may be not declared yet.
+   *
+   * @return null if no message arrived in time
+   */
+  protected static Message receive(String host, String queue, long timeoutMillis) throws InterruptedException {
+    CachingConnectionFactory connectionFactory = getConnectionFactory(host);
+    try {
+      RabbitTemplate template = new RabbitTemplate(connectionFactory);
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (System.currentTimeMillis() < deadline) {
+        try {
+          Message message = template.receive(queue);
+          if (message != null) {
+            return message;
+          }
+        } catch (AmqpException e) {
+          // not declared yet
+        }
+        Thread.sleep(10);
+      }
+      return null;
+    } finally {
+      connectionFactory.destroy();
+    }
+  }
+
+  /**
+   * Deletes queues declared by receiver.
+   */
+  protected static void deleteQueues(String host, String... queues) {
+    CachingConnectionFactory connectionFactory = getConnectionFactory(host);
+    RabbitAdmin admin = new RabbitAdmin(connectionFactory);
+    for (String queue : queues) {
+      admin.deleteQueue(queue);
+    }
+    connectionFactory.destroy();
+  }
+
+  /**
+   * @return number of messages ready for delivery, without messages consumers took and have not acknowledged yet
+   */
+  protected static int messageCount(String host, String queue) {
+    CachingConnectionFactory connectionFactory = getConnectionFactory(host);
+    try {
+      Properties properties = new RabbitAdmin(connectionFactory).getQueueProperties(queue);
+      return ((Number) properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).intValue();
+    } finally {
+      connectionFactory.destroy();
+    }
+  }
+
   private static CachingConnectionFactory getConnectionFactory(String host) {
     CachingConnectionFactory factory = new CachingConnectionFactory();
-    factory.setHost(host);
+    factory.setAddresses(host);
     factory.setUsername(USERNAME);
     factory.setPassword(PASSWORD);
     return factory;
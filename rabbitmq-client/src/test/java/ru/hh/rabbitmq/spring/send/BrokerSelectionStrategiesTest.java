@@ -0,0 +1,133 @@
+package ru.hh.rabbitmq.spring.send;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class BrokerSelectionStrategiesTest {
+
+  @Test
+  public void testWeightedDistribution() {
+    List<TestBroker> brokers = Arrays.asList(new TestBroker(3), new TestBroker(1));
+    BrokerSelectionStrategy strategy = BrokerSelectionStrategies.weighted();
+
+    // every round of total weight gives 3 tasks to the first broker and 1 to the second, not in bursts
+    for (int round = 0; round < 100; round++) {
+      int[] counts = select(strategy, brokers, 4);
+      assertArrayEquals(new int[] {3, 1}, counts);
+    }
+  }
+
+  @Test
+  public void testLeastOutstandingDistributionAndFailover() {
+    List<TestBroker> brokers = Arrays.asList(new TestBroker(2), new TestBroker(1));
+    BrokerSelectionStrategy strategy = BrokerSelectionStrategies.leastOutstanding();
+
+    // tasks are not completed, so outstanding work follows weights
+    int[] counts = new int[2];
+    for (int i = 0; i < 300; i++) {
+      int selected = strategy.select(brokers);
+      brokers.get(selected).outstanding++;
+      counts[selected]++;
+    }
+    assertEquals(200, counts[0], 1);
+    assertEquals(100, counts[1], 1);
+
+    // broker that does not confirm anything gets no tasks until its outstanding work is done
+    brokers.get(0).outstanding = 1000;
+    brokers.get(1).outstanding = 0;
+    assertArrayEquals(new int[] {0, 100}, select(strategy, brokers, 100));
+    brokers.get(0).outstanding = 0;
+    brokers.get(1).outstanding = 0;
+    assertEquals(0, strategy.select(brokers));
+  }
+
+  @Test
+  public void testLatencyEwmaDistributionAndFailover() {
+    List<TestBroker> brokers = Arrays.asList(new TestBroker(1), new TestBroker(1));
+    BrokerSelectionStrategy strategy = BrokerSelectionStrategies.latencyEwma();
+
+    // broker without history is probed first
+    brokers.get(0).latencyEwmaNanos = 1_000_000;
+    assertArrayEquals(new int[] {0, 10}, select(strategy, brokers, 10));
+
+    // equal brokers share tasks evenly
+    brokers.get(1).latencyEwmaNanos = 1_000_000;
+    assertArrayEquals(new int[] {50, 50}, select(strategy, brokers, 100));
+
+    // slow broker gets tasks only when fast one has much more outstanding work
+    brokers.get(0).latencyEwmaNanos = 100_000_000;
+    assertArrayEquals(new int[] {0, 100}, select(strategy, brokers, 100));
+    brokers.get(1).outstanding = 200;
+    assertEquals(0, strategy.select(brokers));
+  }
+
+  @Test
+  public void testUnavailableBrokersSkipped() {
+    for (BrokerSelectionStrategy strategy : Arrays.asList(BrokerSelectionStrategies.weighted(), BrokerSelectionStrategies.leastOutstanding(),
+        BrokerSelectionStrategies.latencyEwma())) {
+      List<TestBroker> brokers = Arrays.asList(new TestBroker(3), new TestBroker(1));
+      // failing broker looks best by every measure, but gets nothing
+      brokers.get(0).available = false;
+      brokers.get(1).outstanding = 100;
+      brokers.get(1).latencyEwmaNanos = 1_000_000;
+      assertArrayEquals(new int[] {0, 10}, select(strategy, brokers, 10));
+
+      // if no broker is available, tasks still go somewhere
+      brokers.get(1).available = false;
+      int[] counts = select(strategy, brokers, 10);
+      assertEquals(10, counts[0] + counts[1]);
+
+      brokers.get(0).available = true;
+      brokers.get(1).available = true;
+      assertTrue(select(strategy, brokers, 10)[0] > 0);
+    }
+  }
+
+  private static int[] select(BrokerSelectionStrategy strategy, List<TestBroker> brokers, int times) {
+    int[] counts = new int[brokers.size()];
+    for (int i = 0; i < times; i++) {
+      counts[strategy.select(brokers)]++;
+    }
+    return counts;
+  }
+
+  private static final class TestBroker implements BrokerStats {
+    final int weight;
+    int outstanding;
+    double latencyEwmaNanos;
+    boolean available = true;
+
+    TestBroker(int weight) {
+      this.weight = weight;
+    }
+
+    @Override
+    public String getName() {
+      return "broker";
+    }
+
+    @Override
+    public int getWeight() {
+      return weight;
+    }
+
+    @Override
+    public int getOutstanding() {
+      return outstanding;
+    }
+
+    @Override
+    public double getLatencyEwmaNanos() {
+      return latencyEwmaNanos;
+    }
+
+    @Override
+    public boolean isAvailable() {
+      return available;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package ru.hh.rabbitmq.spring.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+
+public class ConfirmTimerTest {
+
+  @Test
+  public void testConfirmLatencyAndPending() throws InterruptedException {
+    ConfirmTimer timer = new ConfirmTimer();
+    CorrelatedMessage first = new CorrelatedMessage(new CorrelationData("1"), "first");
+    CorrelatedMessage second = new CorrelatedMessage(new CorrelationData("2"), "second");
+
+    timer.sending(first);
+    timer.sending(second);
+    timer.sending("not correlated");
+    assertEquals(2, timer.getPending());
+
+    Thread.sleep(20);
+    long elapsedNanos = timer.confirmed(first.getCorrelationData());
+    assertTrue(elapsedNanos >= TimeUnit.MILLISECONDS.toNanos(20));
+    assertEquals(1, timer.getPending());
+    // repeated confirm is not timed again
+    assertEquals(-1, timer.confirmed(first.getCorrelationData()));
+
+    // message that failed to publish is not waiting for confirm
+    timer.failed(second);
+    assertEquals(0, timer.getPending());
+    assertEquals(-1, timer.confirmed(second.getCorrelationData()));
+    assertEquals(-1, timer.confirmed(null));
+  }
+
+  @Test
+  public void testConfirmBeforePublishingReturns() {
+    ConfirmTimer timer = new ConfirmTimer();
+    CorrelatedMessage message = new CorrelatedMessage(new CorrelationData("1"), "message");
+
+    // send time is recorded before publishing, so confirm that races publishing is still timed
+    timer.sending(message);
+    assertTrue(timer.confirmed(message.getCorrelationData()) >= 0);
+    assertEquals(0, timer.getPending());
+  }
+}
@@ -0,0 +1,64 @@
+package ru.hh.rabbitmq.spring.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.MDC;
+import ru.hh.rabbitmq.spring.MDCMessagePropertiesConverter;
+
+public class MdcSnapshotsTest {
+
+  @After
+  public void clearMdc() {
+    MDC.clear();
+  }
+
+  @Test
+  public void testSnapshotIsReusedWhileContextIsUnchanged() {
+    MdcSnapshots snapshots = new MdcSnapshots(new MDCMessagePropertiesConverter());
+    assertSame(MdcSnapshot.EMPTY, snapshots.capture());
+
+    MDC.put("requestId", "1");
+    MdcSnapshot first = snapshots.capture();
+    assertEquals(Collections.singletonMap("requestId", "1"), first.getContext());
+    assertSame(first, snapshots.capture());
+
+    // every kind of change is noticed, even right after capture
+    MDC.put("user", "john");
+    MdcSnapshot second = snapshots.capture();
+    assertNotSame(first, second);
+    assertEquals("john", second.getContext().get("user"));
+    assertSame(second, snapshots.capture());
+
+    MDC.remove("user");
+    MdcSnapshot third = snapshots.capture();
+    assertEquals(first, third);
+    assertEquals(Collections.singletonMap("requestId", "1"), third.getContext());
+
+    MDC.setContextMap(Collections.singletonMap("requestId", "2"));
+    assertEquals(Collections.singletonMap("requestId", "2"), snapshots.capture().getContext());
+
+    MDC.clear();
+    assertSame(MdcSnapshot.EMPTY, snapshots.capture());
+  }
+
+  @Test
+  public void testWhitelistedKeys() {
+    MdcSnapshots snapshots = new MdcSnapshots(new MDCMessagePropertiesConverter(Arrays.asList("requestId"), false));
+    MDC.put("requestId", "1");
+    MDC.put("user", "john");
+    MdcSnapshot first = snapshots.capture();
+    assertEquals(Collections.singletonMap("requestId", "1"), first.getContext());
+
+    // change of key that is not propagated keeps snapshot
+    MDC.put("user", "jane");
+    assertSame(first, snapshots.capture());
+
+    MDC.put("requestId", "2");
+    assertEquals(Collections.singletonMap("requestId", "2"), snapshots.capture().getContext());
+  }
+}
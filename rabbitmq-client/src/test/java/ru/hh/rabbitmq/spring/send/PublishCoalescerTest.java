@@ -0,0 +1,63 @@
+package ru.hh.rabbitmq.spring.send;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+public class PublishCoalescerTest {
+
+  @Test
+  public void testSubmitRacingFlushAllCompletesEveryFuture() throws InterruptedException, TimeoutException {
+    Queue<PublishTaskFuture> tasks = new ConcurrentLinkedQueue<>();
+    PublishCoalescer coalescer = new PublishCoalescer("coalescer", Duration.ofHours(1), tasks::add);
+    Destination destination = new Destination("exchange", "key");
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+
+    CountDownLatch submitting = new CountDownLatch(1);
+    Thread submitter = new Thread(() -> {
+      for (int i = 0; i < 10000; i++) {
+        ListenableFuture<Void> future = coalescer.submit(i, destination, "message", null);
+        synchronized (futures) {
+          futures.add(future);
+        }
+        submitting.countDown();
+      }
+    });
+    submitter.start();
+    assertTrue(submitting.await(1, TimeUnit.SECONDS));
+    coalescer.flushAll();
+    submitter.join();
+
+    // submitted before stop are passed to queue, the rest fail instead of waiting for flush that never comes
+    int enqueued = 0;
+    for (ListenableFuture<Void> future : futures) {
+      if (!future.isDone()) {
+        enqueued++;
+        continue;
+      }
+      try {
+        future.get(0, TimeUnit.MILLISECONDS);
+        fail("future of message that was not sent is completed");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IllegalStateException);
+      }
+    }
+    assertTrue(enqueued > 0);
+    assertEquals(tasks.size(), enqueued);
+    tasks.forEach(PublishTaskFuture::complete);
+    for (ListenableFuture<Void> future : futures) {
+      assertTrue(future.isDone());
+    }
+  }
+}